@@ -168,6 +168,13 @@ public abstract class InstrumentClusterRenderingService extends Service {
                 }
             }
             writer.println("navigation focus owner: " + owner);
+            NavigationBinder navigationBinder;
+            synchronized (mLock) {
+                navigationBinder = mRendererBinder.mNavigationBinder;
+            }
+            if (navigationBinder != null) {
+                writer.println("navigation events: " + navigationBinder.mNavigationRenderer);
+            }
         }
         IInstrumentClusterCallback cb;
         synchronized (mLock) {
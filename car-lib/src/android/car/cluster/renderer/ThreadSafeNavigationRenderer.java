@@ -22,13 +22,20 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
 
 import java.lang.ref.WeakReference;
 import java.util.concurrent.CountDownLatch;
 
 /**
  * A wrapper over {@link NavigationRenderer} that runs all its methods in the context of provided
- * looper. It is guaranteed that all calls will be invoked in order they were called.
+ * looper.
+ * <p>
+ * Events are latest-value-wins per event type: if an event of a type is still waiting to be
+ * rendered when a newer one of the same type arrives, the older one is dropped. Event types are
+ * rendered in the order their oldest pending event arrived.
  */
 // TODO(deanh): Does this class even need to exist?
 /* package */ class ThreadSafeNavigationRenderer extends NavigationRenderer {
@@ -38,6 +45,20 @@ import java.util.concurrent.CountDownLatch;
 
     private final static int MSG_EVENT = 1;
 
+    private final Object mLock = new Object();
+    /** Newest event per event type that has not been rendered yet. */
+    @GuardedBy("mLock")
+    private final SparseArray<Bundle> mPendingEvents = new SparseArray<>();
+    @GuardedBy("mLock")
+    private long mEventsReceived;
+    @GuardedBy("mLock")
+    private long mEventsCoalesced;
+    @GuardedBy("mLock")
+    private long mEventsRendered;
+
+    /** Navigation properties do not change, they are fetched once. */
+    private volatile CarNavigationInstrumentCluster mNavigationProperties;
+
     /** Creates thread-safe {@link NavigationRenderer}. Returns null if renderer == null */
     @Nullable
     static NavigationRenderer createFor(Looper looper, NavigationRenderer renderer) {
@@ -46,15 +67,25 @@ import java.util.concurrent.CountDownLatch;
 
     private ThreadSafeNavigationRenderer(Looper looper, NavigationRenderer renderer) {
         mRenderer = renderer;
-        mHandler = new NavigationRendererHandler(looper, renderer);
+        mHandler = new NavigationRendererHandler(looper, renderer, this);
+        // Fetch the properties ahead of the first request so callers do not have to wait.
+        mHandler.post(() -> {
+            if (mNavigationProperties == null) {
+                mNavigationProperties = mRenderer.getNavigationProperties();
+            }
+        });
     }
 
     @Override
     public CarNavigationInstrumentCluster getNavigationProperties() {
+        CarNavigationInstrumentCluster properties = mNavigationProperties;
+        if (properties != null) {
+            return properties;
+        }
         if (mHandler.getLooper() == Looper.myLooper()) {
-            return mRenderer.getNavigationProperties();
+            properties = mRenderer.getNavigationProperties();
         } else {
-            return runAndWaitResult(mHandler,
+            properties = runAndWaitResult(mHandler,
                     new RunnableWithResult<CarNavigationInstrumentCluster>() {
                         @Override
                         protected CarNavigationInstrumentCluster createResult() {
@@ -62,25 +93,71 @@ import java.util.concurrent.CountDownLatch;
                         }
                     });
         }
+        mNavigationProperties = properties;
+        return properties;
     }
 
     @Override
     public void onEvent(int eventType, Bundle bundle) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_EVENT, eventType, 0, bundle));
+        synchronized (mLock) {
+            mEventsReceived++;
+            int index = mPendingEvents.indexOfKey(eventType);
+            if (index >= 0) {
+                // A message for this event type is already queued, it will pick up this bundle.
+                mPendingEvents.setValueAt(index, bundle);
+                mEventsCoalesced++;
+                return;
+            }
+            mPendingEvents.put(eventType, bundle);
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_EVENT, eventType, 0));
+    }
+
+    /** Returns the newest pending event of the given type and marks it as rendered. */
+    private Bundle takePendingEvent(int eventType) {
+        synchronized (mLock) {
+            int index = mPendingEvents.indexOfKey(eventType);
+            if (index < 0) {
+                return null;
+            }
+            Bundle bundle = mPendingEvents.valueAt(index);
+            mPendingEvents.removeAt(index);
+            mEventsRendered++;
+            return bundle;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return getClass().getSimpleName() + "{"
+                    + "renderer=" + mRenderer
+                    + ", eventsReceived=" + mEventsReceived
+                    + ", eventsCoalesced=" + mEventsCoalesced
+                    + ", eventsRendered=" + mEventsRendered
+                    + ", eventsPending=" + mPendingEvents.size()
+                    + "}";
+        }
     }
 
     private static class NavigationRendererHandler extends RendererHandler<NavigationRenderer> {
+        /** Held weakly like the renderer, queued messages must not keep the wrapper alive. */
+        private final WeakReference<ThreadSafeNavigationRenderer> mOwnerRef;
 
-        NavigationRendererHandler(Looper looper, NavigationRenderer renderer) {
+        NavigationRendererHandler(Looper looper, NavigationRenderer renderer,
+                ThreadSafeNavigationRenderer owner) {
             super(looper, renderer);
+            mOwnerRef = new WeakReference<>(owner);
         }
 
         @Override
         public void handleMessage(Message msg, NavigationRenderer renderer) {
             switch (msg.what) {
                 case MSG_EVENT:
-                    Bundle bundle = (Bundle) msg.obj;
-                    renderer.onEvent(msg.arg1, bundle);
+                    ThreadSafeNavigationRenderer owner = mOwnerRef.get();
+                    if (owner != null) {
+                        renderer.onEvent(msg.arg1, owner.takePendingEvent(msg.arg1));
+                    }
                     break;
                 default:
                     throw new IllegalArgumentException("Msg: " + msg.what);
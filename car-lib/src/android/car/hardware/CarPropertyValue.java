@@ -39,11 +39,42 @@ import java.nio.charset.Charset;
 public class CarPropertyValue<T> implements Parcelable {
     private final static Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
+    // Type tags of the compact value encoding. A tag is written in place of the value class name
+    // of the legacy encoding. As the length of a String in a Parcel is never below -1 (null),
+    // readers can tell both encodings apart and still read values written the legacy way.
+    // Values of any other type keep using the legacy encoding.
+    private static final int TYPE_LEGACY = 0;
+    private static final int TYPE_NULL = -2;
+    private static final int TYPE_BOOLEAN = -3;
+    private static final int TYPE_INTEGER = -4;
+    private static final int TYPE_FLOAT = -5;
+    private static final int TYPE_LONG = -6;
+    private static final int TYPE_STRING = -7;
+    private static final int TYPE_BYTE_ARRAY = -8;
+    private static final int TYPE_BOOLEAN_ARRAY = -9;
+    private static final int TYPE_INTEGER_ARRAY = -10;
+    private static final int TYPE_FLOAT_ARRAY = -11;
+    private static final int TYPE_LONG_ARRAY = -12;
+    /** {@code Object[]} of one scalar type, followed by the element type tag. */
+    private static final int TYPE_OBJECT_ARRAY = -13;
+    // Primitive value holders, followed by the boxing mode.
+    private static final int TYPE_PRIMITIVE_INT_ARRAY = -14;
+    private static final int TYPE_PRIMITIVE_FLOAT_ARRAY = -15;
+    private static final int TYPE_PRIMITIVE_LONG_ARRAY = -16;
+
     private final int mPropertyId;
     private final int mAreaId;
     private final int mStatus;
     private final long mTimestamp;
-    private final T mValue;
+    /** int[], float[] or long[] the value is held in, or null if held in boxed form only. */
+    private final Object mPrimitiveValue;
+    /**
+     * How {@link #mPrimitiveValue} is boxed: always as a typed array if true, otherwise as a
+     * scalar if it has a single element and as an {@code Object[]} if not.
+     */
+    private final boolean mBoxAsTypedArray;
+    /** Boxed value, created lazily from {@link #mPrimitiveValue} if there is one. */
+    private volatile T mValue;
 
     /** @hide */
     @IntDef({
@@ -73,6 +104,51 @@ public class CarPropertyValue<T> implements Parcelable {
         mStatus = status;
         mTimestamp = timestamp;
         mValue = value;
+        mPrimitiveValue = null;
+        mBoxAsTypedArray = false;
+    }
+
+    private CarPropertyValue(int propertyId, int areaId, int status, long timestamp,
+            Object primitiveValue, boolean boxAsTypedArray) {
+        mPropertyId = propertyId;
+        mAreaId = areaId;
+        mStatus = status;
+        mTimestamp = timestamp;
+        mPrimitiveValue = primitiveValue;
+        mBoxAsTypedArray = boxAsTypedArray;
+    }
+
+    /**
+     * Creates a value held in an int array. {@link #getValue()} boxes it on first use.
+     *
+     * @param boxAsTypedArray if true, {@link #getValue()} returns an {@code Integer[]}. Otherwise
+     *        it returns an {@code Integer} for a single element and an {@code Object[]} for more.
+     * @hide
+     */
+    public static CarPropertyValue<?> createFromIntArray(int propertyId, int areaId, int status,
+            long timestamp, int[] values, boolean boxAsTypedArray) {
+        return new CarPropertyValue<>(propertyId, areaId, status, timestamp, values,
+                boxAsTypedArray);
+    }
+
+    /**
+     * Float counterpart of {@link #createFromIntArray}.
+     * @hide
+     */
+    public static CarPropertyValue<?> createFromFloatArray(int propertyId, int areaId,
+            int status, long timestamp, float[] values, boolean boxAsTypedArray) {
+        return new CarPropertyValue<>(propertyId, areaId, status, timestamp, values,
+                boxAsTypedArray);
+    }
+
+    /**
+     * Long counterpart of {@link #createFromIntArray}.
+     * @hide
+     */
+    public static CarPropertyValue<?> createFromLongArray(int propertyId, int areaId,
+            int status, long timestamp, long[] values, boolean boxAsTypedArray) {
+        return new CarPropertyValue<>(propertyId, areaId, status, timestamp, values,
+                boxAsTypedArray);
     }
 
     @SuppressWarnings("unchecked")
@@ -81,6 +157,37 @@ public class CarPropertyValue<T> implements Parcelable {
         mAreaId = in.readInt();
         mStatus = in.readInt();
         mTimestamp = in.readLong();
+        int position = in.dataPosition();
+        int typeTag = in.readInt();
+        if (typeTag == TYPE_PRIMITIVE_INT_ARRAY || typeTag == TYPE_PRIMITIVE_FLOAT_ARRAY
+                || typeTag == TYPE_PRIMITIVE_LONG_ARRAY) {
+            mBoxAsTypedArray = in.readInt() != 0;
+            mPrimitiveValue = readPrimitiveArray(in, typeTag);
+            return;
+        }
+        mBoxAsTypedArray = false;
+        mPrimitiveValue = null;
+        if (typeTag >= -1) {
+            // Legacy encoding, the int read is the length of the value class name.
+            in.setDataPosition(position);
+            mValue = (T) readLegacyValue(in);
+        } else {
+            mValue = (T) readTypedValue(in, typeTag);
+        }
+    }
+
+    private static Object readPrimitiveArray(Parcel in, int typeTag) {
+        switch (typeTag) {
+            case TYPE_PRIMITIVE_INT_ARRAY:
+                return in.createIntArray();
+            case TYPE_PRIMITIVE_FLOAT_ARRAY:
+                return in.createFloatArray();
+            default:
+                return in.createLongArray();
+        }
+    }
+
+    private static Object readLegacyValue(Parcel in) {
         String valueClassName = in.readString();
         Class<?> valueClass;
         try {
@@ -91,14 +198,66 @@ public class CarPropertyValue<T> implements Parcelable {
 
         if (String.class.equals(valueClass)) {
             byte[] bytes = in.readBlob();
-            mValue = (T) new String(bytes, DEFAULT_CHARSET);
+            return new String(bytes, DEFAULT_CHARSET);
         } else if (byte[].class.equals(valueClass)) {
-            mValue = (T) in.readBlob();
+            return in.readBlob();
         } else {
-            mValue = (T) in.readValue(valueClass.getClassLoader());
+            return in.readValue(valueClass.getClassLoader());
         }
     }
 
+    private static Object readTypedValue(Parcel in, int typeTag) {
+        switch (typeTag) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+            case TYPE_INTEGER:
+            case TYPE_FLOAT:
+            case TYPE_LONG:
+                return readScalar(in, typeTag);
+            case TYPE_STRING:
+                return new String(in.readBlob(), DEFAULT_CHARSET);
+            case TYPE_BYTE_ARRAY:
+                return in.readBlob();
+            case TYPE_BOOLEAN_ARRAY:
+                return readElements(in, new Boolean[in.readInt()], TYPE_BOOLEAN);
+            case TYPE_INTEGER_ARRAY:
+                return readElements(in, new Integer[in.readInt()], TYPE_INTEGER);
+            case TYPE_FLOAT_ARRAY:
+                return readElements(in, new Float[in.readInt()], TYPE_FLOAT);
+            case TYPE_LONG_ARRAY:
+                return readElements(in, new Long[in.readInt()], TYPE_LONG);
+            case TYPE_OBJECT_ARRAY: {
+                int elementTypeTag = in.readInt();
+                return readElements(in, new Object[in.readInt()], elementTypeTag);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + typeTag);
+        }
+    }
+
+    private static Object readScalar(Parcel in, int typeTag) {
+        switch (typeTag) {
+            case TYPE_BOOLEAN:
+                return in.readInt() != 0;
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_LONG:
+                return in.readLong();
+            default:
+                throw new IllegalArgumentException("Unknown element type: " + typeTag);
+        }
+    }
+
+    private static Object[] readElements(Parcel in, Object[] values, int elementTypeTag) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readScalar(in, elementTypeTag);
+        }
+        return values;
+    }
+
     public static final Creator<CarPropertyValue> CREATOR = new Creator<CarPropertyValue>() {
         @Override
         public CarPropertyValue createFromParcel(Parcel in) {
@@ -123,19 +282,159 @@ public class CarPropertyValue<T> implements Parcelable {
         dest.writeInt(mStatus);
         dest.writeLong(mTimestamp);
 
-        Class<?> valueClass = mValue == null ? null : mValue.getClass();
-        dest.writeString(valueClass == null ? null : valueClass.getName());
+        if (mPrimitiveValue != null) {
+            writePrimitiveArray(dest);
+            return;
+        }
+        int typeTag = getTypeTag(mValue);
+        if (typeTag == TYPE_LEGACY) {
+            writeLegacyValue(dest);
+            return;
+        }
+        dest.writeInt(typeTag);
+        switch (typeTag) {
+            case TYPE_NULL:
+                break;
+            case TYPE_BOOLEAN:
+            case TYPE_INTEGER:
+            case TYPE_FLOAT:
+            case TYPE_LONG:
+                writeScalar(dest, mValue, typeTag);
+                break;
+            // Special handling for String and byte[] to mitigate transaction buffer limitations.
+            case TYPE_STRING:
+                dest.writeBlob(((String) mValue).getBytes(DEFAULT_CHARSET));
+                break;
+            case TYPE_BYTE_ARRAY:
+                dest.writeBlob((byte[]) mValue);
+                break;
+            case TYPE_BOOLEAN_ARRAY:
+                writeElements(dest, (Object[]) mValue, TYPE_BOOLEAN);
+                break;
+            case TYPE_INTEGER_ARRAY:
+                writeElements(dest, (Object[]) mValue, TYPE_INTEGER);
+                break;
+            case TYPE_FLOAT_ARRAY:
+                writeElements(dest, (Object[]) mValue, TYPE_FLOAT);
+                break;
+            case TYPE_LONG_ARRAY:
+                writeElements(dest, (Object[]) mValue, TYPE_LONG);
+                break;
+            case TYPE_OBJECT_ARRAY: {
+                Object[] values = (Object[]) mValue;
+                int elementTypeTag = getScalarTypeTag(values[0]);
+                dest.writeInt(elementTypeTag);
+                writeElements(dest, values, elementTypeTag);
+                break;
+            }
+        }
+    }
 
-        // Special handling for String and byte[] to mitigate transaction buffer limitations.
-        if (String.class.equals(valueClass)) {
-            dest.writeBlob(((String)mValue).getBytes(DEFAULT_CHARSET));
-        } else if (byte[].class.equals(valueClass)) {
-            dest.writeBlob((byte[]) mValue);
+    private void writePrimitiveArray(Parcel dest) {
+        if (mPrimitiveValue instanceof int[]) {
+            dest.writeInt(TYPE_PRIMITIVE_INT_ARRAY);
+            dest.writeInt(mBoxAsTypedArray ? 1 : 0);
+            dest.writeIntArray((int[]) mPrimitiveValue);
+        } else if (mPrimitiveValue instanceof float[]) {
+            dest.writeInt(TYPE_PRIMITIVE_FLOAT_ARRAY);
+            dest.writeInt(mBoxAsTypedArray ? 1 : 0);
+            dest.writeFloatArray((float[]) mPrimitiveValue);
         } else {
-            dest.writeValue(mValue);
+            dest.writeInt(TYPE_PRIMITIVE_LONG_ARRAY);
+            dest.writeInt(mBoxAsTypedArray ? 1 : 0);
+            dest.writeLongArray((long[]) mPrimitiveValue);
         }
     }
 
+    private void writeLegacyValue(Parcel dest) {
+        Class<?> valueClass = mValue.getClass();
+        dest.writeString(valueClass.getName());
+        dest.writeValue(mValue);
+    }
+
+    private static void writeScalar(Parcel dest, Object value, int typeTag) {
+        switch (typeTag) {
+            case TYPE_BOOLEAN:
+                dest.writeInt(((Boolean) value) ? 1 : 0);
+                break;
+            case TYPE_INTEGER:
+                dest.writeInt((Integer) value);
+                break;
+            case TYPE_FLOAT:
+                dest.writeFloat((Float) value);
+                break;
+            case TYPE_LONG:
+                dest.writeLong((Long) value);
+                break;
+        }
+    }
+
+    private static void writeElements(Parcel dest, Object[] values, int elementTypeTag) {
+        dest.writeInt(values.length);
+        for (Object value : values) {
+            writeScalar(dest, value, elementTypeTag);
+        }
+    }
+
+    private static int getTypeTag(Object value) {
+        if (value == null) {
+            return TYPE_NULL;
+        }
+        Class<?> valueClass = value.getClass();
+        if (String.class == valueClass) {
+            return TYPE_STRING;
+        } else if (byte[].class == valueClass) {
+            return TYPE_BYTE_ARRAY;
+        } else if (Boolean[].class == valueClass) {
+            return hasOnlyScalarsOf((Object[]) value, TYPE_BOOLEAN)
+                    ? TYPE_BOOLEAN_ARRAY : TYPE_LEGACY;
+        } else if (Integer[].class == valueClass) {
+            return hasOnlyScalarsOf((Object[]) value, TYPE_INTEGER)
+                    ? TYPE_INTEGER_ARRAY : TYPE_LEGACY;
+        } else if (Float[].class == valueClass) {
+            return hasOnlyScalarsOf((Object[]) value, TYPE_FLOAT)
+                    ? TYPE_FLOAT_ARRAY : TYPE_LEGACY;
+        } else if (Long[].class == valueClass) {
+            return hasOnlyScalarsOf((Object[]) value, TYPE_LONG)
+                    ? TYPE_LONG_ARRAY : TYPE_LEGACY;
+        } else if (Object[].class == valueClass) {
+            Object[] values = (Object[]) value;
+            if (values.length == 0) {
+                return TYPE_LEGACY;
+            }
+            int elementTypeTag = getScalarTypeTag(values[0]);
+            return elementTypeTag != TYPE_LEGACY && hasOnlyScalarsOf(values, elementTypeTag)
+                    ? TYPE_OBJECT_ARRAY : TYPE_LEGACY;
+        }
+        return getScalarTypeTag(value);
+    }
+
+    private static int getScalarTypeTag(Object value) {
+        if (value == null) {
+            return TYPE_LEGACY;
+        }
+        Class<?> valueClass = value.getClass();
+        if (Boolean.class == valueClass) {
+            return TYPE_BOOLEAN;
+        } else if (Integer.class == valueClass) {
+            return TYPE_INTEGER;
+        } else if (Float.class == valueClass) {
+            return TYPE_FLOAT;
+        } else if (Long.class == valueClass) {
+            return TYPE_LONG;
+        }
+        return TYPE_LEGACY;
+    }
+
+    private static boolean hasOnlyScalarsOf(Object[] values, int typeTag) {
+        for (Object value : values) {
+            if (getScalarTypeTag(value) != typeTag) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int getPropertyId() {
         return mPropertyId;
     }
@@ -152,8 +451,80 @@ public class CarPropertyValue<T> implements Parcelable {
         return mTimestamp;
     }
 
+    /**
+     * Returns the value. Values held in primitive arrays are boxed on the first call.
+     */
+    @SuppressWarnings("unchecked")
     public T getValue() {
-        return mValue;
+        T value = mValue;
+        if (value == null && mPrimitiveValue != null) {
+            // Racing callers box equal values, any of them may win.
+            value = (T) boxPrimitiveValue();
+            mValue = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value without boxing if it is held in an int array, null otherwise. The array
+     * is shared and must not be modified.
+     * @hide
+     */
+    public int[] getIntArrayValue() {
+        return mPrimitiveValue instanceof int[] ? (int[]) mPrimitiveValue : null;
+    }
+
+    /**
+     * Float counterpart of {@link #getIntArrayValue()}.
+     * @hide
+     */
+    public float[] getFloatArrayValue() {
+        return mPrimitiveValue instanceof float[] ? (float[]) mPrimitiveValue : null;
+    }
+
+    /**
+     * Long counterpart of {@link #getIntArrayValue()}.
+     * @hide
+     */
+    public long[] getLongArrayValue() {
+        return mPrimitiveValue instanceof long[] ? (long[]) mPrimitiveValue : null;
+    }
+
+    private Object boxPrimitiveValue() {
+        if (mPrimitiveValue instanceof int[]) {
+            int[] values = (int[]) mPrimitiveValue;
+            if (!mBoxAsTypedArray && values.length == 1) {
+                return values[0];
+            }
+            Object[] boxed = mBoxAsTypedArray
+                    ? new Integer[values.length] : new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            return boxed;
+        } else if (mPrimitiveValue instanceof float[]) {
+            float[] values = (float[]) mPrimitiveValue;
+            if (!mBoxAsTypedArray && values.length == 1) {
+                return values[0];
+            }
+            Object[] boxed = mBoxAsTypedArray
+                    ? new Float[values.length] : new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            return boxed;
+        } else {
+            long[] values = (long[]) mPrimitiveValue;
+            if (!mBoxAsTypedArray && values.length == 1) {
+                return values[0];
+            }
+            Object[] boxed = mBoxAsTypedArray
+                    ? new Long[values.length] : new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                boxed[i] = values[i];
+            }
+            return boxed;
+        }
     }
 
     @Override
@@ -163,7 +534,7 @@ public class CarPropertyValue<T> implements Parcelable {
                 ", mAreaId=0x" + toHexString(mAreaId) +
                 ", mStatus=" + mStatus +
                 ", mTimestamp=" + mTimestamp +
-                ", mValue=" + mValue +
+                ", mValue=" + getValue() +
                 '}';
     }
 }
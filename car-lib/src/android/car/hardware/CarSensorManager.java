@@ -33,6 +33,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -246,6 +247,11 @@ public final class CarSensorManager implements CarManagerBase {
      */
     private final HashMap<OnSensorChangedListener, CarPropertyEventListenerToBase> mListenerMap =
             new HashMap<>();
+    /**
+     * To keep record of CarPropertyEventListenerToValueListener
+     */
+    private final HashMap<OnSensorValueChangedListener, CarPropertyEventListenerToValueListener>
+            mValueListenerMap = new HashMap<>();
     /**
      * Listener for car sensor data change.
      * Callbacks are called in the Looper context.
@@ -258,19 +264,60 @@ public final class CarSensorManager implements CarManagerBase {
         void onSensorChanged(CarSensorEvent event);
     }
 
+    /**
+     * Listener for car sensor data change that receives values as primitives, without any
+     * {@link CarSensorEvent}. Callbacks are called in the Looper context.
+     * @hide
+     */
+    public interface OnSensorValueChangedListener {
+        /** Called for sensors with a single float value, like {@link #SENSOR_TYPE_CAR_SPEED}. */
+        void onFloatSensorChanged(int sensorType, long timestamp, float value);
+
+        /**
+         * Called for sensors with a single int or boolean value, like {@link #SENSOR_TYPE_GEAR}.
+         * Booleans are reported as 1 or 0.
+         */
+        void onIntSensorChanged(int sensorType, long timestamp, int value);
+
+        /**
+         * Called for sensors with multiple long values, like
+         * {@link #SENSOR_TYPE_WHEEL_TICK_DISTANCE}.
+         *
+         * @param values only valid for the duration of the call, must not be kept or modified.
+         */
+        void onLongArraySensorChanged(int sensorType, long timestamp, long[] values);
+    }
+
     private static class CarPropertyEventListenerToBase implements
             CarPropertyManager.CarPropertyEventListener{
         private final WeakReference<CarSensorManager> mManager;
         private final OnSensorChangedListener mListener;
-        CarPropertyEventListenerToBase(CarSensorManager manager, OnSensorChangedListener listener) {
+        private final boolean mReuseEvents;
+        /** Reused events by sensor type, only accessed from the Looper thread. */
+        private final SparseArray<CarSensorEvent> mReusableEvents;
+
+        CarPropertyEventListenerToBase(CarSensorManager manager, OnSensorChangedListener listener,
+                boolean reuseEvents) {
             mManager = new WeakReference<>(manager);
             mListener = listener;
+            mReuseEvents = reuseEvents;
+            mReusableEvents = reuseEvents ? new SparseArray<>() : null;
         }
 
         @Override
         public void onChangeEvent(CarPropertyValue value) {
             CarSensorManager manager = mManager.get();
-            if (manager != null) {
+            if (manager == null) {
+                return;
+            }
+            if (mReuseEvents) {
+                CarSensorEvent event = fillCarSensorEvent(
+                        mReusableEvents.get(value.getPropertyId()), value);
+                if (event != null) {
+                    mReusableEvents.put(value.getPropertyId(), event);
+                    mListener.onSensorChanged(event);
+                }
+            } else {
                 manager.handleOnChangeEvent(value, mListener);
             }
         }
@@ -281,13 +328,47 @@ public final class CarSensorManager implements CarManagerBase {
         }
     }
 
-    private void handleOnChangeEvent(CarPropertyValue value, OnSensorChangedListener listener) {
-        synchronized (mListenerMap) {
-            CarSensorEvent event = createCarSensorEvent(value);
-            listener.onSensorChanged(event);
+    private static class CarPropertyEventListenerToValueListener implements
+            CarPropertyManager.CarPropertyEventListener {
+        private final OnSensorValueChangedListener mListener;
+
+        CarPropertyEventListenerToValueListener(OnSensorValueChangedListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onChangeEvent(CarPropertyValue value) {
+            int sensorType = value.getPropertyId();
+            long timestamp = value.getTimestamp();
+            switch (sensorType & VehiclePropertyType.MASK) {
+                case VehiclePropertyType.FLOAT:
+                    mListener.onFloatSensorChanged(sensorType, timestamp, getFloatValue(value));
+                    break;
+                case VehiclePropertyType.INT32:
+                case VehiclePropertyType.BOOLEAN:
+                    mListener.onIntSensorChanged(sensorType, timestamp, getIntValue(value));
+                    break;
+                case VehiclePropertyType.INT64_VEC:
+                    mListener.onLongArraySensorChanged(sensorType, timestamp,
+                            getLongArrayValue(value));
+                    break;
+                default:
+                    Log.e(TAG, "unhandled VehiclePropertyType for propId=" + sensorType);
+                    break;
+            }
+        }
+
+        @Override
+        public void onErrorEvent(int propertyId, int zone) {
+
         }
     }
 
+    private void handleOnChangeEvent(CarPropertyValue value, OnSensorChangedListener listener) {
+        CarSensorEvent event = createCarSensorEvent(value);
+        listener.onSensorChanged(event);
+    }
+
     private void handleOnErrorEvent(int propertyId, int zone) {
 
     }
@@ -302,6 +383,9 @@ public final class CarSensorManager implements CarManagerBase {
         synchronized (mListenerMap) {
             mListenerMap.clear();
         }
+        synchronized (mValueListenerMap) {
+            mValueListenerMap.clear();
+        }
         mCarPropertyMgr.onCarDisconnected();
     }
 
@@ -396,12 +480,29 @@ public final class CarSensorManager implements CarManagerBase {
             conditional=true)
     public boolean registerListener(OnSensorChangedListener listener, @SensorType int sensorType,
             @SensorRate int rate) throws CarNotConnectedException, IllegalArgumentException {
-        if (rate != SENSOR_RATE_FASTEST && rate != SENSOR_RATE_NORMAL
-                && rate != SENSOR_RATE_UI && rate != SENSOR_RATE_FAST) {
-            throw new IllegalArgumentException("wrong rate " + rate);
-        }
+        return registerListener(listener, sensorType, rate, false);
+    }
+
+    /**
+     * Same as {@link #registerListener(OnSensorChangedListener, int, int)}, but if
+     * {@code reuseEvents} is true, the listener is handed the same {@link CarSensorEvent}
+     * instance for every update of a sensor type. Such an event is only valid for the duration
+     * of {@link OnSensorChangedListener#onSensorChanged}, and must be copied if needed later.
+     * This avoids allocating per update for sensors delivered at {@link #SENSOR_RATE_FASTEST}.
+     *
+     * Whether events are reused is decided by the first registration of a listener.
+     * @hide
+     */
+    @RequiresPermission(anyOf={Manifest.permission.ACCESS_FINE_LOCATION, Car.PERMISSION_SPEED,
+            Car.PERMISSION_MILEAGE, Car.PERMISSION_ENERGY, Car.PERMISSION_CAR_DYNAMICS_STATE},
+            conditional=true)
+    public boolean registerListener(OnSensorChangedListener listener, @SensorType int sensorType,
+            @SensorRate int rate, boolean reuseEvents)
+            throws CarNotConnectedException, IllegalArgumentException {
+        checkRate(rate);
         if (mListenerMap.get(listener) == null) {
-            mCarPropertyEventListener = new CarPropertyEventListenerToBase(this, listener);
+            mCarPropertyEventListener =
+                    new CarPropertyEventListenerToBase(this, listener, reuseEvents);
         } else {
             mCarPropertyEventListener = mListenerMap.get(listener);
         }
@@ -413,6 +514,56 @@ public final class CarSensorManager implements CarManagerBase {
         }
     }
 
+    /**
+     * Register {@link OnSensorValueChangedListener} to get repeated sensor updates as primitive
+     * values. Permissions and rates are the same as for
+     * {@link #registerListener(OnSensorChangedListener, int, int)}.
+     * @hide
+     */
+    @RequiresPermission(anyOf={Manifest.permission.ACCESS_FINE_LOCATION, Car.PERMISSION_SPEED,
+            Car.PERMISSION_MILEAGE, Car.PERMISSION_ENERGY, Car.PERMISSION_CAR_DYNAMICS_STATE},
+            conditional=true)
+    public boolean registerValueListener(OnSensorValueChangedListener listener,
+            @SensorType int sensorType, @SensorRate int rate)
+            throws CarNotConnectedException, IllegalArgumentException {
+        checkRate(rate);
+        CarPropertyEventListenerToValueListener propertyListener;
+        synchronized (mValueListenerMap) {
+            propertyListener = mValueListenerMap.get(listener);
+            if (propertyListener == null) {
+                propertyListener = new CarPropertyEventListenerToValueListener(listener);
+            }
+        }
+        if (mCarPropertyMgr.registerListener(propertyListener, sensorType, rate)) {
+            synchronized (mValueListenerMap) {
+                mValueListenerMap.put(listener, propertyListener);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop getting sensor updates for the given value listener, for all sensor types.
+     * @hide
+     */
+    public void unregisterValueListener(OnSensorValueChangedListener listener) {
+        CarPropertyEventListenerToValueListener propertyListener;
+        synchronized (mValueListenerMap) {
+            propertyListener = mValueListenerMap.remove(listener);
+        }
+        if (propertyListener != null) {
+            mCarPropertyMgr.unregisterListener(propertyListener);
+        }
+    }
+
+    private static void checkRate(int rate) {
+        if (rate != SENSOR_RATE_FASTEST && rate != SENSOR_RATE_NORMAL
+                && rate != SENSOR_RATE_UI && rate != SENSOR_RATE_FAST) {
+            throw new IllegalArgumentException("wrong rate " + rate);
+        }
+    }
+
     /**
      * Stop getting sensor update for the given listener. If there are multiple registrations for
      * this listener, all listening will be stopped.
@@ -468,39 +619,83 @@ public final class CarSensorManager implements CarManagerBase {
     }
 
     private CarSensorEvent createCarSensorEvent(CarPropertyValue propertyValue) {
+        return fillCarSensorEvent(null, propertyValue);
+    }
+
+    /**
+     * Fills {@code reuse} with the given value if its arrays have the right size, otherwise
+     * allocates a new event.
+     *
+     * @return the filled event, or null if the property type is not handled.
+     */
+    private static CarSensorEvent fillCarSensorEvent(CarSensorEvent reuse,
+            CarPropertyValue propertyValue) {
+        int sensorType = propertyValue.getPropertyId();
+        long timestamp = propertyValue.getTimestamp();
         CarSensorEvent event = null;
-        switch (propertyValue.getPropertyId() & VehiclePropertyType.MASK) {
+        switch (sensorType & VehiclePropertyType.MASK) {
             case VehiclePropertyType.FLOAT:
-                event = new CarSensorEvent(propertyValue.getPropertyId(),
-                        propertyValue.getTimestamp(), 1, 0, 0);
-                event.floatValues[0] = (float) propertyValue.getValue();
+                event = obtainCarSensorEvent(reuse, sensorType, timestamp, 1, 0, 0);
+                event.floatValues[0] = getFloatValue(propertyValue);
                 break;
             case VehiclePropertyType.INT32:
-                event = new CarSensorEvent(propertyValue.getPropertyId(),
-                        propertyValue.getTimestamp(), 0, 1, 0);
-                event.intValues[0] = (int) propertyValue.getValue();
-                break;
             case VehiclePropertyType.BOOLEAN:
-                event = new CarSensorEvent(propertyValue.getPropertyId(),
-                        propertyValue.getTimestamp(), 0, 1, 0);
-                event.intValues[0] = (boolean) propertyValue.getValue() ? 1 : 0;
+                event = obtainCarSensorEvent(reuse, sensorType, timestamp, 0, 1, 0);
+                event.intValues[0] = getIntValue(propertyValue);
                 break;
             case VehiclePropertyType.INT64_VEC:
-                Object[] value = (Object[]) propertyValue.getValue();
-                event = new CarSensorEvent(propertyValue.getPropertyId(),
-                        propertyValue.getTimestamp(), 0, 0, value.length);
-                for (int i = 0; i < value.length; i++) {
-                    event.longValues[i] = (Long) value[i];
-                }
+                long[] values = getLongArrayValue(propertyValue);
+                event = obtainCarSensorEvent(reuse, sensorType, timestamp, 0, 0, values.length);
+                System.arraycopy(values, 0, event.longValues, 0, values.length);
                 break;
             default:
-                Log.e(TAG, "unhandled VehiclePropertyType for propId="
-                        + propertyValue.getPropertyId());
+                Log.e(TAG, "unhandled VehiclePropertyType for propId=" + sensorType);
                 break;
         }
         return event;
     }
 
+    private static CarSensorEvent obtainCarSensorEvent(CarSensorEvent reuse, int sensorType,
+            long timestamp, int floatValueSize, int intValueSize, int longValueSize) {
+        if (reuse == null || reuse.floatValues.length != floatValueSize
+                || reuse.intValues.length != intValueSize
+                || reuse.longValues.length != longValueSize) {
+            return new CarSensorEvent(sensorType, timestamp, floatValueSize, intValueSize,
+                    longValueSize);
+        }
+        reuse.sensorType = sensorType;
+        reuse.timestamp = timestamp;
+        return reuse;
+    }
+
+    private static float getFloatValue(CarPropertyValue propertyValue) {
+        float[] values = propertyValue.getFloatArrayValue();
+        return values != null ? values[0] : (float) propertyValue.getValue();
+    }
+
+    private static int getIntValue(CarPropertyValue propertyValue) {
+        int[] values = propertyValue.getIntArrayValue();
+        if (values != null) {
+            return values[0];
+        }
+        Object value = propertyValue.getValue();
+        return value instanceof Boolean ? ((Boolean) value ? 1 : 0) : (Integer) value;
+    }
+
+    /** Returns the values without copying if held as primitives, so they must not be kept. */
+    private static long[] getLongArrayValue(CarPropertyValue propertyValue) {
+        long[] values = propertyValue.getLongArrayValue();
+        if (values != null) {
+            return values;
+        }
+        Object[] boxed = (Object[]) propertyValue.getValue();
+        values = new long[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            values[i] = (Long) boxed[i];
+        }
+        return values;
+    }
+
     /**
      * Get the config data for the given type.
      *
@@ -25,6 +25,12 @@ public class CarPropertyEvent implements Parcelable {
     public static final int PROPERTY_EVENT_PROPERTY_CHANGE = 0;
     public static final int PROPERTY_EVENT_ERROR = 1;
 
+    /**
+     * Written in place of the value class name when the value is inlined. Class name lengths
+     * are never below -1, so events written with {@code writeParcelable} can still be read.
+     */
+    private static final int INLINE_VALUE_MARKER = -2;
+
     /**
      * EventType of this message
      */
@@ -51,7 +57,13 @@ public class CarPropertyEvent implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mEventType);
-        dest.writeParcelable(mCarPropertyValue, flags);
+        if (mCarPropertyValue == null) {
+            dest.writeParcelable(null, flags);
+        } else {
+            // The value is always a CarPropertyValue, skip writing its class name.
+            dest.writeInt(INLINE_VALUE_MARKER);
+            mCarPropertyValue.writeToParcel(dest, flags);
+        }
     }
 
     public static final Parcelable.Creator<CarPropertyEvent> CREATOR
@@ -75,7 +87,13 @@ public class CarPropertyEvent implements Parcelable {
 
     private CarPropertyEvent(Parcel in) {
         mEventType  = in.readInt();
-        mCarPropertyValue = in.readParcelable(CarPropertyValue.class.getClassLoader());
+        int position = in.dataPosition();
+        if (in.readInt() == INLINE_VALUE_MARKER) {
+            mCarPropertyValue = CarPropertyValue.CREATOR.createFromParcel(in);
+        } else {
+            in.setDataPosition(position);
+            mCarPropertyValue = in.readParcelable(CarPropertyValue.class.getClassLoader());
+        }
     }
 
     @Override
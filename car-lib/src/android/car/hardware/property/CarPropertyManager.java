@@ -26,17 +26,24 @@ import android.car.hardware.CarPropertyValue;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import com.android.car.internal.CarRatedFloatListeners;
+import com.android.car.internal.LatencyHistogram;
 import com.android.car.internal.SingleMessageHandler;
+import com.android.internal.annotations.GuardedBy;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -45,7 +52,10 @@ import java.util.function.Consumer;
  */
 public class CarPropertyManager implements CarManagerBase {
     private final boolean mDbg;
+    /** Null if events are delivered through {@link #mExecutor}. */
     private final SingleMessageHandler<CarPropertyEvent> mHandler;
+    /** Null if events are delivered through {@link #mHandler}. */
+    private final Executor mExecutor;
     private final ICarProperty mService;
     private final String mTag;
     private static final int MSG_GENERIC_EVENT = 0;
@@ -57,6 +67,42 @@ public class CarPropertyManager implements CarManagerBase {
     private final SparseArray<CarPropertyListeners> mActivePropertyListener =
             new SparseArray<>();
 
+    /**
+     * Copy of {@link #mActivePropertyListener} used for event delivery. It is never modified,
+     * and is replaced whenever a property is added or removed, so delivery needs no lock.
+     */
+    private volatile SparseArray<CarPropertyListeners> mDispatchTable = new SparseArray<>();
+
+    /**
+     * Latency from the Vehicle HAL timestamp to listener invocation, per property. Kept when
+     * the last listener of a property is removed.
+     */
+    @GuardedBy("mActivePropertyListener")
+    private final SparseArray<LatencyHistogram> mListenerLatency = new SparseArray<>();
+
+    private final Object mCacheLock = new Object();
+    /**
+     * Latest values of properties this manager listens to, keyed by property id and area id, see
+     * {@link #cacheKey}. Only filled if caching is enabled.
+     */
+    @GuardedBy("mCacheLock")
+    private final LongSparseArray<CarPropertyValue<?>> mValueCache = new LongSparseArray<>();
+    /**
+     * K: property id, V: generation of its current {@link CarPropertyListeners}. Only properties
+     * with listeners are cached, and only from the events of their current listeners: a dispatch
+     * still running on a removed one must not refill the cache.
+     */
+    @GuardedBy("mCacheLock")
+    private final SparseIntArray mCacheGenerations = new SparseIntArray();
+    @GuardedBy("mCacheLock")
+    private int mNextCacheGeneration;
+    @GuardedBy("mCacheLock")
+    private boolean mCachingEnabled;
+    @GuardedBy("mCacheLock")
+    private long mCacheHits;
+    @GuardedBy("mCacheLock")
+    private long mCacheMisses;
+
     /** Callback functions for property events */
     public interface CarPropertyEventListener {
         /** Called when a property is updated */
@@ -73,31 +119,147 @@ public class CarPropertyManager implements CarManagerBase {
         mDbg = dbg;
         mTag = tag;
         mService = ICarProperty.Stub.asInterface(service);
+        mExecutor = null;
         mHandler = new SingleMessageHandler<CarPropertyEvent>(handler.getLooper(),
                 MSG_GENERIC_EVENT) {
             @Override
             protected void handleEvent(CarPropertyEvent event) {
-                CarPropertyListeners listeners;
-                synchronized (mActivePropertyListener) {
-                    listeners = mActivePropertyListener.get(
-                            event.getCarPropertyValue().getPropertyId());
-                }
-                if (listeners != null) {
-                    switch (event.getEventType()) {
-                        case CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE:
-                            listeners.onPropertyChanged(event);
-                            break;
-                        case CarPropertyEvent.PROPERTY_EVENT_ERROR:
-                            listeners.onErrorEvent(event);
-                            break;
-                        default:
-                            throw new IllegalArgumentException();
-                    }
-                }
+                dispatchEvent(event);
             }
         };
     }
 
+    /**
+     * Get an instance of the CarPropertyManager that delivers events through the given executor
+     * instead of a {@link android.os.Looper}. Each batch of events received from the service is
+     * handed to the executor as a single task.
+     *
+     * @param executor must run tasks one at a time and in order, as the filtering of out of
+     *        order events is not thread safe. Pass {@code Runnable::run} to deliver events
+     *        directly on the binder thread.
+     */
+    public CarPropertyManager(IBinder service, Executor executor, boolean dbg, String tag) {
+        mDbg = dbg;
+        mTag = tag;
+        mService = ICarProperty.Stub.asInterface(service);
+        mExecutor = executor;
+        mHandler = null;
+    }
+
+    private void dispatchEvent(CarPropertyEvent event) {
+        CarPropertyListeners listeners =
+                mDispatchTable.get(event.getCarPropertyValue().getPropertyId());
+        if (listeners != null) {
+            switch (event.getEventType()) {
+                case CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE:
+                    listeners.onPropertyChanged(event);
+                    break;
+                case CarPropertyEvent.PROPERTY_EVENT_ERROR:
+                    listeners.onErrorEvent(event);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    private void dispatchEvents(List<CarPropertyEvent> events) {
+        for (int i = 0; i < events.size(); i++) {
+            dispatchEvent(events.get(i));
+        }
+    }
+
+    /**
+     * Enables or disables the client side value cache. If enabled, getters for properties this
+     * manager has listeners for are answered from the latest value delivered to the listeners,
+     * without calling into the car service. The cache is first filled by the current values the
+     * service sends on registration, and entries are dropped on error events, on
+     * {@code setProperty}, when the last listener of a property is removed and when the
+     * connection to the car service is lost.
+     */
+    public void setCachingEnabled(boolean enabled) {
+        synchronized (mCacheLock) {
+            mCachingEnabled = enabled;
+            if (!enabled) {
+                mValueCache.clear();
+            }
+        }
+    }
+
+    private static long cacheKey(int propertyId, int areaId) {
+        return ((long) propertyId << 32) | (areaId & 0xffffffffL);
+    }
+
+    /**
+     * Starts caching values of the property.
+     *
+     * @return generation to pass to {@link #updateCache}.
+     */
+    private int activateCache(int propertyId) {
+        synchronized (mCacheLock) {
+            int generation = mNextCacheGeneration++;
+            mCacheGenerations.put(propertyId, generation);
+            return generation;
+        }
+    }
+
+    /** Stops caching values of the property and drops the cached ones. */
+    private void deactivateCache(int propertyId) {
+        synchronized (mCacheLock) {
+            mCacheGenerations.delete(propertyId);
+            invalidateCache(propertyId);
+        }
+    }
+
+    private void updateCache(CarPropertyValue<?> value, int generation) {
+        synchronized (mCacheLock) {
+            if (mCachingEnabled
+                    && mCacheGenerations.get(value.getPropertyId(), -1) == generation) {
+                mValueCache.put(cacheKey(value.getPropertyId(), value.getAreaId()), value);
+            }
+        }
+    }
+
+    private void invalidateCache(int propertyId, int areaId) {
+        synchronized (mCacheLock) {
+            mValueCache.remove(cacheKey(propertyId, areaId));
+        }
+    }
+
+    private void invalidateCache(int propertyId) {
+        synchronized (mCacheLock) {
+            for (int i = mValueCache.size() - 1; i >= 0; i--) {
+                if ((int) (mValueCache.keyAt(i) >> 32) == propertyId) {
+                    mValueCache.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /** Returns the cached value, or null if caching is disabled or there is none. */
+    private CarPropertyValue<?> getCachedValue(int propertyId, int areaId) {
+        synchronized (mCacheLock) {
+            if (!mCachingEnabled) {
+                return null;
+            }
+            CarPropertyValue<?> value = null;
+            if (mCacheGenerations.indexOfKey(propertyId) >= 0) {
+                value = mValueCache.get(cacheKey(propertyId, areaId));
+            }
+            if (value != null) {
+                mCacheHits++;
+            } else {
+                mCacheMisses++;
+            }
+            return value;
+        }
+    }
+
+    /** Publishes the current set of active properties for delivery. */
+    private void updateDispatchTableLocked() {
+        mDispatchTable = mActivePropertyListener.clone();
+    }
+
     /** Use to register or update Callback for properties */
     public boolean registerListener(CarPropertyEventListener listener, int propertyId, float rate)
             throws CarNotConnectedException {
@@ -109,13 +271,20 @@ public class CarPropertyManager implements CarManagerBase {
             CarPropertyListeners listeners;
             listeners = mActivePropertyListener.get(propertyId);
             if (listeners == null) {
-                listeners = new CarPropertyListeners(rate);
+                LatencyHistogram latency = mListenerLatency.get(propertyId);
+                if (latency == null) {
+                    latency = new LatencyHistogram();
+                    mListenerLatency.put(propertyId, latency);
+                }
+                listeners = new CarPropertyListeners(rate, latency, activateCache(propertyId));
                 mActivePropertyListener.put(propertyId, listeners);
+                updateDispatchTableLocked();
                 needsServerUpdate = true;
             }
             if (listeners.addAndUpdateRate(listener, rate)) {
                 needsServerUpdate = true;
             }
+            listeners.updateListenerArray();
             if (needsServerUpdate) {
                 if (!registerOrUpdatePropertyListener(propertyId, rate)) {
                     return false;
@@ -154,7 +323,11 @@ public class CarPropertyManager implements CarManagerBase {
     }
 
     private void handleEvent(List<CarPropertyEvent> events) {
-        mHandler.sendEvents(events);
+        if (mExecutor != null) {
+            mExecutor.execute(() -> dispatchEvents(events));
+        } else {
+            mHandler.sendEvents(events);
+        }
     }
 
     /**
@@ -188,6 +361,7 @@ public class CarPropertyManager implements CarManagerBase {
             boolean needsServerUpdate = false;
             if (listeners.contains(listener)) {
                 needsServerUpdate = listeners.remove(listener);
+                listeners.updateListenerArray();
             }
             if (listeners.isEmpty()) {
                 try {
@@ -196,6 +370,9 @@ public class CarPropertyManager implements CarManagerBase {
                     //ignore
                 }
                 mActivePropertyListener.remove(propertyId);
+                updateDispatchTableLocked();
+                // No more updates will arrive for this property.
+                deactivateCache(propertyId);
             } else if (needsServerUpdate) {
                 try {
                     registerOrUpdatePropertyListener(propertyId, listeners.getRate());
@@ -303,7 +480,7 @@ public class CarPropertyManager implements CarManagerBase {
                     + ", area: 0x" + toHexString(area) + ", class: " + clazz);
         }
         try {
-            CarPropertyValue<E> propVal = mService.getProperty(propId, area);
+            CarPropertyValue<E> propVal = getPropertyFromCacheOrService(propId, area);
             if (propVal != null && propVal.getValue() != null) {
                 Class<?> actualClass = propVal.getValue().getClass();
                 if (actualClass != clazz) {
@@ -323,7 +500,7 @@ public class CarPropertyManager implements CarManagerBase {
     public <E> CarPropertyValue<E> getProperty(int propId, int area)
             throws CarNotConnectedException {
         try {
-            CarPropertyValue<E> propVal = mService.getProperty(propId, area);
+            CarPropertyValue<E> propVal = getPropertyFromCacheOrService(propId, area);
             return propVal;
         } catch (RemoteException e) {
             Log.e(mTag, "getProperty failed with " + e.toString()
@@ -332,6 +509,16 @@ public class CarPropertyManager implements CarManagerBase {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private <E> CarPropertyValue<E> getPropertyFromCacheOrService(int propId, int area)
+            throws RemoteException {
+        CarPropertyValue<E> propVal = (CarPropertyValue<E>) getCachedValue(propId, area);
+        if (propVal != null) {
+            return propVal;
+        }
+        return mService.getProperty(propId, area);
+    }
+
     /** Set CarPropertyValue */
     public <E> void setProperty(Class<E> clazz, int propId, int area, E val)
             throws CarNotConnectedException {
@@ -344,6 +531,10 @@ public class CarPropertyManager implements CarManagerBase {
         } catch (RemoteException e) {
             Log.e(mTag, "setProperty failed with " + e.toString(), e);
             throw new CarNotConnectedException(e);
+        } finally {
+            // The cached value is outdated, the change event will refill it. Only dropped once
+            // the call returned, an event of the old value delivered meanwhile re-caches it.
+            invalidateCache(propId, area);
         }
     }
 
@@ -371,41 +562,50 @@ public class CarPropertyManager implements CarManagerBase {
 
 
     private class CarPropertyListeners extends CarRatedFloatListeners<CarPropertyEventListener> {
-        CarPropertyListeners(float rate) {
+        /** Copy of the listeners, replaced on every change so delivery needs no lock. */
+        private volatile CarPropertyEventListener[] mListenerArray =
+                new CarPropertyEventListener[0];
+        /** Last update time per area, only accessed from the delivery thread. */
+        private final SparseLongArray mLastUpdateTimeByArea = new SparseLongArray();
+        private final LatencyHistogram mLatency;
+        private final int mCacheGeneration;
+
+        CarPropertyListeners(float rate, LatencyHistogram latency, int cacheGeneration) {
             super(rate);
+            mLatency = latency;
+            mCacheGeneration = cacheGeneration;
+        }
+
+        /** Must be called with the {@link #mActivePropertyListener} lock held. */
+        void updateListenerArray() {
+            mListenerArray = getListeners().toArray(new CarPropertyEventListener[0]);
         }
+
         void onPropertyChanged(final CarPropertyEvent event) {
             // throw away old sensor data as oneway binder call can change order.
-            long updateTime = event.getCarPropertyValue().getTimestamp();
-            if (updateTime < mLastUpdateTime) {
+            CarPropertyValue value = event.getCarPropertyValue();
+            long updateTime = value.getTimestamp();
+            int areaId = value.getAreaId();
+            if (updateTime < mLastUpdateTimeByArea.get(areaId, -1)) {
                 Log.w(mTag, "dropping old property data");
                 return;
             }
-            mLastUpdateTime = updateTime;
-            List<CarPropertyEventListener> listeners;
-            synchronized (mActivePropertyListener) {
-                listeners = new ArrayList<>(getListeners());
+            mLastUpdateTimeByArea.put(areaId, updateTime);
+            updateCache(value, mCacheGeneration);
+            if (updateTime > 0) {
+                mLatency.record(SystemClock.elapsedRealtimeNanos() - updateTime);
+            }
+            for (CarPropertyEventListener listener : mListenerArray) {
+                listener.onChangeEvent(value);
             }
-            listeners.forEach(new Consumer<CarPropertyEventListener>() {
-                @Override
-                public void accept(CarPropertyEventListener listener) {
-                    listener.onChangeEvent(event.getCarPropertyValue());
-                }
-            });
         }
 
         void onErrorEvent(final CarPropertyEvent event) {
-            List<CarPropertyEventListener> listeners;
             CarPropertyValue value = event.getCarPropertyValue();
-            synchronized (mActivePropertyListener) {
-                listeners = new ArrayList<>(getListeners());
+            invalidateCache(value.getPropertyId(), value.getAreaId());
+            for (CarPropertyEventListener listener : mListenerArray) {
+                listener.onErrorEvent(value.getPropertyId(), value.getAreaId());
             }
-            listeners.forEach(new Consumer<CarPropertyEventListener>() {
-                @Override
-                public void accept(CarPropertyEventListener listener) {
-                    listener.onErrorEvent(value.getPropertyId(), value.getAreaId());
-                }
-            });
         }
     }
 
@@ -414,7 +614,42 @@ public class CarPropertyManager implements CarManagerBase {
     public void onCarDisconnected() {
         synchronized (mActivePropertyListener) {
             mActivePropertyListener.clear();
+            updateDispatchTableLocked();
             mCarPropertyEventToService = null;
         }
+        synchronized (mCacheLock) {
+            mCacheGenerations.clear();
+            mValueCache.clear();
+        }
+    }
+
+    /**
+     * @return latency from the Vehicle HAL timestamp of events of the property to the invocation
+     *         of its listeners, null if no listener was ever registered for it.
+     * @hide
+     */
+    public LatencyHistogram getListenerLatency(int propertyId) {
+        synchronized (mActivePropertyListener) {
+            return mListenerLatency.get(propertyId);
+        }
+    }
+
+    /** @hide */
+    public void dump(PrintWriter writer) {
+        synchronized (mCacheLock) {
+            long lookups = mCacheHits + mCacheMisses;
+            writer.println("*CarPropertyManager " + mTag + "*");
+            writer.println("caching enabled:" + mCachingEnabled
+                    + " cached values:" + mValueCache.size()
+                    + " hits:" + mCacheHits + " misses:" + mCacheMisses
+                    + " hit rate:" + (lookups == 0 ? 0 : mCacheHits * 100 / lookups) + "%");
+        }
+        writer.println("listener latency from VHAL timestamp:");
+        synchronized (mActivePropertyListener) {
+            for (int i = 0; i < mListenerLatency.size(); i++) {
+                writer.println("\tProp: 0x" + toHexString(mListenerLatency.keyAt(i)) + ": "
+                        + mListenerLatency.valueAt(i));
+            }
+        }
     }
 }
@@ -33,8 +33,6 @@ public class CarRatedFloatListeners<T> {
 
     private float mUpdateRate;
 
-    protected long mLastUpdateTime = -1;
-
     protected CarRatedFloatListeners(float rate) {
         mUpdateRate = rate;
     }
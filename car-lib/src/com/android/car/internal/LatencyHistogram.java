@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets, so that recording is cheap enough
+ * to stay enabled on event delivery paths.
+ *
+ * Latencies are kept in microseconds. Below {@link #SUB_BUCKETS} microseconds every value has its
+ * own bucket, above that every power of two range is split into {@link #SUB_BUCKETS} buckets,
+ * which keeps the relative error of reported percentiles under 12.5%. Latencies beyond about a
+ * minute all land in the last bucket.
+ * @hide
+ */
+public class LatencyHistogram {
+
+    /** Buckets per power of two range, must be a power of two. */
+    static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    /** Power of two ranges after the linear buckets, up to 2^26 us. */
+    private static final int RANGES = 26 - SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = SUB_BUCKETS * (RANGES + 1);
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a latency. Negative latencies, from clocks that are not in sync, are recorded as 0.
+     */
+    public void record(long latencyNanos) {
+        mCounts.incrementAndGet(getBucket(Math.max(0, latencyNanos) / 1000));
+    }
+
+    /** @return number of latencies recorded. */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound in microseconds of the bucket holding the given percentile, 0 if
+     *         nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getBucketUpperBound(i);
+            }
+        }
+        return getBucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    /** @return count, p50, p90, p99 and p99.9 on one line. */
+    @Override
+    public String toString() {
+        return "count:" + getCount()
+                + " p50:" + getPercentileMicros(50) + "us"
+                + " p90:" + getPercentileMicros(90) + "us"
+                + " p99:" + getPercentileMicros(99) + "us"
+                + " p99.9:" + getPercentileMicros(99.9) + "us";
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        int bucket = (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /** @return largest latency in microseconds falling into the bucket. */
+    static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
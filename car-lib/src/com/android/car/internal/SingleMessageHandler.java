@@ -22,7 +22,6 @@ import android.os.Looper;
 import android.os.Message;
 
 import java.util.List;
-import java.util.function.Consumer;
 
 /**
  * Handles call back into clients for Car managers.
@@ -47,12 +46,9 @@ public abstract class SingleMessageHandler<EventType> implements Callback {
     public boolean handleMessage(Message msg) {
         if (msg.what == mHandledMessageWhat) {
             List<EventType> events = (List<EventType>) msg.obj;
-            events.forEach(new Consumer<EventType>() {
-                @Override
-                public void accept(EventType event) {
-                    handleEvent(event);
-                }
-            });
+            for (int i = 0; i < events.size(); i++) {
+                handleEvent(events.get(i));
+            }
         }
 
         return true;
@@ -29,14 +29,21 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * App focus service ensures only one instance of application type is active at a time.
+ *
+ * Focus state is kept per app type in an {@link AppTypeFocus} record, so that requests and
+ * abandons of different app types do not contend. The owner of each record is published through
+ * a volatile field and read without locking by {@link #isFocusOwner(int, int, int)}. Callbacks
+ * are posted to the dispatch thread once the change is made, and never called with a lock held.
  */
 public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
         BinderInterfaceContainer.BinderEventHandler<IAppFocusOwnershipCallback> {
@@ -46,17 +53,34 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
     private final SystemActivityMonitoringService mSystemActivityMonitoringService;
     private final ClientHolder mAllChangeClients;
     private final OwnershipClientHolder mAllOwnershipClients;
-    /** K: appType, V: client owning it */
-    private final HashMap<Integer, OwnershipClientInfo> mFocusOwners = new HashMap<>();
-    private final Set<Integer> mActiveAppTypes = new HashSet<>();
+    /** K: appType, V: focus state of it. Records are created once and never removed. */
+    private final ConcurrentHashMap<Integer, AppTypeFocus> mAppTypeFocus =
+            new ConcurrentHashMap<>();
     private final CopyOnWriteArrayList<FocusOwnershipCallback> mFocusOwnershipCallbacks =
             new CopyOnWriteArrayList<>();
     private final BinderInterfaceContainer.BinderEventHandler<IAppFocusListener>
             mAllBinderEventHandler = bInterface -> { /* nothing to do.*/ };
 
-    private DispatchHandler mDispatchHandler;
+    private volatile DispatchHandler mDispatchHandler;
     private HandlerThread mHandlerThread;
 
+    /**
+     * Focus state of a single app type. Changes lock the record itself, and dispatch requests
+     * are posted under that lock so that their order matches the order of the changes.
+     */
+    private static final class AppTypeFocus {
+        private final int mAppType;
+        /**
+         * Client owning the app type, null while it is not active. Written with the record
+         * locked, read without locking.
+         */
+        private volatile OwnershipClientInfo mOwner;
+
+        private AppTypeFocus(int appType) {
+            mAppType = appType;
+        }
+    }
+
     public AppFocusService(Context context,
             SystemActivityMonitoringService systemActivityMonitoringService) {
         mSystemActivityMonitoringService = systemActivityMonitoringService;
@@ -94,37 +118,42 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
 
     @Override
     public int[] getActiveAppTypes() {
-        synchronized (this) {
-            return toIntArray(mActiveAppTypes);
+        Set<Integer> activeAppTypes = new HashSet<>();
+        for (AppTypeFocus focus : mAppTypeFocus.values()) {
+            if (focus.mOwner != null) {
+                activeAppTypes.add(focus.mAppType);
+            }
         }
+        return toIntArray(activeAppTypes);
     }
 
     @Override
     public boolean isOwningFocus(IAppFocusOwnershipCallback callback, int appType) {
-        synchronized (this) {
-            OwnershipClientInfo info =
-                    (OwnershipClientInfo) mAllOwnershipClients.getBinderInterface(callback);
-            if (info == null) {
-                return false;
-            }
-            return info.getOwnedAppTypes().contains(appType);
+        AppTypeFocus focus = mAppTypeFocus.get(appType);
+        if (focus == null) {
+            return false;
         }
+        OwnershipClientInfo owner = focus.mOwner;
+        return owner != null && owner.binderInterface.asBinder() == callback.asBinder();
     }
 
     @Override
     public int requestAppFocus(IAppFocusOwnershipCallback callback, int appType) {
+        OwnershipClientInfo info;
         synchronized (this) {
-            OwnershipClientInfo info =
-                    (OwnershipClientInfo) mAllOwnershipClients.getBinderInterface(callback);
+            info = (OwnershipClientInfo) mAllOwnershipClients.getBinderInterface(callback);
             if (info == null) {
                 info = new OwnershipClientInfo(mAllOwnershipClients, callback,
                         Binder.getCallingUid(), Binder.getCallingPid());
                 mAllOwnershipClients.addBinderInterface(info);
             }
-            Set<Integer> alreadyOwnedAppTypes = info.getOwnedAppTypes();
-            if (!alreadyOwnedAppTypes.contains(appType)) {
-                OwnershipClientInfo ownerInfo = mFocusOwners.get(appType);
-                if (ownerInfo != null && ownerInfo != info) {
+        }
+        AppTypeFocus focus = mAppTypeFocus.computeIfAbsent(appType, AppTypeFocus::new);
+        DispatchHandler dispatchHandler = mDispatchHandler;
+        synchronized (focus) {
+            OwnershipClientInfo ownerInfo = focus.mOwner;
+            if (ownerInfo != info) {
+                if (ownerInfo != null) {
                     if (mSystemActivityMonitoringService.isInForeground(
                                 ownerInfo.getPid(), ownerInfo.getUid()) &&
                         !mSystemActivityMonitoringService.isInForeground(
@@ -136,33 +165,24 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
                         return CarAppFocusManager.APP_FOCUS_REQUEST_FAILED;
                     }
                     ownerInfo.removeOwnedAppType(appType);
-                    mDispatchHandler.requestAppFocusOwnershipLossDispatch(
+                    dispatchHandler.requestAppFocusOwnershipLossDispatch(
                             ownerInfo.binderInterface, appType);
                     if (DBG) {
                         Log.i(CarLog.TAG_APP_FOCUS, "losing app type "
                                 + appType + "," + ownerInfo.toString());
                     }
-                }
-                updateFocusOwner(appType, info);
-            }
-            info.addOwnedAppType(appType);
-            mDispatchHandler.requestAppFocusOwnershipGrantDispatch(
-                    info.binderInterface, appType);
-            if (mActiveAppTypes.add(appType)) {
-                if (DBG) {
+                } else if (DBG) {
                     Log.i(CarLog.TAG_APP_FOCUS, "adding active app type " + appType + ","
                             + info.toString());
                 }
-                for (BinderInterfaceContainer.BinderInterface<IAppFocusListener> client :
-                        mAllChangeClients.getInterfaces()) {
-                    ClientInfo clientInfo = (ClientInfo) client;
-                    // dispatch events only when there is change after filter and the listener
-                    // is not coming from the current caller.
-                    if (clientInfo.getAppTypes().contains(appType)) {
-                        mDispatchHandler.requestAppFocusChangeDispatch(clientInfo.binderInterface,
-                                appType, true);
-                    }
-                }
+                info.addOwnedAppType(appType);
+                focus.mOwner = info;
+                dispatchHandler.requestFocusOwnershipCallbackDispatch(appType, info, true);
+            }
+            dispatchHandler.requestAppFocusOwnershipGrantDispatch(
+                    info.binderInterface, appType);
+            if (ownerInfo == null) {
+                requestAppFocusChangeDispatchLocked(dispatchHandler, appType, true);
             }
         }
         return CarAppFocusManager.APP_FOCUS_REQUEST_SUCCEEDED;
@@ -170,39 +190,51 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
 
     @Override
     public void abandonAppFocus(IAppFocusOwnershipCallback callback, int appType) {
-        synchronized (this) {
-            OwnershipClientInfo info =
-                    (OwnershipClientInfo) mAllOwnershipClients.getBinderInterface(callback);
-            if (info == null) {
-                // ignore as this client cannot have owned anything.
-                return;
-            }
-            if (!mActiveAppTypes.contains(appType)) {
-                // ignore as none of them are active;
-                return;
-            }
-            Set<Integer> currentlyOwnedAppTypes = info.getOwnedAppTypes();
-            if (!currentlyOwnedAppTypes.contains(appType)) {
+        OwnershipClientInfo info =
+                (OwnershipClientInfo) mAllOwnershipClients.getBinderInterface(callback);
+        if (info == null) {
+            // ignore as this client cannot have owned anything.
+            return;
+        }
+        abandonAppFocus(info, appType);
+    }
+
+    private void abandonAppFocus(OwnershipClientInfo info, int appType) {
+        AppTypeFocus focus = mAppTypeFocus.get(appType);
+        if (focus == null) {
+            // ignore as it was never active.
+            return;
+        }
+        DispatchHandler dispatchHandler = mDispatchHandler;
+        synchronized (focus) {
+            if (focus.mOwner != info) {
                 // ignore as listener doesn't own focus.
                 return;
             }
-            if (mFocusOwners.remove(appType) != null) {
-                mActiveAppTypes.remove(appType);
-                info.removeOwnedAppType(appType);
-                if (DBG) {
-                    Log.i(CarLog.TAG_APP_FOCUS, "abandoning focus " + appType
-                            + "," + info.toString());
-                }
-                for (FocusOwnershipCallback ownershipCallback : mFocusOwnershipCallbacks) {
-                    ownershipCallback.onFocusAbandoned(appType, info.mUid, info.mPid);
-                }
-                for (BinderInterfaceContainer.BinderInterface<IAppFocusListener> client :
-                        mAllChangeClients.getInterfaces()) {
-                    ClientInfo clientInfo = (ClientInfo) client;
-                    if (clientInfo.getAppTypes().contains(appType)) {
-                        mDispatchHandler.requestAppFocusChangeDispatch(clientInfo.binderInterface,
-                                appType, false);
-                    }
+            focus.mOwner = null;
+            info.removeOwnedAppType(appType);
+            if (DBG) {
+                Log.i(CarLog.TAG_APP_FOCUS, "abandoning focus " + appType
+                        + "," + info.toString());
+            }
+            dispatchHandler.requestFocusOwnershipCallbackDispatch(appType, info, false);
+            requestAppFocusChangeDispatchLocked(dispatchHandler, appType, false);
+        }
+    }
+
+    /**
+     * Posts the change of an app type to the listeners registered for it. Called with the
+     * {@link AppTypeFocus} of the app type locked.
+     */
+    private void requestAppFocusChangeDispatchLocked(DispatchHandler dispatchHandler, int appType,
+            boolean active) {
+        synchronized (mAllChangeClients) {
+            for (BinderInterfaceContainer.BinderInterface<IAppFocusListener> client :
+                    mAllChangeClients.getInterfaces()) {
+                ClientInfo clientInfo = (ClientInfo) client;
+                if (clientInfo.hasAppType(appType)) {
+                    dispatchHandler.requestAppFocusChangeDispatch(clientInfo.binderInterface,
+                            appType, active);
                 }
             }
         }
@@ -226,28 +258,34 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
             } catch (InterruptedException e) {
                 Log.e(CarLog.TAG_APP_FOCUS, "Timeout while waiting for handler thread to join.");
             }
-            mDispatchHandler = null;
             mAllChangeClients.clear();
             mAllOwnershipClients.clear();
-            mFocusOwners.clear();
-            mActiveAppTypes.clear();
+            for (AppTypeFocus focus : mAppTypeFocus.values()) {
+                synchronized (focus) {
+                    focus.mOwner = null;
+                }
+            }
         }
     }
 
     @Override
     public void onBinderDeath(
             BinderInterfaceContainer.BinderInterface<IAppFocusOwnershipCallback> bInterface) {
+        // The client is already removed from the container, abandon through the info itself.
         OwnershipClientInfo info = (OwnershipClientInfo) bInterface;
-        for (Integer appType : info.getOwnedAppTypes()) {
-            abandonAppFocus(bInterface.binderInterface, appType);
+        for (Integer appType : info.getOwnedAppTypesCopy()) {
+            abandonAppFocus(info, appType);
         }
     }
 
     @Override
     public void dump(PrintWriter writer) {
         writer.println("**AppFocusService**");
-        synchronized (this) {
-            writer.println("mActiveAppTypes:" + mActiveAppTypes);
+        writer.println("mActiveAppTypes:" + Arrays.toString(getActiveAppTypes()));
+        for (AppTypeFocus focus : mAppTypeFocus.values()) {
+            writer.println("appType " + focus.mAppType + " owner:" + focus.mOwner);
+        }
+        synchronized (mAllOwnershipClients) {
             for (BinderInterfaceContainer.BinderInterface<IAppFocusOwnershipCallback> client :
                     mAllOwnershipClients.getInterfaces()) {
                 OwnershipClientInfo clientInfo = (OwnershipClientInfo) client;
@@ -257,20 +295,21 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
     }
 
     /**
-     * Returns true if process with given uid and pid owns provided focus.
+     * Returns true if process with given uid and pid owns provided focus. Does not lock, may be
+     * called from any thread.
      */
     public boolean isFocusOwner(int uid, int pid, int appType) {
-        synchronized (this) {
-            if (mFocusOwners.containsKey(appType)) {
-                OwnershipClientInfo clientInfo = mFocusOwners.get(appType);
-                return clientInfo.getUid() == uid && clientInfo.getPid() == pid;
-            }
+        AppTypeFocus focus = mAppTypeFocus.get(appType);
+        if (focus == null) {
+            return false;
         }
-        return false;
+        OwnershipClientInfo owner = focus.mOwner;
+        return owner != null && owner.getUid() == uid && owner.getPid() == pid;
     }
 
     /**
-     * Defines callback functions that will be called when ownership has been changed.
+     * Defines callback functions that will be called when ownership has been changed. They are
+     * called on the dispatch thread, in the order of the changes.
      */
     public interface FocusOwnershipCallback {
         void onFocusAcquired(int appType, int uid, int pid);
@@ -286,14 +325,11 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
     public void registerContextOwnerChangedCallback(FocusOwnershipCallback callback) {
         mFocusOwnershipCallbacks.add(callback);
 
-        HashSet<Map.Entry<Integer, OwnershipClientInfo>> owners;
-        synchronized (this) {
-            owners = new HashSet<>(mFocusOwners.entrySet());
-        }
-
-        for (Map.Entry<Integer, OwnershipClientInfo> entry : owners) {
-            OwnershipClientInfo clientInfo = entry.getValue();
-            callback.onFocusAcquired(entry.getKey(), clientInfo.getUid(), clientInfo.getPid());
+        for (AppTypeFocus focus : mAppTypeFocus.values()) {
+            OwnershipClientInfo owner = focus.mOwner;
+            if (owner != null) {
+                callback.onFocusAcquired(focus.mAppType, owner.getUid(), owner.getPid());
+            }
         }
     }
 
@@ -304,16 +340,15 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
         mFocusOwnershipCallbacks.remove(callback);
     }
 
-    private void updateFocusOwner(int appType, OwnershipClientInfo owner) {
-        CarServiceUtils.runOnMain(() -> {
-            synchronized (this) {
-                mFocusOwners.put(appType, owner);
-            }
-
-            for (FocusOwnershipCallback callback : mFocusOwnershipCallbacks) {
+    private void dispatchFocusOwnershipCallbacks(int appType, OwnershipClientInfo owner,
+            boolean acquired) {
+        for (FocusOwnershipCallback callback : mFocusOwnershipCallbacks) {
+            if (acquired) {
                 callback.onFocusAcquired(appType, owner.getUid(), owner.getPid());
+            } else {
+                callback.onFocusAbandoned(appType, owner.getUid(), owner.getPid());
             }
-        });
+        }
     }
 
     private void dispatchAppFocusOwnershipLoss(IAppFocusOwnershipCallback callback, int appType) {
@@ -368,6 +403,10 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
             return mAppTypes;
         }
 
+        private synchronized boolean hasAppType(Integer appType) {
+            return mAppTypes.contains(appType);
+        }
+
         private synchronized boolean addAppType(Integer appType) {
             return mAppTypes.add(appType);
         }
@@ -398,11 +437,11 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
             this.mPid = pid;
         }
 
-        private synchronized Set<Integer> getOwnedAppTypes() {
+        private synchronized List<Integer> getOwnedAppTypesCopy() {
             if (DBG_EVENT) {
                 Log.i(CarLog.TAG_APP_FOCUS, "getOwnedAppTypes " + mOwnedAppTypes);
             }
-            return mOwnedAppTypes;
+            return new ArrayList<>(mOwnedAppTypes);
         }
 
         private synchronized boolean addOwnedAppType(Integer appType) {
@@ -440,6 +479,7 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
         private static final int MSG_DISPATCH_OWNERSHIP_LOSS = 0;
         private static final int MSG_DISPATCH_OWNERSHIP_GRANT = 1;
         private static final int MSG_DISPATCH_FOCUS_CHANGE = 2;
+        private static final int MSG_DISPATCH_FOCUS_OWNERSHIP_CALLBACK = 3;
 
         private DispatchHandler(Looper looper) {
             super(looper);
@@ -464,6 +504,13 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
             sendMessage(msg);
         }
 
+        private void requestFocusOwnershipCallbackDispatch(int appType,
+                OwnershipClientInfo owner, boolean acquired) {
+            Message msg = obtainMessage(MSG_DISPATCH_FOCUS_OWNERSHIP_CALLBACK, appType,
+                    acquired ? 1 : 0, owner);
+            sendMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -476,6 +523,10 @@ public class AppFocusService extends IAppFocus.Stub implements CarServiceBase,
                 case MSG_DISPATCH_FOCUS_CHANGE:
                     dispatchAppFocusChange((IAppFocusListener) msg.obj, msg.arg1, msg.arg2 == 1);
                     break;
+                case MSG_DISPATCH_FOCUS_OWNERSHIP_CALLBACK:
+                    dispatchFocusOwnershipCallbacks(msg.arg1, (OwnershipClientInfo) msg.obj,
+                            msg.arg2 == 1);
+                    break;
                 default:
                     Log.e(CarLog.TAG_APP_FOCUS, "Can't dispatch message: " + msg);
             }
@@ -29,10 +29,12 @@ import java.io.PrintWriter;
  * BluetoothAutoConnectStateMachine is a simple state machine to manage automatic bluetooth
  * connection attempts.  It has 2 states Idle & Processing.
  * Idle is the starting state. Incoming 'CONNECT' message is honored and connection attempts are
- * triggered.  A Connection Timeout is also set before transitioning to Processing State
+ * triggered on all profiles at once.  The policy sets up a Connection Timeout per attempt before
+ * the state machine transitions to Processing State.
  * Processing state ignores any incoming 'CONNECT' requests from any of the vehicle signals,
- * since it is already in the middle of a connection attempt.  Processing moves back to Idle, when
- * either
+ * since it is already in the middle of connection attempts.  Whenever an attempt completes or
+ * times out, the next attempt on that profile is started right away.  Processing moves back to
+ * Idle, when either
  * 1. All the connections are made.
  * 2. All connection attempts failed and there is nothing else to try.
  */
@@ -82,6 +84,24 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
         quitNow();
     }
 
+    /**
+     * Connect the device of a {@link #CHECK_CLIENT_PROFILES} message on PBAP and MAP. Profiles
+     * that already have an attempt in flight are left to the policy's next search.
+     */
+    private void connectClientProfiles(Message msg) {
+        removeMessages(CHECK_CLIENT_PROFILES);
+        BluetoothDeviceConnectionPolicy.ConnectionParams params =
+                (BluetoothDeviceConnectionPolicy.ConnectionParams) msg.obj;
+        BluetoothDevice device = params.getBluetoothDevice();
+        // After pairing/disconnect, always try to connect to both PBAP and MAP
+        if (DBG) {
+            Log.d(TAG, "try to connect to PBAP/MAP after pairing or disconnect: "
+                    + Utils.getDeviceDebugInfo(device));
+        }
+        mPolicy.connectToDeviceOnProfile(BluetoothProfile.PBAP_CLIENT, device);
+        mPolicy.connectToDeviceOnProfile(BluetoothProfile.MAP_CLIENT, device);
+    }
+
     /**
      * Idle State is the Initial State, when the system is accepting incoming 'CONNECT' requests.
      * Attempts a connection whenever the state transitions into Idle.
@@ -119,17 +139,10 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
                 }
 
                 case CHECK_CLIENT_PROFILES: {
-                    removeMessages(CHECK_CLIENT_PROFILES);
-                    BluetoothDeviceConnectionPolicy.ConnectionParams params =
-                            (BluetoothDeviceConnectionPolicy.ConnectionParams) msg.obj;
-                    BluetoothDevice device = params.getBluetoothDevice();
-                    // After pairing/disconnect, always try to connect to both PBAP and MAP
-                    if (DBG) {
-                        Log.d(TAG, "try to connect to PBAP/MAP after pairing or disconnect: "
-                                + Utils.getDeviceDebugInfo(device));
+                    connectClientProfiles(msg);
+                    if (mPolicy.hasConnectionsInFlight()) {
+                        transitionTo(mProcessing);
                     }
-                    mPolicy.connectToDeviceOnProfile(BluetoothProfile.PBAP_CLIENT, device);
-                    mPolicy.connectToDeviceOnProfile(BluetoothProfile.MAP_CLIENT, device);
                     break;
                 }
 
@@ -144,9 +157,9 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
         }
 
         /**
-         * Instruct the policy to find and connect to a device on a connectable profile.
+         * Instruct the policy to find and connect to a device on every connectable profile.
          * If the policy reports that there is nothing to connect to, stay in the Idle state.
-         * If it found a {device, profile} combination to attempt a connection, move to
+         * If it found any {device, profile} combination to attempt a connection, move to
          * Processing state
          */
         private void connectToBluetoothDevice() {
@@ -172,7 +185,8 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
 
     /**
      * Processing state indicates the system is processing a auto connect trigger and will ignore
-     * connection requests.
+     * connection requests.  It stays in Processing as long as any connection attempt is in
+     * flight.
      */
     private class Processing extends State {
         @Override
@@ -195,16 +209,22 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
                         Log.d(TAG, "Connection Timeout");
                     }
                     params = (BluetoothDeviceConnectionPolicy.ConnectionParams) msg.obj;
-                    mPolicy.updateDeviceConnectionStatus(params, false);
-                    transitionTo(mIdle);
+                    mPolicy.onConnectionTimeout(params);
+                    connectNextOrIdle();
                     break;
                 }
 
                 case DEVICE_CONNECTED:
                     // fall through
                 case DEVICE_DISCONNECTED: {
-                    removeMessages(CONNECT_TIMEOUT);
-                    transitionTo(mIdle);
+                    // Time outs of attempts that completed are ignored by the policy.
+                    connectNextOrIdle();
+                    break;
+                }
+
+                case CHECK_CLIENT_PROFILES: {
+                    // Not deferred, Processing may last as long as connections keep changing.
+                    connectClientProfiles(msg);
                     break;
                 }
 
@@ -217,6 +237,16 @@ public class BluetoothAutoConnectStateMachine extends StateMachine {
             return true;
         }
 
+        /**
+         * Start attempts on the profiles that have none in flight, move back to Idle once there
+         * is nothing in flight anymore.
+         */
+        private void connectNextOrIdle() {
+            if (!mPolicy.findDeviceToConnect()) {
+                transitionTo(mIdle);
+            }
+        }
+
         @Override
         public void exit() {
             if (DBG) {
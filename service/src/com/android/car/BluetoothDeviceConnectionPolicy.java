@@ -16,11 +16,6 @@
 
 package com.android.car;
 
-import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_MESSAGING_DEVICES;
-import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES;
-import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_NETWORK_DEVICES;
-import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES;
-
 import android.annotation.Nullable;
 import android.app.ActivityManager;
 import android.bluetooth.BluetoothA2dpSink;
@@ -46,12 +41,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.automotive.vehicle.V2_0.VehicleIgnitionState;
 import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.provider.Settings;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -85,11 +84,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * connected.  The device that successfully connects on a profile is moved to the top of the list
  * of devices for that profile, so the next time a connection attempt is made, the policy starts
  * with the last connected device first.
+ *
+ * Connection attempts on different profiles are independent of each other. Whenever a connection
+ * is triggered, an attempt is started on every profile that has a device available to connect
+ * and no attempt in flight yet, each with its own timeout. At most one attempt is in flight per
+ * profile, so that a profile never goes over its number of supported connections.
  */
 
 public class BluetoothDeviceConnectionPolicy {
     private static final String TAG = "BTDevConnectionPolicy";
-    private static final String SETTINGS_DELIMITER = ",";
     private static final boolean DBG = Utils.DBG;
     private final Context mContext;
     private boolean mInitialized = false;
@@ -136,12 +139,20 @@ public class BluetoothDeviceConnectionPolicy {
     private final List<Integer> mProfilesToConnect;
     private final List<Integer> mPrioritiesSupported;
     private static final int MAX_CONNECT_RETRIES = 1;
-    private static final int PROFILE_NOT_AVAILABLE = -1;
 
-    // Device & Profile currently being connected on
-    private ConnectionParams mConnectionInFlight;
+    // Connection attempt in flight per profile, guarded by the policy's monitor.
+    private final SparseArray<ConnectionAttempt> mConnectionsInFlight = new SparseArray<>();
+    // Time out of a connection attempt per profile, guarded by the policy's monitor.
+    private final SparseIntArray mConnectionTimeoutsMs = new SparseIntArray();
+    // Latency of successful connection attempts per profile, guarded by the policy's monitor.
+    private final SparseArray<ConnectLatencyStats> mConnectLatencies = new SparseArray<>();
     // Allow write to Settings.Secure
     private boolean mAllowReadWriteToSettings = true;
+    // Batches writes of the device lists to Settings.Secure, null when not initialized.
+    private BluetoothDeviceSettings mDeviceSettings;
+    // Replaces Settings.Secure as backing store of mDeviceSettings in tests, null otherwise.
+    private BluetoothDeviceSettings.SettingsStore mSettingsStoreForTesting;
+    private HandlerThread mSettingsThread;
     // Maintain a list of Paired devices which haven't connected on any profiles yet.
     private Set<BluetoothDevice> mPairedButUnconnectedDevices = new HashSet<>();
 
@@ -194,6 +205,8 @@ public class BluetoothDeviceConnectionPolicy {
                             NUM_SUPPORTED_NETWORK_CONNECTIONS);
                     break;
             }
+            mConnectionTimeoutsMs.put(profile,
+                    BluetoothAutoConnectStateMachine.CONNECTION_TIMEOUT_MS);
         }
 
         // Listen to events for triggering auto connect
@@ -251,6 +264,45 @@ public class BluetoothDeviceConnectionPolicy {
         }
     }
 
+    /**
+     * A connection request made by the policy that has not completed yet.  The {@link #params}
+     * instance is also what the state machine gets back on a time out, which tells a time out of
+     * this attempt from a stale one.
+     */
+    private static class ConnectionAttempt {
+        final ConnectionParams params;
+        final long startTimeMs;
+
+        ConnectionAttempt(ConnectionParams params, long startTimeMs) {
+            this.params = params;
+            this.startTimeMs = startTimeMs;
+        }
+    }
+
+    /**
+     * Time taken by successful connection attempts on a profile, from the connection request to
+     * the connected broadcast.
+     */
+    private static class ConnectLatencyStats {
+        int count;
+        long lastMs;
+        long maxMs;
+        long totalMs;
+
+        void add(long latencyMs) {
+            count++;
+            lastMs = latencyMs;
+            maxMs = Math.max(maxMs, latencyMs);
+            totalMs += latencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return "connects: " + count + ", last: " + lastMs + "ms, max: " + maxMs
+                    + "ms, avg: " + (count == 0 ? 0 : totalMs / count) + "ms";
+        }
+    }
+
     /**
      * BluetoothBroadcastReceiver receives the bluetooth related intents that are relevant to
      * connection
@@ -513,6 +565,13 @@ public class BluetoothDeviceConnectionPolicy {
         if (DBG) {
             Log.d(TAG, "init()");
         }
+        mSettingsThread = new HandlerThread(TAG);
+        mSettingsThread.start();
+        mDeviceSettings = mSettingsStoreForTesting == null
+                ? new BluetoothDeviceSettings(mContext.getContentResolver(),
+                        mSettingsThread.getLooper())
+                : new BluetoothDeviceSettings(mSettingsStoreForTesting,
+                        mSettingsThread.getLooper(), 0);
         // Initialize information specific to current user.
         initializeUserSpecificInfo();
         // Listen to various events coming from the vehicle.
@@ -529,6 +588,9 @@ public class BluetoothDeviceConnectionPolicy {
      * 4. Start the {@link BluetoothAutoConnectStateMachine}
      */
     private void initializeUserSpecificInfo() {
+        // Switch the device lists first, so that devices paired before anything is read from
+        // Settings (e.g. no bonded devices yet) are written for the current user.
+        setDeviceSettingsUser(ActivityManager.getCurrentUser());
         synchronized (mSetupLock) {
             if (DBG) {
                 Log.d(TAG, "initializeUserSpecificInfo()");
@@ -543,7 +605,7 @@ public class BluetoothDeviceConnectionPolicy {
             readAndRebuildDeviceMapFromSettings();
             setupBluetoothEventsIntentFilterLocked();
 
-            mConnectionInFlight = new ConnectionParams();
+            clearConnectionsInFlight();
             mUserSpecificInfoInitialized = true;
         }
     }
@@ -688,6 +750,39 @@ public class BluetoothDeviceConnectionPolicy {
         writeDeviceInfoToSettings();
         cleanupUserSpecificInfo();
         closeEventListeners();
+        flushDeviceSettings();
+        if (mSettingsThread != null) {
+            mSettingsThread.quitSafely();
+            mSettingsThread = null;
+        }
+        mDeviceSettings = null;
+    }
+
+    /**
+     * Write pending device lists to Settings.Secure right away, e.g. before shutting down.
+     */
+    public void flushDeviceSettings() {
+        BluetoothDeviceSettings deviceSettings;
+        synchronized (this) {
+            deviceSettings = mDeviceSettings;
+        }
+        if (deviceSettings != null) {
+            deviceSettings.flush();
+        }
+    }
+
+    /**
+     * Read and write the device lists of the given user from now on. Pending lists of the
+     * previous user are written first.
+     */
+    private void setDeviceSettingsUser(int userId) {
+        BluetoothDeviceSettings deviceSettings;
+        synchronized (this) {
+            deviceSettings = mDeviceSettings;
+        }
+        if (deviceSettings != null) {
+            deviceSettings.setUser(userId);
+        }
     }
 
     /**
@@ -708,7 +803,9 @@ public class BluetoothDeviceConnectionPolicy {
             // quit the state machine
             mBluetoothAutoConnectStateMachine.doQuit();
             mProfileToConnectableDevicesMap = null;
-            mConnectionInFlight = null;
+            clearConnectionsInFlight();
+            // Device lists of the user going background must be written under that user.
+            flushDeviceSettings();
             if (mBluetoothBroadcastReceiver != null) {
                 if (mContext != null) {
                     mContext.unregisterReceiver(mBluetoothBroadcastReceiver);
@@ -747,6 +844,11 @@ public class BluetoothDeviceConnectionPolicy {
         for (BluetoothDevicesInfo devInfo : mProfileToConnectableDevicesMap.values()) {
             devInfo.resetConnectionInfoLocked();
         }
+        mConnectionsInFlight.clear();
+    }
+
+    private synchronized void clearConnectionsInFlight() {
+        mConnectionsInFlight.clear();
     }
 
     @VisibleForTesting
@@ -769,6 +871,25 @@ public class BluetoothDeviceConnectionPolicy {
         mAllowReadWriteToSettings = allowWrite;
     }
 
+    @VisibleForTesting
+    synchronized void setSettingsStoreForTesting(BluetoothDeviceSettings.SettingsStore store) {
+        mSettingsStoreForTesting = store;
+    }
+
+    @VisibleForTesting
+    synchronized void setConnectionTimeoutMs(int profile, int timeoutMs) {
+        mConnectionTimeoutsMs.put(profile, timeoutMs);
+    }
+
+    /**
+     * @return latency of the last successful connection attempt on the profile, -1 if none.
+     */
+    @VisibleForTesting
+    synchronized long getLastConnectLatencyMs(int profile) {
+        ConnectLatencyStats stats = mConnectLatencies.get(profile);
+        return stats == null ? -1 : stats.lastMs;
+    }
+
     @VisibleForTesting
     BluetoothDevicesInfo getBluetoothDevicesInfo(int profile) {
         return mProfileToConnectableDevicesMap.get(profile);
@@ -907,92 +1028,197 @@ public class BluetoothDeviceConnectionPolicy {
     }
 
     /**
-     * Find an unconnected profile and find a device to connect on it.
-     * Finds the appropriate device for the profile from the information available in
-     * {@link #mProfileToConnectableDevicesMap}
+     * Start a connection attempt on every profile that has no attempt in flight yet, except
+     * PBAP and MAP, see {@link #isConnectedAfterHeadset}.
+     * Finds the appropriate device for each profile from the information available in
+     * {@link #mProfileToConnectableDevicesMap}.  The connection requests, and the checks for the
+     * profile proxies before, are made outside of the policy's lock, so that connection status
+     * updates are not held up by them.
      *
-     * @return true - if we found a device to connect on for any of the {@link #mProfilesToConnect}
+     * @return true - if there is a connection attempt in flight on any of the
+     * {@link #mProfilesToConnect}
      * false - if we cannot find a device to connect to or if we are not ready to connect yet.
      */
-    public synchronized boolean findDeviceToConnect() {
-        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()
-                || mProfileToConnectableDevicesMap == null || !mInitialized) {
-            if (DBG) {
-                if (mProfileToConnectableDevicesMap == null) {
-                    Log.d(TAG, "findDeviceToConnect(): Device Map null");
-                } else {
-                    Log.d(TAG, "findDeviceToConnect(): BT Adapter not enabled");
-                }
+    public boolean findDeviceToConnect() {
+        // Binder calls, answered before taking the lock.
+        SparseBooleanArray proxyAvailable = new SparseBooleanArray(mProfilesToConnect.size());
+        for (Integer profile : mProfilesToConnect) {
+            if (!isConnectedAfterHeadset(profile)) {
+                proxyAvailable.put(profile, isProxyAvailable(profile));
             }
-            return false;
         }
-        boolean connectingToADevice = false;
-        // Get the first unconnected profile that we can try to make a connection
-        Integer nextProfile = getNextProfileToConnectLocked();
-        // Keep going through the profiles until we find a device that we can connect to
-        while (nextProfile != PROFILE_NOT_AVAILABLE) {
-            if (DBG) {
-                Log.d(TAG, "connectToProfile(): " + nextProfile);
-            }
-            // find a device that is next in line for a connection attempt for that profile
-            // and try connecting to it.
-            connectingToADevice = connectToNextDeviceInQueueLocked(nextProfile);
-            // If we found a device to connect, break out of the loop
-            if (connectingToADevice) {
+        List<ConnectionAttempt> attempts = new ArrayList<>();
+        synchronized (this) {
+            if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()
+                    || mProfileToConnectableDevicesMap == null || !mInitialized) {
                 if (DBG) {
-                    Log.d(TAG, "Found device to connect to");
+                    if (mProfileToConnectableDevicesMap == null) {
+                        Log.d(TAG, "findDeviceToConnect(): Device Map null");
+                    } else {
+                        Log.d(TAG, "findDeviceToConnect(): BT Adapter not enabled");
+                    }
                 }
-                BluetoothDeviceConnectionPolicy.ConnectionParams btParams =
-                        new BluetoothDeviceConnectionPolicy.ConnectionParams(
-                                mConnectionInFlight.getBluetoothProfile(),
-                                mConnectionInFlight.getBluetoothDevice());
-                // set up a time out
-                mBluetoothAutoConnectStateMachine.sendMessageDelayed(
-                        BluetoothAutoConnectStateMachine.CONNECT_TIMEOUT, btParams,
-                        BluetoothAutoConnectStateMachine.CONNECTION_TIMEOUT_MS);
-                break;
-            } else {
-                // result will be false, if there are no more devices to connect
-                // or if the ProfileProxy objects are null (ServiceConnection
-                // not yet established for this profile)
-                if (DBG) {
-                    Log.d(TAG, "No more device to connect on Profile: " + nextProfile);
+                return false;
+            }
+            for (Integer profile : mProfilesToConnect) {
+                if (isConnectedAfterHeadset(profile)
+                        || mConnectionsInFlight.get(profile) != null) {
+                    continue;
+                }
+                ConnectionAttempt attempt = startNextConnectionAttemptLocked(profile,
+                        proxyAvailable.get(profile));
+                if (attempt != null) {
+                    attempts.add(attempt);
                 }
-                nextProfile = getNextProfileToConnectLocked();
             }
         }
-        return connectingToADevice;
+        for (ConnectionAttempt attempt : attempts) {
+            sendConnectionRequest(attempt);
+        }
+        return hasConnectionsInFlight();
+    }
+
+    /**
+     * PBAP and MAP are only connected once the device connected on HFP, after
+     * {@link BluetoothAutoConnectStateMachine#CONNECT_MORE_PROFILES_TIMEOUT_MS}, so that they do
+     * not race the phone connecting A2DP, see
+     * {@link BluetoothAutoConnectStateMachine#CHECK_CLIENT_PROFILES}.
+     */
+    private static boolean isConnectedAfterHeadset(int profile) {
+        return profile == BluetoothProfile.PBAP_CLIENT || profile == BluetoothProfile.MAP_CLIENT;
     }
 
     /**
-     * Get the first unconnected profile.
+     * @return true if a connection attempt is in flight on any profile.
+     */
+    public synchronized boolean hasConnectionsInFlight() {
+        return mConnectionsInFlight.size() > 0;
+    }
+
+    /**
+     * Find the next device in the device list for the given profile and start a connection
+     * attempt on it.  If there is none, the profile is marked as having no device available to
+     * connect for this round of attempts.
      *
-     * @return profile to connect.
-     * Special return value 0 if
-     * 1. all profiles have been connected on.
-     * 2. no profile connected but no nearby known device that can be connected to
+     * @param profile - profile to connect on
+     * @param proxyAvailable - whether the proxy of the profile was available, checked before
+     *                       taking the lock
+     * @return the connection attempt started, null if there is no device to connect to.
      */
-    private Integer getNextProfileToConnectLocked() {
-        for (Integer profile : mProfilesToConnect) {
-            BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap.get(profile);
-            if (devInfo != null) {
-                if (devInfo.isProfileConnectableLocked()) {
-                    return profile;
-                }
-            } else {
-                Log.e(TAG, "Unexpected: devInfo null for profile: " + profile);
+    private ConnectionAttempt startNextConnectionAttemptLocked(Integer profile,
+            boolean proxyAvailable) {
+        BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap.get(profile);
+        if (devInfo == null) {
+            Log.e(TAG, "Unexpected: devInfo null for profile: " + profile);
+            return null;
+        }
+        if (!devInfo.isProfileConnectableLocked()) {
+            return null;
+        }
+        if (DBG) {
+            Log.d(TAG, "connectToProfile(): " + profile);
+        }
+        if (proxyAvailable) {
+            // Get the next device in the device list for this profile.
+            BluetoothDevice devToConnect = devInfo.getNextDeviceInQueueLocked();
+            if (devToConnect != null) {
+                return startConnectionAttemptLocked(profile, devToConnect, devInfo);
+            }
+            if (DBG) {
+                Log.d(TAG, "No paired nearby device to connect to for profile: " + profile);
             }
         }
-        // Reaching here denotes all profiles are connected or No devices available for any profile
+        devInfo.setDeviceAvailableToConnectLocked(false);
+        return null;
+    }
+
+    /**
+     * Mark the device as connecting on the profile and set up the time out of the attempt.  The
+     * caller has to send the connection request with {@link #sendConnectionRequest}, without
+     * holding the lock.
+     */
+    private ConnectionAttempt startConnectionAttemptLocked(Integer profile,
+            BluetoothDevice device, BluetoothDevicesInfo devInfo) {
+        ConnectionAttempt attempt = new ConnectionAttempt(new ConnectionParams(profile, device),
+                SystemClock.elapsedRealtime());
+        devInfo.setConnectionStateLocked(device, BluetoothProfile.STATE_CONNECTING);
+        devInfo.incrementRetryCountLocked();
+        mConnectionsInFlight.put(profile, attempt);
         if (DBG) {
-            Log.d(TAG, "No disconnected profiles");
+            Log.d(TAG, "Increment Retry to: " + devInfo.getRetryCountLocked()
+                    + ", for Profile: " + profile + ", on device: "
+                    + Utils.getDeviceDebugInfo(device));
+        }
+        mBluetoothAutoConnectStateMachine.sendMessageDelayed(
+                BluetoothAutoConnectStateMachine.CONNECT_TIMEOUT, attempt.params,
+                mConnectionTimeoutsMs.get(profile,
+                        BluetoothAutoConnectStateMachine.CONNECTION_TIMEOUT_MS));
+        return attempt;
+    }
+
+    /**
+     * Ask the Bluetooth stack to connect the device of the attempt on its profile.  If the
+     * request can not be made, the attempt is dropped and the profile is marked as having no
+     * device available to connect.
+     *
+     * @return true if the request was made.
+     */
+    private boolean sendConnectionRequest(ConnectionAttempt attempt) {
+        int profile = attempt.params.getBluetoothProfile();
+        BluetoothDevice device = attempt.params.getBluetoothDevice();
+        ICarBluetoothUserService carBluetoothUserService = mCarBluetoothUserService;
+        if (carBluetoothUserService != null) {
+            try {
+                carBluetoothUserService.bluetoothConnectToProfile(profile, device);
+                return true;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Remote User Service stopped responding: " + e.getMessage());
+            }
+        } else {
+            Log.e(TAG, "CarBluetoothUserSvc null");
+        }
+        synchronized (this) {
+            if (mConnectionsInFlight.get(profile) == attempt) {
+                mConnectionsInFlight.remove(profile);
+                BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap == null
+                        ? null : mProfileToConnectableDevicesMap.get(profile);
+                if (devInfo != null) {
+                    devInfo.setConnectionStateLocked(device, BluetoothProfile.STATE_DISCONNECTED);
+                    devInfo.setDeviceAvailableToConnectLocked(false);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the state machine when a connection attempt timed out.  Time outs of attempts
+     * that already completed are ignored.
+     *
+     * @param params - the {@link ConnectionParams} of the attempt that timed out.
+     */
+    synchronized void onConnectionTimeout(ConnectionParams params) {
+        if (params == null || params.getBluetoothProfile() == null) {
+            return;
+        }
+        int profile = params.getBluetoothProfile();
+        ConnectionAttempt attempt = mConnectionsInFlight.get(profile);
+        if (attempt == null || attempt.params != params) {
+            if (DBG) {
+                Log.d(TAG, "Ignoring stale time out on profile: " + profile);
+            }
+            return;
         }
-        return PROFILE_NOT_AVAILABLE;
+        Log.w(TAG, "Connection timed out on profile: " + Utils.getProfileName(profile)
+                + " after " + (SystemClock.elapsedRealtime() - attempt.startTimeMs) + "ms");
+        mConnectionsInFlight.remove(profile);
+        updateDeviceConnectionStatus(params, false);
     }
 
     /**
      * Checks if the Bluetooth profile service's proxy object is available.
-     * Proxy obj should be available before we can attempt to connect on that profile.
+     * Proxy obj should be available before we can attempt to connect on that profile.  Makes
+     * binder calls, so not to be called while holding the policy's lock.
      *
      * @param profile The profile to check the presence of the proxy object
      * @return True if the proxy obj exists. False otherwise.
@@ -1032,70 +1258,51 @@ public class BluetoothDeviceConnectionPolicy {
             Log.d(TAG, "in connectToDeviceOnProfile for Profile:" + profile +
                     ", device: " + Utils.getDeviceDebugInfo(device));
         }
+        // Binder call, not made under the lock.
         if (!isProxyAvailable(profile)) {
             if (DBG) {
                 Log.d(TAG, "No proxy available for Profile: " + profile);
             }
             return false;
         }
-        BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap.get(profile);
-        if (devInfo == null) {
-            if (DBG) {
-                Log.d(TAG, "devInfo NULL on Profile:" + profile);
-            }
-            return false;
-        }
-        int state = devInfo.getCurrentConnectionStateLocked(device);
-        if (state == BluetoothProfile.STATE_CONNECTED ||
-                state == BluetoothProfile.STATE_CONNECTING) {
-            if (DBG) {
-                Log.d(TAG, "device " + Utils.getDeviceDebugInfo(device) +
-                        " is already connected/connecting on Profile:" + profile);
+        ConnectionAttempt attempt;
+        synchronized (this) {
+            if (mProfileToConnectableDevicesMap == null) {
+                return false;
             }
-            return true;
-        }
-        if (!devInfo.isProfileConnectableLocked()) {
-            if (DBG) {
-                Log.d(TAG, "isProfileConnectableLocked FALSE on Profile:" + profile +
-                        "  this means number of connections on this profile max'ed out or " +
-                        " no more devices available to connect on this profile");
+            BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap.get(profile);
+            if (devInfo == null) {
+                if (DBG) {
+                    Log.d(TAG, "devInfo NULL on Profile:" + profile);
+                }
+                return false;
             }
-            return false;
-        }
-        try {
-            if (mCarBluetoothUserService != null) {
-                mCarBluetoothUserService.bluetoothConnectToProfile((int) profile, device);
-                devInfo.setConnectionStateLocked(device, BluetoothProfile.STATE_CONNECTING);
-                // Increment the retry count & cache what is being connected to
-                // This method is already called from a synchronized context.
-                mConnectionInFlight.setBluetoothDevice(device);
-                mConnectionInFlight.setBluetoothProfile(profile);
-                devInfo.incrementRetryCountLocked();
+            int state = devInfo.getCurrentConnectionStateLocked(device);
+            if (state == BluetoothProfile.STATE_CONNECTED ||
+                    state == BluetoothProfile.STATE_CONNECTING) {
                 if (DBG) {
-                    Log.d(TAG, "Increment Retry to: " + devInfo.getRetryCountLocked() +
-                            ", for Profile: " + profile + ", on device: " +
-                            Utils.getDeviceDebugInfo(device));
+                    Log.d(TAG, "device " + Utils.getDeviceDebugInfo(device) +
+                            " is already connected/connecting on Profile:" + profile);
                 }
                 return true;
-            } else {
-                Log.e(TAG, "CarBluetoothUserSvc null");
             }
-        } catch (RemoteException e) {
-            Log.e(TAG, "Remote User Service stopped responding: " + e.getMessage());
+            if (!devInfo.isProfileConnectableLocked()) {
+                if (DBG) {
+                    Log.d(TAG, "isProfileConnectableLocked FALSE on Profile:" + profile +
+                            "  this means number of connections on this profile max'ed out or " +
+                            " no more devices available to connect on this profile");
+                }
+                return false;
+            }
+            if (mConnectionsInFlight.get(profile) != null) {
+                if (DBG) {
+                    Log.d(TAG, "Another connection is in flight on Profile:" + profile);
+                }
+                return false;
+            }
+            attempt = startConnectionAttemptLocked(profile, device, devInfo);
         }
-        return false;
-    }
-
-    /**
-     * Helper method to reset info in {@link #mConnectionInFlight} in the given
-     * {@link BluetoothDevicesInfo} object.
-     *
-     * @param devInfo the {@link BluetoothDevicesInfo} where the info is to be reset.
-     */
-    private void setProfileOnDeviceToUnavailable(BluetoothDevicesInfo devInfo) {
-        mConnectionInFlight.setBluetoothProfile(0);
-        mConnectionInFlight.setBluetoothDevice(null);
-        devInfo.setDeviceAvailableToConnectLocked(false);
+        return sendConnectionRequest(attempt);
     }
 
     boolean doesDeviceExistForProfile(Integer profile, BluetoothDevice device) {
@@ -1114,41 +1321,6 @@ public class BluetoothDeviceConnectionPolicy {
         return b;
     }
 
-    /**
-     * Try to connect to the next device in the device list for the given profile.
-     *
-     * @param profile - profile to connect on
-     * @return - true if we found a device to connect on for this profile
-     * false - if we cannot find a device to connect to.
-     */
-    private boolean connectToNextDeviceInQueueLocked(Integer profile) {
-        // Get the Device Information for the given profile and find the next device to connect on
-        BluetoothDevice devToConnect = null;
-        BluetoothDevicesInfo devInfo = mProfileToConnectableDevicesMap.get(profile);
-        if (devInfo == null) {
-            Log.e(TAG, "Unexpected: No device Queue for this profile: " + profile);
-            return false;
-        }
-
-        if (isProxyAvailable(profile)) {
-            // Get the next device in the device list for this profile.
-            devToConnect = devInfo.getNextDeviceInQueueLocked();
-            if (devToConnect != null) {
-                // deviceAvailable && proxyAvailable
-                if (connectToDeviceOnProfile(profile, devToConnect)) return true;
-            } else {
-                // device unavailable
-                if (DBG) {
-                    Log.d(TAG, "No paired nearby device to connect to for profile: " + profile);
-                }
-            }
-        }
-
-        // reset the mConnectionInFlight
-        setProfileOnDeviceToUnavailable(devInfo);
-        return false;
-    }
-
     /**
      * Update the device connection status for a profile and also notify the state machine.
      * This gets called from {@link BluetoothBroadcastReceiver} when it receives a Profile's
@@ -1243,24 +1415,21 @@ public class BluetoothDeviceConnectionPolicy {
                     BluetoothAutoConnectStateMachine.CONNECT_MORE_PROFILES_TIMEOUT_MS);
         }
 
-        // If the connection update is on a different profile or device (a very rare possibility),
-        // it is handled automatically.  Just logging it here.
-        if (DBG) {
-            if (mConnectionInFlight != null && mConnectionInFlight.getBluetoothProfile() != null) {
-                if (profileToUpdate.equals(mConnectionInFlight.getBluetoothProfile()) == false) {
-                    Log.d(TAG, "Updating profile " + profileToUpdate
-                            + " different from connection in flight "
-                            + mConnectionInFlight.getBluetoothProfile());
-                }
-            }
-
-            if (mConnectionInFlight != null && mConnectionInFlight.getBluetoothDevice() != null) {
-                if (deviceThatConnected.equals(mConnectionInFlight.getBluetoothDevice()) == false) {
-                    Log.d(TAG, "Updating device: " + deviceThatConnected
-                            + " different from connection in flight: "
-                            + mConnectionInFlight.getBluetoothDevice());
-
+        // The attempt in flight on this profile completes when its device connects or
+        // disconnects.  An update for a different device (a very rare possibility) leaves it in
+        // flight until it completes or times out.
+        ConnectionAttempt attempt = mConnectionsInFlight.get(profileToUpdate);
+        if (attempt != null) {
+            if (deviceThatConnected.equals(attempt.params.getBluetoothDevice())) {
+                mConnectionsInFlight.remove(profileToUpdate);
+                if (didConnect) {
+                    recordConnectLatencyLocked(profileToUpdate,
+                            SystemClock.elapsedRealtime() - attempt.startTimeMs);
                 }
+            } else if (DBG) {
+                Log.d(TAG, "Updating device: " + deviceThatConnected
+                        + " different from connection in flight: "
+                        + attempt.params.getBluetoothDevice());
             }
         }
         BluetoothDevicesInfo devInfo = null;
@@ -1282,6 +1451,18 @@ public class BluetoothDeviceConnectionPolicy {
         return true;
     }
 
+    private void recordConnectLatencyLocked(int profile, long latencyMs) {
+        ConnectLatencyStats stats = mConnectLatencies.get(profile);
+        if (stats == null) {
+            stats = new ConnectLatencyStats();
+            mConnectLatencies.put(profile, stats);
+        }
+        stats.add(latencyMs);
+        if (DBG) {
+            Log.d(TAG, "Profile: " + profile + " connected in " + latencyMs + "ms");
+        }
+    }
+
     /**
      * Returns if we can retry connection attempt on the given profile for the device that is
      * currently in the head of the queue.
@@ -1351,6 +1532,16 @@ public class BluetoothDeviceConnectionPolicy {
      * @param writer - PrintWriter
      */
     private synchronized void printDeviceMap(PrintWriter writer) {
+        for (int i = 0; i < mConnectLatencies.size(); i++) {
+            writer.println("Profile: " + Utils.getProfileName(mConnectLatencies.keyAt(i))
+                    + " " + mConnectLatencies.valueAt(i));
+        }
+        for (int i = 0; i < mConnectionsInFlight.size(); i++) {
+            ConnectionAttempt attempt = mConnectionsInFlight.valueAt(i);
+            writer.println("In flight: " + Utils.getProfileName(mConnectionsInFlight.keyAt(i))
+                    + " " + Utils.getDeviceDebugInfo(attempt.params.getBluetoothDevice())
+                    + " for " + (SystemClock.elapsedRealtime() - attempt.startTimeMs) + "ms");
+        }
         if (mProfileToConnectableDevicesMap == null) {
             return;
         }
@@ -1391,68 +1582,25 @@ public class BluetoothDeviceConnectionPolicy {
      * @return true if the write was successful, false otherwise
      */
     public synchronized boolean writeDeviceInfoToSettings(ConnectionParams params) {
-        if (!mAllowReadWriteToSettings) {
+        if (!mAllowReadWriteToSettings || mDeviceSettings == null
+                || mProfileToConnectableDevicesMap == null) {
             return false;
         }
-        boolean writeSuccess = true;
         Integer profileToUpdate = params.getBluetoothProfile();
-
-        if (mProfileToConnectableDevicesMap == null) {
-            writeSuccess = false;
-        } else {
-            List<String> deviceNames = new ArrayList<>();
-            BluetoothDevicesInfo devicesInfo = mProfileToConnectableDevicesMap.get(profileToUpdate);
-            StringBuilder sb = new StringBuilder();
-            String delimiter = ""; // start off with no delimiter.
-
-            // Iterate through the List<BluetoothDevice> and build a String that is
-            // names of all devices to be connected for this profile joined together and
-            // delimited by a delimiter (its a ',' here)
-            if (devicesInfo != null && devicesInfo.getDeviceList() != null) {
-                for (BluetoothDevice device : devicesInfo.getDeviceList()) {
-                    sb.append(delimiter);
-                    sb.append(device.getAddress());
-                    delimiter = SETTINGS_DELIMITER;
-                }
-
-            }
-            // joinedDeviceNames has something like "22:22:33:44:55:AB,22:23:xx:xx:xx:xx"
-            // mac addresses of connectable devices separated by a delimiter
-            String joinedDeviceNames = sb.toString();
-            if (DBG) {
-                Log.d(TAG, "Profile: " + profileToUpdate + " Writing: " + joinedDeviceNames);
-            }
-            long userId = ActivityManager.getCurrentUser();
-            switch (profileToUpdate) {
-                case BluetoothProfile.A2DP_SINK:
-                    Settings.Secure.putStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES,
-                            joinedDeviceNames, (int) userId);
-                    break;
-
-                case BluetoothProfile.HEADSET_CLIENT:
-                    Settings.Secure.putStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES,
-                            joinedDeviceNames, (int) userId);
-                    break;
-
-                case BluetoothProfile.PBAP_CLIENT:
-                    // use the phone
-                    break;
-
-                case BluetoothProfile.MAP_CLIENT:
-                    Settings.Secure.putStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_MESSAGING_DEVICES,
-                            joinedDeviceNames, (int) userId);
-                    break;
-                case BluetoothProfile.PAN:
-                    Settings.Secure.putStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_NETWORK_DEVICES,
-                            joinedDeviceNames, (int) userId);
-                    break;
+        BluetoothDevicesInfo devicesInfo = mProfileToConnectableDevicesMap.get(profileToUpdate);
+        // Mac addresses of connectable devices, most recently connected first.
+        List<String> addresses = new ArrayList<>();
+        if (devicesInfo != null && devicesInfo.getDeviceList() != null) {
+            for (BluetoothDevice device : devicesInfo.getDeviceList()) {
+                addresses.add(device.getAddress());
             }
         }
-        return writeSuccess;
+        if (DBG) {
+            Log.d(TAG, "Profile: " + profileToUpdate + " Writing: " + addresses);
+        }
+        // Only written if changed, batched with other profiles.
+        mDeviceSettings.storeDevices(profileToUpdate, addresses);
+        return true;
     }
 
     /**
@@ -1460,16 +1608,17 @@ public class BluetoothDeviceConnectionPolicy {
      * {@link #mProfileToConnectableDevicesMap}
      *
      * Device MAC addresses are written to Settings.Secure delimited by a ','.
-     * Ex: android.car.BLUETOOTH_AUTOCONNECT_PHONE_DEVICES: xx:xx:xx:xx:xx:xx,yy:yy:yy:yy:yy
+     * Ex: android.car.BLUETOOTH_AUTOCONNECT_PHONE_DEVICES: xxxxxxxxxxxx,yyyyyyyyyyyy
      * denotes that two devices with addresses xx:xx:xx:xx:xx:xx & yy:yy:yy:yy:yy:yy were connected
-     * as phones (in HFP and PBAP profiles) the last time this user was logged in.
+     * as phones (in HFP and PBAP profiles) the last time this user was logged in.  See
+     * {@link BluetoothDeviceSettings}, which also serves lists already read or written for the
+     * current user from memory.
      *
      * @return - true if the read was successful, false if 1. BT Adapter not enabled 2. No prior
      * bonded devices 3. No information stored in Settings for this user.
      */
     public synchronized boolean readAndRebuildDeviceMapFromSettings() {
         List<String> deviceList;
-        String devices = null;
         // Create and initialize mProfileToConnectableDevicesMap if needed.
         initDeviceMap();
         if (mBluetoothAdapter != null) {
@@ -1484,49 +1633,22 @@ public class BluetoothDeviceConnectionPolicy {
                 return false;
             }
         }
-        if (!mAllowReadWriteToSettings) {
+        if (!mAllowReadWriteToSettings || mDeviceSettings == null) {
             return false;
         }
-        // Read from Settings.Secure for the current user.  There are 3 keys 1 each for Phone
-        // (HFP & PBAP), 1 for Music (A2DP) and 1 for Messaging device (MAP)
-        long userId = ActivityManager.getCurrentUser();
+        // Read from Settings.Secure for the current user.  There are 4 keys 1 each for Phone
+        // (HFP & PBAP), 1 for Music (A2DP), 1 for Messaging device (MAP) and 1 for Network (PAN)
         for (Integer profile : mProfilesToConnect) {
-            switch (profile) {
-                case BluetoothProfile.A2DP_SINK:
-                    devices = Settings.Secure.getStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES, (int) userId);
-                    break;
-                case BluetoothProfile.PBAP_CLIENT:
-                    // fall through
-                case BluetoothProfile.HEADSET_CLIENT:
-                    devices = Settings.Secure.getStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES, (int) userId);
-                    break;
-                case BluetoothProfile.MAP_CLIENT:
-                    devices = Settings.Secure.getStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_MESSAGING_DEVICES, (int) userId);
-                    break;
-                case BluetoothProfile.PAN:
-                    devices = Settings.Secure.getStringForUser(mContext.getContentResolver(),
-                            KEY_BLUETOOTH_AUTOCONNECT_NETWORK_DEVICES, (int) userId);
-                default:
-                    Log.e(TAG, "Unexpected profile");
-                    break;
-            }
-
-            if (devices == null) {
+            // Get a list of Device Mac Addresses stored for the profile
+            deviceList = mDeviceSettings.getDevices(profile);
+            if (deviceList == null) {
                 if (DBG) {
                     Log.d(TAG, "No device information stored in Settings");
                 }
                 return false;
             }
             if (DBG) {
-                Log.d(TAG, "Devices in Settings: " + devices);
-            }
-            // Get a list of Device Mac Addresses from the value
-            deviceList = Arrays.asList(devices.split(SETTINGS_DELIMITER));
-            if (deviceList == null) {
-                return false;
+                Log.d(TAG, "Devices in Settings: " + deviceList);
             }
             BluetoothDevicesInfo devicesInfo = mProfileToConnectableDevicesMap.get(profile);
             // Do we have a bonded device with this name?  If so, get it and populate the device
@@ -1648,6 +1770,13 @@ public class BluetoothDeviceConnectionPolicy {
     public void dump(PrintWriter writer) {
         writer.println("*BluetoothDeviceConnectionPolicy*");
         printDeviceMap(writer);
+        BluetoothDeviceSettings deviceSettings;
+        synchronized (this) {
+            deviceSettings = mDeviceSettings;
+        }
+        if (deviceSettings != null) {
+            deviceSettings.dump(writer);
+        }
         mBluetoothAutoConnectStateMachine.dump(writer);
     }
 }
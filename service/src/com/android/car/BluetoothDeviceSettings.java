@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_MESSAGING_DEVICES;
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES;
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_NETWORK_DEVICES;
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.bluetooth.BluetoothProfile;
+import android.content.ContentResolver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-coalescing persistence of the per profile auto-connect device lists of
+ * {@link BluetoothDeviceConnectionPolicy}.
+ *
+ * The lists are kept in memory per profile. A stored list only marks its profile dirty when it
+ * differs from what is already persisted, and dirty profiles are written to
+ * {@link Settings.Secure} together once connection changes have been idle for a while, so that
+ * pairing and connection churn results in one settings write per changed profile.
+ * {@link #flush()} writes pending lists immediately and is called on user switch and shutdown
+ * preparation.
+ *
+ * Device addresses are written as 12 hex digits without separators, delimited by ','. Lists
+ * written in the previous "xx:xx:xx:xx:xx:xx" form are still read.
+ */
+/* package */ class BluetoothDeviceSettings {
+
+    /** Idle time after the last change before pending lists are written. */
+    static final long DEFAULT_FLUSH_DELAY_MS = 2000;
+
+    private static final String DELIMITER = ",";
+    private static final int ADDRESS_BYTES = 6;
+
+    /**
+     * Backing store of the settings, abstracted so that tests can count writes.
+     */
+    interface SettingsStore {
+        @Nullable
+        String getString(String key, int userId);
+        void putString(String key, String value, int userId);
+    }
+
+    private static final class SecureSettingsStore implements SettingsStore {
+        private final ContentResolver mContentResolver;
+
+        SecureSettingsStore(ContentResolver contentResolver) {
+            mContentResolver = contentResolver;
+        }
+
+        @Override
+        public String getString(String key, int userId) {
+            return Settings.Secure.getStringForUser(mContentResolver, key, userId);
+        }
+
+        @Override
+        public void putString(String key, String value, int userId) {
+            Settings.Secure.putStringForUser(mContentResolver, key, value, userId);
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final SettingsStore mStore;
+    private final Handler mHandler;
+    private final long mFlushDelayMs;
+    private final Runnable mFlushRunnable = this::flush;
+
+    @GuardedBy("mLock")
+    private int mUserId = UserHandle.USER_NULL;
+    /** Lists known to be in the store for {@link #mUserId}, by settings key. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, String> mPersisted = new ArrayMap<>();
+    /** Lists changed since the last flush, by settings key. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, String> mPending = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private int mRequestedWriteCount;
+    @GuardedBy("mLock")
+    private int mActualWriteCount;
+
+    BluetoothDeviceSettings(@NonNull ContentResolver contentResolver, @NonNull Looper looper) {
+        this(new SecureSettingsStore(contentResolver), looper, DEFAULT_FLUSH_DELAY_MS);
+    }
+
+    @VisibleForTesting
+    BluetoothDeviceSettings(@NonNull SettingsStore store, @NonNull Looper looper,
+            long flushDelayMs) {
+        mStore = store;
+        mHandler = new Handler(looper);
+        mFlushDelayMs = flushDelayMs;
+    }
+
+    /**
+     * @return settings key holding the device list of the profile, null if not persisted. PBAP
+     *         shares the phone devices of HFP.
+     */
+    @Nullable
+    static String getKeyForProfile(int profile) {
+        switch (profile) {
+            case BluetoothProfile.A2DP_SINK:
+                return KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES;
+            case BluetoothProfile.HEADSET_CLIENT:
+            case BluetoothProfile.PBAP_CLIENT:
+                return KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES;
+            case BluetoothProfile.MAP_CLIENT:
+                return KEY_BLUETOOTH_AUTOCONNECT_MESSAGING_DEVICES;
+            case BluetoothProfile.PAN:
+                return KEY_BLUETOOTH_AUTOCONNECT_NETWORK_DEVICES;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Switches to the lists of the given user. Pending lists of the previous user are written
+     * first.
+     */
+    void setUser(int userId) {
+        synchronized (mLock) {
+            if (mUserId == userId) {
+                return;
+            }
+        }
+        flush();
+        synchronized (mLock) {
+            mUserId = userId;
+            mPersisted.clear();
+        }
+    }
+
+    /**
+     * @return device addresses stored for the profile, most recently connected first, or null
+     *         if nothing was ever stored.
+     */
+    @Nullable
+    List<String> getDevices(int profile) {
+        String key = getKeyForProfile(profile);
+        if (key == null) {
+            return null;
+        }
+        String value;
+        synchronized (mLock) {
+            value = mPending.get(key);
+            if (value == null) {
+                value = mPersisted.get(key);
+            }
+            if (value == null && mUserId != UserHandle.USER_NULL) {
+                value = mStore.getString(key, mUserId);
+                if (value != null) {
+                    mPersisted.put(key, value);
+                }
+            }
+        }
+        return value == null ? null : decode(value);
+    }
+
+    /**
+     * Stores the device addresses of the profile, written on the next flush if they changed.
+     */
+    void storeDevices(int profile, @NonNull List<String> addresses) {
+        // PBAP connects on the phone devices of HFP, only HFP updates them.
+        String key = profile == BluetoothProfile.PBAP_CLIENT ? null : getKeyForProfile(profile);
+        if (key == null) {
+            return;
+        }
+        String value = encode(addresses);
+        synchronized (mLock) {
+            mRequestedWriteCount++;
+            String current = mPending.containsKey(key) ? mPending.get(key) : mPersisted.get(key);
+            if (value.equals(current)) {
+                return;
+            }
+            if (value.equals(mPersisted.get(key))) {
+                // Changed back before it was written.
+                mPending.remove(key);
+                return;
+            }
+            mPending.put(key, value);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Writes all pending lists to the backing store right away. Safe to call from any thread.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        // Holding the lock across the writes keeps concurrent flushes from reordering values.
+        synchronized (mLock) {
+            if (mUserId == UserHandle.USER_NULL) {
+                mPending.clear();
+                return;
+            }
+            for (int i = 0; i < mPending.size(); i++) {
+                mStore.putString(mPending.keyAt(i), mPending.valueAt(i), mUserId);
+                mPersisted.put(mPending.keyAt(i), mPending.valueAt(i));
+                mActualWriteCount++;
+            }
+            mPending.clear();
+        }
+    }
+
+    /**
+     * @return Number of lists written to the backing store so far.
+     */
+    int getWriteCount() {
+        synchronized (mLock) {
+            return mActualWriteCount;
+        }
+    }
+
+    private void scheduleFlush() {
+        // Restart the idle timer on every change.
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, mFlushDelayMs);
+    }
+
+    @VisibleForTesting
+    static String encode(List<String> addresses) {
+        StringBuilder sb = new StringBuilder(addresses.size() * (ADDRESS_BYTES * 2 + 1));
+        for (String address : addresses) {
+            if (sb.length() > 0) {
+                sb.append(DELIMITER);
+            }
+            for (int i = 0; i < address.length(); i++) {
+                char c = address.charAt(i);
+                if (c != ':') {
+                    sb.append(Character.toUpperCase(c));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    @VisibleForTesting
+    static List<String> decode(String value) {
+        List<String> addresses = new ArrayList<>();
+        for (String token : value.split(DELIMITER)) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (token.length() != ADDRESS_BYTES * 2) {
+                // Written with separators, or unknown, pass it on as is.
+                addresses.add(token);
+                continue;
+            }
+            StringBuilder address = new StringBuilder(ADDRESS_BYTES * 3 - 1);
+            for (int i = 0; i < token.length(); i += 2) {
+                if (i > 0) {
+                    address.append(':');
+                }
+                address.append(token, i, i + 2);
+            }
+            addresses.add(address.toString());
+        }
+        return addresses;
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.printf("BluetoothDeviceSettings user: %d requested writes: %d actual writes: %d"
+                    + "\n", mUserId, mRequestedWriteCount, mActualWriteCount);
+            writer.printf("\tPending: %s flush delay ms: %d\n", mPending.keySet(),
+                    mFlushDelayMs);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.util.SparseIntArray;
+
+import com.android.internal.util.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Immutable usage -> context -> volume group lookup tables for {@link CarAudioService}.
+ *
+ * All lookups are precomputed when the volume group configuration is loaded, and an instance
+ * is never modified after construction, so it can be published through a volatile field and
+ * read without holding any lock.
+ */
+/* package */ final class CarAudioRoutingTable {
+
+    private final CarVolumeGroup[] mGroups;
+    private final SparseIntArray mUsageToGroupId;
+    private final int[][] mUsagesForGroup;
+
+    private CarAudioRoutingTable(CarVolumeGroup[] groups, SparseIntArray usageToGroupId,
+            int[][] usagesForGroup) {
+        mGroups = groups;
+        mUsageToGroupId = usageToGroupId;
+        mUsagesForGroup = usagesForGroup;
+    }
+
+    /**
+     * Builds the lookup tables.
+     *
+     * @param groups Volume groups, indexed by group id. Must not be modified afterwards.
+     * @param usageToContext Mapping from {@link android.media.AudioAttributes} usage to context
+     *                       number as defined in audio control HAL.
+     */
+    static CarAudioRoutingTable build(@NonNull CarVolumeGroup[] groups,
+            @NonNull SparseIntArray usageToContext) {
+        SparseIntArray contextToGroupId = new SparseIntArray();
+        for (int groupId = 0; groupId < groups.length; groupId++) {
+            for (int context : groups[groupId].getContexts()) {
+                contextToGroupId.put(context, groupId);
+            }
+        }
+
+        SparseIntArray usageToGroupId = new SparseIntArray(usageToContext.size());
+        int[] usageCountForGroup = new int[groups.length];
+        for (int i = 0; i < usageToContext.size(); i++) {
+            int groupId = contextToGroupId.get(usageToContext.valueAt(i), -1);
+            if (groupId >= 0) {
+                usageToGroupId.put(usageToContext.keyAt(i), groupId);
+                usageCountForGroup[groupId]++;
+            }
+        }
+
+        int[][] usagesForGroup = new int[groups.length][];
+        for (int groupId = 0; groupId < groups.length; groupId++) {
+            usagesForGroup[groupId] = new int[usageCountForGroup[groupId]];
+            usageCountForGroup[groupId] = 0;
+        }
+        for (int i = 0; i < usageToGroupId.size(); i++) {
+            int groupId = usageToGroupId.valueAt(i);
+            usagesForGroup[groupId][usageCountForGroup[groupId]++] = usageToGroupId.keyAt(i);
+        }
+        return new CarAudioRoutingTable(groups, usageToGroupId, usagesForGroup);
+    }
+
+    int getGroupCount() {
+        return mGroups.length;
+    }
+
+    CarVolumeGroup getGroup(int groupId) {
+        Preconditions.checkArgument(groupId >= 0 && groupId < mGroups.length,
+                "groupId out of range: " + groupId);
+        return mGroups[groupId];
+    }
+
+    CarVolumeGroup[] getGroups() {
+        return mGroups;
+    }
+
+    /**
+     * @return Volume group id for the given usage, -1 if no group handles the usage.
+     */
+    int getGroupIdForUsage(int usage) {
+        return mUsageToGroupId.get(usage, -1);
+    }
+
+    /**
+     * @return Copy of the usages handled by the given volume group, in ascending order.
+     */
+    @NonNull int[] getUsagesForGroup(int groupId) {
+        Preconditions.checkArgument(groupId >= 0 && groupId < mGroups.length,
+                "groupId out of range: " + groupId);
+        return Arrays.copyOf(mUsagesForGroup[groupId], mUsagesForGroup[groupId].length);
+    }
+}
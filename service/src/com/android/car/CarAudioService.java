@@ -42,6 +42,7 @@ import android.media.AudioSystem;
 import android.media.audiopolicy.AudioMix;
 import android.media.audiopolicy.AudioMixingRule;
 import android.media.audiopolicy.AudioPolicy;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -51,6 +52,7 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
+import com.android.car.CarPowerManagementService.PowerEventProcessingHandler;
 import com.android.internal.util.Preconditions;
 
 import java.io.PrintWriter;
@@ -62,7 +64,8 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
+public class CarAudioService extends ICarAudio.Stub implements CarServiceBase,
+        PowerEventProcessingHandler {
 
     private static final int DEFAULT_AUDIO_USAGE = AudioAttributes.USAGE_MEDIA;
 
@@ -122,6 +125,7 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
     private final Object mImplLock = new Object();
 
     private final Context mContext;
+    private final CarPowerManagementService mCarPowerManagementService;
     private final TelephonyManager mTelephonyManager;
     private final AudioManager mAudioManager;
     private final boolean mUseDynamicRouting;
@@ -185,7 +189,7 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
                     if (groupId == -1) {
                         Log.w(CarLog.TAG_AUDIO, "Unknown stream type: " + streamType);
                     } else {
-                        callbackGroupVolumeChange(groupId, 0);
+                        mVolumeCallbackBatcher.onGroupVolumeChanged(groupId, 0);
                     }
                     break;
                 case AudioManager.MASTER_MUTE_CHANGED_ACTION:
@@ -195,14 +199,39 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
         }
     };
 
+    /**
+     * Pending volume, fade and balance values set by the previous user are written out right after
+     * a user switch, {@link Intent#ACTION_USER_SWITCHED} is only sent once the switch happened.
+     * They are stored in global settings, so writing them late does not attribute them to the
+     * new user.
+     */
+    private final BroadcastReceiver mUserSwitchedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            flushSettings();
+        }
+    };
+
+    private final CarVolumeCallbackBatcher mVolumeCallbackBatcher;
+
+    private HandlerThread mSettingsThread;
+    private CarAudioSettings mCarAudioSettings;
+
     private AudioPolicy mAudioPolicy;
-    private CarVolumeGroup[] mCarVolumeGroups;
+    /**
+     * Published once volume groups are loaded and never modified afterwards, read without
+     * holding {@link #mImplLock}.
+     */
+    private volatile CarAudioRoutingTable mRoutingTable;
 
-    public CarAudioService(Context context) {
+    public CarAudioService(Context context, CarPowerManagementService carPowerManagementService) {
         mContext = context;
+        mCarPowerManagementService = carPowerManagementService;
         mTelephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
         mUseDynamicRouting = mContext.getResources().getBoolean(R.bool.audioUseDynamicRouting);
+        mVolumeCallbackBatcher = new CarVolumeCallbackBatcher(Looper.getMainLooper(),
+                this::callbackGroupVolumeChange);
     }
 
     /**
@@ -212,6 +241,10 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
     @Override
     public void init() {
         synchronized (mImplLock) {
+            mSettingsThread = new HandlerThread(CarLog.TAG_AUDIO);
+            mSettingsThread.start();
+            mCarAudioSettings = new CarAudioSettings(mContext.getContentResolver(),
+                    mSettingsThread.getLooper());
             if (!mUseDynamicRouting) {
                 Log.i(CarLog.TAG_AUDIO, "Audio dynamic routing not configured, run in legacy mode");
                 setupLegacyVolumeChangedListener();
@@ -219,7 +252,11 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
                 setupDynamicRouting();
                 setupVolumeGroups();
             }
+            restoreFadeAndBalance();
+            mContext.registerReceiver(mUserSwitchedReceiver,
+                    new IntentFilter(Intent.ACTION_USER_SWITCHED));
         }
+        mCarPowerManagementService.registerPowerEventProcessingHandler(this);
     }
 
     @Override
@@ -234,7 +271,36 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
                 mContext.unregisterReceiver(mLegacyVolumeChangedReceiver);
             }
 
+            mVolumeCallbackBatcher.cancel();
             mVolumeCallbackContainer.clear();
+
+            mContext.unregisterReceiver(mUserSwitchedReceiver);
+            mCarAudioSettings.flush();
+            mSettingsThread.quitSafely();
+        }
+    }
+
+    @Override
+    public long onPrepareShutdown(boolean shuttingDown) {
+        flushSettings();
+        return 0;
+    }
+
+    @Override
+    public void onPowerOn(boolean displayOn) { }
+
+    @Override
+    public int getWakeupTime() {
+        return 0;
+    }
+
+    private void flushSettings() {
+        CarAudioSettings carAudioSettings;
+        synchronized (mImplLock) {
+            carAudioSettings = mCarAudioSettings;
+        }
+        if (carAudioSettings != null) {
+            carAudioSettings.flush();
         }
     }
 
@@ -243,10 +309,15 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
         writer.println("*CarAudioService*");
         writer.println("\tRun in legacy mode? " + (!mUseDynamicRouting));
         writer.println("\tMaster mute? " + mAudioManager.isMasterMute());
+        CarAudioSettings carAudioSettings = mCarAudioSettings;
+        if (carAudioSettings != null) {
+            carAudioSettings.dump(writer);
+        }
         // Empty line for comfortable reading
         writer.println();
-        if (mUseDynamicRouting) {
-            for (CarVolumeGroup group : mCarVolumeGroups) {
+        CarAudioRoutingTable routingTable = mRoutingTable;
+        if (mUseDynamicRouting && routingTable != null) {
+            for (CarVolumeGroup group : routingTable.getGroups()) {
                 group.dump(writer);
             }
         }
@@ -260,7 +331,9 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
         synchronized (mImplLock) {
             enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            callbackGroupVolumeChange(groupId, flags);
+            // Callbacks are coalesced per frame, so a fast knob spin results in a bounded
+            // number of callbacks reporting the latest volume.
+            mVolumeCallbackBatcher.onGroupVolumeChanged(groupId, flags);
             // For legacy stream type based volume control
             if (!mUseDynamicRouting) {
                 mAudioManager.setStreamVolume(STREAM_TYPES[groupId], index, flags);
@@ -299,17 +372,15 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
      */
     @Override
     public int getGroupMaxVolume(int groupId) {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            // For legacy stream type based volume control
-            if (!mUseDynamicRouting) {
-                return mAudioManager.getStreamMaxVolume(STREAM_TYPES[groupId]);
-            }
-
-            CarVolumeGroup group = getCarVolumeGroup(groupId);
-            return group.getMaxGainIndex();
+        // For legacy stream type based volume control
+        if (!mUseDynamicRouting) {
+            return mAudioManager.getStreamMaxVolume(STREAM_TYPES[groupId]);
         }
+
+        CarVolumeGroup group = getCarVolumeGroup(groupId);
+        return group.getMaxGainIndex();
     }
 
     /**
@@ -317,17 +388,15 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
      */
     @Override
     public int getGroupMinVolume(int groupId) {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
-
-            // For legacy stream type based volume control
-            if (!mUseDynamicRouting) {
-                return mAudioManager.getStreamMinVolume(STREAM_TYPES[groupId]);
-            }
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            CarVolumeGroup group = getCarVolumeGroup(groupId);
-            return group.getMinGainIndex();
+        // For legacy stream type based volume control
+        if (!mUseDynamicRouting) {
+            return mAudioManager.getStreamMinVolume(STREAM_TYPES[groupId]);
         }
+
+        CarVolumeGroup group = getCarVolumeGroup(groupId);
+        return group.getMinGainIndex();
     }
 
     /**
@@ -335,24 +404,20 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
      */
     @Override
     public int getGroupVolume(int groupId) {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
-
-            // For legacy stream type based volume control
-            if (!mUseDynamicRouting) {
-                return mAudioManager.getStreamVolume(STREAM_TYPES[groupId]);
-            }
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            CarVolumeGroup group = getCarVolumeGroup(groupId);
-            return group.getCurrentGainIndex();
+        // For legacy stream type based volume control
+        if (!mUseDynamicRouting) {
+            return mAudioManager.getStreamVolume(STREAM_TYPES[groupId]);
         }
+
+        CarVolumeGroup group = getCarVolumeGroup(groupId);
+        return group.getCurrentGainIndex();
     }
 
     private CarVolumeGroup getCarVolumeGroup(int groupId) {
-        Preconditions.checkNotNull(mCarVolumeGroups);
-        Preconditions.checkArgument(groupId >= 0 && groupId < mCarVolumeGroups.length,
-                "groupId out of range: " + groupId);
-        return mCarVolumeGroups[groupId];
+        CarAudioRoutingTable routingTable = Preconditions.checkNotNull(mRoutingTable);
+        return routingTable.getGroup(groupId);
     }
 
     private void setupLegacyVolumeChangedListener() {
@@ -379,9 +444,9 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
         Preconditions.checkArgument(mCarAudioDeviceInfos.size() > 0,
                 "No bus device is configured to setup volume groups");
         final CarVolumeGroupsHelper helper = new CarVolumeGroupsHelper(
-                mContext, R.xml.car_volume_groups);
-        mCarVolumeGroups = helper.loadVolumeGroups();
-        for (CarVolumeGroup group : mCarVolumeGroups) {
+                mContext, R.xml.car_volume_groups, mCarAudioSettings);
+        final CarVolumeGroup[] carVolumeGroups = helper.loadVolumeGroups();
+        for (CarVolumeGroup group : carVolumeGroups) {
             for (int contextNumber : group.getContexts()) {
                 int busNumber = mContextToBus.get(contextNumber);
                 group.bind(contextNumber, busNumber, mCarAudioDeviceInfos.get(busNumber));
@@ -393,9 +458,11 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
             Log.v(CarLog.TAG_AUDIO, "Processed volume group: " + group);
         }
         // Perform validation after all volume groups are processed
-        if (!validateVolumeGroups()) {
+        if (!validateVolumeGroups(carVolumeGroups)) {
             throw new RuntimeException("Invalid volume groups configuration");
         }
+        // Publish only fully bound and validated groups to the lock-free readers.
+        mRoutingTable = CarAudioRoutingTable.build(carVolumeGroups, USAGE_TO_CONTEXT);
     }
 
     /**
@@ -412,10 +479,10 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
      *
      * See also the car_volume_groups.xml configuration
      */
-    private boolean validateVolumeGroups() {
+    private boolean validateVolumeGroups(CarVolumeGroup[] carVolumeGroups) {
         Set<Integer> contextSet = new HashSet<>();
         Set<Integer> busNumberSet = new HashSet<>();
-        for (CarVolumeGroup group : mCarVolumeGroups) {
+        for (CarVolumeGroup group : carVolumeGroups) {
             // One context should not appear in two groups
             for (int context : group.getContexts()) {
                 if (contextSet.contains(context)) {
@@ -544,10 +611,36 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
         return usages.stream().mapToInt(i -> i).toArray();
     }
 
+    /**
+     * Applies fade and balance stored in previous boot cycles, if any.
+     */
+    private void restoreFadeAndBalance() {
+        final float fade = mCarAudioSettings.getStoredFade(Float.NaN);
+        final float balance = mCarAudioSettings.getStoredBalance(Float.NaN);
+        if (Float.isNaN(fade) && Float.isNaN(balance)) {
+            return;
+        }
+        final IAudioControl audioControlHal = getAudioControl();
+        if (audioControlHal == null) {
+            return;
+        }
+        try {
+            if (!Float.isNaN(fade)) {
+                audioControlHal.setFadeTowardFront(fade);
+            }
+            if (!Float.isNaN(balance)) {
+                audioControlHal.setBalanceTowardRight(balance);
+            }
+        } catch (RemoteException e) {
+            Log.e(CarLog.TAG_AUDIO, "Restoring fade and balance failed", e);
+        }
+    }
+
     @Override
     public void setFadeTowardFront(float value) {
         synchronized (mImplLock) {
             enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
+            mCarAudioSettings.storeFade(value);
             final IAudioControl audioControlHal = getAudioControl();
             if (audioControlHal != null) {
                 try {
@@ -563,6 +656,7 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
     public void setBalanceTowardRight(float value) {
         synchronized (mImplLock) {
             enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
+            mCarAudioSettings.storeBalance(value);
             final IAudioControl audioControlHal = getAudioControl();
             if (audioControlHal != null) {
                 try {
@@ -721,58 +815,34 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
 
     @Override
     public int getVolumeGroupCount() {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            // For legacy stream type based volume control
-            if (!mUseDynamicRouting) return STREAM_TYPES.length;
+        // For legacy stream type based volume control
+        if (!mUseDynamicRouting) return STREAM_TYPES.length;
 
-            return mCarVolumeGroups == null ? 0 : mCarVolumeGroups.length;
-        }
+        CarAudioRoutingTable routingTable = mRoutingTable;
+        return routingTable == null ? 0 : routingTable.getGroupCount();
     }
 
     @Override
     public int getVolumeGroupIdForUsage(@AudioAttributes.AttributeUsage int usage) {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            if (mCarVolumeGroups == null) {
-                return -1;
-            }
-
-            for (int i = 0; i < mCarVolumeGroups.length; i++) {
-                int[] contexts = mCarVolumeGroups[i].getContexts();
-                for (int context : contexts) {
-                    if (USAGE_TO_CONTEXT.get(usage) == context) {
-                        return i;
-                    }
-                }
-            }
-            return -1;
-        }
+        CarAudioRoutingTable routingTable = mRoutingTable;
+        return routingTable == null ? -1 : routingTable.getGroupIdForUsage(usage);
     }
 
     @Override
     public @NonNull int[] getUsagesForVolumeGroupId(int groupId) {
-        synchronized (mImplLock) {
-            enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
-
-            // For legacy stream type based volume control
-            if (!mUseDynamicRouting) {
-                return new int[] { STREAM_TYPE_USAGES[groupId] };
-            }
+        enforcePermission(Car.PERMISSION_CAR_CONTROL_AUDIO_VOLUME);
 
-            CarVolumeGroup group = getCarVolumeGroup(groupId);
-            Set<Integer> contexts =
-                    Arrays.stream(group.getContexts()).boxed().collect(Collectors.toSet());
-            final List<Integer> usages = new ArrayList<>();
-            for (int i = 0; i < USAGE_TO_CONTEXT.size(); i++) {
-                if (contexts.contains(USAGE_TO_CONTEXT.valueAt(i))) {
-                    usages.add(USAGE_TO_CONTEXT.keyAt(i));
-                }
-            }
-            return usages.stream().mapToInt(i -> i).toArray();
+        // For legacy stream type based volume control
+        if (!mUseDynamicRouting) {
+            return new int[] { STREAM_TYPE_USAGES[groupId] };
         }
+
+        CarAudioRoutingTable routingTable = Preconditions.checkNotNull(mRoutingTable);
+        return routingTable.getUsagesForGroup(groupId);
     }
 
     /**
@@ -812,7 +882,7 @@ public class CarAudioService extends ICarAudio.Stub implements CarServiceBase {
      */
     private @Nullable AudioDevicePort getAudioPort(@AudioAttributes.AttributeUsage int usage) {
         final int groupId = getVolumeGroupIdForUsage(usage);
-        final CarVolumeGroup group = Preconditions.checkNotNull(mCarVolumeGroups[groupId],
+        final CarVolumeGroup group = Preconditions.checkNotNull(getCarVolumeGroup(groupId),
                 "Can not find CarVolumeGroup by usage: "
                         + AudioAttributes.usageToString(usage));
         return group.getAudioDevicePortForContext(USAGE_TO_CONTEXT.get(usage));
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.car.media.CarAudioManager;
+import android.content.ContentResolver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Write-coalescing persistence for car audio settings: volume group gain indexes, fade and
+ * balance.
+ *
+ * The latest values are kept in memory and written to {@link Settings.Global} only once
+ * adjustments have been idle for a while, so that turning a volume knob across its range
+ * results in one settings write per group instead of one per step. {@link #flush()} writes
+ * pending values immediately and is called on user switch and shutdown preparation.
+ */
+/* package */ class CarAudioSettings {
+
+    /** Idle time after the last change before pending values are written. */
+    static final long DEFAULT_FLUSH_DELAY_MS = 1000;
+
+    private static final String KEY_FADE = "android.car.AUDIO_FADE";
+    private static final String KEY_BALANCE = "android.car.AUDIO_BALANCE";
+
+    /**
+     * Backing store of the settings, abstracted so that tests can count writes.
+     */
+    interface SettingsStore {
+        int getInt(String key, int defaultValue);
+        float getFloat(String key, float defaultValue);
+        void putInt(String key, int value);
+        void putFloat(String key, float value);
+    }
+
+    private static final class GlobalSettingsStore implements SettingsStore {
+        private final ContentResolver mContentResolver;
+
+        GlobalSettingsStore(ContentResolver contentResolver) {
+            mContentResolver = contentResolver;
+        }
+
+        @Override
+        public int getInt(String key, int defaultValue) {
+            return Settings.Global.getInt(mContentResolver, key, defaultValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defaultValue) {
+            return Settings.Global.getFloat(mContentResolver, key, defaultValue);
+        }
+
+        @Override
+        public void putInt(String key, int value) {
+            Settings.Global.putInt(mContentResolver, key, value);
+        }
+
+        @Override
+        public void putFloat(String key, float value) {
+            Settings.Global.putFloat(mContentResolver, key, value);
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final SettingsStore mStore;
+    private final Handler mHandler;
+    private final long mFlushDelayMs;
+    private final Runnable mFlushRunnable = this::flush;
+
+    @GuardedBy("mLock")
+    private final SparseIntArray mPendingGroupIndexes = new SparseIntArray();
+    @GuardedBy("mLock")
+    private boolean mFadePending;
+    @GuardedBy("mLock")
+    private float mFade;
+    @GuardedBy("mLock")
+    private boolean mBalancePending;
+    @GuardedBy("mLock")
+    private float mBalance;
+    @GuardedBy("mLock")
+    private int mRequestedWriteCount;
+    @GuardedBy("mLock")
+    private int mActualWriteCount;
+
+    CarAudioSettings(@NonNull ContentResolver contentResolver, @NonNull Looper looper) {
+        this(new GlobalSettingsStore(contentResolver), looper, DEFAULT_FLUSH_DELAY_MS);
+    }
+
+    @VisibleForTesting
+    CarAudioSettings(@NonNull SettingsStore store, @NonNull Looper looper, long flushDelayMs) {
+        mStore = store;
+        mHandler = new Handler(looper);
+        mFlushDelayMs = flushDelayMs;
+    }
+
+    /**
+     * @return Gain index for the volume group, pending value if there is one, or -1 if nothing
+     *         was ever stored.
+     */
+    int getStoredVolumeGroupIndex(int groupId) {
+        synchronized (mLock) {
+            int pending = mPendingGroupIndexes.get(groupId, -1);
+            if (pending >= 0) {
+                return pending;
+            }
+        }
+        return mStore.getInt(CarAudioManager.getVolumeSettingsKeyForGroup(groupId), -1);
+    }
+
+    /**
+     * @return Stored fade value, or {@code defaultValue} if nothing was ever stored.
+     */
+    float getStoredFade(float defaultValue) {
+        synchronized (mLock) {
+            if (mFadePending) {
+                return mFade;
+            }
+        }
+        return mStore.getFloat(KEY_FADE, defaultValue);
+    }
+
+    /**
+     * @return Stored balance value, or {@code defaultValue} if nothing was ever stored.
+     */
+    float getStoredBalance(float defaultValue) {
+        synchronized (mLock) {
+            if (mBalancePending) {
+                return mBalance;
+            }
+        }
+        return mStore.getFloat(KEY_BALANCE, defaultValue);
+    }
+
+    void storeVolumeGroupIndex(int groupId, int gainIndex) {
+        synchronized (mLock) {
+            mPendingGroupIndexes.put(groupId, gainIndex);
+            mRequestedWriteCount++;
+        }
+        scheduleFlush();
+    }
+
+    void storeFade(float value) {
+        synchronized (mLock) {
+            mFade = value;
+            mFadePending = true;
+            mRequestedWriteCount++;
+        }
+        scheduleFlush();
+    }
+
+    void storeBalance(float value) {
+        synchronized (mLock) {
+            mBalance = value;
+            mBalancePending = true;
+            mRequestedWriteCount++;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Writes all pending values to the backing store right away. Safe to call from any thread.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        // Holding the lock across the writes keeps concurrent flushes from reordering values.
+        synchronized (mLock) {
+            for (int i = 0; i < mPendingGroupIndexes.size(); i++) {
+                mStore.putInt(CarAudioManager.getVolumeSettingsKeyForGroup(
+                        mPendingGroupIndexes.keyAt(i)), mPendingGroupIndexes.valueAt(i));
+                mActualWriteCount++;
+            }
+            mPendingGroupIndexes.clear();
+            if (mFadePending) {
+                mStore.putFloat(KEY_FADE, mFade);
+                mFadePending = false;
+                mActualWriteCount++;
+            }
+            if (mBalancePending) {
+                mStore.putFloat(KEY_BALANCE, mBalance);
+                mBalancePending = false;
+                mActualWriteCount++;
+            }
+        }
+    }
+
+    /**
+     * @return Number of values written to the backing store so far.
+     */
+    int getWriteCount() {
+        synchronized (mLock) {
+            return mActualWriteCount;
+        }
+    }
+
+    private void scheduleFlush() {
+        // Restart the idle timer on every change.
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, mFlushDelayMs);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.printf("CarAudioSettings requested writes: %d actual writes: %d\n",
+                    mRequestedWriteCount, mActualWriteCount);
+            writer.printf("\tPending group indexes: %d fade: %b balance: %b flush delay ms: %d\n",
+                    mPendingGroupIndexes.size(), mFadePending, mBalancePending, mFlushDelayMs);
+        }
+    }
+}
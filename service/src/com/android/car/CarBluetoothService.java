@@ -52,16 +52,20 @@ import java.io.PrintWriter;
  * connect for a specific profile.
  */
 
-public class CarBluetoothService extends ICarBluetooth.Stub implements CarServiceBase {
+public class CarBluetoothService extends ICarBluetooth.Stub implements CarServiceBase,
+        CarPowerManagementService.PowerEventProcessingHandler {
 
     private static final String TAG = "CarBluetoothService";
     private final Context mContext;
     private final BluetoothDeviceConnectionPolicy mBluetoothDeviceConnectionPolicy;
+    private final CarPowerManagementService mCarPowerManagementService;
     private static final boolean DBG = false;
 
     public CarBluetoothService(Context context, CarPropertyService carPropertyService,
-            PerUserCarServiceHelper userSwitchService, CarUxRestrictionsManagerService uxrService) {
+            PerUserCarServiceHelper userSwitchService, CarUxRestrictionsManagerService uxrService,
+            CarPowerManagementService carPowerManagementService) {
         mContext = context;
+        mCarPowerManagementService = carPowerManagementService;
         mBluetoothDeviceConnectionPolicy = BluetoothDeviceConnectionPolicy.create(mContext,
                 carPropertyService, userSwitchService, uxrService, this);
     }
@@ -69,6 +73,7 @@ public class CarBluetoothService extends ICarBluetooth.Stub implements CarServic
     @Override
     public void init() {
         mBluetoothDeviceConnectionPolicy.init();
+        mCarPowerManagementService.registerPowerEventProcessingHandler(this);
     }
 
     @Override
@@ -76,6 +81,21 @@ public class CarBluetoothService extends ICarBluetooth.Stub implements CarServic
         mBluetoothDeviceConnectionPolicy.release();
     }
 
+    @Override
+    public long onPrepareShutdown(boolean shuttingDown) {
+        // Device lists are written in batches, make sure the latest ones are not lost.
+        mBluetoothDeviceConnectionPolicy.flushDeviceSettings();
+        return 0;
+    }
+
+    @Override
+    public void onPowerOn(boolean displayOn) { }
+
+    @Override
+    public int getWakeupTime() {
+        return 0;
+    }
+
     /**
      * Set the Auto connect priority for a paired Bluetooth Device.
      * For example, if a device is tagged as a Primary device for a supported Bluetooth Profile,
@@ -24,24 +24,31 @@ import android.car.drivingstate.ICarDrivingState;
 import android.car.drivingstate.ICarDrivingStateChangeListener;
 import android.car.hardware.CarPropertyConfig;
 import android.car.hardware.CarPropertyValue;
-import android.car.hardware.property.CarPropertyEvent;
-import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
 import android.hardware.automotive.vehicle.V2_0.VehicleGear;
 import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A service that infers the current driving state of the vehicle.  It computes the driving state
  * from listening to relevant properties from {@link CarPropertyService}
+ * <p>
+ * The inputs and the driving state inferred from them are published together as an immutable
+ * {@link DrivingInputs} snapshot, so that {@link #getCurrentDrivingState()} never blocks.
+ * Property events are serialized with a separate lock and clients are notified of changes from a
+ * dedicated thread, without holding any lock.
  */
 public class CarDrivingStateService extends ICarDrivingState.Stub implements CarServiceBase {
     private static final String TAG = "CarDrivingState";
@@ -51,53 +58,124 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
     private static final int NOT_RECEIVED = -1;
     private final Context mContext;
     private CarPropertyService mPropertyService;
-    // List of clients listening to driving state events.
-    private final List<DrivingStateClient> mDrivingStateClients = new ArrayList<>();
+    // List of clients listening to driving state events. Modified with the service lock held,
+    // iterated without.
+    private final List<DrivingStateClient> mDrivingStateClients = new CopyOnWriteArrayList<>();
     // Array of properties that the service needs to listen to from CarPropertyService for deriving
     // the driving state.
     private static final int[] REQUIRED_PROPERTIES = {
             VehicleProperty.PERF_VEHICLE_SPEED,
             VehicleProperty.GEAR_SELECTION,
             VehicleProperty.PARKING_BRAKE_ON};
-    private CarDrivingStateEvent mCurrentDrivingState;
+    // Serializes updates of the inputs. Readers use the published snapshot instead.
+    private final Object mInputsLock = new Object();
+    private volatile DrivingInputs mInputs = DrivingInputs.createUnknown();
     // For dumpsys logging
+    @GuardedBy("mInputsLock")
     private final LinkedList<Utils.TransitionLog> mTransitionLogs = new LinkedList<>();
-    private int mLastGear;
-    private long mLastGearTimestamp = NOT_RECEIVED;
-    private float mLastSpeed;
-    private long mLastSpeedTimestamp = NOT_RECEIVED;
-    private boolean mLastParkingBrakeState;
-    private long mLastParkingBrakeTimestamp = NOT_RECEIVED;
-    private List<Integer> mSupportedGears;
+    private volatile List<Integer> mSupportedGears;
+    @GuardedBy("mInputsLock")
+    private HandlerThread mDispatchThread;
+    // Delivers driving state changes to clients in order, null when not initialized.
+    private volatile Handler mDispatchHandler;
+
+    /**
+     * Immutable snapshot of the last received inputs and the driving state inferred from them.
+     */
+    private static final class DrivingInputs {
+        final int gear;
+        final long gearTimestamp;
+        final float speed;
+        final long speedTimestamp;
+        final boolean parkingBrake;
+        final long parkingBrakeTimestamp;
+        final CarDrivingStateEvent drivingState;
+
+        DrivingInputs(int gear, long gearTimestamp, float speed, long speedTimestamp,
+                boolean parkingBrake, long parkingBrakeTimestamp,
+                CarDrivingStateEvent drivingState) {
+            this.gear = gear;
+            this.gearTimestamp = gearTimestamp;
+            this.speed = speed;
+            this.speedTimestamp = speedTimestamp;
+            this.parkingBrake = parkingBrake;
+            this.parkingBrakeTimestamp = parkingBrakeTimestamp;
+            this.drivingState = drivingState;
+        }
+
+        static DrivingInputs createUnknown() {
+            return new DrivingInputs(0, NOT_RECEIVED, 0f, NOT_RECEIVED, false, NOT_RECEIVED,
+                    createDrivingStateEvent(CarDrivingStateEvent.DRIVING_STATE_UNKNOWN));
+        }
+
+        DrivingInputs withGear(int gear, long timestamp) {
+            return new DrivingInputs(gear, timestamp, speed, speedTimestamp, parkingBrake,
+                    parkingBrakeTimestamp, drivingState);
+        }
+
+        DrivingInputs withSpeed(float speed, long timestamp) {
+            return new DrivingInputs(gear, gearTimestamp, speed, timestamp, parkingBrake,
+                    parkingBrakeTimestamp, drivingState);
+        }
+
+        DrivingInputs withParkingBrake(boolean parkingBrake, long timestamp) {
+            return new DrivingInputs(gear, gearTimestamp, speed, speedTimestamp, parkingBrake,
+                    timestamp, drivingState);
+        }
+
+        DrivingInputs withDrivingState(CarDrivingStateEvent drivingState) {
+            return new DrivingInputs(gear, gearTimestamp, speed, speedTimestamp, parkingBrake,
+                    parkingBrakeTimestamp, drivingState);
+        }
+
+        @Override
+        public String toString() {
+            return "gear: " + gear + "@" + gearTimestamp + ", speed: " + speed + "@"
+                    + speedTimestamp + ", parking brake: " + parkingBrake + "@"
+                    + parkingBrakeTimestamp + ", driving state: " + drivingState.eventValue;
+        }
+    }
 
     public CarDrivingStateService(Context context, CarPropertyService propertyService) {
         mContext = context;
         mPropertyService = propertyService;
-        mCurrentDrivingState = createDrivingStateEvent(CarDrivingStateEvent.DRIVING_STATE_UNKNOWN);
     }
 
     @Override
-    public synchronized void init() {
+    public void init() {
         if (!checkPropertySupport()) {
             Log.e(TAG, "init failure.  Driving state will always be fully restrictive");
             return;
         }
-        subscribeToProperties();
-        mCurrentDrivingState = createDrivingStateEvent(inferDrivingStateLocked());
-        addTransitionLog(TAG + " Boot", CarDrivingStateEvent.DRIVING_STATE_UNKNOWN,
-                mCurrentDrivingState.eventValue, mCurrentDrivingState.timeStamp);
+        synchronized (mInputsLock) {
+            mDispatchThread = new HandlerThread(TAG);
+            mDispatchThread.start();
+            mDispatchHandler = new Handler(mDispatchThread.getLooper());
+            subscribeToProperties();
+            DrivingInputs inputs = updateVehiclePropertiesIfNeeded(mInputs);
+            mInputs = inputs.withDrivingState(createDrivingStateEvent(inferDrivingState(inputs)));
+            addTransitionLogLocked(TAG + " Boot", CarDrivingStateEvent.DRIVING_STATE_UNKNOWN,
+                    mInputs.drivingState.eventValue, mInputs.drivingState.timeStamp);
+        }
     }
 
     @Override
-    public synchronized void release() {
-        for (int property : REQUIRED_PROPERTIES) {
-            mPropertyService.unregisterListener(property, mICarPropertyEventListener);
+    public void release() {
+        mPropertyService.unregisterInternalListener(mPropertyListener);
+        synchronized (this) {
+            for (DrivingStateClient client : mDrivingStateClients) {
+                client.listenerBinder.unlinkToDeath(client, 0);
+            }
+            mDrivingStateClients.clear();
         }
-        for (DrivingStateClient client : mDrivingStateClients) {
-            client.listenerBinder.unlinkToDeath(client, 0);
+        synchronized (mInputsLock) {
+            mDispatchHandler = null;
+            if (mDispatchThread != null) {
+                mDispatchThread.quitSafely();
+                mDispatchThread = null;
+            }
+            mInputs = DrivingInputs.createUnknown();
         }
-        mDrivingStateClients.clear();
-        mCurrentDrivingState = createDrivingStateEvent(CarDrivingStateEvent.DRIVING_STATE_UNKNOWN);
     }
 
     /**
@@ -105,7 +183,7 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      *
      * @return {@code true} if supported, {@code false} if not
      */
-    private synchronized boolean checkPropertySupport() {
+    private boolean checkPropertySupport() {
         List<CarPropertyConfig> configs = mPropertyService.getPropertyList();
         for (int propertyId : REQUIRED_PROPERTIES) {
             boolean found = false;
@@ -126,12 +204,9 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
     /**
      * Subscribe to the {@link CarPropertyService} for required sensors.
      */
-    private synchronized void subscribeToProperties() {
-        for (int propertyId : REQUIRED_PROPERTIES) {
-            mPropertyService.registerListener(propertyId, PROPERTY_UPDATE_RATE,
-                    mICarPropertyEventListener);
-        }
-
+    private void subscribeToProperties() {
+        mPropertyService.registerInternalListener(REQUIRED_PROPERTIES, PROPERTY_UPDATE_RATE,
+                null /* executor */, mPropertyListener);
     }
 
     // Binder methods
@@ -216,8 +291,8 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      */
     @Override
     @Nullable
-    public synchronized CarDrivingStateEvent getCurrentDrivingState() {
-        return mCurrentDrivingState;
+    public CarDrivingStateEvent getCurrentDrivingState() {
+        return mInputs.drivingState;
     }
 
     /**
@@ -278,112 +353,145 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
     @Override
     public void dump(PrintWriter writer) {
         writer.println("Driving state change log:");
-        for (Utils.TransitionLog tLog : mTransitionLogs) {
-            writer.println(tLog);
+        synchronized (mInputsLock) {
+            for (Utils.TransitionLog tLog : mTransitionLogs) {
+                writer.println(tLog);
+            }
         }
-        writer.println("Current Driving State: " + mCurrentDrivingState.eventValue);
-        if (mSupportedGears != null) {
+        DrivingInputs inputs = mInputs;
+        writer.println("Current Driving State: " + inputs.drivingState.eventValue);
+        writer.println("Inputs: " + inputs);
+        List<Integer> supportedGears = mSupportedGears;
+        if (supportedGears != null) {
             writer.println("Supported gears:");
-            for (Integer gear : mSupportedGears) {
+            for (Integer gear : supportedGears) {
                 writer.print("Gear:" + gear);
             }
         }
     }
 
     /**
-     * {@link CarPropertyEvent} listener registered with the {@link CarPropertyService} for getting
-     * property change notifications.
+     * Listener registered with the {@link CarPropertyService} for getting property change
+     * notifications, called on the HAL thread.
      */
-    private final ICarPropertyEventListener mICarPropertyEventListener =
-            new ICarPropertyEventListener.Stub() {
-                @Override
-                public void onEvent(List<CarPropertyEvent> events) throws RemoteException {
-                    for (CarPropertyEvent event : events) {
-                        handlePropertyEvent(event);
-                    }
-                }
-            };
+    private final InternalPropertyListener mPropertyListener = new InternalPropertyListener() {
+        @Override
+        public void onFloatPropertyChanged(int propId, int areaId, long timestamp,
+                float value) {
+            if (propId == VehicleProperty.PERF_VEHICLE_SPEED) {
+                handleSpeedChange(value, timestamp);
+            }
+        }
+
+        @Override
+        public void onIntPropertyChanged(int propId, int areaId, long timestamp, int value) {
+            if (propId == VehicleProperty.GEAR_SELECTION) {
+                handleGearChange(value, timestamp);
+            }
+        }
+
+        @Override
+        public void onBooleanPropertyChanged(int propId, int areaId, long timestamp,
+                boolean value) {
+            if (propId == VehicleProperty.PARKING_BRAKE_ON) {
+                handleParkingBrakeChange(value, timestamp);
+            }
+        }
+    };
 
     /**
      * Handle events coming from {@link CarPropertyService}.  Compute the driving state, map it to
      * the corresponding UX Restrictions and dispatch the events to the registered clients.
      */
-    private synchronized void handlePropertyEvent(CarPropertyEvent event) {
-        switch (event.getEventType()) {
-            case CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE:
-                CarPropertyValue value = event.getCarPropertyValue();
-                int propId = value.getPropertyId();
-                long curTimestamp = value.getTimestamp();
-                Log.d(TAG, "Property Changed: propId=" + propId);
-                switch (propId) {
-                    case VehicleProperty.PERF_VEHICLE_SPEED:
-                        float curSpeed = (Float) value.getValue();
-                        if (DBG) {
-                            Log.d(TAG, "Speed: " + curSpeed + "@" + curTimestamp);
-                        }
-                        if (curTimestamp > mLastSpeedTimestamp) {
-                            mLastSpeedTimestamp = curTimestamp;
-                            mLastSpeed = curSpeed;
-                        } else if (DBG) {
-                            Log.d(TAG, "Ignoring speed with older timestamp:" + curTimestamp);
-                        }
-                        break;
-                    case VehicleProperty.GEAR_SELECTION:
-                        if (mSupportedGears == null) {
-                            mSupportedGears = getSupportedGears();
-                        }
-                        int curGear = (Integer) value.getValue();
-                        if (DBG) {
-                            Log.d(TAG, "Gear: " + curGear + "@" + curTimestamp);
-                        }
-                        if (curTimestamp > mLastGearTimestamp) {
-                            mLastGearTimestamp = curTimestamp;
-                            mLastGear = (Integer) value.getValue();
-                        } else if (DBG) {
-                            Log.d(TAG, "Ignoring Gear with older timestamp:" + curTimestamp);
-                        }
-                        break;
-                    case VehicleProperty.PARKING_BRAKE_ON:
-                        boolean curParkingBrake = (boolean) value.getValue();
-                        if (DBG) {
-                            Log.d(TAG, "Parking Brake: " + curParkingBrake + "@" + curTimestamp);
-                        }
-                        if (curTimestamp > mLastParkingBrakeTimestamp) {
-                            mLastParkingBrakeTimestamp = curTimestamp;
-                            mLastParkingBrakeState = curParkingBrake;
-                        } else if (DBG) {
-                            Log.d(TAG, "Ignoring Parking Brake status with an older timestamp:"
-                                    + curTimestamp);
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Received property event for unhandled propId=" + propId);
-                        break;
-                }
+    private void handleSpeedChange(float curSpeed, long curTimestamp) {
+        if (DBG) {
+            Log.d(TAG, "Speed: " + curSpeed + "@" + curTimestamp);
+        }
+        synchronized (mInputsLock) {
+            DrivingInputs inputs = mInputs;
+            if (curTimestamp > inputs.speedTimestamp) {
+                inputs = inputs.withSpeed(curSpeed, curTimestamp);
+            } else if (DBG) {
+                Log.d(TAG, "Ignoring speed with older timestamp:" + curTimestamp);
+            }
+            publishInputsLocked(inputs);
+        }
+    }
 
-                int drivingState = inferDrivingStateLocked();
-                // Check if the driving state has changed.  If it has, update our records and
-                // dispatch the new events to the listeners.
-                if (DBG) {
-                    Log.d(TAG, "Driving state new->old " + drivingState + "->"
-                            + mCurrentDrivingState.eventValue);
-                }
-                if (drivingState != mCurrentDrivingState.eventValue) {
-                    addTransitionLog(TAG, mCurrentDrivingState.eventValue, drivingState,
-                            System.currentTimeMillis());
-                    // Update if there is a change in state.
-                    mCurrentDrivingState = createDrivingStateEvent(drivingState);
-                    if (DBG) {
-                        Log.d(TAG, "dispatching to " + mDrivingStateClients.size() + " clients");
-                    }
-                    for (DrivingStateClient client : mDrivingStateClients) {
-                        client.dispatchEventToClients(mCurrentDrivingState);
-                    }
-                }
-                break;
-            default:
-                // Unhandled event
-                break;
+    private void handleGearChange(int curGear, long curTimestamp) {
+        if (mSupportedGears == null) {
+            mSupportedGears = getSupportedGears();
+        }
+        if (DBG) {
+            Log.d(TAG, "Gear: " + curGear + "@" + curTimestamp);
+        }
+        synchronized (mInputsLock) {
+            DrivingInputs inputs = mInputs;
+            if (curTimestamp > inputs.gearTimestamp) {
+                inputs = inputs.withGear(curGear, curTimestamp);
+            } else if (DBG) {
+                Log.d(TAG, "Ignoring Gear with older timestamp:" + curTimestamp);
+            }
+            publishInputsLocked(inputs);
+        }
+    }
+
+    private void handleParkingBrakeChange(boolean curParkingBrake, long curTimestamp) {
+        if (DBG) {
+            Log.d(TAG, "Parking Brake: " + curParkingBrake + "@" + curTimestamp);
+        }
+        synchronized (mInputsLock) {
+            DrivingInputs inputs = mInputs;
+            if (curTimestamp > inputs.parkingBrakeTimestamp) {
+                inputs = inputs.withParkingBrake(curParkingBrake, curTimestamp);
+            } else if (DBG) {
+                Log.d(TAG, "Ignoring Parking Brake status with an older timestamp:"
+                        + curTimestamp);
+            }
+            publishInputsLocked(inputs);
+        }
+    }
+
+    /**
+     * Infers the driving state from the given inputs and publishes both. If the driving state
+     * changed, the new event is queued for dispatch to the clients.
+     */
+    @GuardedBy("mInputsLock")
+    private void publishInputsLocked(DrivingInputs inputs) {
+        inputs = updateVehiclePropertiesIfNeeded(inputs);
+        CarDrivingStateEvent currentDrivingState = mInputs.drivingState;
+        int drivingState = inferDrivingState(inputs);
+        // Check if the driving state has changed.  If it has, update our records and
+        // dispatch the new events to the listeners.
+        if (DBG) {
+            Log.d(TAG, "Driving state new->old " + drivingState + "->"
+                    + currentDrivingState.eventValue);
+        }
+        if (drivingState == currentDrivingState.eventValue) {
+            if (inputs != mInputs) {
+                mInputs = inputs;
+            }
+            return;
+        }
+        addTransitionLogLocked(TAG, currentDrivingState.eventValue, drivingState,
+                System.currentTimeMillis());
+        // Update if there is a change in state.
+        CarDrivingStateEvent newDrivingState = createDrivingStateEvent(drivingState);
+        mInputs = inputs.withDrivingState(newDrivingState);
+        Handler dispatchHandler = mDispatchHandler;
+        if (dispatchHandler != null) {
+            // Posted with the lock held so that clients get changes in order.
+            dispatchHandler.post(() -> dispatchToClients(newDrivingState));
+        }
+    }
+
+    /** Runs on the dispatch thread. */
+    private void dispatchToClients(CarDrivingStateEvent event) {
+        if (DBG) {
+            Log.d(TAG, "dispatching to " + mDrivingStateClients.size() + " clients");
+        }
+        for (DrivingStateClient client : mDrivingStateClients) {
+            client.dispatchEventToClients(event);
         }
     }
 
@@ -397,7 +505,8 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
         return null;
     }
 
-    private void addTransitionLog(String name, int from, int to, long timestamp) {
+    @GuardedBy("mInputsLock")
+    private void addTransitionLogLocked(String name, int from, int to, long timestamp) {
         if (mTransitionLogs.size() >= MAX_TRANSITION_LOG_SIZE) {
             mTransitionLogs.remove();
         }
@@ -413,10 +522,9 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      * @return Current driving state
      */
     @CarDrivingState
-    private int inferDrivingStateLocked() {
-        updateVehiclePropertiesIfNeeded();
+    private int inferDrivingState(DrivingInputs inputs) {
         if (DBG) {
-            Log.d(TAG, "Last known Gear:" + mLastGear + " Last known speed:" + mLastSpeed);
+            Log.d(TAG, "Last known Gear:" + inputs.gear + " Last known speed:" + inputs.speed);
         }
 
         /*
@@ -432,14 +540,14 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
                 3c. if speed unavailable, then driving state is unknown
          */
 
-        if (isVehicleKnownToBeParked()) {
+        if (isVehicleKnownToBeParked(inputs)) {
             return CarDrivingStateEvent.DRIVING_STATE_PARKED;
         }
 
         // We don't know if the vehicle is parked, let's look at the speed.
-        if (mLastSpeedTimestamp == NOT_RECEIVED || mLastSpeed < 0) {
+        if (inputs.speedTimestamp == NOT_RECEIVED || inputs.speed < 0) {
             return CarDrivingStateEvent.DRIVING_STATE_UNKNOWN;
-        } else if (mLastSpeed == 0f) {
+        } else if (inputs.speed == 0f) {
             return CarDrivingStateEvent.DRIVING_STATE_IDLING;
         } else {
             return CarDrivingStateEvent.DRIVING_STATE_MOVING;
@@ -452,15 +560,15 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      * @return true if we have enough information to say the vehicle is parked.
      * false, if the vehicle is either not parked or if we don't have any information.
      */
-    private boolean isVehicleKnownToBeParked() {
+    private boolean isVehicleKnownToBeParked(DrivingInputs inputs) {
         // If we know the gear is in park, return true
-        if (mLastGearTimestamp != NOT_RECEIVED && mLastGear == VehicleGear.GEAR_PARK) {
+        if (inputs.gearTimestamp != NOT_RECEIVED && inputs.gear == VehicleGear.GEAR_PARK) {
             return true;
-        } else if (mLastParkingBrakeTimestamp != NOT_RECEIVED) {
+        } else if (inputs.parkingBrakeTimestamp != NOT_RECEIVED) {
             // if gear is not in park or unknown, look for status of parking brake if transmission
             // type is manual.
             if (isCarManualTransmissionType()) {
-                return mLastParkingBrakeState;
+                return inputs.parkingBrake;
             }
         }
         // if neither information is available, return false to indicate we can't determine
@@ -473,9 +581,10 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      * transmission type is considered to be Manual.  Automatic transmission is assumed otherwise.
      */
     private boolean isCarManualTransmissionType() {
-        if (mSupportedGears != null
-                && !mSupportedGears.isEmpty()
-                && !mSupportedGears.contains(VehicleGear.GEAR_PARK)) {
+        List<Integer> supportedGears = mSupportedGears;
+        if (supportedGears != null
+                && !supportedGears.isEmpty()
+                && !supportedGears.contains(VehicleGear.GEAR_PARK)) {
             return true;
         }
         return false;
@@ -488,45 +597,47 @@ public class CarDrivingStateService extends ICarDrivingState.Stub implements Car
      * on-change only properties, we could be in this situation where we will have to query
      * VHAL.
      */
-    private void updateVehiclePropertiesIfNeeded() {
-        if (mLastGearTimestamp == NOT_RECEIVED) {
+    @GuardedBy("mInputsLock")
+    private DrivingInputs updateVehiclePropertiesIfNeeded(DrivingInputs inputs) {
+        if (inputs.gearTimestamp == NOT_RECEIVED) {
             CarPropertyValue propertyValue = mPropertyService.getProperty(
                     VehicleProperty.GEAR_SELECTION,
                     VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL);
             if (propertyValue != null) {
-                mLastGear = (Integer) propertyValue.getValue();
-                mLastGearTimestamp = propertyValue.getTimestamp();
+                inputs = inputs.withGear((Integer) propertyValue.getValue(),
+                        propertyValue.getTimestamp());
                 if (DBG) {
-                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: gear:" + mLastGear);
+                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: gear:" + inputs.gear);
                 }
             }
         }
 
-        if (mLastParkingBrakeTimestamp == NOT_RECEIVED) {
+        if (inputs.parkingBrakeTimestamp == NOT_RECEIVED) {
             CarPropertyValue propertyValue = mPropertyService.getProperty(
                     VehicleProperty.PARKING_BRAKE_ON,
                     VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL);
             if (propertyValue != null) {
-                mLastParkingBrakeState = (boolean) propertyValue.getValue();
-                mLastParkingBrakeTimestamp = propertyValue.getTimestamp();
+                inputs = inputs.withParkingBrake((boolean) propertyValue.getValue(),
+                        propertyValue.getTimestamp());
                 if (DBG) {
-                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: brake:" + mLastParkingBrakeState);
+                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: brake:" + inputs.parkingBrake);
                 }
             }
         }
 
-        if (mLastSpeedTimestamp == NOT_RECEIVED) {
+        if (inputs.speedTimestamp == NOT_RECEIVED) {
             CarPropertyValue propertyValue = mPropertyService.getProperty(
                     VehicleProperty.PERF_VEHICLE_SPEED,
                     VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL);
             if (propertyValue != null) {
-                mLastSpeed = (float) propertyValue.getValue();
-                mLastSpeedTimestamp = propertyValue.getTimestamp();
+                inputs = inputs.withSpeed((float) propertyValue.getValue(),
+                        propertyValue.getTimestamp());
                 if (DBG) {
-                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: speed:" + mLastSpeed);
+                    Log.d(TAG, "updateVehiclePropertiesIfNeeded: speed:" + inputs.speed);
                 }
             }
         }
+        return inputs;
     }
 
     private static CarDrivingStateEvent createDrivingStateEvent(int eventValue) {
@@ -39,16 +39,14 @@ import android.speech.RecognizerIntent;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.KeyEvent;
 
 import com.android.car.hal.InputHalService;
 import com.android.car.hal.VehicleHal;
 
 import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 
 public class CarInputService implements CarServiceBase, InputHalService.InputListener {
 
@@ -56,18 +54,21 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
         boolean onKeyEvent(KeyEvent event);
     }
 
+    /**
+     * Only accessed from the HAL dispatch thread, thus not synchronized.
+     */
     private static final class KeyPressTimer {
         private static final long LONG_PRESS_TIME_MS = 1000;
 
         private boolean mDown = false;
         private long mDuration = -1;
 
-        synchronized void keyDown() {
+        void keyDown() {
             mDown = true;
             mDuration = SystemClock.elapsedRealtime();
         }
 
-        synchronized void keyUp() {
+        void keyUp() {
             if (!mDown) {
                 throw new IllegalStateException("key can't go up without being down");
             }
@@ -75,7 +76,7 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
             mDown = false;
         }
 
-        synchronized boolean isLongPress() {
+        boolean isLongPress() {
             if (mDown) {
                 throw new IllegalStateException("can't query press length during key down");
             }
@@ -90,17 +91,22 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
     private final TelecomManager mTelecomManager;
     private final InputManager mInputManager;
 
-    private KeyEventListener mVoiceAssistantKeyListener;
-    private KeyEventListener mLongVoiceAssistantKeyListener;
+    // Listeners are read lock-free on every key event.
+    private volatile KeyEventListener mVoiceAssistantKeyListener;
+    private volatile KeyEventListener mLongVoiceAssistantKeyListener;
 
     private final KeyPressTimer mVoiceKeyTimer = new KeyPressTimer();
     private final KeyPressTimer mCallKeyTimer = new KeyPressTimer();
 
-    private KeyEventListener mInstrumentClusterKeyListener;
+    private volatile KeyEventListener mInstrumentClusterKeyListener;
 
-    private ICarInputListener mCarInputListener;
+    private volatile ICarInputListener mCarInputListener;
     private boolean mCarInputListenerBound = false;
-    private final Map<Integer, Set<Integer>> mHandledKeys = new HashMap<>();
+    /**
+     * Key codes handled by the custom input service per target display. Rebuilt on every
+     * {@link #setHandledKeys(InputFilter[])} call and never modified once published.
+     */
+    private volatile SparseArray<SparseBooleanArray> mHandledKeys = new SparseArray<>();
 
     private final Binder mCallback = new Binder() {
         @Override
@@ -155,16 +161,17 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
         mInputManager = context.getSystemService(InputManager.class);
     }
 
-    private synchronized void setHandledKeys(InputFilter[] handledKeys) {
-        mHandledKeys.clear();
+    private void setHandledKeys(InputFilter[] handledKeys) {
+        SparseArray<SparseBooleanArray> handledKeysByDisplay = new SparseArray<>();
         for (InputFilter handledKey : handledKeys) {
-            Set<Integer> displaySet = mHandledKeys.get(handledKey.mTargetDisplay);
+            SparseBooleanArray displaySet = handledKeysByDisplay.get(handledKey.mTargetDisplay);
             if (displaySet == null) {
-                displaySet = new HashSet<Integer>();
-                mHandledKeys.put(handledKey.mTargetDisplay, displaySet);
+                displaySet = new SparseBooleanArray();
+                handledKeysByDisplay.put(handledKey.mTargetDisplay, displaySet);
             }
-            displaySet.add(handledKey.mKeyCode);
+            displaySet.put(handledKey.mKeyCode, true);
         }
+        mHandledKeys = handledKeysByDisplay;
     }
 
     /**
@@ -174,9 +181,7 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
      * @param listener
      */
     public void setVoiceAssistantKeyListener(KeyEventListener listener) {
-        synchronized (this) {
-            mVoiceAssistantKeyListener = listener;
-        }
+        mVoiceAssistantKeyListener = listener;
     }
 
     /**
@@ -186,15 +191,11 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
      * @param listener
      */
     public void setLongVoiceAssistantKeyListener(KeyEventListener listener) {
-        synchronized (this) {
-            mLongVoiceAssistantKeyListener = listener;
-        }
+        mLongVoiceAssistantKeyListener = listener;
     }
 
     public void setInstrumentClusterKeyListener(KeyEventListener listener) {
-        synchronized (this) {
-            mInstrumentClusterKeyListener = listener;
-        }
+        mInstrumentClusterKeyListener = listener;
     }
 
     @Override
@@ -206,7 +207,8 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
             Log.d(CarLog.TAG_INPUT, "Hal supports key input.");
         }
 
-
+        mInputHalService.setRotaryKeyCodes(
+                mContext.getResources().getIntArray(R.array.config_rotaryKeyCodes));
         mInputHalService.setInputListener(this);
         mCarInputListenerBound = bindCarInputService();
     }
@@ -227,9 +229,10 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
     @Override
     public void onKeyEvent(KeyEvent event, int targetDisplay) {
         // Give a car specific input listener the opportunity to intercept any input from the car
-        if (mCarInputListener != null && isCustomEventHandler(event, targetDisplay)) {
+        ICarInputListener carInputListener = mCarInputListener;
+        if (carInputListener != null && isCustomEventHandler(event, targetDisplay)) {
             try {
-                mCarInputListener.onKeyEvent(event, targetDisplay);
+                carInputListener.onKeyEvent(event, targetDisplay);
             } catch (RemoteException e) {
                 Log.e(CarLog.TAG_INPUT, "Error while calling car input service", e);
             }
@@ -257,12 +260,12 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
         }
     }
 
-    private synchronized boolean isCustomEventHandler(KeyEvent event, int targetDisplay) {
-        Set<Integer> displaySet = mHandledKeys.get(targetDisplay);
+    private boolean isCustomEventHandler(KeyEvent event, int targetDisplay) {
+        SparseBooleanArray displaySet = mHandledKeys.get(targetDisplay);
         if (displaySet == null) {
             return false;
         }
-        return displaySet.contains(event.getKeyCode());
+        return displaySet.get(event.getKeyCode());
     }
 
     private void handleVoiceAssistKey(KeyEvent event) {
@@ -271,12 +274,8 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
             mVoiceKeyTimer.keyDown();
         } else if (action == KeyEvent.ACTION_UP) {
             mVoiceKeyTimer.keyUp();
-            final KeyEventListener listener;
-
-            synchronized (this) {
-                listener = (mVoiceKeyTimer.isLongPress()
+            final KeyEventListener listener = (mVoiceKeyTimer.isLongPress()
                     ? mLongVoiceAssistantKeyListener : mVoiceAssistantKeyListener);
-            }
 
             if (listener != null) {
                 listener.onKeyEvent(event);
@@ -331,10 +330,7 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
     }
 
     private void handleInstrumentClusterKey(KeyEvent event) {
-        KeyEventListener listener = null;
-        synchronized (this) {
-            listener = mInstrumentClusterKeyListener;
-        }
+        KeyEventListener listener = mInstrumentClusterKeyListener;
         if (listener == null) {
             return;
         }
@@ -350,6 +346,11 @@ public class CarInputService implements CarServiceBase, InputHalService.InputLis
         writer.println("*Input Service*");
         writer.println("mCarInputListenerBound:" + mCarInputListenerBound);
         writer.println("mCarInputListener:" + mCarInputListener);
+        SparseArray<SparseBooleanArray> handledKeys = mHandledKeys;
+        for (int i = 0; i < handledKeys.size(); i++) {
+            writer.println("handled keys for display " + handledKeys.keyAt(i) + ": "
+                    + handledKeys.valueAt(i));
+        }
     }
 
     private boolean bindCarInputService() {
@@ -20,16 +20,13 @@ import android.annotation.IntDef;
 import android.app.UiModeManager;
 import android.car.hardware.CarPropertyValue;
 import android.car.hardware.property.CarPropertyEvent;
-import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
 import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
-import android.os.RemoteException;
 import android.util.Log;
 
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.List;
 
 public class CarNightService implements CarServiceBase {
 
@@ -49,13 +46,11 @@ public class CarNightService implements CarServiceBase {
     private final UiModeManager mUiModeManager;
     private CarPropertyService mCarPropertyService;
 
-    private final ICarPropertyEventListener mICarPropertyEventListener =
-            new ICarPropertyEventListener.Stub() {
+    private final InternalPropertyListener mPropertyListener = new InternalPropertyListener() {
         @Override
-        public void onEvent(List<CarPropertyEvent> events) throws RemoteException {
-            for (CarPropertyEvent event : events) {
-                handlePropertyEvent(event);
-            }
+        public void onBooleanPropertyChanged(int propId, int areaId, long timestamp,
+                boolean value) {
+            handleNightModeChange(value);
         }
     };
 
@@ -71,24 +66,27 @@ public class CarNightService implements CarServiceBase {
             // Only handle onChange events
             CarPropertyValue value = event.getCarPropertyValue();
             if (value.getPropertyId() == VehicleProperty.NIGHT_MODE) {
-                boolean nightMode = (Boolean) value.getValue();
-                if (nightMode) {
-                    mNightSetting = UiModeManager.MODE_NIGHT_YES;
-                    if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent NIGHT");
-                } else {
-                    mNightSetting = UiModeManager.MODE_NIGHT_NO;
-                    if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent DAY");
-                }
-                if (mUiModeManager != null && (mForcedMode == FORCED_SENSOR_MODE)) {
-                    mUiModeManager.setNightMode(mNightSetting);
-                    if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent APPLIED");
-                } else {
-                    if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent IGNORED");
-                }
+                handleNightModeChange((Boolean) value.getValue());
             }
         }
     }
 
+    private synchronized void handleNightModeChange(boolean nightMode) {
+        if (nightMode) {
+            mNightSetting = UiModeManager.MODE_NIGHT_YES;
+            if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent NIGHT");
+        } else {
+            mNightSetting = UiModeManager.MODE_NIGHT_NO;
+            if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent DAY");
+        }
+        if (mUiModeManager != null && (mForcedMode == FORCED_SENSOR_MODE)) {
+            mUiModeManager.setNightMode(mNightSetting);
+            if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent APPLIED");
+        } else {
+            if (DBG)  Log.d(CarLog.TAG_SENSOR, "CAR dayNight handleSensorEvent IGNORED");
+        }
+    }
+
     public synchronized int forceDayNightMode(@DayNightSensorMode int mode) {
         if (mUiModeManager == null) {
             return -1;
@@ -129,12 +127,13 @@ public class CarNightService implements CarServiceBase {
         if (DBG) {
             Log.d(CarLog.TAG_SENSOR,"CAR dayNight init.");
         }
-        mCarPropertyService.registerListener(VehicleProperty.NIGHT_MODE, 0,
-                mICarPropertyEventListener);
+        mCarPropertyService.registerInternalListener(new int[] {VehicleProperty.NIGHT_MODE}, 0,
+                null /* executor */, mPropertyListener);
     }
 
     @Override
     public synchronized void release() {
+        mCarPropertyService.unregisterInternalListener(mPropertyListener);
     }
 
     @Override
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Caches permission decisions per UID, so that frequent binder calls do not pay a permission
+ * check through the package manager every time.
+ *
+ * Decisions of a UID are dropped when its runtime permissions are granted or revoked, and all
+ * decisions are dropped on package changes, which may change permissions of any UID sharing the
+ * package. Nothing is cached until {@link #init()} managed to follow those changes.
+ */
+/* package */ class CarPermissionCache {
+
+    /** Passed to {@link InvalidationListener} when decisions of all UIDs were dropped. */
+    static final int ALL_UIDS = Process.INVALID_UID;
+
+    /** Returned by {@link #getGeneration()} while nothing may be cached. */
+    static final int NOT_CACHING = -1;
+
+    /** Notified once cached decisions are dropped, to drop anything derived from them. */
+    interface InvalidationListener {
+        /** @param uid UID whose decisions were dropped, or {@link #ALL_UIDS}. */
+        void onPermissionsInvalidated(int uid);
+    }
+
+    /** Makes the actual permission check, abstracted for testing. */
+    interface PermissionChecker {
+        int checkPermission(String permission, int pid, int uid);
+    }
+
+    private final Context mContext;
+    private final PermissionChecker mChecker;
+    private final CopyOnWriteArrayList<InvalidationListener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    private final Object mLock = new Object();
+    /** K: UID, V: decisions of the UID by permission. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Boolean>> mDecisions = new SparseArray<>();
+    /** Incremented on every invalidation, so that checks racing with it are not cached. */
+    @GuardedBy("mLock")
+    private int mGeneration;
+    /** Whether permission and package changes are followed, required to cache anything. */
+    @GuardedBy("mLock")
+    private boolean mCaching;
+    @GuardedBy("mLock")
+    private int mHitCount;
+    @GuardedBy("mLock")
+    private int mMissCount;
+
+    private final PackageManager.OnPermissionsChangedListener mPermissionsChangedListener =
+            this::invalidate;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate(ALL_UIDS);
+        }
+    };
+
+    CarPermissionCache(@NonNull Context context) {
+        this(context, context::checkPermission);
+    }
+
+    @VisibleForTesting
+    CarPermissionCache(@NonNull Context context, @NonNull PermissionChecker checker) {
+        mContext = context;
+        mChecker = checker;
+    }
+
+    /** Starts following permission and package changes. */
+    void init() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        try {
+            mContext.getPackageManager().addOnPermissionsChangeListener(
+                    mPermissionsChangedListener);
+            mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+        } catch (SecurityException e) {
+            // Stale decisions could not be dropped, check every time instead.
+            Log.w(CarLog.TAG_SERVICE, "Can not follow permission changes, not caching", e);
+            mContext.getPackageManager().removeOnPermissionsChangeListener(
+                    mPermissionsChangedListener);
+            return;
+        }
+        setCaching(true);
+    }
+
+    void release() {
+        synchronized (mLock) {
+            if (!mCaching) {
+                return;
+            }
+        }
+        setCaching(false);
+        mContext.unregisterReceiver(mPackageReceiver);
+        mContext.getPackageManager().removeOnPermissionsChangeListener(
+                mPermissionsChangedListener);
+    }
+
+    @VisibleForTesting
+    void setCaching(boolean caching) {
+        synchronized (mLock) {
+            mCaching = caching;
+        }
+        invalidate(ALL_UIDS);
+    }
+
+    void addInvalidationListener(@NonNull InvalidationListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Same as {@link ICarImpl#hasPermission(Context, String)}, through the cache.
+     */
+    boolean hasPermission(String permission) {
+        return hasPermission(permission, Binder.getCallingPid(), Binder.getCallingUid());
+    }
+
+    /**
+     * Same as {@link ICarImpl#assertPermission(Context, String)}, through the cache.
+     */
+    void assertPermission(String permission) {
+        if (!hasPermission(permission)) {
+            throw new SecurityException("requires " + permission);
+        }
+    }
+
+    @VisibleForTesting
+    boolean hasPermission(String permission, int pid, int uid) {
+        int generation;
+        boolean caching;
+        synchronized (mLock) {
+            ArrayMap<String, Boolean> decisions = mDecisions.get(uid);
+            Boolean granted = decisions == null ? null : decisions.get(permission);
+            if (granted != null) {
+                mHitCount++;
+                return granted;
+            }
+            mMissCount++;
+            generation = mGeneration;
+            caching = mCaching;
+        }
+        // Checked without the lock, the package manager may take a while.
+        boolean granted = mChecker.checkPermission(permission, pid, uid)
+                == PackageManager.PERMISSION_GRANTED;
+        synchronized (mLock) {
+            if (!caching || generation != mGeneration) {
+                return granted;
+            }
+            ArrayMap<String, Boolean> decisions = mDecisions.get(uid);
+            if (decisions == null) {
+                decisions = new ArrayMap<>();
+                mDecisions.put(uid, decisions);
+            }
+            decisions.put(permission, granted);
+        }
+        return granted;
+    }
+
+    /**
+     * Lets callers cache what they derive from permission decisions: it may be kept if the
+     * generation did not change while deriving it, and until an {@link InvalidationListener}
+     * drops it.
+     *
+     * @return current generation, {@link #NOT_CACHING} if nothing may be cached.
+     */
+    int getGeneration() {
+        synchronized (mLock) {
+            return mCaching ? mGeneration : NOT_CACHING;
+        }
+    }
+
+    /** Drops cached decisions of the UID, or of all UIDs for {@link #ALL_UIDS}. */
+    @VisibleForTesting
+    void invalidate(int uid) {
+        synchronized (mLock) {
+            mGeneration = (mGeneration + 1) & Integer.MAX_VALUE;
+            if (uid == ALL_UIDS) {
+                mDecisions.clear();
+            } else {
+                mDecisions.remove(uid);
+            }
+        }
+        for (InvalidationListener listener : mListeners) {
+            listener.onPermissionsInvalidated(uid);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("CarPermissionCache caching: " + mCaching + ", uids: "
+                    + mDecisions.size() + ", hits: " + mHitCount + ", misses: " + mMissCount);
+        }
+    }
+}
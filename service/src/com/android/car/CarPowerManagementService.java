@@ -109,6 +109,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     private final PowerManagerCallbackList mPowerManagerListeners = new PowerManagerCallbackList();
     private final Map<IBinder, Integer> mPowerManagerListenerTokens = new ConcurrentHashMap<>();
     private int mTokenValue = 1;
+    private final PowerPhaseTracer mPhaseTracer = new PowerPhaseTracer();
 
     @GuardedBy("this")
     private PowerState mCurrentState;
@@ -117,8 +118,15 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     @GuardedBy("this")
     private long mProcessingStartTime;
     @GuardedBy("this")
+    private long mProcessingStartNs;
+    @GuardedBy("this")
     private long mLastSleepEntryTime;
     @GuardedBy("this")
+    private long mStateChangeRequestNs;
+    /** Wake up time from the last deep sleep, 0 once the display has been turned on. */
+    @GuardedBy("this")
+    private long mResumeStartNs;
+    @GuardedBy("this")
     private final LinkedList<PowerState> mPendingPowerStates = new LinkedList<>();
     @GuardedBy("this")
     private HandlerThread mHandlerThread;
@@ -230,7 +238,8 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
      */
     public synchronized void registerPowerEventProcessingHandler(
             PowerEventProcessingHandler handler) {
-        mPowerEventProcessingHandlers.add(new PowerEventProcessingHandlerWrapper(handler));
+        mPowerEventProcessingHandlers.add(new PowerEventProcessingHandlerWrapper(handler,
+                mPowerEventProcessingHandlers.size()));
         // onPowerOn will not be called if power on notification is already done inside the
         // handler thread. So request it once again here. Wrapper will have its own
         // gatekeeping to prevent calling onPowerOn twice.
@@ -297,6 +306,15 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         for (PowerEventProcessingHandlerWrapper wrapper : mPowerEventProcessingHandlers) {
             writer.println(wrapper.toString());
         }
+        mPhaseTracer.dump(writer);
+    }
+
+    /**
+     * Returns the tracer holding phase timings of recent power state transitions. Can be used to
+     * query latency percentiles across suspend / resume cycles.
+     */
+    public PowerPhaseTracer getPhaseTracer() {
+        return mPhaseTracer;
     }
 
     @Override
@@ -309,6 +327,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         PowerHandler handler;
         synchronized (this) {
             mPendingPowerStates.addFirst(state);
+            mStateChangeRequestNs = SystemClock.elapsedRealtimeNanos();
             handler = mHandler;
         }
         handler.handlePowerStateChange();
@@ -317,12 +336,15 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     private void doHandlePowerStateChange() {
         PowerState state = null;
         PowerHandler handler;
+        long startNs = SystemClock.elapsedRealtimeNanos();
         synchronized (this) {
             state = mPendingPowerStates.peekFirst();
             mPendingPowerStates.clear();
             if (state == null) {
                 return;
             }
+            mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_STATE_CHANGE_DISPATCH,
+                    PowerPhaseTracer.NO_HANDLER, mStateChangeRequestNs, startNs);
             if (!needPowerStateChange(state)) {
                 return;
             }
@@ -346,6 +368,8 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
                 handleShutdownPrepare(state);
                 break;
         }
+        mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_HANDLE_STATE_CHANGE,
+                PowerPhaseTracer.NO_HANDLER, startNs, SystemClock.elapsedRealtimeNanos());
     }
 
     private void handleDisplayOff(PowerState newState) {
@@ -356,12 +380,21 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     private void handleFullOn(PowerState newState) {
         setCurrentState(newState);
         mSystemInterface.setDisplayState(true);
+        long resumeStartNs;
+        synchronized (this) {
+            resumeStartNs = mResumeStartNs;
+            mResumeStartNs = 0;
+        }
+        if (resumeStartNs != 0) {
+            mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON,
+                    PowerPhaseTracer.NO_HANDLER, resumeStartNs, SystemClock.elapsedRealtimeNanos());
+        }
     }
 
     @VisibleForTesting
     protected void notifyPowerOn(boolean displayOn) {
         for (PowerEventProcessingHandlerWrapper wrapper : mPowerEventProcessingHandlers) {
-            wrapper.callOnPowerOn(displayOn);
+            wrapper.callOnPowerOn(displayOn, mPhaseTracer);
         }
     }
 
@@ -369,7 +402,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     protected long notifyPrepareShutdown(boolean shuttingDown) {
         long processingTimeMs = 0;
         for (PowerEventProcessingHandlerWrapper wrapper : mPowerEventProcessingHandlers) {
-            long handlerProcessingTime = wrapper.handler.onPrepareShutdown(shuttingDown);
+            long handlerProcessingTime = wrapper.callOnPrepareShutdown(shuttingDown, mPhaseTracer);
             if (handlerProcessingTime > processingTimeMs) {
                 processingTimeMs = handlerProcessingTime;
             }
@@ -380,6 +413,16 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     }
 
     private void handleShutdownPrepare(PowerState newState) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        try {
+            doHandleShutdownPrepare(newState);
+        } finally {
+            mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_SHUTDOWN_PREPARE,
+                    PowerPhaseTracer.NO_HANDLER, startNs, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    private void doHandleShutdownPrepare(PowerState newState) {
         setCurrentState(newState);
         mSystemInterface.setDisplayState(false);;
         boolean shouldShutdown = true;
@@ -412,7 +455,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     private void doHandlePreprocessing(boolean shuttingDown) {
         long processingTimeMs = 0;
         for (PowerEventProcessingHandlerWrapper wrapper : mPowerEventProcessingHandlers) {
-            long handlerProcessingTime = wrapper.handler.onPrepareShutdown(shuttingDown);
+            long handlerProcessingTime = wrapper.callOnPrepareShutdown(shuttingDown, mPhaseTracer);
             if (handlerProcessingTime > 0) {
                 wrapper.setProcessingTimeAndResetProcessingDone(handlerProcessingTime);
             }
@@ -428,6 +471,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
                     " ms, adding polling:" + pollingCount);
             synchronized (this) {
                 mProcessingStartTime = SystemClock.elapsedRealtime();
+                mProcessingStartNs = SystemClock.elapsedRealtimeNanos();
                 releaseTimerLocked();
                 mTimer = new Timer();
                 mTimer.scheduleAtFixedRate(new ShutdownProcessingTimerTask(shuttingDown,
@@ -438,6 +482,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         } else {
             PowerHandler handler;
             synchronized (this) {
+                mProcessingStartNs = SystemClock.elapsedRealtimeNanos();
                 handler = mHandler;
             }
             handler.handleProcessingComplete(shuttingDown);
@@ -448,6 +493,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         long processingTimeMs = 0;
         int newState = shuttingDown ? CarPowerStateListener.SHUTDOWN_ENTER :
                                       CarPowerStateListener.SUSPEND_ENTER;
+        long startNs = SystemClock.elapsedRealtimeNanos();
         synchronized (mPowerManagerListenerTokens) {
             mPowerManagerListenerTokens.clear();
             int i = mPowerManagerListeners.beginBroadcast();
@@ -468,12 +514,15 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
                 processingTimeMs += APP_EXTEND_MAX_MS;
             }
         }
+        mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_LISTENER_NOTIFY,
+                PowerPhaseTracer.NO_HANDLER, startNs, SystemClock.elapsedRealtimeNanos());
         return processingTimeMs;
     }
 
     private void doHandleDeepSleep() {
         // keep holding partial wakelock to prevent entering sleep before enterDeepSleep call
         // enterDeepSleep should force sleep entry even if wake lock is kept.
+        long startNs = SystemClock.elapsedRealtimeNanos();
         mSystemInterface.switchToPartialWakeLock();
         PowerHandler handler;
         synchronized (this) {
@@ -488,11 +537,17 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         synchronized (this) {
             mLastSleepEntryTime = SystemClock.elapsedRealtime();
         }
+        mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_DEEP_SLEEP_ENTRY,
+                PowerPhaseTracer.NO_HANDLER, startNs, SystemClock.elapsedRealtimeNanos());
         if (mSystemInterface.enterDeepSleep(wakeupTimeSec) == false) {
             // System did not suspend.  Need to shutdown
             // TODO:  Shutdown gracefully
             Log.e(CarLog.TAG_POWER, "Sleep did not succeed.  Need to shutdown");
         }
+        long resumeStartNs = SystemClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            mResumeStartNs = resumeStartNs;
+        }
         mHal.sendSleepExit();
         for (PowerServiceEventListener listener : mListeners) {
             listener.onSleepExit();
@@ -509,6 +564,8 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
             }
         }
         mPowerManagerListeners.finishBroadcast();
+        mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_SLEEP_EXIT, PowerPhaseTracer.NO_HANDLER,
+                resumeStartNs, SystemClock.elapsedRealtimeNanos());
 
         if (mSystemInterface.isWakeupCausedByTimer()) {
             doHandlePreprocessing(false /*shuttingDown*/);
@@ -533,7 +590,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
         }
         for (PowerEventProcessingHandlerWrapper wrapper : mPowerEventProcessingHandlers) {
             // wrapper will not send it forward if it is already called.
-            wrapper.callOnPowerOn(displayOn);
+            wrapper.callOnPowerOn(displayOn, mPhaseTracer);
         }
     }
 
@@ -571,6 +628,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
     }
 
     private void doHandleProcessingComplete(boolean shutdownWhenCompleted) {
+        long processingStartNs;
         synchronized (this) {
             releaseTimerLocked();
             if (!shutdownWhenCompleted && mLastSleepEntryTime > mProcessingStartTime) {
@@ -578,6 +636,15 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
                 Log.w(CarLog.TAG_POWER, "Duplicate sleep entry request, ignore");
                 return;
             }
+            processingStartNs = mProcessingStartNs;
+            // Report each processing phase once, a later completion without a new start is not
+            // timed.
+            mProcessingStartNs = 0;
+        }
+        if (processingStartNs != 0) {
+            mPhaseTracer.recordSpan(PowerPhaseTracer.PHASE_PROCESSING,
+                    PowerPhaseTracer.NO_HANDLER, processingStartNs,
+                    SystemClock.elapsedRealtimeNanos());
         }
         if (shutdownWhenCompleted) {
             doHandleShutdown();
@@ -795,13 +862,24 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
 
     private static class PowerEventProcessingHandlerWrapper {
         public final PowerEventProcessingHandler handler;
+        /** Registration order of the handler, used to identify it in phase traces. */
+        public final int index;
         private long mProcessingTime = 0;
         private boolean mProcessingDone = true;
         private boolean mPowerOnSent = false;
         private int mLastDisplayState = -1;
 
-        public PowerEventProcessingHandlerWrapper(PowerEventProcessingHandler handler) {
+        public PowerEventProcessingHandlerWrapper(PowerEventProcessingHandler handler, int index) {
             this.handler = handler;
+            this.index = index;
+        }
+
+        public long callOnPrepareShutdown(boolean shuttingDown, PowerPhaseTracer tracer) {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            long processingTime = handler.onPrepareShutdown(shuttingDown);
+            tracer.recordSpan(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN, index, startNs,
+                    SystemClock.elapsedRealtimeNanos());
+            return processingTime;
         }
 
         public synchronized void setProcessingTimeAndResetProcessingDone(long processingTime) {
@@ -821,7 +899,7 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
             return mProcessingDone;
         }
 
-        public void callOnPowerOn(boolean displayOn) {
+        public void callOnPowerOn(boolean displayOn, PowerPhaseTracer tracer) {
             int newDisplayState = displayOn ? 1 : 0;
             boolean shouldCall = false;
             synchronized (this) {
@@ -832,13 +910,17 @@ public class CarPowerManagementService extends ICarPower.Stub implements CarServ
                 }
             }
             if (shouldCall) {
+                long startNs = SystemClock.elapsedRealtimeNanos();
                 handler.onPowerOn(displayOn);
+                tracer.recordSpan(PowerPhaseTracer.PHASE_HANDLER_POWER_ON, index, startNs,
+                        SystemClock.elapsedRealtimeNanos());
             }
         }
 
         @Override
         public String toString() {
-            return "PowerEventProcessingHandlerWrapper [handler=" + handler + ", mProcessingTime="
+            return "PowerEventProcessingHandlerWrapper [index=" + index + ", handler=" + handler
+                    + ", mProcessingTime="
                     + mProcessingTime + ", mProcessingDone=" + mProcessingDone + "]";
         }
     }
@@ -18,6 +18,7 @@ package com.android.car;
 
 import static java.lang.Integer.toHexString;
 
+import android.annotation.Nullable;
 import android.car.Car;
 import android.car.hardware.CarPropertyConfig;
 import android.car.hardware.CarPropertyValue;
@@ -25,22 +26,27 @@ import android.car.hardware.property.CarPropertyEvent;
 import android.car.hardware.property.ICarProperty;
 import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
 
+import com.android.car.hal.EventLatencyTracker;
 import com.android.car.hal.PropertyHalService;
+import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * This class implements the binder interface for ICarProperty.aidl to make it easier to create
@@ -59,6 +65,16 @@ public class CarPropertyService extends ICarProperty.Stub
     private boolean mListenerIsSet = false;
     private final Map<Integer, List<Client>> mPropIdClientMap = new ConcurrentHashMap<>();
     private final Object mLock = new Object();
+    private final CarPermissionCache mPermissionCache;
+    /** K: UID, V: configs the UID may read, dropped when its permissions may have changed. */
+    @GuardedBy("mLock")
+    private final SparseArray<List<CarPropertyConfig>> mPropertyListByUid = new SparseArray<>();
+    /**
+     * K: propId, V: listeners within the car service process. Replaced whenever a listener is
+     * added or removed, so that dispatch needs no lock.
+     */
+    @GuardedBy("mLock")
+    private volatile SparseArray<InternalSubscriber[]> mInternalSubscribers = new SparseArray<>();
 
     public CarPropertyService(Context context, PropertyHalService hal) {
         if (DBG) {
@@ -66,6 +82,8 @@ public class CarPropertyService extends ICarProperty.Stub
         }
         mHal = hal;
         mContext = context;
+        mPermissionCache = new CarPermissionCache(context);
+        mPermissionCache.addInvalidationListener(this::onPermissionsInvalidated);
     }
 
     // Helper class to keep track of listeners to this service
@@ -135,8 +153,48 @@ public class CarPropertyService extends ICarProperty.Stub
         }
     }
 
+    /** Listener within the car service process, see {@link #registerInternalListener}. */
+    private static final class InternalSubscriber {
+        final InternalPropertyListener mListener;
+        @Nullable final Executor mExecutor;
+        final float mRate;
+
+        InternalSubscriber(InternalPropertyListener listener, @Nullable Executor executor,
+                float rate) {
+            mListener = listener;
+            mExecutor = executor;
+            mRate = rate;
+        }
+
+        void onPropertyChanged(CarPropertyValue<?> value) {
+            if (mExecutor == null) {
+                dispatch(mListener, value);
+            } else {
+                mExecutor.execute(() -> dispatch(mListener, value));
+            }
+        }
+
+        private static void dispatch(InternalPropertyListener listener,
+                CarPropertyValue<?> value) {
+            Object v = value.getValue();
+            if (v instanceof Float) {
+                listener.onFloatPropertyChanged(value.getPropertyId(), value.getAreaId(),
+                        value.getTimestamp(), (Float) v);
+            } else if (v instanceof Integer) {
+                listener.onIntPropertyChanged(value.getPropertyId(), value.getAreaId(),
+                        value.getTimestamp(), (Integer) v);
+            } else if (v instanceof Boolean) {
+                listener.onBooleanPropertyChanged(value.getPropertyId(), value.getAreaId(),
+                        value.getTimestamp(), (Boolean) v);
+            } else {
+                listener.onPropertyChanged(value);
+            }
+        }
+    }
+
     @Override
     public void init() {
+        mPermissionCache.init();
     }
 
     @Override
@@ -146,12 +204,26 @@ public class CarPropertyService extends ICarProperty.Stub
         }
         mClientMap.clear();
         mPropIdClientMap.clear();
+        synchronized (mLock) {
+            mInternalSubscribers = new SparseArray<>();
+        }
         mHal.setListener(null);
         mListenerIsSet = false;
+        mPermissionCache.release();
     }
 
     @Override
     public void dump(PrintWriter writer) {
+        mPermissionCache.dump(writer);
+        synchronized (mLock) {
+            writer.println("Property lists cached for uids: " + mPropertyListByUid.size());
+        }
+        SparseArray<InternalSubscriber[]> internalSubscribers = mInternalSubscribers;
+        writer.println("Internal listeners:");
+        for (int i = 0; i < internalSubscribers.size(); i++) {
+            writer.println("\tpropId=0x" + toHexString(internalSubscribers.keyAt(i))
+                    + " listeners:" + internalSubscribers.valueAt(i).length);
+        }
     }
 
     @Override
@@ -164,7 +236,7 @@ public class CarPropertyService extends ICarProperty.Stub
             Log.e(TAG, "registerListener:  propId is not in config list:  " + propId);
             return;
         }
-        ICarImpl.assertPermission(mContext, mHal.getReadPermission(propId));
+        mPermissionCache.assertPermission(mHal.getReadPermission(propId));
         if (listener == null) {
             Log.e(TAG, "registerListener: Listener is null.");
             throw new IllegalArgumentException("listener cannot be null.");
@@ -188,14 +260,7 @@ public class CarPropertyService extends ICarProperty.Stub
             if (!clients.contains(client)) {
                 clients.add(client);
             }
-            // Set the HAL listener if necessary
-            if (!mListenerIsSet) {
-                mHal.setListener(this);
-            }
-            // Set the new rate
-            if (rate > mHal.getSampleRate(propId)) {
-                mHal.subscribeProperty(propId, rate);
-            }
+            subscribeLocked(propId, rate);
         }
 
         // Send the latest value(s) to the registering listener only
@@ -215,12 +280,143 @@ public class CarPropertyService extends ICarProperty.Stub
         }
     }
 
+    /**
+     * Registers a listener within the car service process. Events skip the binder batching of
+     * {@link #registerListener}: they are passed as they arrive on the HAL thread, or on the given
+     * executor, without copies and with int, float and boolean values unboxed. The latest value
+     * of each area of the properties is delivered right away.
+     *
+     * @param propIds properties to listen to, those not supported by the HAL are ignored.
+     * @param executor to deliver events on, or null to deliver them on the HAL thread, in which
+     *        case the listener must not block.
+     * @throws IllegalStateException if the listener is already registered.
+     */
+    public void registerInternalListener(int[] propIds, float rate, @Nullable Executor executor,
+            InternalPropertyListener listener) {
+        if (DBG) {
+            Log.d(TAG, "registerInternalListener: propIds=" + propIds.length + " rate=" + rate);
+        }
+        InternalSubscriber subscriber = new InternalSubscriber(listener, executor, rate);
+        List<CarPropertyConfig<?>> configs = new ArrayList<>();
+        synchronized (mLock) {
+            if (mConfigs == null) {
+                mConfigs = mHal.getPropertyList();
+            }
+            SparseArray<InternalSubscriber[]> updated = mInternalSubscribers.clone();
+            for (int propId : propIds) {
+                CarPropertyConfig<?> config = mConfigs.get(propId);
+                if (config == null) {
+                    Log.e(TAG, "registerInternalListener: propId is not in config list:0x"
+                            + toHexString(propId));
+                    continue;
+                }
+                InternalSubscriber[] subscribers = updated.get(propId, new InternalSubscriber[0]);
+                for (InternalSubscriber s : subscribers) {
+                    if (s.mListener == listener) {
+                        throw new IllegalStateException("Listener already registered");
+                    }
+                }
+                subscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+                subscribers[subscribers.length - 1] = subscriber;
+                updated.put(propId, subscribers);
+                configs.add(config);
+            }
+            mInternalSubscribers = updated;
+            for (CarPropertyConfig<?> config : configs) {
+                subscribeLocked(config.getPropertyId(), rate);
+            }
+        }
+
+        for (CarPropertyConfig<?> config : configs) {
+            for (int areaId : config.getAreaIds()) {
+                CarPropertyValue<?> value = mHal.getProperty(config.getPropertyId(), areaId);
+                if (value != null) {
+                    subscriber.onPropertyChanged(value);
+                }
+            }
+        }
+    }
+
+    /** Unregisters a listener added by {@link #registerInternalListener}, from all properties. */
+    public void unregisterInternalListener(InternalPropertyListener listener) {
+        synchronized (mLock) {
+            SparseArray<InternalSubscriber[]> updated = new SparseArray<>();
+            List<Integer> removedPropIds = new ArrayList<>();
+            SparseArray<InternalSubscriber[]> current = mInternalSubscribers;
+            for (int i = 0; i < current.size(); i++) {
+                List<InternalSubscriber> remaining = new ArrayList<>();
+                for (InternalSubscriber s : current.valueAt(i)) {
+                    if (s.mListener != listener) {
+                        remaining.add(s);
+                    }
+                }
+                if (remaining.size() < current.valueAt(i).length) {
+                    removedPropIds.add(current.keyAt(i));
+                }
+                if (!remaining.isEmpty()) {
+                    updated.put(current.keyAt(i),
+                            remaining.toArray(new InternalSubscriber[remaining.size()]));
+                }
+            }
+            mInternalSubscribers = updated;
+            for (int propId : removedPropIds) {
+                updateSubscriptionLocked(propId);
+            }
+        }
+    }
+
+    /** Subscribes to the property in the HAL, at the given rate if faster than the current one. */
+    @GuardedBy("mLock")
+    private void subscribeLocked(int propId, float rate) {
+        if (!mListenerIsSet) {
+            mHal.setListener(this);
+            mListenerIsSet = true;
+        }
+        if (rate > mHal.getSampleRate(propId)) {
+            mHal.subscribeProperty(propId, rate);
+        }
+    }
+
+    /**
+     * Updates the HAL subscription of the property after a listener was removed: unsubscribes
+     * if no binder or internal listener is left, otherwise subscribes at their fastest rate.
+     */
+    @GuardedBy("mLock")
+    private void updateSubscriptionLocked(int propId) {
+        List<Client> propertyClients = mPropIdClientMap.get(propId);
+        InternalSubscriber[] subscribers = mInternalSubscribers.get(propId);
+        if (propertyClients == null && subscribers == null) {
+            // Last listener for this property unsubscribed.  Clean up
+            mHal.unsubscribeProperty(propId);
+            if (mPropIdClientMap.isEmpty() && mInternalSubscribers.size() == 0) {
+                // No more properties are subscribed.  Turn off the listener.
+                mHal.setListener(null);
+                mListenerIsSet = false;
+            }
+            return;
+        }
+        // Other listeners are still subscribed.  Calculate the new rate
+        float maxRate = 0;
+        if (propertyClients != null) {
+            for (Client c : propertyClients) {
+                maxRate = Math.max(maxRate, c.getRate(propId));
+            }
+        }
+        if (subscribers != null) {
+            for (InternalSubscriber s : subscribers) {
+                maxRate = Math.max(maxRate, s.mRate);
+            }
+        }
+        // Set the new rate
+        mHal.subscribeProperty(propId, maxRate);
+    }
+
     @Override
     public void unregisterListener(int propId, ICarPropertyEventListener listener) {
         if (DBG) {
             Log.d(TAG, "unregisterListener propId=0x" + toHexString(propId));
         }
-        ICarImpl.assertPermission(mContext, mHal.getReadPermission(propId));
+        mPermissionCache.assertPermission(mHal.getReadPermission(propId));
         if (listener == null) {
             Log.e(TAG, "unregisterListener: Listener is null.");
             throw new IllegalArgumentException("Listener is null");
@@ -251,26 +447,9 @@ public class CarPropertyService extends ICarProperty.Stub
             }
 
             if (propertyClients.isEmpty()) {
-                // Last listener for this property unsubscribed.  Clean up
-                mHal.unsubscribeProperty(propId);
                 mPropIdClientMap.remove(propId);
-                if (mPropIdClientMap.isEmpty()) {
-                    // No more properties are subscribed.  Turn off the listener.
-                    mHal.setListener(null);
-                    mListenerIsSet = false;
-                }
-            } else {
-                // Other listeners are still subscribed.  Calculate the new rate
-                float maxRate = 0;
-                for (Client c : propertyClients) {
-                    float rate = c.getRate(propId);
-                    if (rate > maxRate) {
-                        maxRate = rate;
-                    }
-                }
-                // Set the new rate
-                mHal.subscribeProperty(propId, maxRate);
             }
+            updateSubscriptionLocked(propId);
         }
     }
 
@@ -279,13 +458,21 @@ public class CarPropertyService extends ICarProperty.Stub
      */
     @Override
     public List<CarPropertyConfig> getPropertyList() {
+        int uid = Binder.getCallingUid();
+        synchronized (mLock) {
+            List<CarPropertyConfig> cachedList = mPropertyListByUid.get(uid);
+            if (cachedList != null) {
+                return new ArrayList<>(cachedList);
+            }
+        }
+        int generation = mPermissionCache.getGeneration();
         List<CarPropertyConfig> returnList = new ArrayList<CarPropertyConfig>();
         if (mConfigs == null) {
             // Cache the configs list to avoid subsequent binder calls
             mConfigs = mHal.getPropertyList();
         }
         for (CarPropertyConfig c : mConfigs.values()) {
-            if (ICarImpl.hasPermission(mContext, mHal.getReadPermission(c.getPropertyId()))) {
+            if (mPermissionCache.hasPermission(mHal.getReadPermission(c.getPropertyId()))) {
                 // Only add properties the list if the process has permissions to read it
                 returnList.add(c);
             }
@@ -293,9 +480,25 @@ public class CarPropertyService extends ICarProperty.Stub
         if (DBG) {
             Log.d(TAG, "getPropertyList returns " + returnList.size() + " configs");
         }
+        synchronized (mLock) {
+            if (generation != CarPermissionCache.NOT_CACHING
+                    && generation == mPermissionCache.getGeneration()) {
+                mPropertyListByUid.put(uid, new ArrayList<>(returnList));
+            }
+        }
         return returnList;
     }
 
+    private void onPermissionsInvalidated(int uid) {
+        synchronized (mLock) {
+            if (uid == CarPermissionCache.ALL_UIDS) {
+                mPropertyListByUid.clear();
+            } else {
+                mPropertyListByUid.remove(uid);
+            }
+        }
+    }
+
     @Override
     public CarPropertyValue getProperty(int prop, int zone) {
         if (mConfigs.get(prop) == null) {
@@ -303,7 +506,7 @@ public class CarPropertyService extends ICarProperty.Stub
             Log.e(TAG, "getProperty: propId is not in config list:0x" + toHexString(prop));
             return null;
         }
-        ICarImpl.assertPermission(mContext, mHal.getReadPermission(prop));
+        mPermissionCache.assertPermission(mHal.getReadPermission(prop));
         return mHal.getProperty(prop, zone);
     }
 
@@ -315,24 +518,40 @@ public class CarPropertyService extends ICarProperty.Stub
             Log.e(TAG, "setProperty:  propId is not in config list:0x" + toHexString(propId));
             return;
         }
-        ICarImpl.assertPermission(mContext, mHal.getWritePermission(propId));
+        mPermissionCache.assertPermission(mHal.getWritePermission(propId));
         mHal.setProperty(prop);
     }
 
     // Implement PropertyHalListener interface
     @Override
     public void onPropertyChange(List<CarPropertyEvent> events) {
+        // Only allocated if there are binder listeners for the events.
         Map<IBinder, Pair<ICarPropertyEventListener, List<CarPropertyEvent>>> eventsToDispatch =
-                new HashMap<>();
+                null;
+        EventLatencyTracker latencyTracker = mHal.getEventLatencyTracker();
+        SparseArray<InternalSubscriber[]> internalSubscribers = mInternalSubscribers;
 
         for (CarPropertyEvent event : events) {
             int propId = event.getCarPropertyValue().getPropertyId();
+            InternalSubscriber[] subscribers = internalSubscribers.get(propId);
+            if (subscribers != null) {
+                for (InternalSubscriber s : subscribers) {
+                    s.onPropertyChanged(event.getCarPropertyValue());
+                }
+            }
             List<Client> clients = mPropIdClientMap.get(propId);
             if (clients == null) {
-                Log.e(TAG, "onPropertyChange: no listener registered for propId=0x"
-                        + toHexString(propId));
+                if (subscribers == null) {
+                    Log.e(TAG, "onPropertyChange: no listener registered for propId=0x"
+                            + toHexString(propId));
+                }
                 continue;
             }
+            if (eventsToDispatch == null) {
+                eventsToDispatch = new HashMap<>();
+            }
+            latencyTracker.record(EventLatencyTracker.HOP_BINDER_SEND, propId,
+                    event.getCarPropertyValue().getTimestamp());
 
             for (Client c : clients) {
                 IBinder listenerBinder = c.getListenerBinder();
@@ -346,6 +565,9 @@ public class CarPropertyService extends ICarProperty.Stub
                 p.second.add(event);
             }
         }
+        if (eventsToDispatch == null) {
+            return;
+        }
         // Parse the dispatch list to send events
         for (Pair<ICarPropertyEventListener, List<CarPropertyEvent>> p: eventsToDispatch.values()) {
             try {
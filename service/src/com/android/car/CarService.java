@@ -189,6 +189,7 @@ public class CarService extends Service {
                 Log.e(CarLog.TAG_SERVICE, "Failed to unlinkToDeath", e);  // Log and continue.
             }
             mVehicle = null;
+            mICarImpl.vehicleHalDied();
 
             mVhalCrashTracker.crashDetected();
 
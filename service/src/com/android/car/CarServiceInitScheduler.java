@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.TimingsTraceLog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link CarServiceBase#init()} of car services in an order derived from their declared
+ * dependencies instead of one by one in a hand maintained order.
+ *
+ * Services are added in one of three phases:
+ * <ul>
+ *     <li>{@link #PHASE_CRITICAL}: initialized first, in the order they were added, on the thread
+ *     calling {@link #start()}.</li>
+ *     <li>{@link #PHASE_PARALLEL}: initialized on a bounded pool as soon as their dependencies are
+ *     initialized. {@link #start()} returns once all of them are done.</li>
+ *     <li>{@link #PHASE_DEFERRED}: initialized on the pool once {@link #startDeferred()} is
+ *     called, typically on boot complete, or as soon as one of them is needed through
+ *     {@link #awaitInit(CarServiceBase)}.</li>
+ * </ul>
+ * A service may only depend on services added before it and in the same or an earlier phase, so
+ * that the dependency graph can not have cycles. Each init is logged as its own span through
+ * {@link TimingsTraceLog}.
+ */
+final class CarServiceInitScheduler {
+    private static final String TAG = CarLog.TAG_SERVICE;
+
+    static final int PHASE_CRITICAL = 0;
+    static final int PHASE_PARALLEL = 1;
+    static final int PHASE_DEFERRED = 2;
+
+    private static final int MAX_POOL_SIZE = 4;
+    private static final long POOL_KEEP_ALIVE_MS = 1000;
+
+    private static final class Node {
+        final CarServiceBase service;
+        final int phase;
+        final Node[] dependencies;
+        final List<Node> dependents = new ArrayList<>();
+        /** Replaced by {@link #reset()}, read under {@link #mLock} by waiters. */
+        CountDownLatch done = new CountDownLatch(1);
+        /** Set once init returned successfully, read without locking. */
+        volatile boolean initialized;
+        /** Dependencies not done yet. */
+        int pendingDependencies;
+        boolean submitted;
+        long initDurationMs = -1;
+
+        Node(CarServiceBase service, int phase, Node[] dependencies) {
+            this.service = service;
+            this.phase = phase;
+            this.dependencies = dependencies;
+            this.pendingDependencies = dependencies.length;
+        }
+
+        String getName() {
+            return service.getClass().getSimpleName();
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final String mTraceLogTag;
+    private final long mTraceTag;
+    private final int mPoolSize;
+
+    @GuardedBy("mLock")
+    private final ArrayList<Node> mNodes = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<CarServiceBase, Node> mNodeByService = new ArrayMap<>();
+    /** Highest phase whose services may be initialized, -1 before {@link #start()}. */
+    @GuardedBy("mLock")
+    private int mReleasedPhase = -1;
+    @GuardedBy("mLock")
+    private ThreadPoolExecutor mExecutor;
+    @GuardedBy("mLock")
+    private boolean mCancelled;
+    @GuardedBy("mLock")
+    private RuntimeException mFailure;
+
+    /**
+     * @param traceLogTag log tag of the init spans.
+     * @param traceTag {@link Trace} tag of the init spans.
+     */
+    CarServiceInitScheduler(String traceLogTag, long traceTag) {
+        this(traceLogTag, traceTag,
+                Math.min(MAX_POOL_SIZE, Runtime.getRuntime().availableProcessors()));
+    }
+
+    CarServiceInitScheduler(String traceLogTag, long traceTag, int poolSize) {
+        mTraceLogTag = traceLogTag;
+        mTraceTag = traceTag;
+        mPoolSize = Math.max(1, poolSize);
+    }
+
+    /**
+     * Adds a service. Must be called before {@link #start()}.
+     *
+     * @param dependencies services that must be initialized before this one. They must have been
+     *        added already, in the same or an earlier phase.
+     */
+    void addService(@NonNull CarServiceBase service, int phase,
+            @NonNull CarServiceBase... dependencies) {
+        if (phase < PHASE_CRITICAL || phase > PHASE_DEFERRED) {
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+        synchronized (mLock) {
+            if (mReleasedPhase >= 0) {
+                throw new IllegalStateException("Services can not be added once started");
+            }
+            if (mNodeByService.containsKey(service)) {
+                throw new IllegalArgumentException("Service added twice: " + service);
+            }
+            Node[] dependencyNodes = new Node[dependencies.length];
+            for (int i = 0; i < dependencies.length; i++) {
+                Node dependency = mNodeByService.get(dependencies[i]);
+                if (dependency == null || dependency.phase > phase) {
+                    throw new IllegalArgumentException(service.getClass().getSimpleName()
+                            + " depends on " + dependencies[i]
+                            + ", which was not added before it in the same or an earlier phase");
+                }
+                dependencyNodes[i] = dependency;
+            }
+            Node node = new Node(service, phase, dependencyNodes);
+            for (Node dependency : dependencyNodes) {
+                dependency.dependents.add(node);
+            }
+            mNodes.add(node);
+            mNodeByService.put(service, node);
+        }
+    }
+
+    /**
+     * Initializes critical services on the calling thread, then parallel services on the pool,
+     * and returns once all of them are initialized.
+     *
+     * @throws RuntimeException thrown by the init of any of those services.
+     */
+    void start() {
+        List<Node> critical = new ArrayList<>();
+        List<CountDownLatch> parallel = new ArrayList<>();
+        synchronized (mLock) {
+            if (mReleasedPhase >= 0) {
+                throw new IllegalStateException("Already started");
+            }
+            mReleasedPhase = PHASE_CRITICAL;
+            for (Node node : mNodes) {
+                if (node.phase == PHASE_CRITICAL) {
+                    node.submitted = true;
+                    critical.add(node);
+                } else if (node.phase == PHASE_PARALLEL) {
+                    parallel.add(node.done);
+                }
+            }
+        }
+        // Critical dependencies are always earlier critical services, so order is enough.
+        for (Node node : critical) {
+            runInit(node);
+        }
+        throwIfFailed();
+
+        synchronized (mLock) {
+            releasePhaseLocked(PHASE_PARALLEL);
+        }
+        for (CountDownLatch done : parallel) {
+            awaitUninterruptibly(done);
+        }
+        throwIfFailed();
+    }
+
+    /** Allows deferred services to be initialized. Does not wait for them. */
+    void startDeferred() {
+        synchronized (mLock) {
+            if (mReleasedPhase < PHASE_CRITICAL) {
+                throw new IllegalStateException("Not started yet");
+            }
+            releasePhaseLocked(PHASE_DEFERRED);
+        }
+    }
+
+    /** @return whether init of the given service has completed successfully. */
+    boolean isInitialized(@NonNull CarServiceBase service) {
+        Node node;
+        synchronized (mLock) {
+            node = mNodeByService.get(service);
+        }
+        return node != null && node.initialized;
+    }
+
+    /**
+     * Blocks until init of the given service has completed. Starts deferred services if needed.
+     *
+     * @return whether the service is initialized, false if it failed or was cancelled.
+     */
+    boolean awaitInit(@NonNull CarServiceBase service) {
+        Node node;
+        CountDownLatch done;
+        synchronized (mLock) {
+            node = mNodeByService.get(service);
+            if (node == null) {
+                throw new IllegalArgumentException("Unknown service " + service);
+            }
+            if (node.initialized) {
+                return true;
+            }
+            if (node.phase == PHASE_DEFERRED && mReleasedPhase >= PHASE_CRITICAL) {
+                releasePhaseLocked(PHASE_DEFERRED);
+            }
+            done = node.done;
+        }
+        awaitUninterruptibly(done);
+        return node.initialized;
+    }
+
+    /**
+     * Stops initializing services that have not started yet and waits for running inits. After
+     * this, {@link #isInitialized(CarServiceBase)} tells which services need to be released.
+     */
+    void cancel() {
+        List<CountDownLatch> running = new ArrayList<>();
+        ThreadPoolExecutor executor;
+        synchronized (mLock) {
+            mCancelled = true;
+            for (Node node : mNodes) {
+                if (!node.submitted) {
+                    node.submitted = true;
+                    node.done.countDown();
+                }
+                running.add(node.done);
+            }
+            executor = mExecutor;
+            mExecutor = null;
+        }
+        for (CountDownLatch done : running) {
+            awaitUninterruptibly(done);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Forgets the init state of all services after {@link #cancel()}, once they were released,
+     * so that {@link #start()} can run them again. The added services and their dependencies
+     * are kept.
+     */
+    void reset() {
+        synchronized (mLock) {
+            if (!mCancelled && mReleasedPhase >= 0) {
+                throw new IllegalStateException("Not cancelled");
+            }
+            mReleasedPhase = -1;
+            mCancelled = false;
+            mFailure = null;
+            for (Node node : mNodes) {
+                node.done = new CountDownLatch(1);
+                node.initialized = false;
+                node.pendingDependencies = node.dependencies.length;
+                node.submitted = false;
+                node.initDurationMs = -1;
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void releasePhaseLocked(int phase) {
+        if (mReleasedPhase >= phase) {
+            return;
+        }
+        mReleasedPhase = phase;
+        for (Node node : mNodes) {
+            submitIfReadyLocked(node);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void submitIfReadyLocked(Node node) {
+        if (node.submitted || mCancelled || node.phase > mReleasedPhase
+                || node.pendingDependencies > 0) {
+            return;
+        }
+        node.submitted = true;
+        if (mExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(mPoolSize, mPoolSize, POOL_KEEP_ALIVE_MS,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "CarServiceInit-" + threadCount.incrementAndGet()));
+            // Threads are only needed during boot, let them go once idle.
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        mExecutor.execute(() -> runInit(node));
+    }
+
+    private void runInit(Node node) {
+        // TimingsTraceLog is not thread safe, one per span.
+        TimingsTraceLog traceLog = new TimingsTraceLog(mTraceLogTag, mTraceTag);
+        String name = "CarService.init:" + node.getName();
+        RuntimeException failure = null;
+        boolean dependenciesReady = true;
+        for (Node dependency : node.dependencies) {
+            dependenciesReady &= dependency.initialized;
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        if (dependenciesReady) {
+            traceLog.traceBegin(name);
+            try {
+                node.service.init();
+                node.initialized = true;
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                traceLog.traceEnd();
+            }
+        } else {
+            Slog.w(TAG, "Skipping init of " + node.getName() + ", a dependency failed");
+        }
+
+        synchronized (mLock) {
+            node.initDurationMs = SystemClock.elapsedRealtime() - startMs;
+            if (failure != null && mFailure == null) {
+                mFailure = failure;
+            }
+            for (Node dependent : node.dependents) {
+                dependent.pendingDependencies--;
+                submitIfReadyLocked(dependent);
+            }
+        }
+        node.done.countDown();
+        if (failure != null && node.phase == PHASE_DEFERRED) {
+            // Nobody waits for deferred services, fail as loudly as a sequential init would.
+            throw failure;
+        }
+    }
+
+    private void throwIfFailed() {
+        synchronized (mLock) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("CarServiceInitScheduler released phase: " + mReleasedPhase
+                    + ", pool size: " + mPoolSize + ", cancelled: " + mCancelled);
+            for (Node node : mNodes) {
+                writer.println("\t" + node.getName() + " phase: " + node.phase
+                        + ", initialized: " + node.initialized
+                        + ", init ms: " + node.initDurationMs);
+            }
+        }
+    }
+}
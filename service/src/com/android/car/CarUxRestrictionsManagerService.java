@@ -24,12 +24,11 @@ import android.car.drivingstate.ICarDrivingStateChangeListener;
 import android.car.drivingstate.ICarUxRestrictionsChangeListener;
 import android.car.drivingstate.ICarUxRestrictionsManager;
 import android.car.hardware.CarPropertyValue;
-import android.car.hardware.property.CarPropertyEvent;
-import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
 import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParserException;
@@ -58,8 +57,15 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
     // List of clients listening to UX restriction events.
     private final List<UxRestrictionsClient> mUxRClients = new ArrayList<>();
     private CarUxRestrictions mCurrentUxRestrictions;
-    private float mCurrentMovingSpeed;
-    private boolean mFallbackToDefaults;
+    // Accessed without the service lock on every speed event, to skip events that don't change
+    // the restrictions.
+    private volatile CarUxRestrictionsTable mRestrictionsTable;
+    private volatile float mCurrentMovingSpeed;
+    private volatile int mCurrentDrivingState = CarDrivingStateEvent.DRIVING_STATE_UNKNOWN;
+    // Table entry current restrictions were taken from, and its segment for hysteresis.
+    private volatile CarUxRestrictions mCurrentTableEntry;
+    private volatile int mCurrentSegment = CarUxRestrictionsTable.SEGMENT_UNKNOWN;
+    private int mCurrentSegmentDrivingState = CarDrivingStateEvent.DRIVING_STATE_UNKNOWN;
     // For dumpsys logging
     private final LinkedList<Utils.TransitionLog> mTransitionLogs = new LinkedList<>();
 
@@ -75,25 +81,32 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         // driving and we don't get speed or gear information, we have bigger problems.
         mCurrentUxRestrictions = mHelper.createUxRestrictionsEvent(false,
                 CarUxRestrictions.UX_RESTRICTIONS_BASELINE);
+        mRestrictionsTable = createDefaultRestrictionsTable();
     }
 
     @Override
     public synchronized void init() {
+        boolean fallbackToDefaults = false;
         try {
             if (!mHelper.loadUxRestrictionsFromXml()) {
                 Log.e(TAG, "Error reading Ux Restrictions Mapping. Falling back to defaults");
-                mFallbackToDefaults = true;
+                fallbackToDefaults = true;
             }
         } catch (IOException | XmlPullParserException e) {
             Log.e(TAG, "Exception reading UX restrictions XML mapping", e);
-            mFallbackToDefaults = true;
+            fallbackToDefaults = true;
         }
+        // Get UX restrictions from the parsed configuration XML or fall back to defaults if not
+        // available.
+        mRestrictionsTable = fallbackToDefaults ? createDefaultRestrictionsTable()
+                : mHelper.createUxRestrictionsTable();
         // subscribe to driving State
         mDrivingStateService.registerDrivingStateChangeListener(
                 mICarDrivingStateChangeEventListener);
         // subscribe to property service for speed
-        mCarPropertyService.registerListener(VehicleProperty.PERF_VEHICLE_SPEED,
-                PROPERTY_UPDATE_RATE, mICarPropertyEventListener);
+        mCarPropertyService.registerInternalListener(
+                new int[] {VehicleProperty.PERF_VEHICLE_SPEED}, PROPERTY_UPDATE_RATE,
+                null /* executor */, mPropertyListener);
         initializeUxRestrictions();
     }
 
@@ -113,6 +126,7 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         if (currentSpeed == SPEED_NOT_AVAILABLE) {
             return;
         }
+        mCurrentDrivingState = currentDrivingState;
         // At this point the underlying CarPropertyService has provided us enough information to
         // compute the UX restrictions that could be potentially different from the initial UX
         // restrictions.
@@ -136,6 +150,7 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         mUxRClients.clear();
         mDrivingStateService.unregisterDrivingStateChangeListener(
                 mICarDrivingStateChangeEventListener);
+        mCarPropertyService.unregisterInternalListener(mPropertyListener);
     }
 
     // Binder methods
@@ -283,6 +298,7 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
                 "Requires DO? " + mCurrentUxRestrictions.isRequiresDistractionOptimization());
         writer.println("Current UXR: " + mCurrentUxRestrictions.getActiveRestrictions());
         mHelper.dump(writer);
+        mRestrictionsTable.dump(writer);
         writer.println("UX Restriction change log:");
         for (Utils.TransitionLog tlog : mTransitionLogs) {
             writer.println(tlog);
@@ -314,6 +330,7 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
             return;
         }
         int drivingState = event.eventValue;
+        mCurrentDrivingState = drivingState;
         Float speed = getCurrentSpeed();
 
         if (speed != SPEED_NOT_AVAILABLE) {
@@ -337,35 +354,38 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
     }
 
     /**
-     * {@link CarPropertyEvent} listener registered with the {@link CarPropertyService} for getting
-     * speed change notifications.
+     * Listener registered with the {@link CarPropertyService} for getting speed change
+     * notifications, called on the HAL thread.
      */
-    private final ICarPropertyEventListener mICarPropertyEventListener =
-            new ICarPropertyEventListener.Stub() {
-                @Override
-                public void onEvent(List<CarPropertyEvent> events) throws RemoteException {
-                    for (CarPropertyEvent event : events) {
-                        if ((event.getEventType()
-                                == CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE)
-                                && (event.getCarPropertyValue().getPropertyId()
-                                == VehicleProperty.PERF_VEHICLE_SPEED)) {
-                            handleSpeedChange((Float) event.getCarPropertyValue().getValue());
-                        }
-                    }
-                }
-            };
+    private final InternalPropertyListener mPropertyListener = new InternalPropertyListener() {
+        @Override
+        public void onFloatPropertyChanged(int propId, int areaId, long timestamp,
+                float value) {
+            handleSpeedChange(value);
+        }
+    };
 
-    private synchronized void handleSpeedChange(float newSpeed) {
+    /**
+     * Handles a speed event without locking or allocating unless the restrictions change, which
+     * is the common case.
+     */
+    private void handleSpeedChange(float newSpeed) {
         if (newSpeed == mCurrentMovingSpeed) {
             // Ignore if speed hasn't changed
             return;
         }
-        int currentDrivingState = mDrivingStateService.getCurrentDrivingState().eventValue;
+        // Driving state as last notified by CarDrivingStateService.
+        int currentDrivingState = mCurrentDrivingState;
         if (currentDrivingState != CarDrivingStateEvent.DRIVING_STATE_MOVING) {
             // Ignore speed changes if the vehicle is not moving
             return;
         }
         mCurrentMovingSpeed = newSpeed;
+        CarUxRestrictionsTable table = mRestrictionsTable;
+        int segment = table.findSegment(currentDrivingState, newSpeed, mCurrentSegment);
+        if (table.getUxRestrictions(currentDrivingState, segment) == mCurrentTableEntry) {
+            return;
+        }
         handleDispatchUxRestrictions(currentDrivingState, newSpeed);
     }
 
@@ -377,14 +397,15 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
      */
     private synchronized void handleDispatchUxRestrictions(@CarDrivingState int currentDrivingState,
             float speed) {
-        CarUxRestrictions uxRestrictions;
-        // Get UX restrictions from the parsed configuration XML or fall back to defaults if not
-        // available.
-        if (mFallbackToDefaults) {
-            uxRestrictions = getDefaultRestrictions(currentDrivingState);
-        } else {
-            uxRestrictions = mHelper.getUxRestrictions(currentDrivingState, speed);
-        }
+        CarUxRestrictionsTable table = mRestrictionsTable;
+        int previousSegment = currentDrivingState == mCurrentSegmentDrivingState
+                ? mCurrentSegment : CarUxRestrictionsTable.SEGMENT_UNKNOWN;
+        int segment = table.findSegment(currentDrivingState, speed, previousSegment);
+        CarUxRestrictions tableEntry = table.getUxRestrictions(currentDrivingState, segment);
+        mCurrentSegmentDrivingState = currentDrivingState;
+        mCurrentSegment = segment;
+        mCurrentTableEntry = tableEntry;
+        CarUxRestrictions uxRestrictions = tableEntry;
 
         if (DBG) {
             Log.d(TAG, String.format("DO old->new: %b -> %b",
@@ -410,6 +431,9 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
                 uxRestrictions.getActiveRestrictions(), System.currentTimeMillis(),
                 extraInfo.toString());
 
+        // Table entries are shared, hand out a copy that tells when the restrictions changed.
+        uxRestrictions = CarUxRestrictionsTable.withTimeStamp(uxRestrictions,
+                SystemClock.elapsedRealtimeNanos());
         mCurrentUxRestrictions = uxRestrictions;
         if (DBG) {
             Log.d(TAG, "dispatching to " + mUxRClients.size() + " clients");
@@ -419,23 +443,22 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         }
     }
 
-    private CarUxRestrictions getDefaultRestrictions(@CarDrivingState int drivingState) {
-        int restrictions;
-        boolean requiresOpt = false;
-        switch (drivingState) {
-            case CarDrivingStateEvent.DRIVING_STATE_PARKED:
-                restrictions = CarUxRestrictions.UX_RESTRICTIONS_BASELINE;
-                break;
-            case CarDrivingStateEvent.DRIVING_STATE_IDLING:
-                restrictions = CarUxRestrictions.UX_RESTRICTIONS_BASELINE;
-                requiresOpt = true;
-                break;
-            case CarDrivingStateEvent.DRIVING_STATE_MOVING:
-            default:
-                restrictions = CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED;
-                requiresOpt = true;
-        }
-        return mHelper.createUxRestrictionsEvent(requiresOpt, restrictions);
+    /**
+     * Parked is unrestricted, idling requires distraction optimization and anything else is
+     * fully restricted.
+     */
+    private CarUxRestrictionsTable createDefaultRestrictionsTable() {
+        return new CarUxRestrictionsTable.Builder(mHelper.createUxRestrictionsEvent(true,
+                CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED))
+                .addRange(CarDrivingStateEvent.DRIVING_STATE_PARKED,
+                        CarUxRestrictionsTable.SPEED_INVALID, CarUxRestrictionsTable.SPEED_INVALID,
+                        mHelper.createUxRestrictionsEvent(false,
+                                CarUxRestrictions.UX_RESTRICTIONS_BASELINE))
+                .addRange(CarDrivingStateEvent.DRIVING_STATE_IDLING,
+                        CarUxRestrictionsTable.SPEED_INVALID, CarUxRestrictionsTable.SPEED_INVALID,
+                        mHelper.createUxRestrictionsEvent(true,
+                                CarUxRestrictions.UX_RESTRICTIONS_BASELINE))
+                .build();
     }
 
     private void addTransitionLog(String name, int from, int to, long timestamp, String extra) {
@@ -19,7 +19,6 @@ package com.android.car;
 import android.annotation.Nullable;
 import android.annotation.XmlRes;
 import android.car.drivingstate.CarDrivingStateEvent;
-import android.car.drivingstate.CarDrivingStateEvent.CarDrivingState;
 import android.car.drivingstate.CarUxRestrictions;
 import android.content.Context;
 import android.content.res.TypedArray;
@@ -44,8 +43,8 @@ import java.util.Map;
  * <ol>
  * <li>Parses the given XML resource and builds a hashmap to store the driving state to UX
  * restrictions mapping information provided in the XML.</li>
- * <li>Finds the UX restrictions for the given driving state and speed from the data structure it
- * built above.</li>
+ * <li>Compiles that mapping into a {@link CarUxRestrictionsTable} to find the UX restrictions for
+ * a given driving state and speed.</li>
  * </ol>
  */
 /* package */ class CarUxRestrictionsServiceHelper {
@@ -59,6 +58,7 @@ import java.util.Map;
     private static final String RESTRICTIONS = "Restrictions";
     private static final String STRING_RESTRICTIONS = "StringRestrictions";
     private static final String CONTENT_RESTRICTIONS = "ContentRestrictions";
+    private static final String SPEED_RESTRICTIONS = "SpeedRestrictions";
 
     /* Hashmap that maps driving state to RestrictionsInfo.
     RestrictionsInfo maintains a list of RestrictionsPerSpeedRange.
@@ -285,6 +285,12 @@ import java.util.Map;
                                 .getInt(R.styleable.UxRestrictions_ContentRestrictions_maxDepth,
                                         UX_RESTRICTIONS_UNKNOWN);
                         break;
+                    case SPEED_RESTRICTIONS:
+                        a = mContext.getResources().obtainAttributes(attrs,
+                                R.styleable.UxRestrictions_SpeedRestrictions);
+                        mRestrictionParameters.mSpeedHysteresis = a.getFloat(
+                                R.styleable.UxRestrictions_SpeedRestrictions_speedHysteresis, 0);
+                        break;
                     default:
                         if (Log.isLoggable(TAG, Log.DEBUG)) {
                             Log.d(TAG, "Unsupported Restriction Parameters in XML: "
@@ -324,6 +330,7 @@ import java.util.Map;
         writer.println(
                 "Max Cumul Content Items: " + mRestrictionParameters.mMaxCumulativeContentItems);
         writer.println("Max Content depth: " + mRestrictionParameters.mMaxContentDepth);
+        writer.println("Speed hysteresis: " + mRestrictionParameters.mSpeedHysteresis);
     }
 
     private static String getDrivingStateName(int state) {
@@ -340,37 +347,22 @@ import java.util.Map;
     }
 
     /**
-     * Get the UX restrictions for the given driving state and speed.
-     *
-     * @param drivingState driving state of the vehicle
-     * @param currentSpeed speed of the vehicle
-     * @return UX restrictions for the given driving state and speed.
+     * Compiles the loaded mapping into a lookup table. Driving states missing from the mapping
+     * are fully restricted.
      */
-    public CarUxRestrictions getUxRestrictions(@CarDrivingState int drivingState,
-            float currentSpeed) {
-        RestrictionsPerSpeedRange restrictions;
-        RestrictionsInfo restrictionsList = mRestrictionsMap.get(drivingState);
-        // If the XML hasn't been parsed or if the given driving state is not supported in the
-        // XML, return fully restricted.
-        if (restrictionsList == null || restrictionsList.mRestrictionsList == null
-                || restrictionsList.mRestrictionsList.isEmpty()) {
-            return createUxRestrictionsEvent(true,
-                    CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED);
-        }
-        // For Parked and Idling, the restrictions list will have only one item, since multiple
-        // speed ranges don't make sense in those driving states.
-        if (restrictionsList.mRestrictionsList.size() == 1) {
-            restrictions = restrictionsList.mRestrictionsList.get(0);
-        } else {
-            restrictions = restrictionsList.findRestrictions(currentSpeed);
-        }
-        if (restrictions != null) {
-            return createUxRestrictionsEvent(restrictions.mRequiresDistractionOptimization,
-                    restrictions.mRestrictions);
-        } else {
-            return createUxRestrictionsEvent(true,
-                    CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED);
+    CarUxRestrictionsTable createUxRestrictionsTable() {
+        CarUxRestrictionsTable.Builder builder = new CarUxRestrictionsTable.Builder(
+                createUxRestrictionsEvent(true,
+                        CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED))
+                .setSpeedHysteresis(mRestrictionParameters.mSpeedHysteresis);
+        for (Map.Entry<Integer, RestrictionsInfo> entry : mRestrictionsMap.entrySet()) {
+            for (RestrictionsPerSpeedRange r : entry.getValue().mRestrictionsList) {
+                builder.addRange(entry.getKey(), r.mMinSpeed, r.mMaxSpeed,
+                        createUxRestrictionsEvent(r.mRequiresDistractionOptimization,
+                                r.mRestrictions));
+            }
         }
+        return builder.build();
     }
 
     /* package */ CarUxRestrictions createUxRestrictionsEvent(boolean requiresOpt,
@@ -403,11 +395,13 @@ import java.util.Map;
         int mMaxStringLength = UX_RESTRICTIONS_UNKNOWN;
         int mMaxCumulativeContentItems = UX_RESTRICTIONS_UNKNOWN;
         int mMaxContentDepth = UX_RESTRICTIONS_UNKNOWN;
+        float mSpeedHysteresis = 0;
     }
 
     /**
      * Container for UX restrictions for a speed range.
      * Speed range is valid only for the {@link CarDrivingStateEvent#DRIVING_STATE_MOVING}.
+     * Lookups go through the table built by {@link #createUxRestrictionsTable()}.
      */
     private class RestrictionsPerSpeedRange {
         static final int SPEED_INVALID = -1;
@@ -423,23 +417,6 @@ import java.util.Map;
             mRestrictions = restrictions;
             mRequiresDistractionOptimization = requiresOpt;
         }
-
-        /**
-         * Return if the given speed is in the range of ( {@link #mMinSpeed}, {@link #mMaxSpeed}
-         *
-         * @param speed Speed to check
-         * @return true if in range false if not.
-         */
-        boolean includes(float speed) {
-            if (mMinSpeed != SPEED_INVALID && mMaxSpeed == SPEED_INVALID) {
-                // This is for a range [minSpeed, infinity).  If maxSpeed
-                // is invalid and mMinSpeed is a valid, this represents a
-                // anything greater than mMinSpeed.
-                return speed >= mMinSpeed;
-            } else {
-                return speed >= mMinSpeed && speed < mMaxSpeed;
-            }
-        }
     }
 
     /**
@@ -451,19 +428,5 @@ import java.util.Map;
         void addRestrictions(RestrictionsPerSpeedRange r) {
             mRestrictionsList.add(r);
         }
-
-        /**
-         * Find the restrictions for the given speed.  It finds the range that the given speed falls
-         * in and gets the restrictions for that speed.
-         */
-        @Nullable
-        RestrictionsPerSpeedRange findRestrictions(float speed) {
-            for (RestrictionsPerSpeedRange r : mRestrictionsList) {
-                if (r.includes(speed)) {
-                    return r;
-                }
-            }
-            return null;
-        }
     }
 }
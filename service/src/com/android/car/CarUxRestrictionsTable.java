@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.car.drivingstate.CarDrivingStateEvent.CarDrivingState;
+import android.car.drivingstate.CarUxRestrictions;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Immutable lookup table from driving state and speed to UX restrictions, compiled once from the
+ * driving state to UX restrictions mapping.
+ *
+ * For each driving state, the speed axis is split at the boundaries of the configured speed
+ * ranges into sorted segments, each pointing at a pre-built {@link CarUxRestrictions}. Speeds
+ * not covered by any range map to fully restricted. Lookups are a binary search and neither lock
+ * nor allocate, so that they can run for every speed event. The pre-built restrictions carry the
+ * time the table was built, use {@link #withTimeStamp(CarUxRestrictions, long)} before handing
+ * them out.
+ *
+ * With a speed hysteresis configured, a lookup that moves to a lower speed segment than the
+ * previous one only does so once the speed drops that far below the start of the previous
+ * segment. Increasing speed switches segments right away, so that the restrictions of higher
+ * speeds are never delayed.
+ */
+/* package */ final class CarUxRestrictionsTable {
+
+    /** Segment of speeds not covered by the table, or no previous segment. */
+    static final int SEGMENT_UNKNOWN = -1;
+
+    /** Value of a speed range bound that is not set. */
+    static final float SPEED_INVALID = -1;
+
+    private static final class StateTable {
+        /** Start of each segment, strictly increasing. The first one is negative infinity. */
+        final float[] mSegmentStarts;
+        final CarUxRestrictions[] mRestrictions;
+
+        StateTable(float[] segmentStarts, CarUxRestrictions[] restrictions) {
+            mSegmentStarts = segmentStarts;
+            mRestrictions = restrictions;
+        }
+    }
+
+    private final SparseArray<StateTable> mTables;
+    private final CarUxRestrictions mFullyRestricted;
+    private final float mSpeedHysteresis;
+
+    private CarUxRestrictionsTable(SparseArray<StateTable> tables,
+            CarUxRestrictions fullyRestricted, float speedHysteresis) {
+        mTables = tables;
+        mFullyRestricted = fullyRestricted;
+        mSpeedHysteresis = speedHysteresis;
+    }
+
+    /**
+     * Finds the segment the given speed falls in.
+     *
+     * @param previousSegment segment returned by the previous lookup for the same driving state,
+     *        or {@link #SEGMENT_UNKNOWN}. Used to apply the speed hysteresis.
+     * @return segment to pass to {@link #getUxRestrictions(int, int)}.
+     */
+    int findSegment(@CarDrivingState int drivingState, float speed, int previousSegment) {
+        StateTable table = mTables.get(drivingState);
+        if (table == null || Float.isNaN(speed)) {
+            return SEGMENT_UNKNOWN;
+        }
+        float[] starts = table.mSegmentStarts;
+        int segment = Arrays.binarySearch(starts, speed);
+        if (segment < 0) {
+            // Not a boundary, take the segment before the insertion point. The first segment
+            // starts at negative infinity so this is never negative.
+            segment = -segment - 2;
+        }
+        if (previousSegment > segment && previousSegment < starts.length
+                && speed >= starts[previousSegment] - mSpeedHysteresis) {
+            return previousSegment;
+        }
+        return segment;
+    }
+
+    /**
+     * @return pre-built restrictions of the segment, fully restricted if the driving state is not
+     *         configured or the speed was not covered by any range.
+     */
+    @NonNull
+    CarUxRestrictions getUxRestrictions(@CarDrivingState int drivingState, int segment) {
+        StateTable table = mTables.get(drivingState);
+        if (table == null || segment < 0 || segment >= table.mRestrictions.length) {
+            return mFullyRestricted;
+        }
+        return table.mRestrictions[segment];
+    }
+
+    /** Convenience for a lookup without hysteresis. */
+    @NonNull
+    CarUxRestrictions getUxRestrictions(@CarDrivingState int drivingState, float speed) {
+        return getUxRestrictions(drivingState,
+                findSegment(drivingState, speed, SEGMENT_UNKNOWN));
+    }
+
+    float getSpeedHysteresis() {
+        return mSpeedHysteresis;
+    }
+
+    /** @return copy of {@code restrictions} with the given timestamp. */
+    static CarUxRestrictions withTimeStamp(CarUxRestrictions restrictions, long timeStamp) {
+        return new CarUxRestrictions.Builder(restrictions.isRequiresDistractionOptimization(),
+                restrictions.getActiveRestrictions(), timeStamp)
+                .setMaxStringLength(restrictions.getMaxRestrictedStringLength())
+                .setMaxCumulativeContentItems(restrictions.getMaxCumulativeContentItems())
+                .setMaxContentDepth(restrictions.getMaxContentDepth())
+                .build();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("UX restrictions table, speed hysteresis: " + mSpeedHysteresis);
+        for (int i = 0; i < mTables.size(); i++) {
+            StateTable table = mTables.valueAt(i);
+            writer.println("\tState " + mTables.keyAt(i) + ":");
+            for (int j = 0; j < table.mSegmentStarts.length; j++) {
+                writer.println("\t\tfrom " + table.mSegmentStarts[j] + ": "
+                        + table.mRestrictions[j].getActiveRestrictions() + " DO? "
+                        + table.mRestrictions[j].isRequiresDistractionOptimization());
+            }
+        }
+    }
+
+    /**
+     * Builds a {@link CarUxRestrictionsTable} out of speed ranges. A speed falling into more than
+     * one range of the same driving state gets the restrictions of the range added first.
+     */
+    static final class Builder {
+        private static final class Range {
+            final float mMinSpeed;
+            final float mMaxSpeed;
+            final CarUxRestrictions mRestrictions;
+
+            Range(float minSpeed, float maxSpeed, CarUxRestrictions restrictions) {
+                mMinSpeed = minSpeed;
+                mMaxSpeed = maxSpeed;
+                mRestrictions = restrictions;
+            }
+
+            boolean includes(float speed) {
+                return speed >= mMinSpeed && speed < mMaxSpeed;
+            }
+        }
+
+        private final CarUxRestrictions mFullyRestricted;
+        private final SparseArray<List<Range>> mRanges = new SparseArray<>();
+        private float mSpeedHysteresis;
+
+        /**
+         * @param fullyRestricted restrictions for speeds not covered by any range.
+         */
+        Builder(@NonNull CarUxRestrictions fullyRestricted) {
+            mFullyRestricted = fullyRestricted;
+        }
+
+        /**
+         * Adds the restrictions of a speed range, left closed and right open. A driving state
+         * with a single range uses it for any speed.
+         *
+         * @param minSpeed lower bound of the range.
+         * @param maxSpeed upper bound of the range, {@link #SPEED_INVALID} if it has none.
+         */
+        Builder addRange(@CarDrivingState int drivingState, float minSpeed, float maxSpeed,
+                @NonNull CarUxRestrictions restrictions) {
+            if (minSpeed != SPEED_INVALID && maxSpeed == SPEED_INVALID) {
+                maxSpeed = Float.POSITIVE_INFINITY;
+            }
+            List<Range> ranges = mRanges.get(drivingState);
+            if (ranges == null) {
+                ranges = new ArrayList<>();
+                mRanges.put(drivingState, ranges);
+            }
+            ranges.add(new Range(minSpeed, maxSpeed, restrictions));
+            return this;
+        }
+
+        /** Sets the speed hysteresis, in the unit of the speed ranges. Defaults to 0. */
+        Builder setSpeedHysteresis(float speedHysteresis) {
+            mSpeedHysteresis = Math.max(0, speedHysteresis);
+            return this;
+        }
+
+        CarUxRestrictionsTable build() {
+            SparseArray<StateTable> tables = new SparseArray<>(mRanges.size());
+            for (int i = 0; i < mRanges.size(); i++) {
+                tables.put(mRanges.keyAt(i), buildStateTable(mRanges.valueAt(i)));
+            }
+            return new CarUxRestrictionsTable(tables, mFullyRestricted, mSpeedHysteresis);
+        }
+
+        private StateTable buildStateTable(List<Range> ranges) {
+            if (ranges.size() == 1) {
+                return new StateTable(new float[] {Float.NEGATIVE_INFINITY},
+                        new CarUxRestrictions[] {ranges.get(0).mRestrictions});
+            }
+            // Restrictions can only change at range bounds.
+            TreeSet<Float> bounds = new TreeSet<>();
+            bounds.add(Float.NEGATIVE_INFINITY);
+            for (Range range : ranges) {
+                if (range.mMinSpeed < range.mMaxSpeed) {
+                    bounds.add(range.mMinSpeed);
+                    if (range.mMaxSpeed != Float.POSITIVE_INFINITY) {
+                        bounds.add(range.mMaxSpeed);
+                    }
+                }
+            }
+            List<Float> starts = new ArrayList<>(bounds.size());
+            List<CarUxRestrictions> restrictions = new ArrayList<>(bounds.size());
+            for (float start : bounds) {
+                CarUxRestrictions segmentRestrictions = mFullyRestricted;
+                for (Range range : ranges) {
+                    if (range.includes(start)) {
+                        segmentRestrictions = range.mRestrictions;
+                        break;
+                    }
+                }
+                // Merge with the previous segment if nothing changes at this bound.
+                if (!restrictions.isEmpty()
+                        && restrictions.get(restrictions.size() - 1) == segmentRestrictions) {
+                    continue;
+                }
+                starts.add(start);
+                restrictions.add(segmentRestrictions);
+            }
+            float[] segmentStarts = new float[starts.size()];
+            for (int i = 0; i < segmentStarts.length; i++) {
+                segmentStarts[i] = starts.get(i);
+            }
+            return new StateTable(segmentStarts,
+                    restrictions.toArray(new CarUxRestrictions[restrictions.size()]));
+        }
+    }
+}
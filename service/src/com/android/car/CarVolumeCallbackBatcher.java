@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Coalesces volume group change notifications so that at most one callback per volume group
+ * is delivered per batch interval, no matter how fast the volume is being changed.
+ *
+ * Flags of coalesced changes are OR-ed together, so e.g. {@code FLAG_SHOW_UI} is kept if any of
+ * the merged changes asked for it.
+ */
+/* package */ final class CarVolumeCallbackBatcher {
+
+    /** Roughly one display frame. */
+    static final long DEFAULT_BATCH_INTERVAL_MS = 16;
+
+    interface Dispatcher {
+        void onGroupVolumeChanged(int groupId, int flags);
+    }
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+    private final Dispatcher mDispatcher;
+    private final long mBatchIntervalMs;
+    private final Runnable mFlushRunnable = this::flush;
+
+    @GuardedBy("mLock")
+    private SparseIntArray mPendingFlags = new SparseIntArray();
+    /** Swapped with {@link #mPendingFlags} on flush to avoid allocating per batch. */
+    @GuardedBy("mLock")
+    private SparseIntArray mDispatchingFlags = new SparseIntArray();
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    CarVolumeCallbackBatcher(@NonNull Looper looper, @NonNull Dispatcher dispatcher) {
+        this(looper, dispatcher, DEFAULT_BATCH_INTERVAL_MS);
+    }
+
+    CarVolumeCallbackBatcher(@NonNull Looper looper, @NonNull Dispatcher dispatcher,
+            long batchIntervalMs) {
+        mHandler = new Handler(looper);
+        mDispatcher = dispatcher;
+        mBatchIntervalMs = batchIntervalMs;
+    }
+
+    /**
+     * Queues a change notification for the given group. Delivered on the batcher's looper at
+     * the end of the current batch interval.
+     */
+    void onGroupVolumeChanged(int groupId, int flags) {
+        synchronized (mLock) {
+            mPendingFlags.put(groupId, mPendingFlags.get(groupId, 0) | flags);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mBatchIntervalMs);
+    }
+
+    /** Drops all pending notifications. */
+    void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        synchronized (mLock) {
+            mPendingFlags.clear();
+            mFlushScheduled = false;
+        }
+    }
+
+    private void flush() {
+        SparseIntArray dispatching;
+        synchronized (mLock) {
+            dispatching = mPendingFlags;
+            mPendingFlags = mDispatchingFlags;
+            mDispatchingFlags = dispatching;
+            mFlushScheduled = false;
+        }
+        // Only the looper thread touches the dispatching array once it has been swapped out.
+        for (int i = 0; i < dispatching.size(); i++) {
+            mDispatcher.onGroupVolumeChanged(dispatching.keyAt(i), dispatching.valueAt(i));
+        }
+        dispatching.clear();
+    }
+}
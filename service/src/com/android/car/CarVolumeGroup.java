@@ -19,11 +19,8 @@ package com.android.car;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.car.media.CarAudioManager;
-import android.content.ContentResolver;
-import android.content.Context;
 import android.hardware.automotive.audiocontrol.V1_0.ContextNumber;
 import android.media.AudioDevicePort;
-import android.provider.Settings;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
@@ -41,7 +38,7 @@ import java.util.Arrays;
  */
 /* package */ final class CarVolumeGroup {
 
-    private final ContentResolver mContentResolver;
+    private final CarAudioSettings mCarAudioSettings;
     private final int mId;
     private final int[] mContexts;
     private final SparseIntArray mContextToBus = new SparseIntArray();
@@ -52,15 +49,15 @@ import java.util.Arrays;
     private int mMinGain = Integer.MAX_VALUE;
     private int mStepSize = 0;
     private int mStoredGainIndex;
-    private int mCurrentGainIndex = -1;
+    // Written under CarAudioService's lock, read lock-free by the volume getters.
+    private volatile int mCurrentGainIndex = -1;
 
-    CarVolumeGroup(Context context, int id, @NonNull int[] contexts) {
-        mContentResolver = context.getContentResolver();
+    CarVolumeGroup(CarAudioSettings carAudioSettings, int id, @NonNull int[] contexts) {
+        mCarAudioSettings = carAudioSettings;
         mId = id;
         mContexts = contexts;
 
-        mStoredGainIndex = Settings.Global.getInt(mContentResolver,
-                CarAudioManager.getVolumeSettingsKeyForGroup(mId), -1);;
+        mStoredGainIndex = mCarAudioSettings.getStoredVolumeGroupIndex(mId);
     }
 
     int getId() {
@@ -156,8 +153,8 @@ import java.util.Arrays;
         }
 
         mCurrentGainIndex = gainIndex;
-        Settings.Global.putInt(mContentResolver,
-                CarAudioManager.getVolumeSettingsKeyForGroup(mId), gainIndex);
+        // Persisted lazily, a volume sweep only results in a single settings write.
+        mCarAudioSettings.storeVolumeGroupIndex(mId, gainIndex);
     }
 
     // Given a group level gain index, return the computed gain in millibells
@@ -37,10 +37,13 @@ import java.util.List;
 
     private final Context mContext;
     private final @XmlRes int mXmlConfiguration;
+    private final CarAudioSettings mCarAudioSettings;
 
-    CarVolumeGroupsHelper(Context context, @XmlRes int xmlConfiguration) {
+    CarVolumeGroupsHelper(Context context, @XmlRes int xmlConfiguration,
+            CarAudioSettings carAudioSettings) {
         mContext = context;
         mXmlConfiguration = xmlConfiguration;
+        mCarAudioSettings = carAudioSettings;
     }
 
     CarVolumeGroup[] loadVolumeGroups() {
@@ -93,7 +96,7 @@ import java.util.List;
             }
         }
 
-        return new CarVolumeGroup(mContext, id,
+        return new CarVolumeGroup(mCarAudioSettings, id,
                 contexts.stream().mapToInt(i -> i).filter(i -> i >= 0).toArray());
     }
 }
@@ -22,7 +22,10 @@ import android.car.Car;
 import android.car.ICar;
 import android.car.cluster.renderer.IInstrumentClusterNavigation;
 import android.car.user.CarUserManagerHelper;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.hardware.automotive.vehicle.V2_0.IVehicle;
 import android.hardware.automotive.vehicle.V2_0.VehicleArea;
@@ -30,6 +33,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.Process;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.Log;
 import android.util.Slog;
@@ -44,7 +48,9 @@ import com.android.car.user.CarUserService;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.car.ICarServiceHelper;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,6 +94,7 @@ public class ICarImpl extends ICar.Stub {
     private VmsPublisherService mVmsPublisherService;
 
     private final CarServiceBase[] mAllServices;
+    private final CarServiceInitScheduler mInitScheduler;
 
     private static final String TAG = "ICarImpl";
     private static final String VHAL_TIMING_TAG = "VehicleHalTiming";
@@ -103,6 +110,15 @@ public class ICarImpl extends ICar.Stub {
 
     private final String mVehicleInterfaceName;
 
+    private final BroadcastReceiver mBootCompletedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            startDeferredServices();
+        }
+    };
+    @GuardedBy("this")
+    private boolean mBootCompletedReceiverRegistered;
+
     public ICarImpl(Context serviceContext, IVehicle vehicle, SystemInterface systemInterface,
             CanBusErrorNotifier errorNotifier, String vehicleInterfaceName) {
         mContext = serviceContext;
@@ -125,7 +141,7 @@ public class ICarImpl extends ICar.Stub {
         mCarLocationService = new CarLocationService(mContext, mCarPowerManagementService,
                 mCarPropertyService);
         mAppFocusService = new AppFocusService(serviceContext, mSystemActivityMonitoringService);
-        mCarAudioService = new CarAudioService(serviceContext);
+        mCarAudioService = new CarAudioService(serviceContext, mCarPowerManagementService);
         mCarNightService = new CarNightService(serviceContext, mCarPropertyService);
         mInstrumentClusterService = new InstrumentClusterService(serviceContext,
                 mAppFocusService, mCarInputService);
@@ -133,7 +149,7 @@ public class ICarImpl extends ICar.Stub {
                 mCarPowerManagementService, mCarAudioService, this);
         mPerUserCarServiceHelper = new PerUserCarServiceHelper(serviceContext);
         mCarBluetoothService = new CarBluetoothService(serviceContext, mCarPropertyService,
-                mPerUserCarServiceHelper, mCarUXRestrictionsService);
+                mPerUserCarServiceHelper, mCarUXRestrictionsService, mCarPowerManagementService);
         mVmsSubscriberService = new VmsSubscriberService(serviceContext, mHal.getVmsHal());
         mVmsPublisherService = new VmsPublisherService(serviceContext, mHal.getVmsHal());
         mCarDiagnosticService = new CarDiagnosticService(serviceContext, mHal.getDiagnosticHal());
@@ -143,63 +159,126 @@ public class ICarImpl extends ICar.Stub {
                 new CarConfigurationService(serviceContext, new JsonReaderImpl());
         mUserManagerHelper = new CarUserManagerHelper(serviceContext);
 
-        // Be careful with order. Service depending on other service should be inited later.
+        // Services are inited as soon as the services they depend on are, independent ones in
+        // parallel. Critical services are inited first on the main thread, deferred ones only
+        // after boot completed or when a client asks for them.
+        mInitScheduler = new CarServiceInitScheduler(VHAL_TIMING_TAG, Trace.TRACE_TAG_HAL);
         List<CarServiceBase> allServices = new ArrayList<>();
-        allServices.add(mSystemActivityMonitoringService);
-        allServices.add(mCarPowerManagementService);
-        allServices.add(mCarPropertyService);
-        allServices.add(mCarDrivingStateService);
-        allServices.add(mCarUXRestrictionsService);
-        allServices.add(mCarPackageManagerService);
-        allServices.add(mCarInputService);
-        allServices.add(mCarLocationService);
-        allServices.add(mGarageModeService);
-        allServices.add(mAppFocusService);
-        allServices.add(mCarAudioService);
-        allServices.add(mCarNightService);
-        allServices.add(mInstrumentClusterService);
-        allServices.add(mCarProjectionService);
-        allServices.add(mSystemStateControllerService);
-        allServices.add(mCarBluetoothService);
-        allServices.add(mCarDiagnosticService);
-        allServices.add(mPerUserCarServiceHelper);
-        allServices.add(mCarStorageMonitoringService);
-        allServices.add(mCarConfigurationService);
-        allServices.add(mVmsSubscriberService);
-        allServices.add(mVmsPublisherService);
+        addService(allServices, mCarPowerManagementService,
+                CarServiceInitScheduler.PHASE_CRITICAL);
+        addService(allServices, mCarPropertyService, CarServiceInitScheduler.PHASE_CRITICAL);
+        addService(allServices, mCarDrivingStateService, CarServiceInitScheduler.PHASE_CRITICAL,
+                mCarPropertyService);
+        addService(allServices, mSystemActivityMonitoringService,
+                CarServiceInitScheduler.PHASE_PARALLEL);
+        addService(allServices, mCarUXRestrictionsService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarDrivingStateService, mCarPropertyService);
+        addService(allServices, mCarPackageManagerService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarUXRestrictionsService, mSystemActivityMonitoringService);
+        addService(allServices, mCarInputService, CarServiceInitScheduler.PHASE_PARALLEL);
+        addService(allServices, mCarLocationService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPowerManagementService, mCarPropertyService);
+        addService(allServices, mGarageModeService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPowerManagementService);
+        addService(allServices, mAppFocusService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mSystemActivityMonitoringService);
+        addService(allServices, mCarAudioService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPowerManagementService);
+        addService(allServices, mCarNightService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPropertyService);
+        addService(allServices, mInstrumentClusterService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mAppFocusService, mCarInputService);
+        addService(allServices, mCarProjectionService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarInputService);
+        addService(allServices, mSystemStateControllerService,
+                CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPowerManagementService, mCarAudioService);
+        addService(allServices, mCarBluetoothService, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarPropertyService, mCarUXRestrictionsService, mCarPowerManagementService);
+        addService(allServices, mPerUserCarServiceHelper, CarServiceInitScheduler.PHASE_PARALLEL,
+                mCarBluetoothService);
+        addService(allServices, mVmsSubscriberService, CarServiceInitScheduler.PHASE_PARALLEL);
+        addService(allServices, mVmsPublisherService, CarServiceInitScheduler.PHASE_PARALLEL);
+        addService(allServices, mCarDiagnosticService, CarServiceInitScheduler.PHASE_DEFERRED);
+        addService(allServices, mCarStorageMonitoringService,
+                CarServiceInitScheduler.PHASE_DEFERRED);
+        addService(allServices, mCarConfigurationService, CarServiceInitScheduler.PHASE_DEFERRED);
 
         if (mUserManagerHelper.isHeadlessSystemUser()) {
             mCarUserService = new CarUserService(serviceContext, mUserManagerHelper);
-            allServices.add(mCarUserService);
+            addService(allServices, mCarUserService, CarServiceInitScheduler.PHASE_PARALLEL);
         }
 
         mAllServices = allServices.toArray(new CarServiceBase[allServices.size()]);
     }
 
+    private void addService(List<CarServiceBase> allServices, CarServiceBase service, int phase,
+            CarServiceBase... dependencies) {
+        mInitScheduler.addService(service, phase, dependencies);
+        allServices.add(service);
+    }
+
     @MainThread
     void init() {
         traceBegin("VehicleHal.init");
         mHal.init();
         traceEnd();
         traceBegin("CarService.initAllServices");
-        for (CarServiceBase service : mAllServices) {
-            service.init();
-        }
+        mInitScheduler.start();
         traceEnd();
+        if (SystemProperties.getBoolean("sys.boot_completed", false)) {
+            // Car service restarted after boot.
+            mInitScheduler.startDeferred();
+        } else {
+            synchronized (this) {
+                mContext.registerReceiver(mBootCompletedReceiver,
+                        new IntentFilter(Intent.ACTION_LOCKED_BOOT_COMPLETED));
+                mBootCompletedReceiverRegistered = true;
+            }
+        }
+    }
+
+    private void startDeferredServices() {
+        synchronized (this) {
+            if (!mBootCompletedReceiverRegistered) {
+                return;
+            }
+            mContext.unregisterReceiver(mBootCompletedReceiver);
+            mBootCompletedReceiverRegistered = false;
+        }
+        mInitScheduler.startDeferred();
     }
 
     void release() {
-        // release done in opposite order from init
+        synchronized (this) {
+            if (mBootCompletedReceiverRegistered) {
+                mContext.unregisterReceiver(mBootCompletedReceiver);
+                mBootCompletedReceiverRegistered = false;
+            }
+        }
+        mInitScheduler.cancel();
+        // release done in opposite order from init, services never inited are skipped.
         for (int i = mAllServices.length - 1; i >= 0; i--) {
-            mAllServices[i].release();
+            if (mInitScheduler.isInitialized(mAllServices[i])) {
+                mAllServices[i].release();
+            }
         }
+        // CarTestService inits again after a release.
+        mInitScheduler.reset();
         mHal.release();
     }
 
+    void vehicleHalDied() {
+        mHal.vehicleHalDied();
+    }
+
     void vehicleHalReconnected(IVehicle vehicle) {
         mHal.vehicleHalReconnected(vehicle);
         for (CarServiceBase service : mAllServices) {
-            service.vehicleHalReconnected();
+            // Services inited later pick up the new connection in init.
+            if (mInitScheduler.isInitialized(service)) {
+                service.vehicleHalReconnected();
+            }
         }
     }
 
@@ -226,6 +305,7 @@ public class ICarImpl extends ICar.Stub {
                 return mCarPackageManagerService;
             case Car.DIAGNOSTIC_SERVICE:
                 assertAnyDiagnosticPermission(mContext);
+                mInitScheduler.awaitInit(mCarDiagnosticService);
                 return mCarDiagnosticService;
             case Car.POWER_SERVICE:
                 assertPowerPermission(mContext);
@@ -264,6 +344,7 @@ public class ICarImpl extends ICar.Stub {
                 return mCarBluetoothService;
             case Car.STORAGE_MONITORING_SERVICE:
                 assertPermission(mContext, Car.PERMISSION_STORAGE_MONITORING);
+                mInitScheduler.awaitInit(mCarStorageMonitoringService);
                 return mCarStorageMonitoringService;
             case Car.CAR_DRIVING_STATE_SERVICE:
                 assertDrivingStatePermission(mContext);
@@ -271,6 +352,7 @@ public class ICarImpl extends ICar.Stub {
             case Car.CAR_UX_RESTRICTION_SERVICE:
                 return mCarUXRestrictionsService;
             case Car.CAR_CONFIGURATION_SERVICE:
+                mInitScheduler.awaitInit(mCarConfigurationService);
                 return mCarConfigurationService;
             default:
                 Log.w(CarLog.TAG_SERVICE, "getCarService for unknown service:" + serviceName);
@@ -377,8 +459,13 @@ public class ICarImpl extends ICar.Stub {
             writer.println("*FutureConfig, DEFAULT:" + FeatureConfiguration.DEFAULT);
             writer.println("*Dump all services*");
             for (CarServiceBase service : mAllServices) {
-                dumpService(service, writer);
+                if (mInitScheduler.isInitialized(service)) {
+                    dumpService(service, writer);
+                } else {
+                    writer.println("*" + service.getClass().getSimpleName() + "* not inited");
+                }
             }
+            mInitScheduler.dump(writer);
             if (mCarTestService != null) {
                 dumpService(mCarTestService, writer);
             }
@@ -429,6 +516,7 @@ public class ICarImpl extends ICar.Stub {
         private static final String COMMAND_ENABLE_UXR = "enable-uxr";
         private static final String COMMAND_GARAGE_MODE = "garage-mode";
         private static final String COMMAND_GET_DO_ACTIVITIES = "get-do-activities";
+        private static final String COMMAND_VHAL_TRACE = "vhal-trace";
 
         private static final String PARAM_DAY_MODE = "day";
         private static final String PARAM_NIGHT_MODE = "night";
@@ -437,6 +525,9 @@ public class ICarImpl extends ICar.Stub {
         private static final String PARAM_ON_MODE = "on";
         private static final String PARAM_OFF_MODE = "off";
         private static final String PARAM_QUERY_MODE = "query";
+        private static final String PARAM_START = "start";
+        private static final String PARAM_STOP = "stop";
+        private static final String DEFAULT_VHAL_TRACE_FILE = "vhal.trace";
 
 
         private void dumpHelp(PrintWriter pw) {
@@ -453,6 +544,9 @@ public class ICarImpl extends ICar.Stub {
             pw.println("\t  Force into garage mode or check status.");
             pw.println("\tget-do-activities pkgname");
             pw.println("\t Get Distraction Optimized activities in given package");
+            pw.println("\tvhal-trace start [file name]|stop");
+            pw.println("\t  Record Vehicle HAL events into a trace in the car service files dir,");
+            pw.println("\t  e.g. dumpsys car_service vhal-trace start drive.trace");
         }
 
         public void exec(String[] args, PrintWriter writer) {
@@ -520,6 +614,14 @@ public class ICarImpl extends ICar.Stub {
                         }
                     }
                     break;
+                case COMMAND_VHAL_TRACE:
+                    if (args.length < 2) {
+                        writer.println("Incorrect number of arguments");
+                        dumpHelp(writer);
+                        break;
+                    }
+                    vhalTrace(args[1], args.length > 2 ? args[2] : null, writer);
+                    break;
                 default:
                     writer.println("Unknown command.");
                     dumpHelp(writer);
@@ -578,6 +680,34 @@ public class ICarImpl extends ICar.Stub {
             writer.println("Garage mode: " + mGarageModeService.isInGarageMode());
         }
 
+        private void vhalTrace(String arg, String path, PrintWriter writer) {
+            switch (arg) {
+                case PARAM_START:
+                    String fileName = path != null ? path : DEFAULT_VHAL_TRACE_FILE;
+                    // Written as the system user: only allow files in our own files dir.
+                    if (fileName.isEmpty() || fileName.indexOf(File.separatorChar) >= 0
+                            || fileName.equals(".") || fileName.equals("..")) {
+                        writer.println("Invalid file name: " + fileName);
+                        return;
+                    }
+                    File file = new File(mContext.getFilesDir(), fileName);
+                    try {
+                        mHal.startTraceRecording(file);
+                        writer.println("Recording VHAL trace to " + file);
+                    } catch (IOException | IllegalStateException e) {
+                        writer.println("Failed to start VHAL trace: " + e);
+                    }
+                    break;
+                case PARAM_STOP:
+                    mHal.stopTraceRecording();
+                    writer.println("VHAL trace stopped");
+                    break;
+                default:
+                    writer.println("Unknown value. Valid argument: " + PARAM_START + "|"
+                            + PARAM_STOP);
+            }
+        }
+
         /**
          * Inject a fake  VHAL event
          *
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.car.hardware.CarPropertyValue;
+
+/**
+ * Listener for property changes of {@link CarPropertyService} within the car service process,
+ * registered with {@link CarPropertyService#registerInternalListener}.
+ *
+ * Int, float and boolean values are passed unboxed to the matching method, values of other
+ * types to {@link #onPropertyChanged(CarPropertyValue)}. Only the properties the listener was
+ * registered for are delivered, so implementations do not need to filter them.
+ */
+public interface InternalPropertyListener {
+
+    default void onIntPropertyChanged(int propId, int areaId, long timestamp, int value) {}
+
+    default void onFloatPropertyChanged(int propId, int areaId, long timestamp, float value) {}
+
+    default void onBooleanPropertyChanged(int propId, int areaId, long timestamp,
+            boolean value) {}
+
+    /** Called for values that are not int, float or boolean. */
+    default void onPropertyChanged(CarPropertyValue<?> value) {}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Always-on timer for the phases of {@link CarPowerManagementService} state transitions.
+ *
+ * Every recorded span goes into a fixed-size ring buffer of primitive arrays, and its duration
+ * is also kept in a per-phase history that is used to answer percentile queries across many
+ * suspend / resume cycles. Recording does not allocate.
+ */
+public class PowerPhaseTracer {
+    /** From {@code onApPowerStateChange} until the handler thread picks the state up. */
+    public static final int PHASE_STATE_CHANGE_DISPATCH = 0;
+    /** Whole {@code doHandlePowerStateChange} call. */
+    public static final int PHASE_HANDLE_STATE_CHANGE = 1;
+    /** {@code handleShutdownPrepare} until the pre-processing has been kicked off. */
+    public static final int PHASE_SHUTDOWN_PREPARE = 2;
+    /** A single registered handler's {@code onPrepareShutdown} call. */
+    public static final int PHASE_HANDLER_PREPARE_SHUTDOWN = 3;
+    /** Notifying power manager listeners of shutdown / suspend entry. */
+    public static final int PHASE_LISTENER_NOTIFY = 4;
+    /** From processing start until processing was reported complete. */
+    public static final int PHASE_PROCESSING = 5;
+    /** {@code doHandleDeepSleep} until the system is asked to enter deep sleep. */
+    public static final int PHASE_DEEP_SLEEP_ENTRY = 6;
+    /** From wake up until sleep exit notifications are all sent. */
+    public static final int PHASE_SLEEP_EXIT = 7;
+    /** A single registered handler's {@code onPowerOn} call. */
+    public static final int PHASE_HANDLER_POWER_ON = 8;
+    /** From wake up until the display is turned on. */
+    public static final int PHASE_RESUME_TO_DISPLAY_ON = 9;
+
+    static final int NUM_PHASES = 10;
+
+    /** Handler index used for spans that do not belong to a registered handler. */
+    public static final int NO_HANDLER = -1;
+
+    private static final String[] PHASE_NAMES = {
+            "STATE_CHANGE_DISPATCH",
+            "HANDLE_STATE_CHANGE",
+            "SHUTDOWN_PREPARE",
+            "HANDLER_PREPARE_SHUTDOWN",
+            "LISTENER_NOTIFY",
+            "PROCESSING",
+            "DEEP_SLEEP_ENTRY",
+            "SLEEP_EXIT",
+            "HANDLER_POWER_ON",
+            "RESUME_TO_DISPLAY_ON",
+    };
+
+    private static final int DEFAULT_SPAN_CAPACITY = 256;
+    private static final int DEFAULT_HISTORY_CAPACITY = 64;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final Object mLock = new Object();
+
+    private final int mSpanCapacity;
+    @GuardedBy("mLock")
+    private final int[] mSpanPhases;
+    @GuardedBy("mLock")
+    private final int[] mSpanHandlers;
+    @GuardedBy("mLock")
+    private final long[] mSpanStartNs;
+    @GuardedBy("mLock")
+    private final long[] mSpanDurationNs;
+    @GuardedBy("mLock")
+    private int mSpanNext;
+    @GuardedBy("mLock")
+    private int mSpanCount;
+
+    private final int mHistoryCapacity;
+    @GuardedBy("mLock")
+    private final long[][] mHistoryNs;
+    @GuardedBy("mLock")
+    private final int[] mHistoryNext;
+    @GuardedBy("mLock")
+    private final int[] mHistoryCount;
+    /** Scratch space for percentile calculation so that queries do not allocate either. */
+    @GuardedBy("mLock")
+    private final long[] mSortScratch;
+
+    public PowerPhaseTracer() {
+        this(DEFAULT_SPAN_CAPACITY, DEFAULT_HISTORY_CAPACITY);
+    }
+
+    PowerPhaseTracer(int spanCapacity, int historyCapacity) {
+        mSpanCapacity = spanCapacity;
+        mSpanPhases = new int[spanCapacity];
+        mSpanHandlers = new int[spanCapacity];
+        mSpanStartNs = new long[spanCapacity];
+        mSpanDurationNs = new long[spanCapacity];
+        mHistoryCapacity = historyCapacity;
+        mHistoryNs = new long[NUM_PHASES][historyCapacity];
+        mHistoryNext = new int[NUM_PHASES];
+        mHistoryCount = new int[NUM_PHASES];
+        mSortScratch = new long[historyCapacity];
+    }
+
+    /**
+     * Records a completed span.
+     *
+     * @param phase one of the {@code PHASE_*} constants.
+     * @param handlerIndex index of the registered handler the span belongs to, or
+     *        {@link #NO_HANDLER}.
+     * @param startNs start of the span, in {@code SystemClock.elapsedRealtimeNanos()} time base.
+     * @param endNs end of the span, in the same time base.
+     */
+    public void recordSpan(int phase, int handlerIndex, long startNs, long endNs) {
+        if (phase < 0 || phase >= NUM_PHASES) {
+            throw new IllegalArgumentException("Invalid phase:" + phase);
+        }
+        long durationNs = Math.max(0, endNs - startNs);
+        synchronized (mLock) {
+            int slot = mSpanNext;
+            mSpanPhases[slot] = phase;
+            mSpanHandlers[slot] = handlerIndex;
+            mSpanStartNs[slot] = startNs;
+            mSpanDurationNs[slot] = durationNs;
+            mSpanNext = (slot + 1) % mSpanCapacity;
+            if (mSpanCount < mSpanCapacity) {
+                mSpanCount++;
+            }
+            int historySlot = mHistoryNext[phase];
+            mHistoryNs[phase][historySlot] = durationNs;
+            mHistoryNext[phase] = (historySlot + 1) % mHistoryCapacity;
+            if (mHistoryCount[phase] < mHistoryCapacity) {
+                mHistoryCount[phase]++;
+            }
+        }
+    }
+
+    /** Returns the number of durations kept for the given phase. */
+    public int getSampleCount(int phase) {
+        synchronized (mLock) {
+            return mHistoryCount[phase];
+        }
+    }
+
+    /**
+     * Returns the given percentile of the recorded durations of a phase, in nanoseconds, using
+     * the nearest-rank method. Returns -1 if nothing was recorded for the phase yet.
+     *
+     * @param percentile value within [0, 100].
+     */
+    public long getPercentileNs(int phase, int percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile:" + percentile);
+        }
+        synchronized (mLock) {
+            int count = mHistoryCount[phase];
+            if (count == 0) {
+                return -1;
+            }
+            System.arraycopy(mHistoryNs[phase], 0, mSortScratch, 0, count);
+            Arrays.sort(mSortScratch, 0, count);
+            int rank = (int) Math.ceil(percentile / 100.0 * count);
+            return mSortScratch[Math.max(0, rank - 1)];
+        }
+    }
+
+    /** Drops all recorded spans and history. */
+    public void reset() {
+        synchronized (mLock) {
+            mSpanNext = 0;
+            mSpanCount = 0;
+            Arrays.fill(mHistoryNext, 0);
+            Arrays.fill(mHistoryCount, 0);
+        }
+    }
+
+    static String phaseToString(int phase) {
+        if (phase < 0 || phase >= NUM_PHASES) {
+            return "UNKNOWN(" + phase + ")";
+        }
+        return PHASE_NAMES[phase];
+    }
+
+    public void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("**Power phase percentiles (ms) p50/p90/p99/max, samples");
+            for (int phase = 0; phase < NUM_PHASES; phase++) {
+                if (mHistoryCount[phase] == 0) {
+                    continue;
+                }
+                writer.println(phaseToString(phase) + ": "
+                        + toMs(getPercentileNs(phase, 50)) + "/"
+                        + toMs(getPercentileNs(phase, 90)) + "/"
+                        + toMs(getPercentileNs(phase, 99)) + "/"
+                        + toMs(getPercentileNs(phase, 100)) + ", "
+                        + mHistoryCount[phase]);
+            }
+            writer.println("**Recent power phase spans (oldest first)");
+            int first = (mSpanNext - mSpanCount + mSpanCapacity) % mSpanCapacity;
+            for (int i = 0; i < mSpanCount; i++) {
+                int slot = (first + i) % mSpanCapacity;
+                writer.print("start:" + toMs(mSpanStartNs[slot]));
+                writer.print(",phase:" + phaseToString(mSpanPhases[slot]));
+                if (mSpanHandlers[slot] != NO_HANDLER) {
+                    writer.print(",handler:" + mSpanHandlers[slot]);
+                }
+                writer.println(",duration:" + toMs(mSpanDurationNs[slot]));
+            }
+        }
+    }
+
+    private static double toMs(long ns) {
+        return (double) ns / NANOS_PER_MILLI;
+    }
+}
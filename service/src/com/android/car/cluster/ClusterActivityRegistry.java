@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.cluster;
+
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import com.android.car.CarLog;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches activities resolved for cluster intents, already filtered down to the packages holding
+ * the required permission, so that starting a cluster activity does not go through
+ * {@link PackageManager} each time.
+ *
+ * Lookups are lock-free: both the resolved intents and the per-package permission results are
+ * immutable maps that are replaced as a whole on every change. {@link #onPackageChanged(String)}
+ * is expected to be called for every package broadcast. It drops all resolved intents, as any
+ * installed or updated package may add candidates, and the permission result of that package.
+ */
+class ClusterActivityRegistry {
+    private static final String TAG = CarLog.TAG_CLUSTER;
+
+    /** Resolved intents are dropped all at once beyond this, clients use only a handful. */
+    @VisibleForTesting
+    static final int MAX_RESOLVED_INTENTS = 32;
+
+    private final PackageManager mPackageManager;
+    private final String mRequiredPermission;
+    private final Object mLock = new Object();
+
+    private volatile Map<Intent.FilterComparison, List<ResolveInfo>> mResolvedIntents =
+            Collections.emptyMap();
+    private volatile Map<String, Boolean> mPermittedPackages = Collections.emptyMap();
+
+    /** Bumped on invalidation, so that lookups racing with it do not store stale results. */
+    @GuardedBy("mLock")
+    private int mGeneration;
+    @GuardedBy("mLock")
+    private int mInvalidationCount;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    ClusterActivityRegistry(@NonNull PackageManager packageManager,
+            @NonNull String requiredPermission) {
+        mPackageManager = packageManager;
+        mRequiredPermission = requiredPermission;
+    }
+
+    /**
+     * Returns activities matching the intent whose package holds the required permission, sorted
+     * by priority as returned by {@link PackageManager#queryIntentActivities}. Each result carries
+     * the matched filter.
+     *
+     * @return unmodifiable list, empty if nothing matched.
+     */
+    @NonNull
+    List<ResolveInfo> resolve(@NonNull Intent intent) {
+        Intent.FilterComparison key = new Intent.FilterComparison(intent);
+        List<ResolveInfo> cached = mResolvedIntents.get(key);
+        if (cached != null) {
+            mHitCount.incrementAndGet();
+            return cached;
+        }
+        mMissCount.incrementAndGet();
+        int generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+
+        List<ResolveInfo> resolveList = mPackageManager.queryIntentActivities(intent,
+                PackageManager.GET_RESOLVED_FILTER);
+        List<ResolveInfo> permitted;
+        if (resolveList == null || resolveList.isEmpty()) {
+            permitted = Collections.emptyList();
+        } else {
+            permitted = Collections.unmodifiableList(checkPermission(resolveList, generation));
+        }
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                Map<Intent.FilterComparison, List<ResolveInfo>> resolvedIntents;
+                if (mResolvedIntents.size() >= MAX_RESOLVED_INTENTS) {
+                    resolvedIntents = new HashMap<>();
+                } else {
+                    resolvedIntents = new HashMap<>(mResolvedIntents);
+                }
+                // Callers may modify the intent afterwards, keep a copy as the key.
+                resolvedIntents.put(new Intent.FilterComparison(new Intent(intent)), permitted);
+                mResolvedIntents = resolvedIntents;
+            }
+        }
+        return permitted;
+    }
+
+    /** Drops cached results affected by an install, update or removal of the given package. */
+    void onPackageChanged(@NonNull String packageName) {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidationCount++;
+            mResolvedIntents = Collections.emptyMap();
+            if (mPermittedPackages.containsKey(packageName)) {
+                Map<String, Boolean> permittedPackages = new HashMap<>(mPermittedPackages);
+                permittedPackages.remove(packageName);
+                mPermittedPackages = permittedPackages;
+            }
+        }
+    }
+
+    /** Drops all cached results. */
+    void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mResolvedIntents = Collections.emptyMap();
+            mPermittedPackages = Collections.emptyMap();
+        }
+    }
+
+    private List<ResolveInfo> checkPermission(List<ResolveInfo> resolveList, int generation) {
+        List<ResolveInfo> permittedResolveList = new ArrayList<>(resolveList.size());
+        Map<String, Boolean> newResults = null;
+        for (ResolveInfo info : resolveList) {
+            String pkgName = info.getComponentInfo().packageName;
+            Boolean permitted = mPermittedPackages.get(pkgName);
+            if (permitted == null && newResults != null) {
+                permitted = newResults.get(pkgName);
+            }
+            if (permitted == null) {
+                permitted = mPackageManager.checkPermission(mRequiredPermission, pkgName)
+                        == PERMISSION_GRANTED;
+                if (newResults == null) {
+                    newResults = new HashMap<>();
+                }
+                newResults.put(pkgName, permitted);
+            }
+            if (permitted) {
+                permittedResolveList.add(info);
+            } else {
+                Log.w(TAG, "Permission " + mRequiredPermission + " not granted for "
+                        + info.getComponentInfo());
+            }
+        }
+        if (newResults != null) {
+            synchronized (mLock) {
+                if (generation != mGeneration) {
+                    return permittedResolveList;
+                }
+                Map<String, Boolean> permittedPackages = new HashMap<>(mPermittedPackages);
+                permittedPackages.putAll(newResults);
+                mPermittedPackages = permittedPackages;
+            }
+        }
+        return permittedResolveList;
+    }
+
+    void dump(PrintWriter writer) {
+        int invalidationCount;
+        synchronized (mLock) {
+            invalidationCount = mInvalidationCount;
+        }
+        writer.println("ClusterActivityRegistry hits: " + mHitCount.get() + ", misses: "
+                + mMissCount.get() + ", invalidations: " + invalidationCount);
+        writer.println("\tresolved intents: " + mResolvedIntents.keySet());
+        writer.println("\tpermission by package: " + mPermittedPackages);
+    }
+}
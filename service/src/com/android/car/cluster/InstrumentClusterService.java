@@ -28,9 +28,11 @@ import android.car.cluster.renderer.IInstrumentCluster;
 import android.car.cluster.renderer.IInstrumentClusterCallback;
 import android.car.cluster.renderer.IInstrumentClusterNavigation;
 import android.car.cluster.renderer.InstrumentClusterRenderingService;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -58,10 +60,10 @@ import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Service responsible for interaction with car's instrument cluster.
@@ -80,6 +82,7 @@ public class InstrumentClusterService implements CarServiceBase,
     private final AppFocusService mAppFocusService;
     private final CarInputService mCarInputService;
     private final PackageManager mPackageManager;
+    private final ClusterActivityRegistry mClusterActivityRegistry;
     private final Object mSync = new Object();
 
     private final ClusterServiceCallback mClusterCallback = new ClusterServiceCallback();
@@ -89,8 +92,9 @@ public class InstrumentClusterService implements CarServiceBase,
     private ContextOwner mNavContextOwner;
     @GuardedBy("mSync")
     private IInstrumentCluster mRendererService;
-    @GuardedBy("mSync")
-    private final HashMap<String, ClusterActivityInfo> mActivityInfoByCategory = new HashMap<>();
+    /** Immutable, replaced under {@link #mSync} on every change so that it can be read without. */
+    private volatile Map<String, ClusterActivityInfo> mActivityInfoByCategory =
+            Collections.emptyMap();
     @GuardedBy("mSync")
     private final HashMap<IBinder, ManagerCallbackInfo> mManagerCallbacks = new HashMap<>();
 
@@ -100,6 +104,20 @@ public class InstrumentClusterService implements CarServiceBase,
 
     private boolean mRendererBound = false;
 
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            String packageName = intent.getData().getSchemeSpecificPart();
+            if (DBG) {
+                Log.d(TAG, "Package changed: " + packageName + ", action: " + intent.getAction());
+            }
+            mClusterActivityRegistry.onPackageChanged(packageName);
+        }
+    };
+
     private final ServiceConnection mRendererServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder binder) {
@@ -139,6 +157,8 @@ public class InstrumentClusterService implements CarServiceBase,
         mAppFocusService = appFocusService;
         mCarInputService = carInputService;
         mPackageManager = mContext.getPackageManager();
+        mClusterActivityRegistry = new ClusterActivityRegistry(mPackageManager,
+                Car.PERMISSION_CAR_DISPLAY_IN_CLUSTER);
     }
 
     @Override
@@ -149,6 +169,13 @@ public class InstrumentClusterService implements CarServiceBase,
 
         mAppFocusService.registerContextOwnerChangedCallback(this /* FocusOwnershipCallback */);
         mCarInputService.setInstrumentClusterKeyListener(this /* KeyEventListener */);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageChangeReceiver, packageFilter);
         mRendererBound = bindInstrumentClusterRendererService();
     }
 
@@ -159,6 +186,8 @@ public class InstrumentClusterService implements CarServiceBase,
         }
 
         mAppFocusService.unregisterContextOwnerChangedCallback(this);
+        mContext.unregisterReceiver(mPackageChangeReceiver);
+        mClusterActivityRegistry.clear();
         if (mRendererBound) {
             mContext.unbindService(mRendererServiceConnection);
             mRendererBound = false;
@@ -170,6 +199,7 @@ public class InstrumentClusterService implements CarServiceBase,
         writer.println("**" + getClass().getSimpleName() + "**");
         writer.println("bound with renderer: " + mRendererBound);
         writer.println("renderer service: " + mRendererService);
+        mClusterActivityRegistry.dump(writer);
     }
 
     @Override
@@ -290,9 +320,17 @@ public class InstrumentClusterService implements CarServiceBase,
         }
     }
 
+    /** Immutable, see {@link #mActivityInfoByCategory}. */
     private static class ClusterActivityInfo {
-        Bundle launchOptions;  // ActivityOptions
-        Bundle state;          // ClusterActivityState
+        static final ClusterActivityInfo EMPTY = new ClusterActivityInfo(null, null);
+
+        final Bundle launchOptions;  // ActivityOptions
+        final Bundle state;          // ClusterActivityState
+
+        ClusterActivityInfo(Bundle launchOptions, Bundle state) {
+            this.launchOptions = launchOptions;
+            this.state = state;
+        }
     }
 
     private void enforcePermission(String permission) {
@@ -314,15 +352,10 @@ public class InstrumentClusterService implements CarServiceBase,
         enforceClusterControlPermission();
 
         // Category from given intent should match category from cluster vendor implementation.
-        List<ResolveInfo> resolveList = mPackageManager.queryIntentActivities(intent,
-                PackageManager.GET_RESOLVED_FILTER);
-        if (resolveList == null || resolveList.isEmpty()) {
-            Log.w(TAG, "Failed to resolve an intent: " + intent);
-            return;
-        }
-
-        resolveList = checkPermission(resolveList, Car.PERMISSION_CAR_DISPLAY_IN_CLUSTER);
+        // Only activities permitted to be displayed in the cluster are returned.
+        List<ResolveInfo> resolveList = mClusterActivityRegistry.resolve(intent);
         if (resolveList.isEmpty()) {
+            Log.w(TAG, "Failed to resolve an intent: " + intent);
             return;
         }
 
@@ -354,22 +387,6 @@ public class InstrumentClusterService implements CarServiceBase,
         }
     }
 
-    private List<ResolveInfo> checkPermission(List<ResolveInfo> resolveList,
-            String permission) {
-        List<ResolveInfo> permittedResolveList = new ArrayList<>(resolveList.size());
-        for (ResolveInfo info : resolveList) {
-            String pkgName = info.getComponentInfo().packageName;
-            if (mPackageManager.checkPermission(permission, pkgName) == PERMISSION_GRANTED) {
-                permittedResolveList.add(info);
-            } else {
-                Log.w(TAG, "Permission " + permission + " not granted for "
-                        + info.getComponentInfo());
-            }
-
-        }
-        return permittedResolveList;
-    }
-
     private void doRegisterManagerCallback(IInstrumentClusterManagerCallback callback)
             throws RemoteException {
         enforceClusterControlPermission();
@@ -418,15 +435,14 @@ public class InstrumentClusterService implements CarServiceBase,
     @Nullable
     private Pair<ResolveInfo, ClusterActivityInfo> findClusterActivityOptions(
             List<ResolveInfo> resolveList) {
-        synchronized (mSync) {
-            Set<String> registeredCategories = mActivityInfoByCategory.keySet();
-
-            for (ResolveInfo resolveInfo : resolveList) {
-                for (String category : registeredCategories) {
-                    if (resolveInfo.filter != null && resolveInfo.filter.hasCategory(category)) {
-                        ClusterActivityInfo categoryInfo = mActivityInfoByCategory.get(category);
-                        return new Pair<>(resolveInfo, categoryInfo);
-                    }
+        Map<String, ClusterActivityInfo> activityInfoByCategory = mActivityInfoByCategory;
+        for (ResolveInfo resolveInfo : resolveList) {
+            if (resolveInfo.filter == null) {
+                continue;
+            }
+            for (Map.Entry<String, ClusterActivityInfo> it : activityInfoByCategory.entrySet()) {
+                if (resolveInfo.filter.hasCategory(it.getKey())) {
+                    return new Pair<>(resolveInfo, it.getValue());
                 }
             }
         }
@@ -471,8 +487,17 @@ public class InstrumentClusterService implements CarServiceBase,
     }
 
     @GuardedBy("mSync")
-    private ClusterActivityInfo getOrCreateActivityInfoLocked(String category) {
-        return mActivityInfoByCategory.computeIfAbsent(category, k -> new ClusterActivityInfo());
+    private ClusterActivityInfo getActivityInfoLocked(String category) {
+        ClusterActivityInfo info = mActivityInfoByCategory.get(category);
+        return info != null ? info : ClusterActivityInfo.EMPTY;
+    }
+
+    @GuardedBy("mSync")
+    private void putActivityInfoLocked(String category, ClusterActivityInfo info) {
+        HashMap<String, ClusterActivityInfo> activityInfoByCategory =
+                new HashMap<>(mActivityInfoByCategory);
+        activityInfoByCategory.put(category, info);
+        mActivityInfoByCategory = activityInfoByCategory;
     }
 
     /** This is communication channel from vendor cluster implementation to Car Service. */
@@ -498,8 +523,8 @@ public class InstrumentClusterService implements CarServiceBase,
                     + ", options: " + activityOptions);
         }
         synchronized (mSync) {
-            ClusterActivityInfo info = getOrCreateActivityInfoLocked(category);
-            info.launchOptions = activityOptions;
+            ClusterActivityInfo info = getActivityInfoLocked(category);
+            putActivityInfoLocked(category, new ClusterActivityInfo(activityOptions, info.state));
         }
     }
 
@@ -513,8 +538,9 @@ public class InstrumentClusterService implements CarServiceBase,
 
         List<ManagerCallbackInfo> managerCallbacks;
         synchronized (mSync) {
-            ClusterActivityInfo info = getOrCreateActivityInfoLocked(category);
-            info.state = clusterActivityState;
+            ClusterActivityInfo info = getActivityInfoLocked(category);
+            putActivityInfoLocked(category,
+                    new ClusterActivityInfo(info.launchOptions, clusterActivityState));
             managerCallbacks = new ArrayList<>(mManagerCallbacks.values());
         }
 
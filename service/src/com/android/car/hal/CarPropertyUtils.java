@@ -29,7 +29,6 @@ import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropertyType;
 
 import java.util.Collections;
-import java.util.List;
 
 /**
  * Utility functions to work with {@link CarPropertyConfig} and {@link CarPropertyValue}
@@ -39,7 +38,10 @@ import java.util.List;
     /* Utility class has no public constructor */
     private CarPropertyUtils() {}
 
-    /** Converts {@link VehiclePropValue} to {@link CarPropertyValue} */
+    /**
+     * Converts {@link VehiclePropValue} to {@link CarPropertyValue}. Numeric values are held in
+     * primitive arrays and only boxed if {@link CarPropertyValue#getValue()} is called.
+     */
     static CarPropertyValue<?> toCarPropertyValue(
             VehiclePropValue halValue, int propertyId) {
         Class<?> clazz = getJavaClass(halValue.prop & VehiclePropertyType.MASK);
@@ -62,16 +64,30 @@ import java.util.List;
         } else if (byte[].class == clazz) {
             byte[] halData = toByteArray(v.bytes);
             return new CarPropertyValue<>(propertyId, areaId, status, timestamp, halData);
-        } else if (Long[].class == clazz) {
-            Long[] values = new Long[v.int64Values.size()];
+        } else if (classMatched(Integer[].class, clazz)) {
+            int[] values = new int[v.int32Values.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = v.int32Values.get(i);
+            }
+            return CarPropertyValue.createFromIntArray(propertyId, areaId, status, timestamp,
+                    values, /* boxAsTypedArray */ false);
+        } else if (classMatched(Float[].class, clazz)) {
+            float[] values = new float[v.floatValues.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = v.floatValues.get(i);
+            }
+            return CarPropertyValue.createFromFloatArray(propertyId, areaId, status, timestamp,
+                    values, /* boxAsTypedArray */ false);
+        } else if (classMatched(Long[].class, clazz)) {
+            long[] values = new long[v.int64Values.size()];
             for (int i = 0; i < values.length; i++) {
                 values[i] = v.int64Values.get(i);
             }
-            return new CarPropertyValue<>(propertyId, areaId, status, timestamp, values);
-        } else /* All list properties */ {
-            Object[] values = getRawValueList(clazz, v).toArray();
-            return new CarPropertyValue<>(propertyId, areaId, status, timestamp,
-                    values.length == 1 ? values[0] : values);
+            // INT64_VEC values have always been handed out as Long[], even with one element.
+            return CarPropertyValue.createFromLongArray(propertyId, areaId, status, timestamp,
+                    values, /* boxAsTypedArray */ Long[].class == clazz);
+        } else {
+            throw new IllegalArgumentException("Unexpected type: " + clazz);
         }
     }
 
@@ -82,13 +98,33 @@ import java.util.List;
         vehicleProp.areaId = carProp.getAreaId();
         VehiclePropValue.RawValue v = vehicleProp.value;
 
+        int[] intValues = carProp.getIntArrayValue();
+        float[] floatValues = carProp.getFloatArrayValue();
+        long[] longValues = carProp.getLongArrayValue();
+        if (intValues != null) {
+            for (int value : intValues) {
+                v.int32Values.add(value);
+            }
+            return vehicleProp;
+        } else if (floatValues != null) {
+            for (float value : floatValues) {
+                v.floatValues.add(value);
+            }
+            return vehicleProp;
+        } else if (longValues != null) {
+            for (long value : longValues) {
+                v.int64Values.add(value);
+            }
+            return vehicleProp;
+        }
+
         Object o = carProp.getValue();
 
         if (o instanceof Boolean) {
             v.int32Values.add(((Boolean) o) ? 1 : 0);
         } else if (o instanceof Boolean[]) {
             for (Boolean b : (Boolean[]) o) {
-                v.int32Values.add(((Boolean) o) ? 1 : 0);
+                v.int32Values.add(b ? 1 : 0);
             }
         } else if (o instanceof Integer) {
             v.int32Values.add((Integer) o);
@@ -219,18 +255,6 @@ import java.util.List;
         }
     }
 
-    private static List getRawValueList(Class<?> clazz, VehiclePropValue.RawValue value) {
-        if (classMatched(Float.class, clazz) || classMatched(Float[].class, clazz)) {
-            return value.floatValues;
-        } else if (classMatched(Integer.class, clazz) || classMatched(Integer[].class, clazz)) {
-            return value.int32Values;
-        } else if (classMatched(Long.class, clazz) || classMatched(Long[].class, clazz)) {
-            return value.int64Values;
-        } else {
-            throw new IllegalArgumentException("Unexpected type: " + clazz);
-        }
-    }
-
     private static boolean classMatched(Class<?> class1, Class<?> class2) {
         return class1 == class2 || class1.getComponentType() == class2;
     }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import static java.lang.Integer.toHexString;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.car.internal.LatencyHistogram;
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency of property events from their Vehicle HAL timestamp to each hop within car service,
+ * kept per property in {@link LatencyHistogram}s. Always on: recording a hop costs a clock read,
+ * a lock-free table lookup and an atomic increment. The last hop, delivery to listeners of
+ * {@link android.car.hardware.property.CarPropertyManager}, is tracked in the client process.
+ */
+public class EventLatencyTracker {
+
+    /** Events received from the Vehicle HAL by the HIDL callback. */
+    public static final int HOP_HIDL_CALLBACK = 0;
+    /** Events dequeued on the Vehicle HAL thread by {@link HalClient}. */
+    public static final int HOP_HAL_CLIENT_DEQUEUE = 1;
+    /** Events converted by {@link PropertyHalService#handleHalEvents(java.util.List)}. */
+    public static final int HOP_PROPERTY_HAL = 2;
+    /** Events about to be sent to clients by {@link com.android.car.CarPropertyService}. */
+    public static final int HOP_BINDER_SEND = 3;
+    private static final int HOP_COUNT = 4;
+
+    private static final String[] HOP_NAMES = {
+            "hidl callback", "hal client dequeue", "property hal", "binder send"
+    };
+
+    private final Object mLock = new Object();
+    /**
+     * K: property, V: histogram per hop. Replaced whenever a property is added, so that recording
+     * needs no lock.
+     */
+    @GuardedBy("mLock")
+    private volatile SparseArray<LatencyHistogram[]> mHistograms = new SparseArray<>();
+
+    /**
+     * Records the latency of an event at the given hop.
+     *
+     * @param timestampNanos Vehicle HAL timestamp of the event, in
+     *        {@link SystemClock#elapsedRealtimeNanos()}. Events without one are not recorded.
+     */
+    public void record(int hop, int property, long timestampNanos) {
+        if (timestampNanos <= 0) {
+            return;
+        }
+        long latencyNanos = SystemClock.elapsedRealtimeNanos() - timestampNanos;
+        LatencyHistogram[] histograms = mHistograms.get(property);
+        if (histograms == null) {
+            histograms = addProperty(property);
+        }
+        histograms[hop].record(latencyNanos);
+    }
+
+    /** @return histogram of the property at the given hop, null if no event was recorded. */
+    @Nullable
+    public LatencyHistogram getHistogram(int hop, int property) {
+        LatencyHistogram[] histograms = mHistograms.get(property);
+        return histograms == null ? null : histograms[hop];
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mHistograms = new SparseArray<>();
+        }
+    }
+
+    private LatencyHistogram[] addProperty(int property) {
+        synchronized (mLock) {
+            LatencyHistogram[] histograms = mHistograms.get(property);
+            if (histograms == null) {
+                histograms = new LatencyHistogram[HOP_COUNT];
+                for (int i = 0; i < HOP_COUNT; i++) {
+                    histograms[i] = new LatencyHistogram();
+                }
+                SparseArray<LatencyHistogram[]> updated = mHistograms.clone();
+                updated.put(property, histograms);
+                mHistograms = updated;
+            }
+            return histograms;
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("**Event latency from VHAL timestamp**");
+        SparseArray<LatencyHistogram[]> table = mHistograms;
+        for (int i = 0; i < table.size(); i++) {
+            writer.println("Prop: 0x" + toHexString(table.keyAt(i)));
+            LatencyHistogram[] histograms = table.valueAt(i);
+            for (int hop = 0; hop < HOP_COUNT; hop++) {
+                writer.println("\t" + HOP_NAMES[hop] + ": " + histograms[hop]);
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import com.android.car.CarLog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Vehicle HAL client. Interacts directly with Vehicle HAL interface {@link IVehicle}. Contains
@@ -58,11 +59,13 @@ class  HalClient {
      * @param vehicle interface to the vehicle HAL
      * @param looper looper that will be used to propagate notifications from vehicle HAL
      * @param callback to propagate notifications from Vehicle HAL in the provided looper thread
+     * @param latencyTracker records latency of property events on arrival and dequeue
      */
-    HalClient(IVehicle vehicle, Looper looper, IVehicleCallback callback) {
+    HalClient(IVehicle vehicle, Looper looper, IVehicleCallback callback,
+            EventLatencyTracker latencyTracker) {
         mVehicle = vehicle;
-        Handler handler = new CallbackHandler(looper, callback);
-        mInternalCallback = new VehicleCallback(handler);
+        Handler handler = new CallbackHandler(looper, callback, latencyTracker);
+        mInternalCallback = new VehicleCallback(handler, latencyTracker);
     }
 
     ArrayList<VehiclePropConfig> getAllPropConfigs() throws RemoteException {
@@ -196,10 +199,13 @@ class  HalClient {
         private static final int MSG_ON_SET_ERROR = 3;
 
         private final IVehicleCallback mCallback;
+        private final EventLatencyTracker mLatencyTracker;
 
-        CallbackHandler(Looper looper, IVehicleCallback callback) {
+        CallbackHandler(Looper looper, IVehicleCallback callback,
+                EventLatencyTracker latencyTracker) {
             super(looper);
             mCallback = callback;
+            mLatencyTracker = latencyTracker;
         }
 
         @Override
@@ -209,7 +215,10 @@ class  HalClient {
             try {
                 switch (msg.what) {
                     case MSG_ON_PROPERTY_EVENT:
-                        mCallback.onPropertyEvent((ArrayList<VehiclePropValue>) msg.obj);
+                        ArrayList<VehiclePropValue> values = (ArrayList<VehiclePropValue>) msg.obj;
+                        recordLatency(mLatencyTracker,
+                                EventLatencyTracker.HOP_HAL_CLIENT_DEQUEUE, values);
+                        mCallback.onPropertyEvent(values);
                         break;
                     case MSG_ON_PROPERTY_SET:
                         mCallback.onPropertySet((VehiclePropValue) msg.obj);
@@ -227,15 +236,26 @@ class  HalClient {
         }
     }
 
+    private static void recordLatency(EventLatencyTracker latencyTracker, int hop,
+            List<VehiclePropValue> values) {
+        for (int i = 0; i < values.size(); i++) {
+            VehiclePropValue value = values.get(i);
+            latencyTracker.record(hop, value.prop, value.timestamp);
+        }
+    }
+
     private static class VehicleCallback extends IVehicleCallback.Stub {
-        private Handler mHandler;
+        private final Handler mHandler;
+        private final EventLatencyTracker mLatencyTracker;
 
-        VehicleCallback(Handler handler) {
+        VehicleCallback(Handler handler, EventLatencyTracker latencyTracker) {
             mHandler = handler;
+            mLatencyTracker = latencyTracker;
         }
 
         @Override
         public void onPropertyEvent(ArrayList<VehiclePropValue> propValues) {
+            recordLatency(mLatencyTracker, EventLatencyTracker.HOP_HIDL_CALLBACK, propValues);
             mHandler.sendMessage(Message.obtain(
                     mHandler, CallbackHandler.MSG_ON_PROPERTY_EVENT, propValues));
         }
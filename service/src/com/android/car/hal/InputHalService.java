@@ -33,7 +33,18 @@ import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Translates HW_KEY_INPUT events into {@link KeyEvent}s.
+ *
+ * Key codes set with {@link #setRotaryKeyCodes(int[])} are treated as rotary controller or
+ * scroll wheel detents: consecutive detents within a frame are merged into a single
+ * {@link KeyEvent#ACTION_MULTIPLE} event whose repeat count is the accelerated delta, see
+ * {@link RotaryEventAggregator}. A lone detent is still delivered as a down / up pair, as most
+ * views ignore {@link KeyEvent#ACTION_MULTIPLE} events.
+ */
 public class InputHalService extends HalServiceBase {
 
     public static final int DISPLAY_MAIN = VehicleDisplay.MAIN;
@@ -46,26 +57,47 @@ public class InputHalService extends HalServiceBase {
 
     private static final boolean DBG = false;
 
-    private boolean mKeyInputSupported = false;
-    private InputListener mListener;
+    // Read lock-free from the HAL dispatch thread for every key event.
+    private volatile boolean mKeyInputSupported = false;
+    private volatile InputListener mListener;
+    /** Only accessed from the HAL dispatch thread. */
     private final SparseLongArray mKeyDownTimes = new SparseLongArray();
 
+    // Latency from HAL timestamp until the listener returned, i.e. the event was injected or
+    // handed over to its handler. Written only from the HAL dispatch thread.
+    private final AtomicLong mDispatchedEventCount = new AtomicLong();
+    private final AtomicLong mTotalDispatchLatencyNs = new AtomicLong();
+    private final AtomicLong mMaxDispatchLatencyNs = new AtomicLong();
+
+    /** Only accessed from the HAL dispatch thread after init. */
+    private final RotaryEventAggregator mRotaryEventAggregator =
+            new RotaryEventAggregator(this::dispatchAggregatedDetents);
+    private InputListener mAggregationListener;
+    private final AtomicLong mAggregatedDetentCount = new AtomicLong();
+    private final AtomicLong mAggregatedEventCount = new AtomicLong();
+
     public InputHalService(VehicleHal hal) {
         mHal = hal;
     }
 
+    /**
+     * Sets the key codes of rotary controller and scroll wheel detents, which are merged.
+     * Must be called before {@link #setInputListener(InputListener)}.
+     */
+    public void setRotaryKeyCodes(int[] keyCodes) {
+        mRotaryEventAggregator.setAggregatedKeyCodes(keyCodes);
+    }
+
     public void setInputListener(InputListener listener) {
-        synchronized (this) {
-            if (!mKeyInputSupported) {
-                Log.w(CarLog.TAG_INPUT, "input listener set while key input not supported");
-                return;
-            }
-            mListener = listener;
+        if (!mKeyInputSupported) {
+            Log.w(CarLog.TAG_INPUT, "input listener set while key input not supported");
+            return;
         }
+        mListener = listener;
         mHal.subscribeProperty(this, HW_KEY_INPUT);
     }
 
-    public synchronized boolean isKeyInputSupported() {
+    public boolean isKeyInputSupported() {
         return mKeyInputSupported;
     }
 
@@ -75,10 +107,8 @@ public class InputHalService extends HalServiceBase {
 
     @Override
     public void release() {
-        synchronized (this) {
-            mListener = null;
-            mKeyInputSupported = false;
-        }
+        mListener = null;
+        mKeyInputSupported = false;
     }
 
     @Override
@@ -88,9 +118,7 @@ public class InputHalService extends HalServiceBase {
         for (VehiclePropConfig p: allProperties) {
             if (p.prop == HW_KEY_INPUT) {
                 supported.add(p);
-                synchronized (this) {
-                    mKeyInputSupported = true;
-                }
+                mKeyInputSupported = true;
             }
         }
         return supported;
@@ -98,10 +126,7 @@ public class InputHalService extends HalServiceBase {
 
     @Override
     public void handleHalEvents(List<VehiclePropValue> values) {
-        InputListener listener;
-        synchronized (this) {
-            listener = mListener;
-        }
+        InputListener listener = mListener;
         if (listener == null) {
             Log.w(CarLog.TAG_INPUT, "Input event while listener is null");
             return;
@@ -121,7 +146,60 @@ public class InputHalService extends HalServiceBase {
                         ", display:" + display);
             }
 
+            if (mRotaryEventAggregator.isAggregated(code)) {
+                // A detent is reported as a down / up pair, count the down events only.
+                if (action == KeyEvent.ACTION_DOWN) {
+                    mAggregationListener = listener;
+                    mRotaryEventAggregator.addDetent(code, display, v.timestamp);
+                }
+                continue;
+            }
+            // Keep ordering: deliver merged detents before any other key.
+            mRotaryEventAggregator.flush();
             dispatchKeyEvent(listener, action, code, display);
+            recordDispatchLatency(v.timestamp);
+        }
+        mRotaryEventAggregator.flush();
+    }
+
+    private void dispatchAggregatedDetents(int code, int display, int detentCount, int delta,
+            long firstTimestampNs) {
+        if (detentCount == 1) {
+            dispatchKeyEvent(mAggregationListener, KeyEvent.ACTION_DOWN, code, display);
+            dispatchKeyEvent(mAggregationListener, KeyEvent.ACTION_UP, code, display);
+        } else {
+            long eventTime = SystemClock.uptimeMillis();
+            KeyEvent event = KeyEvent.obtain(
+                    eventTime,
+                    eventTime,
+                    KeyEvent.ACTION_MULTIPLE,
+                    code,
+                    delta /* repeat */,
+                    0 /* meta state */,
+                    0 /* deviceId*/,
+                    0 /* scancode */,
+                    0 /* flags */,
+                    InputDevice.SOURCE_CLASS_BUTTON,
+                    null /* characters */);
+
+            mAggregationListener.onKeyEvent(event, display);
+            event.recycle();
+        }
+        recordDispatchLatency(firstTimestampNs);
+        mAggregatedDetentCount.addAndGet(detentCount);
+        mAggregatedEventCount.incrementAndGet();
+    }
+
+    private void recordDispatchLatency(long halTimestampNs) {
+        long latencyNs = SystemClock.elapsedRealtimeNanos() - halTimestampNs;
+        if (halTimestampNs <= 0 || latencyNs < 0) {
+            // HAL did not provide a usable timestamp.
+            return;
+        }
+        mDispatchedEventCount.incrementAndGet();
+        mTotalDispatchLatencyNs.addAndGet(latencyNs);
+        if (latencyNs > mMaxDispatchLatencyNs.get()) {
+            mMaxDispatchLatencyNs.set(latencyNs);
         }
     }
 
@@ -156,6 +234,18 @@ public class InputHalService extends HalServiceBase {
     public void dump(PrintWriter writer) {
         writer.println("*Input HAL*");
         writer.println("mKeyInputSupported:" + mKeyInputSupported);
+        long count = mDispatchedEventCount.get();
+        writer.println("dispatched key events:" + count);
+        if (count > 0) {
+            writer.println("HAL to dispatch latency avg(us):"
+                    + TimeUnit.NANOSECONDS.toMicros(mTotalDispatchLatencyNs.get() / count)
+                    + ", max(us):"
+                    + TimeUnit.NANOSECONDS.toMicros(mMaxDispatchLatencyNs.get()));
+        }
+        if (mRotaryEventAggregator.hasAggregatedKeyCodes()) {
+            writer.println("aggregated detents:" + mAggregatedDetentCount.get()
+                    + ", injected rotary events:" + mAggregatedEventCount.get());
+        }
     }
 
 }
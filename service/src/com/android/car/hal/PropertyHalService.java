@@ -113,6 +113,11 @@ public class PropertyHalService extends HalServiceBase {
         }
     }
 
+    /** @return latency of property events from the Vehicle HAL to this service and beyond. */
+    public EventLatencyTracker getEventLatencyTracker() {
+        return mVehicleHal.getEventLatencyTracker();
+    }
+
     /**
      * Set the listener for the HAL service
      * @param listener
@@ -302,7 +307,9 @@ public class PropertyHalService extends HalServiceBase {
             listener = mListener;
         }
         if (listener != null) {
+            EventLatencyTracker latencyTracker = mVehicleHal.getEventLatencyTracker();
             for (VehiclePropValue v : values) {
+                latencyTracker.record(EventLatencyTracker.HOP_PROPERTY_HAL, v.prop, v.timestamp);
                 int mgrPropId = halToManagerPropId(v.prop);
                 if (mgrPropId == NOT_SUPPORTED_PROPERTY) {
                     Log.e(TAG, "Property is not supported: 0x" + toHexString(v.prop));
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Merges consecutive detents of rotary controllers and scroll wheels into a single event.
+ *
+ * Detents of the same key code and display whose HAL timestamps fall within one frame of the
+ * first detent of the run are merged. Each merged event carries the number of detents and an
+ * accelerated delta, which grows with spin velocity so that fast spins cover more ground.
+ *
+ * Not thread safe, expected to be used from the HAL dispatch thread only.
+ */
+class RotaryEventAggregator {
+
+    interface Sink {
+        /**
+         * @param keyCode key code of the merged detents.
+         * @param display target display of the merged detents.
+         * @param detentCount number of merged detents.
+         * @param delta accelerated delta, never smaller than {@code detentCount}.
+         * @param firstTimestampNs HAL timestamp of the first merged detent.
+         */
+        void onAggregatedDetents(int keyCode, int display, int detentCount, int delta,
+                long firstTimestampNs);
+    }
+
+    /** Detents within this window of the first pending one are merged. */
+    @VisibleForTesting
+    static final long AGGREGATION_WINDOW_NS = 16_000_000L;
+    /** Runs further apart than this are not considered part of the same spin. */
+    @VisibleForTesting
+    static final long SPIN_RESET_NS = 500_000_000L;
+    /** No acceleration below this velocity, in detents per second. */
+    @VisibleForTesting
+    static final float MIN_ACCELERATION_VELOCITY = 10f;
+    /** Maximum acceleration is reached at this velocity, in detents per second. */
+    @VisibleForTesting
+    static final float MAX_ACCELERATION_VELOCITY = 50f;
+    @VisibleForTesting
+    static final float MAX_ACCELERATION = 4f;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final SparseBooleanArray mAggregatedKeyCodes = new SparseBooleanArray();
+    private final Sink mSink;
+    /** Timestamp of the last detent of the previous run, per key code. */
+    private final SparseLongArray mLastRunEndNs = new SparseLongArray();
+
+    private boolean mPending;
+    private int mPendingKeyCode;
+    private int mPendingDisplay;
+    private int mPendingCount;
+    private long mPendingStartNs;
+    private long mPendingEndNs;
+
+    RotaryEventAggregator(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Replaces the set of key codes whose detents are merged.
+     */
+    void setAggregatedKeyCodes(int[] keyCodes) {
+        mAggregatedKeyCodes.clear();
+        for (int keyCode : keyCodes) {
+            mAggregatedKeyCodes.put(keyCode, true);
+        }
+    }
+
+    boolean hasAggregatedKeyCodes() {
+        return mAggregatedKeyCodes.size() > 0;
+    }
+
+    boolean isAggregated(int keyCode) {
+        return mAggregatedKeyCodes.get(keyCode);
+    }
+
+    /**
+     * Adds a detent. Pending detents of a different key code or display, or that started more
+     * than a frame earlier, are flushed first.
+     */
+    void addDetent(int keyCode, int display, long timestampNs) {
+        if (mPending && (keyCode != mPendingKeyCode || display != mPendingDisplay
+                || timestampNs - mPendingStartNs > AGGREGATION_WINDOW_NS)) {
+            flush();
+        }
+        if (!mPending) {
+            mPending = true;
+            mPendingKeyCode = keyCode;
+            mPendingDisplay = display;
+            mPendingCount = 0;
+            mPendingStartNs = timestampNs;
+        }
+        mPendingCount++;
+        mPendingEndNs = timestampNs;
+    }
+
+    /**
+     * Delivers pending detents, if any, to the sink.
+     */
+    void flush() {
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+        long previousEndNs = mLastRunEndNs.get(mPendingKeyCode, Long.MIN_VALUE);
+        mLastRunEndNs.put(mPendingKeyCode, mPendingEndNs);
+        long intervalNs = previousEndNs == Long.MIN_VALUE
+                ? Long.MAX_VALUE : mPendingEndNs - previousEndNs;
+        mSink.onAggregatedDetents(mPendingKeyCode, mPendingDisplay, mPendingCount,
+                computeDelta(mPendingCount, intervalNs), mPendingStartNs);
+    }
+
+    /**
+     * Computes the accelerated delta for {@code detentCount} detents that happened within
+     * {@code intervalNs} since the previous run of the same key.
+     */
+    @VisibleForTesting
+    static int computeDelta(int detentCount, long intervalNs) {
+        if (intervalNs <= 0 || intervalNs > SPIN_RESET_NS) {
+            return detentCount;
+        }
+        float velocity = (float) detentCount * NANOS_PER_SECOND / intervalNs;
+        if (velocity <= MIN_ACCELERATION_VELOCITY) {
+            return detentCount;
+        }
+        float fraction = Math.min(1f, (velocity - MIN_ACCELERATION_VELOCITY)
+                / (MAX_ACCELERATION_VELOCITY - MIN_ACCELERATION_VELOCITY));
+        float acceleration = 1f + (MAX_ACCELERATION - 1f) * fraction;
+        return Math.max(detentCount, Math.round(detentCount * acceleration));
+    }
+}
@@ -34,6 +34,7 @@ import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropertyAccess;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropertyType;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -46,6 +47,8 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.collect.Lists;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -66,7 +69,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
 
     private static final boolean DBG = false;
 
-    private static final int NO_AREA = -1;
+    private static final int NO_AREA = VehicleHalReconnector.NO_AREA;
 
     private final HandlerThread mHandlerThread;
     private final PowerHalService mPowerHal;
@@ -85,6 +88,9 @@ public class VehicleHal extends IVehicleCallback.Stub {
     private final HashMap<Integer, SubscribeOptions> mSubscribedProperties = new HashMap<>();
     private final HashMap<Integer, VehiclePropConfig> mAllProperties = new HashMap<>();
     private final HashMap<Integer, VehiclePropertyEventInfo> mEventLog = new HashMap<>();
+    private final VehicleHalReconnector mReconnector = new VehicleHalReconnector();
+    private final VehicleHalTraceRecorder mTraceRecorder = new VehicleHalTraceRecorder();
+    private final EventLatencyTracker mLatencyTracker = new EventLatencyTracker();
 
     // Used by injectVHALEvent for testing purposes.  Delimiter for an array of data
     private static final String DATA_DELIMITER = ",";
@@ -104,7 +110,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
                 mDiagnosticHal,
                 mVmsHal));
 
-        mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(), this /*IVehicleCallback*/);
+        mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(), this /*IVehicleCallback*/,
+                mLatencyTracker);
     }
 
     /** Dummy version only for testing */
@@ -121,20 +128,109 @@ public class VehicleHal extends IVehicleCallback.Stub {
         mDiagnosticHal = diagnosticHal;
     }
 
+    /**
+     * Called once the Vehicle HAL died. Until it is reconnected, reads of subscribed properties
+     * are answered with the last value received from it.
+     */
+    public void vehicleHalDied() {
+        Log.w(CarLog.TAG_HAL, "Vehicle HAL died, serving last known values");
+        mReconnector.onHalDied();
+    }
+
+    /**
+     * Switches to the restarted Vehicle HAL. Subscriptions are replayed with driving safety
+     * properties first, then the current values of on change properties are fetched and
+     * dispatched, as they would otherwise only be known on their next change.
+     */
     public void vehicleHalReconnected(IVehicle vehicle) {
+        HalClient halClient = new HalClient(vehicle, mHandlerThread.getLooper(),
+                this /*IVehicleCallback*/, mLatencyTracker);
+        List<SubscribeOptions[]> subscriptions;
         synchronized (this) {
-            mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(),
-                    this /*IVehicleCallback*/);
-
-            SubscribeOptions[] options = mSubscribedProperties.values()
-                    .toArray(new SubscribeOptions[0]);
+            mHalClient = halClient;
+            subscriptions = VehicleHalReconnector.groupByPriority(mSubscribedProperties.values());
+        }
+        mReconnector.onHalReconnected();
 
+        // Replayed without holding the lock, events of subscriptions already replayed are
+        // dispatched in the meantime.
+        for (SubscribeOptions[] options : subscriptions) {
             try {
-                mHalClient.subscribe(options);
+                halClient.subscribe(options);
             } catch (RemoteException e) {
                 throw new RuntimeException("Failed to subscribe: " + Arrays.asList(options), e);
             }
         }
+        Handler handler = new Handler(mHandlerThread.getLooper());
+        for (SubscribeOptions[] options : subscriptions) {
+            ArrayList<VehiclePropValue> values = fetchOnChangeValues(halClient, options);
+            if (!values.isEmpty()) {
+                // Dispatched like events from the HAL, on the HAL thread.
+                handler.post(() -> dispatchFetchedValues(values));
+            }
+        }
+        handler.post(mReconnector::onRecoveryDone);
+    }
+
+    private void dispatchFetchedValues(ArrayList<VehiclePropValue> values) {
+        // Events received since the fetch are newer, do not roll them back.
+        ArrayList<VehiclePropValue> newer = new ArrayList<>(values.size());
+        for (VehiclePropValue value : values) {
+            VehiclePropValue lastValue = mReconnector.getLastValue(value.prop, value.areaId);
+            if (lastValue == null || lastValue.timestamp <= value.timestamp) {
+                newer.add(value);
+            }
+        }
+        if (!newer.isEmpty()) {
+            onPropertyEvent(newer);
+        }
+    }
+
+    private ArrayList<VehiclePropValue> fetchOnChangeValues(HalClient halClient,
+            SubscribeOptions[] options) {
+        ArrayList<VehiclePropValue> values = new ArrayList<>();
+        for (SubscribeOptions opts : options) {
+            VehiclePropConfig config;
+            synchronized (this) {
+                config = mAllProperties.get(opts.propId);
+            }
+            if (config == null || config.changeMode != VehiclePropertyChangeMode.ON_CHANGE) {
+                // Continuous properties send a new sample soon enough.
+                continue;
+            }
+            if (config.areaConfigs.isEmpty()) {
+                fetchValue(halClient, opts.propId, 0, values);
+            } else {
+                for (VehicleAreaConfig area : config.areaConfigs) {
+                    fetchValue(halClient, opts.propId, area.areaId, values);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void fetchValue(HalClient halClient, int propertyId, int areaId,
+            List<VehiclePropValue> values) {
+        try {
+            values.add(halClient.getValue(createPropValue(propertyId, areaId)));
+        } catch (PropertyTimeoutException | IllegalArgumentException | IllegalStateException e) {
+            // The value is not available yet, it will be dispatched once it changes.
+            Log.w(CarLog.TAG_HAL, "Failed to fetch 0x" + toHexString(propertyId) + ", area 0x"
+                    + toHexString(areaId) + " after reconnect", e);
+        }
+    }
+
+    /** @return time between the last death and reconnect of the Vehicle HAL, -1 if none. */
+    public long getLastOutageDurationMs() {
+        return mReconnector.getLastOutageDurationMs();
+    }
+
+    /**
+     * @return time from the last reconnect of the Vehicle HAL until subscriptions were replayed
+     *         and current values dispatched, -1 if none.
+     */
+    public long getLastRecoveryTimeMs() {
+        return mReconnector.getLastRecoveryTimeMs();
     }
 
     public void init() {
@@ -187,6 +283,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
             mSubscribedProperties.clear();
             mAllProperties.clear();
         }
+        mReconnector.clear();
+        mTraceRecorder.stop();
         // keep the looper thread as should be kept for the whole life cycle.
     }
 
@@ -292,6 +390,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
                 assertServiceOwnerLocked(service, property);
                 mSubscribedProperties.remove(property);
             }
+            mReconnector.clearProperty(property);
             try {
                 mHalClient.unsubscribe(property);
             } catch (RemoteException e) {
@@ -323,7 +422,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
         VehiclePropValue propValue = new VehiclePropValue();
         propValue.prop = propertyId;
         propValue.areaId = areaId;
-        return mHalClient.getValue(propValue);
+        return getValue(propValue);
     }
 
     public <T> T get(Class clazz, int propertyId) throws PropertyTimeoutException {
@@ -338,7 +437,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
     public <T> T get(Class clazz, VehiclePropValue requestedPropValue)
             throws PropertyTimeoutException {
         VehiclePropValue propValue;
-        propValue = mHalClient.getValue(requestedPropValue);
+        propValue = getValue(requestedPropValue);
 
         if (clazz == Integer.class || clazz == int.class) {
             return (T) propValue.value.int32Values.get(0);
@@ -367,6 +466,18 @@ public class VehicleHal extends IVehicleCallback.Stub {
 
     public VehiclePropValue get(VehiclePropValue requestedPropValue)
             throws PropertyTimeoutException {
+        return getValue(requestedPropValue);
+    }
+
+    private VehiclePropValue getValue(VehiclePropValue requestedPropValue)
+            throws PropertyTimeoutException {
+        if (mReconnector.isHalDisconnected()) {
+            VehiclePropValue lastValue = mReconnector.getLastValue(requestedPropValue.prop,
+                    requestedPropValue.areaId);
+            if (lastValue != null) {
+                return lastValue;
+            }
+        }
         return mHalClient.getValue(requestedPropValue);
     }
 
@@ -419,6 +530,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
 
     @Override
     public void onPropertyEvent(ArrayList<VehiclePropValue> propValues) {
+        mTraceRecorder.onPropertyEvents(propValues);
+        mReconnector.onPropertyEvents(propValues);
         synchronized (this) {
             for (VehiclePropValue v : propValues) {
                 HalServiceBase service = mPropertyHandlers.get(v.prop);
@@ -501,6 +614,10 @@ public class VehicleHal extends IVehicleCallback.Stub {
                     info.eventCount, dumpVehiclePropValue(info.lastEvent)));
         }
 
+        mReconnector.dump(writer);
+        mTraceRecorder.dump(writer);
+        mLatencyTracker.dump(writer);
+
         writer.println("**Property handlers**");
         for (int i = 0; i < mPropertyHandlers.size(); i++) {
             int propId = mPropertyHandlers.keyAt(i);
@@ -509,6 +626,30 @@ public class VehicleHal extends IVehicleCallback.Stub {
         }
     }
 
+    /**
+     * Starts recording events received from the Vehicle HAL into a trace, to be replayed with
+     * {@link com.android.car.vehiclehal.test.VhalTraceReplayer}.
+     *
+     * @throws IllegalStateException if a trace is already being recorded.
+     */
+    public void startTraceRecording(File file) throws IOException {
+        mTraceRecorder.start(file, VehicleHalTraceRecorder.DEFAULT_MAX_TRACE_BYTES);
+    }
+
+    /** Stops recording the trace started by {@link #startTraceRecording(File)}, if any. */
+    public void stopTraceRecording() {
+        mTraceRecorder.stop();
+    }
+
+    public boolean isTraceRecording() {
+        return mTraceRecorder.isRecording();
+    }
+
+    /** @return latency of property events within car service, shared by all HAL services. */
+    public EventLatencyTracker getEventLatencyTracker() {
+        return mLatencyTracker;
+    }
+
     /**
      * Inject a VHAL event
      *
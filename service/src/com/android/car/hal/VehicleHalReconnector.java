@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import static java.lang.Integer.toHexString;
+
+import android.annotation.Nullable;
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps {@link VehicleHal} warm across a restart of the Vehicle HAL.
+ *
+ * The last value received for every subscribed (property, area) is kept, so that reads during an
+ * outage can be answered without waiting on the dead HAL. On reconnect, subscriptions are
+ * replayed in priority order with driving safety properties first. Outage duration and the time
+ * taken to recover are recorded for dump.
+ *
+ * Thread safe.
+ */
+final class VehicleHalReconnector {
+
+    /** Replayed first on reconnect, driving restrictions and safety depend on them. */
+    static final int PRIORITY_DRIVING_SAFETY = 0;
+    static final int PRIORITY_DEFAULT = 1;
+    private static final int PRIORITY_COUNT = 2;
+
+    private static final int[] DRIVING_SAFETY_PROPERTIES = {
+            VehicleProperty.PERF_VEHICLE_SPEED,
+            VehicleProperty.GEAR_SELECTION,
+            VehicleProperty.CURRENT_GEAR,
+            VehicleProperty.PARKING_BRAKE_ON,
+            VehicleProperty.IGNITION_STATE,
+            VehicleProperty.ABS_ACTIVE,
+            VehicleProperty.TRACTION_CONTROL_ACTIVE,
+    };
+
+    /** Area of reads that do not specify one, see {@link VehicleHal#get(int)}. */
+    static final int NO_AREA = -1;
+
+    private static final long NOT_SET = -1;
+
+    private final Object mLock = new Object();
+    /** K: property and area, see {@link #getKey(int, int)}. */
+    @GuardedBy("mLock")
+    private final LongSparseArray<VehiclePropValue> mLastValues = new LongSparseArray<>();
+    @GuardedBy("mLock")
+    private long mDiedAtMs = NOT_SET;
+    @GuardedBy("mLock")
+    private long mReconnectedAtMs = NOT_SET;
+    @GuardedBy("mLock")
+    private int mOutageCount;
+    @GuardedBy("mLock")
+    private long mLastOutageDurationMs = NOT_SET;
+    @GuardedBy("mLock")
+    private long mMaxOutageDurationMs = NOT_SET;
+    @GuardedBy("mLock")
+    private long mLastRecoveryTimeMs = NOT_SET;
+
+    /** @return {@link #PRIORITY_DRIVING_SAFETY} or {@link #PRIORITY_DEFAULT}. */
+    static int getSubscribePriority(int property) {
+        for (int safetyProperty : DRIVING_SAFETY_PROPERTIES) {
+            if (property == safetyProperty) {
+                return PRIORITY_DRIVING_SAFETY;
+            }
+        }
+        return PRIORITY_DEFAULT;
+    }
+
+    /**
+     * Splits subscriptions by priority, keeping their order within a priority.
+     *
+     * @return non empty groups, highest priority first.
+     */
+    static List<SubscribeOptions[]> groupByPriority(Collection<SubscribeOptions> subscriptions) {
+        List<List<SubscribeOptions>> groups = new ArrayList<>(PRIORITY_COUNT);
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (SubscribeOptions options : subscriptions) {
+            groups.get(getSubscribePriority(options.propId)).add(options);
+        }
+        List<SubscribeOptions[]> result = new ArrayList<>(PRIORITY_COUNT);
+        for (List<SubscribeOptions> group : groups) {
+            if (!group.isEmpty()) {
+                result.add(group.toArray(new SubscribeOptions[group.size()]));
+            }
+        }
+        return result;
+    }
+
+    /** Records values received from the HAL. */
+    void onPropertyEvents(List<VehiclePropValue> values) {
+        synchronized (mLock) {
+            for (VehiclePropValue value : values) {
+                mLastValues.put(getKey(value.prop, value.areaId), value);
+            }
+        }
+    }
+
+    /** Drops the values of a property that is no longer subscribed. */
+    void clearProperty(int property) {
+        synchronized (mLock) {
+            for (int i = mLastValues.size() - 1; i >= 0; i--) {
+                if (mLastValues.valueAt(i).prop == property) {
+                    mLastValues.removeAt(i);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mLastValues.clear();
+        }
+    }
+
+    /**
+     * @param areaId area of the value, {@link #NO_AREA} is treated as the global area.
+     * @return last value received for the property and area, null if none.
+     */
+    @Nullable
+    VehiclePropValue getLastValue(int property, int areaId) {
+        synchronized (mLock) {
+            return mLastValues.get(getKey(property, areaId));
+        }
+    }
+
+    /** Starts an outage. Values are not dropped, they are served until the HAL is back. */
+    void onHalDied() {
+        synchronized (mLock) {
+            if (mDiedAtMs == NOT_SET) {
+                mDiedAtMs = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /** @return whether the HAL died and has not been reconnected yet. */
+    boolean isHalDisconnected() {
+        synchronized (mLock) {
+            return mDiedAtMs != NOT_SET;
+        }
+    }
+
+    /** Ends the outage, recovery starts. */
+    void onHalReconnected() {
+        synchronized (mLock) {
+            mReconnectedAtMs = SystemClock.elapsedRealtime();
+            if (mDiedAtMs == NOT_SET) {
+                // Reconnected without the death being reported, duration is unknown.
+                return;
+            }
+            mOutageCount++;
+            mLastOutageDurationMs = mReconnectedAtMs - mDiedAtMs;
+            mMaxOutageDurationMs = Math.max(mMaxOutageDurationMs, mLastOutageDurationMs);
+            mDiedAtMs = NOT_SET;
+        }
+    }
+
+    /** Subscriptions are replayed and current values fetched. */
+    void onRecoveryDone() {
+        synchronized (mLock) {
+            if (mReconnectedAtMs != NOT_SET) {
+                mLastRecoveryTimeMs = SystemClock.elapsedRealtime() - mReconnectedAtMs;
+                mReconnectedAtMs = NOT_SET;
+            }
+        }
+    }
+
+    /** @return time between the last death and reconnect of the HAL, -1 if none. */
+    long getLastOutageDurationMs() {
+        synchronized (mLock) {
+            return mLastOutageDurationMs;
+        }
+    }
+
+    /** @return time taken by the last recovery after reconnect, -1 if none. */
+    long getLastRecoveryTimeMs() {
+        synchronized (mLock) {
+            return mLastRecoveryTimeMs;
+        }
+    }
+
+    int getOutageCount() {
+        synchronized (mLock) {
+            return mOutageCount;
+        }
+    }
+
+    @VisibleForTesting
+    static long getKey(int property, int areaId) {
+        if (areaId == NO_AREA) {
+            areaId = 0;
+        }
+        return ((long) property << 32) | (areaId & 0xffffffffL);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("**Vehicle HAL reconnect**");
+            writer.println("outages: " + mOutageCount + ", disconnected: "
+                    + (mDiedAtMs != NOT_SET) + ", last outage ms: " + mLastOutageDurationMs
+                    + ", max outage ms: " + mMaxOutageDurationMs + ", last recovery ms: "
+                    + mLastRecoveryTimeMs + ", last values kept: " + mLastValues.size());
+            if (mDiedAtMs != NOT_SET) {
+                for (int i = 0; i < mLastValues.size(); i++) {
+                    VehiclePropValue value = mLastValues.valueAt(i);
+                    writer.println("\tserving 0x" + toHexString(value.prop) + ", area 0x"
+                            + toHexString(value.areaId) + ", timestamp " + value.timestamp);
+                }
+            }
+        }
+    }
+}
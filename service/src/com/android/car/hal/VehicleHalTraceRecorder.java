@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.car.CarLog;
+import com.android.car.vehiclehal.VhalTraceWriter;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records events received from the Vehicle HAL into a {@link VhalTraceWriter} trace, so that
+ * drives can be replayed later against {@link com.android.car.vehiclehal.test.MockedVehicleHal}.
+ *
+ * The HAL thread only timestamps and queues events, writing happens on a background thread.
+ * When more than {@link #MAX_PENDING_EVENTS} events are waiting to be written, new events are
+ * dropped and counted rather than slowing down dispatch, and recording stops once the trace
+ * reaches its size limit.
+ */
+final class VehicleHalTraceRecorder {
+
+    @VisibleForTesting
+    static final int MAX_PENDING_EVENTS = 4096;
+
+    /** Size limit of a trace, about 12 hours of a busy Vehicle HAL. */
+    static final int DEFAULT_MAX_TRACE_BYTES = 256 * 1024 * 1024;
+
+    /** Recording to one file, events are written on its thread only. */
+    private final class Session {
+        final File mFile;
+        final int mMaxBytes;
+        final HandlerThread mThread;
+        final Handler mHandler;
+        final AtomicInteger mPendingEvents = new AtomicInteger();
+        volatile long mDroppedEvents;
+        /** Accessed on {@link #mThread} only, null once closed. */
+        VhalTraceWriter mWriter;
+
+        Session(File file, int maxBytes) throws IOException {
+            mFile = file;
+            mMaxBytes = maxBytes;
+            mWriter = new VhalTraceWriter(new FileOutputStream(file));
+            mThread = new HandlerThread("VHAL-TRACE", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        void write(long captureTimeNanos, List<VehiclePropValue> values) {
+            mPendingEvents.addAndGet(-values.size());
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                // Kept as one batch, replayed in a single callback like it was received.
+                mWriter.write(captureTimeNanos, values);
+            } catch (IOException e) {
+                Log.e(CarLog.TAG_HAL, "Failed to write VHAL trace " + mFile + ", stopping", e);
+                stopSession(this);
+                return;
+            }
+            if (mWriter.getSize() >= mMaxBytes) {
+                Log.w(CarLog.TAG_HAL, "VHAL trace " + mFile + " reached " + mMaxBytes
+                        + " bytes, stopping");
+                stopSession(this);
+            }
+        }
+
+        void close() {
+            if (mWriter == null) {
+                return;
+            }
+            Log.i(CarLog.TAG_HAL, "VHAL trace " + mFile + " closed, events: "
+                    + mWriter.getEventCount() + ", bytes: " + mWriter.getSize()
+                    + ", dropped: " + mDroppedEvents);
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.e(CarLog.TAG_HAL, "Failed to close VHAL trace " + mFile, e);
+            }
+            mWriter = null;
+        }
+    }
+
+    private final Object mLock = new Object();
+    /** Read without the lock for every batch of events, null while not recording. */
+    @GuardedBy("mLock")
+    private volatile Session mSession;
+
+    /**
+     * Starts recording into the given file, replacing its content.
+     *
+     * @throws IllegalStateException if already recording.
+     */
+    void start(File file, int maxBytes) throws IOException {
+        synchronized (mLock) {
+            if (mSession != null) {
+                throw new IllegalStateException("Already recording VHAL trace to "
+                        + mSession.mFile);
+            }
+            mSession = new Session(file, maxBytes);
+        }
+        Log.i(CarLog.TAG_HAL, "Recording VHAL trace to " + file);
+    }
+
+    /** Stops recording, events already received are written before the trace is closed. */
+    void stop() {
+        Session session;
+        synchronized (mLock) {
+            session = mSession;
+        }
+        if (session != null) {
+            stopSession(session);
+        }
+    }
+
+    boolean isRecording() {
+        return mSession != null;
+    }
+
+    /** Called on the HAL thread with every batch of events received. */
+    void onPropertyEvents(List<VehiclePropValue> values) {
+        Session session = mSession;
+        if (session == null || values.isEmpty()) {
+            return;
+        }
+        long captureTimeNanos = SystemClock.elapsedRealtimeNanos();
+        int count = values.size();
+        if (session.mPendingEvents.addAndGet(count) > MAX_PENDING_EVENTS) {
+            session.mPendingEvents.addAndGet(-count);
+            session.mDroppedEvents += count;
+            return;
+        }
+        // The list itself may be reused by the caller, the values are not modified.
+        List<VehiclePropValue> copy = new ArrayList<>(values);
+        session.mHandler.post(() -> session.write(captureTimeNanos, copy));
+    }
+
+    private void stopSession(Session session) {
+        synchronized (mLock) {
+            if (mSession != session) {
+                return;
+            }
+            mSession = null;
+        }
+        // Queued writes run first, the thread exits once the trace is closed.
+        session.mHandler.post(session::close);
+        session.mThread.quitSafely();
+    }
+
+    void dump(PrintWriter writer) {
+        Session session = mSession;
+        writer.println("**VHAL trace**");
+        if (session == null) {
+            writer.println("not recording");
+            return;
+        }
+        writer.println("recording to " + session.mFile + ", pending events: "
+                + session.mPendingEvents.get() + ", dropped events: " + session.mDroppedEvents);
+    }
+}
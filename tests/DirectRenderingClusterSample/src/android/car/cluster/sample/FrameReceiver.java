@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.cluster.sample;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads the frames written by {@link FrameStreamer}. Meant for testing the stream on the device
+ * itself: connect it to the loopback address and check what arrives.
+ */
+class FrameReceiver implements AutoCloseable {
+    private final SocketChannel mChannel;
+    private final ByteBuffer mHeader =
+            ByteBuffer.allocate(FrameStreamer.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private ByteBuffer mPayload = ByteBuffer.allocate(64 * 1024);
+
+    private byte mFlags;
+    private long mPresentationTimeUs;
+
+    /** Connects to the given port on the loopback address. */
+    static FrameReceiver connectLoopback(int port) throws IOException {
+        return new FrameReceiver(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+    }
+
+    FrameReceiver(SocketChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Blocks until the next frame has been received.
+     *
+     * @return payload of the frame, between position and limit. Only valid until the next call.
+     */
+    ByteBuffer readFrame() throws IOException {
+        mHeader.clear();
+        readFully(mHeader);
+        mHeader.flip();
+        int length = mHeader.getInt();
+        mFlags = mHeader.get();
+        mPresentationTimeUs = mHeader.getLong();
+        if (mPayload.capacity() < length) {
+            mPayload = ByteBuffer.allocate(length);
+        }
+        mPayload.clear();
+        mPayload.limit(length);
+        readFully(mPayload);
+        mPayload.flip();
+        return mPayload;
+    }
+
+    /** Flags of the last frame read. */
+    byte getFlags() {
+        return mFlags;
+    }
+
+    /** Presentation time of the last frame read. */
+    long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer) < 0) {
+                throw new EOFException("Stream closed");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
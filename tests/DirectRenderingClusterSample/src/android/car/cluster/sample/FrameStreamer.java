@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.cluster.sample;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes encoded video frames to a non-blocking {@link SocketChannel}, each preceded by a
+ * {@link #HEADER_SIZE} byte header:
+ * <ul>
+ *     <li>int: payload length in bytes</li>
+ *     <li>byte: {@code FLAG_*} bits</li>
+ *     <li>long: presentation time in microseconds</li>
+ * </ul>
+ * All values are big endian.
+ * <p>
+ * Header and payload are written with a single gather write straight from the codec buffer. If
+ * the socket cannot take the whole frame, the rest is kept in a bounded pending buffer and sent
+ * before anything else. While the receiver is lagging like that, frames that are not key frames
+ * are dropped, and so is everything after them until the next key frame, as those frames cannot
+ * be decoded anyway.
+ * <p>
+ * Not thread safe, expected to be used from the network thread only.
+ */
+class FrameStreamer {
+    static final int HEADER_SIZE = 13;
+
+    static final byte FLAG_KEY_FRAME = 1;
+    static final byte FLAG_CODEC_CONFIG = 2;
+
+    /** Frames do not fit into the pending buffer beyond this, the receiver is considered stuck. */
+    private static final int MAX_PENDING_BYTES = 2 * 1024 * 1024;
+
+    private final SocketChannel mChannel;
+    private final ByteBuffer mHeader =
+            ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    /** Reused for gather writes. */
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    /** Bytes accepted but not yet written, between position and limit. */
+    private final ByteBuffer mPending;
+    private boolean mWaitingForKeyFrame;
+
+    private final long mStartTimeMs = SystemClock.elapsedRealtime();
+    private long mFramesSent;
+    private long mKeyFramesSent;
+    private long mFramesDropped;
+    private long mFramesQueued;
+    private long mBytesSent;
+    /** Frames with a presentation time, codec config carries none. */
+    private long mTimedFramesSent;
+    private long mMaxEncodeToSendUs;
+    private long mTotalEncodeToSendUs;
+
+    /**
+     * @param channel connected channel, it is switched to non-blocking mode.
+     */
+    FrameStreamer(SocketChannel channel) throws IOException {
+        this(channel, MAX_PENDING_BYTES);
+    }
+
+    FrameStreamer(SocketChannel channel, int maxPendingBytes) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(false);
+        mPending = ByteBuffer.allocateDirect(maxPendingBytes);
+        mPending.flip();
+    }
+
+    /**
+     * Sends a frame or drops it if the receiver lags behind. Never blocks.
+     *
+     * @param payload encoded data between position and limit, consumed unless dropped. May be
+     *        reused by the caller once this method returns.
+     * @param flags {@code FLAG_*} bits. Codec config frames are never dropped.
+     * @param presentationTimeUs presentation time of the frame, in the
+     *        {@link System#nanoTime()} time base as produced by surface input.
+     *
+     * @return false if the receiver is too far behind to keep the stream consistent, in which
+     *         case the connection should be restarted.
+     */
+    boolean sendFrame(ByteBuffer payload, byte flags, long presentationTimeUs)
+            throws IOException {
+        boolean key = (flags & (FLAG_KEY_FRAME | FLAG_CODEC_CONFIG)) != 0;
+        flushPending();
+        if (mPending.hasRemaining() || (mWaitingForKeyFrame && !key)) {
+            if (!key) {
+                mFramesDropped++;
+                mWaitingForKeyFrame = true;
+                return true;
+            }
+            // Key frames are never dropped, queue them behind the pending bytes. Frames after
+            // it can be decoded again.
+            mWaitingForKeyFrame = false;
+            fillHeader(payload.remaining(), flags, presentationTimeUs);
+            return queue(payload, presentationTimeUs);
+        }
+
+        mWaitingForKeyFrame = false;
+        fillHeader(payload.remaining(), flags, presentationTimeUs);
+        mGather[0] = mHeader;
+        mGather[1] = payload;
+        long written = mChannel.write(mGather);
+        mGather[1] = null;
+        mBytesSent += written;
+        if (mHeader.hasRemaining() || payload.hasRemaining()) {
+            return queue(payload, presentationTimeUs);
+        }
+        onFrameSent(flags, presentationTimeUs);
+        return true;
+    }
+
+    /** @return whether bytes of earlier frames are still waiting to be written. */
+    boolean hasPendingBytes() {
+        return mPending.hasRemaining();
+    }
+
+    /** Writes as much of the pending bytes as the socket takes right now. */
+    void flushPending() throws IOException {
+        if (mPending.hasRemaining()) {
+            mBytesSent += mChannel.write(mPending);
+        }
+    }
+
+    private void fillHeader(int length, byte flags, long presentationTimeUs) {
+        mHeader.clear();
+        mHeader.putInt(length);
+        mHeader.put(flags);
+        mHeader.putLong(presentationTimeUs);
+        mHeader.flip();
+    }
+
+    /** Appends the unsent rest of the header and payload to the pending buffer. */
+    private boolean queue(ByteBuffer payload, long presentationTimeUs) {
+        mPending.compact();
+        if (mPending.remaining() < mHeader.remaining() + payload.remaining()) {
+            mPending.flip();
+            return false;
+        }
+        mPending.put(mHeader);
+        mPending.put(payload);
+        mPending.flip();
+        mFramesQueued++;
+        onFrameSent(mHeader.get(4), presentationTimeUs);
+        return true;
+    }
+
+    private void onFrameSent(byte flags, long presentationTimeUs) {
+        mFramesSent++;
+        if ((flags & FLAG_KEY_FRAME) != 0) {
+            mKeyFramesSent++;
+        }
+        if ((flags & FLAG_CODEC_CONFIG) != 0 || presentationTimeUs <= 0) {
+            return;
+        }
+        long latencyUs = System.nanoTime() / 1000 - presentationTimeUs;
+        if (latencyUs >= 0) {
+            mTimedFramesSent++;
+            mTotalEncodeToSendUs += latencyUs;
+            mMaxEncodeToSendUs = Math.max(mMaxEncodeToSendUs, latencyUs);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTimeMs);
+        return getClass().getSimpleName() + "{"
+                + "framesSent=" + mFramesSent
+                + ", keyFramesSent=" + mKeyFramesSent
+                + ", framesQueued=" + mFramesQueued
+                + ", framesDropped=" + mFramesDropped
+                + ", pendingBytes=" + mPending.remaining()
+                + ", kbps=" + mBytesSent * 8 / elapsedMs
+                + ", avgEncodeToSendUs=" + (mTimedFramesSent == 0 ? 0 : mTotalEncodeToSendUs
+                        / mTimedFramesSent)
+                + ", maxEncodeToSendUs=" + mMaxEncodeToSendUs
+                + "}";
+    }
+}
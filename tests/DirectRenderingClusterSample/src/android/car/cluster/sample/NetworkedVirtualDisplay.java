@@ -36,11 +36,12 @@ import android.view.Display;
 import android.view.Surface;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.UUID;
 
 /**
@@ -50,6 +51,8 @@ import java.util.UUID;
  * is established it creates virtual display and media encoder and starts streaming video to that
  * socket.  If the receiving part is disconnected, it will keep port open and virtual display won't
  * be destroyed.
+ * <p>
+ * Frames are sent with the framing described in {@link FrameStreamer}.
  */
 public class NetworkedVirtualDisplay {
     private static final String TAG = "Cluster." + NetworkedVirtualDisplay.class.getSimpleName();
@@ -66,18 +69,25 @@ public class NetworkedVirtualDisplay {
     private static final int BITRATE = 6144000;
     private static final String MEDIA_FORMAT_MIMETYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
 
+    /**
+     * If nothing happens in Virtual Display the encoder won't produce new frames, but the
+     * receiver needs a certain number of frames in order to start decoding. The encoder repeats
+     * the last frame after this much idle time, a heartbeat rather than a full rate stream of an
+     * unchanged screen.
+     */
+    private static final long REPEAT_PREVIOUS_FRAME_AFTER_US = 1000000L;
+
     private static final int MSG_START = 0;
     private static final int MSG_STOP = 1;
-    private static final int MSG_RESUBMIT_FRAME = 2;
 
     private VirtualDisplay mVirtualDisplay;
     private MediaCodec mVideoEncoder;
     private HandlerThread mThread = new HandlerThread("NetworkThread");
     private Handler mHandler;
-    private ServerSocket mServerSocket;
-    private OutputStream mOutputStream;
-    private byte[] mBuffer = null;
-    private int mLastFrameLength = 0;
+    private ServerSocketChannel mServerSocket;
+    /** Connected receiver, written on the network thread, read by the disconnect listener. */
+    private volatile SocketChannel mChannel;
+    private FrameStreamer mStreamer;
 
     private final DebugCounter mCounter = new DebugCounter();
 
@@ -180,13 +190,12 @@ public class NetworkedVirtualDisplay {
         encoder.setCallback(new MediaCodec.Callback() {
             @Override
             public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                Log.i(TAG, "onInputBufferAvailable, index: " + index);
+                // Input comes from the surface.
             }
 
             @Override
             public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
                     @NonNull BufferInfo info) {
-                Log.i(TAG, "onOutputBufferAvailable, index: " + index);
                 mCounter.outputBuffers++;
                 doOutputBufferAvailable(index, info);
             }
@@ -210,48 +219,40 @@ public class NetworkedVirtualDisplay {
     }
 
     private void doOutputBufferAvailable(int index, @NonNull BufferInfo info) {
-        mHandler.removeMessages(MSG_RESUBMIT_FRAME);
-
         ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(index);
         if (encodedData == null) {
             throw new RuntimeException("couldn't fetch buffer at index " + index);
         }
 
-        if (info.size != 0) {
+        if (info.size != 0 && mStreamer != null) {
             encodedData.position(info.offset);
             encodedData.limit(info.offset + info.size);
-            mLastFrameLength = encodedData.remaining();
-            if (mBuffer == null || mBuffer.length < mLastFrameLength) {
-                Log.i(TAG, "Allocating new buffer: " + mLastFrameLength);
-                mBuffer = new byte[mLastFrameLength];
+            byte flags = 0;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                flags |= FrameStreamer.FLAG_KEY_FRAME;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                flags |= FrameStreamer.FLAG_CODEC_CONFIG;
             }
-            encodedData.get(mBuffer, 0, mLastFrameLength);
-            mVideoEncoder.releaseOutputBuffer(index, false);
-
-            sendFrame(mBuffer, mLastFrameLength);
-
-            // If nothing happens in Virtual Display we won't receive new frames. If we won't keep
-            // sending frames it could be a problem for the receiver because it needs certain
-            // number of frames in order to start decoding.
-            scheduleResendingLastFrame(1000 / FPS);
-        } else {
-            Log.e(TAG, "Skipping empty buffer");
-            mVideoEncoder.releaseOutputBuffer(index, false);
+            // The streamer is done with the codec buffer once it returns.
+            sendFrame(encodedData, flags, info.presentationTimeUs);
+        } else if (info.size == 0) {
+            Log.w(TAG, "Skipping empty buffer");
         }
+        mVideoEncoder.releaseOutputBuffer(index, false);
     }
 
-    private void scheduleResendingLastFrame(long delayMs) {
-        Message msg = mHandler.obtainMessage(MSG_RESUBMIT_FRAME);
-        mHandler.sendMessageDelayed(msg, delayMs);
-    }
-
-    private void sendFrame(byte[] buf, int len) {
+    private void sendFrame(ByteBuffer frame, byte flags, long presentationTimeUs) {
         try {
-            mOutputStream.write(buf, 0, len);
-            Log.i(TAG, "Bytes written: " + len);
+            if (!mStreamer.sendFrame(frame, flags, presentationTimeUs)) {
+                Log.w(TAG, "Receiver is too far behind, restart casting. " + mStreamer);
+                mCounter.clientsDisconnected++;
+                mStreamer = null;
+                restart();
+            }
         } catch (IOException e) {
             mCounter.clientsDisconnected++;
-            mOutputStream = null;
+            mStreamer = null;
             Log.e(TAG, "Failed to write data to socket, restart casting", e);
             restart();
         }
@@ -268,6 +269,20 @@ public class NetworkedVirtualDisplay {
             mServerSocket = null;
         }
 
+        if (mStreamer != null) {
+            Log.i(TAG, "Stream stats: " + mStreamer);
+            mStreamer = null;
+        }
+        SocketChannel channel = mChannel;
+        mChannel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close receiver socket, ignoring", e);
+            }
+        }
+
         if (mVirtualDisplay != null) {
             // We do not want to destroy virtual display (as it will also destroy all the
             // activities on that display, instead we will turn off the display by setting
@@ -310,8 +325,8 @@ public class NetworkedVirtualDisplay {
                     }
                     Log.i(TAG, "Server socket opened");
 
-                    mOutputStream = waitForReceiver(mServerSocket);
-                    if (mOutputStream == null) {
+                    mStreamer = waitForReceiver(mServerSocket);
+                    if (mStreamer == null) {
                         sendMessage(Message.obtain(this, MSG_START));
                         break;
                     }
@@ -323,15 +338,6 @@ public class NetworkedVirtualDisplay {
                 case MSG_STOP:
                     stopCasting();
                     break;
-
-                case MSG_RESUBMIT_FRAME:
-                    if (mServerSocket != null && mOutputStream != null) {
-                        Log.i(TAG, "Resending the last frame again. Buffer: " + mLastFrameLength);
-                        sendFrame(mBuffer, mLastFrameLength);
-                    }
-                    // We will keep sending last frame every second as a heartbeat.
-                    scheduleResendingLastFrame(1000L);
-                    break;
             }
         }
     }
@@ -346,6 +352,7 @@ public class NetworkedVirtualDisplay {
         format.setInteger(MediaFormat.KEY_CAPTURE_RATE, FPS);
         format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
         format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 1); // 1 second between I-frames
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_PREVIOUS_FRAME_AFTER_US);
         format.setInteger(MediaFormat.KEY_LEVEL, CodecProfileLevel.AVCLevel31);
         format.setInteger(MediaFormat.KEY_PROFILE,
                 MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
@@ -353,35 +360,49 @@ public class NetworkedVirtualDisplay {
         codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     }
 
-    private OutputStream waitForReceiver(ServerSocket serverSocket) {
+    private FrameStreamer waitForReceiver(ServerSocketChannel serverSocket) {
         try {
             Log.i(TAG, "Listening for incoming connections on port: " + PORT);
-            Socket socket = serverSocket.accept();
+            SocketChannel channel = serverSocket.accept();
 
-            Log.i(TAG, "Receiver connected: " + socket);
-            listenReceiverDisconnected(socket.getInputStream());
-
-            return socket.getOutputStream();
+            Log.i(TAG, "Receiver connected: " + channel);
+            FrameStreamer streamer = new FrameStreamer(channel);
+            mChannel = channel;
+            listenReceiverDisconnected(channel);
+            return streamer;
         } catch (IOException e) {
             Log.e(TAG, "Failed to accept connection");
             return null;
         }
     }
 
-    private void listenReceiverDisconnected(InputStream inputStream) {
+    private void listenReceiverDisconnected(SocketChannel channel) {
         new Thread(() -> {
-            try {
-                if (inputStream.read() == -1) throw new IOException();
+            // The channel is non-blocking for the streamer, wait for it to become readable.
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                while (true) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    buffer.clear();
+                    if (channel.read(buffer) == -1) throw new IOException();
+                }
             } catch (IOException e) {
                 Log.w(TAG, "Receiver has disconnected", e);
             }
-            restart();
+            // Channels closed by stopCasting are not a reason to restart.
+            if (mChannel == channel) {
+                restart();
+            }
         }).start();
     }
 
-    private static ServerSocket openServerSocket() {
+    private static ServerSocketChannel openServerSocket() {
         try {
-            return new ServerSocket(PORT);
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.socket().bind(new InetSocketAddress(PORT));
+            return serverSocket;
         } catch (IOException e) {
             Log.e(TAG, "Failed to create server socket", e);
             throw new RuntimeException(e);
@@ -392,7 +413,8 @@ public class NetworkedVirtualDisplay {
     public String toString() {
         return getClass() + "{"
                 + mServerSocket
-                +", receiver connected: " + (mOutputStream != null)
+                +", receiver connected: " + (mChannel != null)
+                +", stream: " + mStreamer
                 +", encoder: " + mVideoEncoder
                 +", virtualDisplay" + mVirtualDisplay
                 + "}";
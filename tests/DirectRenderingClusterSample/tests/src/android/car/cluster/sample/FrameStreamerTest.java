@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.cluster.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams frames through {@link FrameStreamer} over a loopback connection and reads them back
+ * with {@link FrameReceiver}, with a reader that falls behind.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class FrameStreamerTest {
+    private static final int LARGE_FRAME_BYTES = 64 * 1024;
+    private static final int SMALL_FRAME_BYTES = 100;
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    /** Frames sent before the reader starts, more than the socket buffers can take. */
+    private static final int MAX_BACKLOG_FRAMES = 1000;
+    private static final long TIMEOUT_MS = 10_000;
+    /** Presentation time of the last frame, the reader stops once it received it. */
+    private static final long LAST_PTS = Long.MAX_VALUE;
+
+    private ServerSocketChannel mServer;
+    private SocketChannel mSenderChannel;
+    private FrameReceiver mReceiver;
+    private FrameStreamer mStreamer;
+    private long mNextPts;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.bind(new InetSocketAddress("127.0.0.1", 0));
+        mReceiver = FrameReceiver.connectLoopback(mServer.socket().getLocalPort());
+        mSenderChannel = mServer.accept();
+        mStreamer = new FrameStreamer(mSenderChannel, MAX_PENDING_BYTES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mReceiver.close();
+        mSenderChannel.close();
+        mServer.close();
+    }
+
+    @Test
+    public void testFramesAfterQueuedKeyFrameAreSent() throws Exception {
+        List<Long> sent = new ArrayList<>();
+        sent.add(send(FrameStreamer.FLAG_KEY_FRAME, LARGE_FRAME_BYTES));
+        // Nobody reads yet: fill the socket until a frame has to be queued.
+        for (int i = 0; i < MAX_BACKLOG_FRAMES && !mStreamer.hasPendingBytes(); i++) {
+            sent.add(send((byte) 0, LARGE_FRAME_BYTES));
+        }
+        assertTrue(mStreamer.hasPendingBytes());
+
+        // Dropped, it would not be decodable.
+        long droppedPts = send((byte) 0, SMALL_FRAME_BYTES);
+        // Queued behind the pending bytes.
+        sent.add(send(FrameStreamer.FLAG_KEY_FRAME, SMALL_FRAME_BYTES));
+
+        List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        Thread reader = startSlowReader(received);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (mStreamer.hasPendingBytes() && SystemClock.uptimeMillis() < deadline) {
+            mStreamer.flushPending();
+            SystemClock.sleep(1);
+        }
+        assertFalse(mStreamer.hasPendingBytes());
+
+        // Decodable again thanks to the queued key frame.
+        sent.add(send((byte) 0, SMALL_FRAME_BYTES));
+        sent.add(send((byte) 0, SMALL_FRAME_BYTES));
+        mNextPts = LAST_PTS;
+        sent.add(send((byte) 0, SMALL_FRAME_BYTES));
+        while (mStreamer.hasPendingBytes() && SystemClock.uptimeMillis() < deadline) {
+            mStreamer.flushPending();
+            SystemClock.sleep(1);
+        }
+
+        reader.join(TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertFalse(received.contains(droppedPts));
+        assertEquals(sent, received);
+    }
+
+    private long send(byte flags, int size) throws IOException {
+        long pts = mNextPts++;
+        assertTrue(mStreamer.sendFrame(ByteBuffer.allocate(size), flags, pts));
+        return pts;
+    }
+
+    /** Reads frames with a delay after each one, until {@link #LAST_PTS} arrives. */
+    private Thread startSlowReader(List<Long> received) {
+        Thread reader = new Thread(() -> {
+            try {
+                long pts;
+                do {
+                    mReceiver.readFrame();
+                    pts = mReceiver.getPresentationTimeUs();
+                    received.add(pts);
+                    SystemClock.sleep(1);
+                } while (pts != LAST_PTS);
+            } catch (IOException e) {
+                // Reported by the missing frames.
+            }
+        });
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.apitest;
+
+import android.car.hardware.CarPropertyConfig;
+import android.car.hardware.CarPropertyValue;
+import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.CarPropertyManager;
+import android.car.hardware.property.ICarProperty;
+import android.car.hardware.property.ICarPropertyEventListener;
+import android.os.RemoteException;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the client side value cache of {@link CarPropertyManager}.
+ */
+@SmallTest
+public class CarPropertyManagerCacheTest extends TestCase {
+    private static final int PROP = 0x11400400;
+    private static final int AREA = 1;
+    private static final int OTHER_AREA = 2;
+    private static final int RACE_ITERATIONS = 200;
+    private static final int EVENTS_PER_ITERATION = 100;
+
+    private FakeCarPropertyService mService;
+    private CarPropertyManager mManager;
+    private final CarPropertyManager.CarPropertyEventListener mListener =
+            new CarPropertyManager.CarPropertyEventListener() {
+                @Override
+                public void onChangeEvent(CarPropertyValue value) {}
+
+                @Override
+                public void onErrorEvent(int propId, int zone) {}
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new FakeCarPropertyService();
+        // Deliver events directly on the calling thread.
+        mManager = new CarPropertyManager(mService, Runnable::run, false, "test");
+        mManager.setCachingEnabled(true);
+    }
+
+    public void testUnsubscribedPropertyGoesToService() throws Exception {
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(2, mService.mGetCount);
+    }
+
+    public void testSubscribedPropertyIsServedFromCache() throws Exception {
+        mManager.registerListener(mListener, PROP, 0f);
+        sendChange(AREA, 1L, 5);
+
+        assertEquals(5, mManager.getIntProperty(PROP, AREA));
+        sendChange(AREA, 2L, 6);
+        assertEquals(6, mManager.getIntProperty(PROP, AREA));
+        assertEquals(0, mService.mGetCount);
+
+        // Nothing delivered for this area yet.
+        assertEquals(10, mManager.getIntProperty(PROP, OTHER_AREA));
+        assertEquals(1, mService.mGetCount);
+    }
+
+    public void testInvalidation() throws Exception {
+        mManager.registerListener(mListener, PROP, 0f);
+        sendChange(AREA, 1L, 5);
+
+        mService.mListener.onEvent(Collections.singletonList(new CarPropertyEvent(
+                CarPropertyEvent.PROPERTY_EVENT_ERROR,
+                new CarPropertyValue<>(PROP, AREA, 0))));
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(1, mService.mGetCount);
+
+        sendChange(AREA, 2L, 5);
+        mManager.setIntProperty(PROP, AREA, 7);
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(2, mService.mGetCount);
+
+        sendChange(AREA, 3L, 5);
+        mManager.unregisterListener(mListener);
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(3, mService.mGetCount);
+
+        mManager.registerListener(mListener, PROP, 0f);
+        sendChange(AREA, 4L, 5);
+        mManager.onCarDisconnected();
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(4, mService.mGetCount);
+    }
+
+    public void testEventDeliveredDuringSetIsNotCached() throws Exception {
+        mManager.registerListener(mListener, PROP, 0f);
+        sendChange(AREA, 1L, 5);
+        // An event of the old value, still in flight when the set is made.
+        mService.mDuringSet = () -> sendChange(AREA, 2L, 5);
+
+        mManager.setIntProperty(PROP, AREA, 7);
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(1, mService.mGetCount);
+    }
+
+    public void testUnregisterRacingDispatch() throws Exception {
+        for (int i = 0; i < RACE_ITERATIONS; i++) {
+            mManager.registerListener(mListener, PROP, 0f);
+            Thread dispatcher = new Thread(() -> {
+                try {
+                    // Keeps dispatching from the old dispatch table after the unregister.
+                    for (long timestamp = 1; timestamp <= EVENTS_PER_ITERATION; timestamp++) {
+                        sendChange(AREA, timestamp, 5);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            dispatcher.start();
+            mManager.unregisterListener(mListener);
+            dispatcher.join();
+
+            int getCount = mService.mGetCount;
+            assertEquals(10, mManager.getIntProperty(PROP, AREA));
+            assertEquals("stale value served in iteration " + i, getCount + 1,
+                    mService.mGetCount);
+        }
+    }
+
+    public void testCachingDisabled() throws Exception {
+        mManager.setCachingEnabled(false);
+        mManager.registerListener(mListener, PROP, 0f);
+        sendChange(AREA, 1L, 5);
+
+        assertEquals(10, mManager.getIntProperty(PROP, AREA));
+        assertEquals(1, mService.mGetCount);
+    }
+
+    private void sendChange(int area, long timestamp, int value) throws RemoteException {
+        mService.mListener.onEvent(Arrays.asList(new CarPropertyEvent(
+                CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
+                new CarPropertyValue<>(PROP, area, CarPropertyValue.STATUS_AVAILABLE, timestamp,
+                        value))));
+    }
+
+    /** Events delivered by the service, e.g. while a call is in progress. */
+    private interface EventSender {
+        void send() throws RemoteException;
+    }
+
+    /** Always returns 10 from getProperty and counts the calls. */
+    private static class FakeCarPropertyService extends ICarProperty.Stub {
+        ICarPropertyEventListener mListener;
+        int mGetCount;
+        EventSender mDuringSet;
+
+        @Override
+        public void registerListener(int propId, float rate, ICarPropertyEventListener callback) {
+            mListener = callback;
+        }
+
+        @Override
+        public void unregisterListener(int propId, ICarPropertyEventListener callback) {}
+
+        @Override
+        public List<CarPropertyConfig> getPropertyList() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public CarPropertyValue getProperty(int prop, int zone) {
+            mGetCount++;
+            return new CarPropertyValue<>(prop, zone, 10);
+        }
+
+        @Override
+        public void setProperty(CarPropertyValue prop) throws RemoteException {
+            if (mDuringSet != null) {
+                mDuringSet.send();
+            }
+        }
+    }
+}
@@ -17,14 +17,27 @@
 package android.car.apitest;
 
 import android.car.hardware.CarPropertyValue;
+import android.car.hardware.property.CarPropertyEvent;
 import android.graphics.Point;
+import android.os.Parcel;
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Unit tests for {@link CarPropertyValue}
  */
 @MediumTest
 public class CarPropertyValueTest extends CarPropertyConfigTest {
+    private static final String TAG = CarPropertyValueTest.class.getSimpleName();
+
+    private static final int BENCHMARK_BATCH_SIZE = 50;
+    private static final int BENCHMARK_ITERATIONS = 200;
 
     public void testSimpleFloatValue() {
         CarPropertyValue<Float> floatValue =
@@ -47,4 +60,223 @@ public class CarPropertyValueTest extends CarPropertyConfigTest {
         assertEquals(30, pointValueRead.getValue().x);
         assertEquals(40, pointValueRead.getValue().y);
     }
+
+    public void testPrimitiveValues() {
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(Integer.valueOf(-7), roundTrip(-7));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), roundTrip(Long.MAX_VALUE));
+        assertEquals("dashboard", roundTrip("dashboard"));
+        assertNull(roundTrip(null));
+    }
+
+    public void testArrayValues() {
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, roundTrip(new byte[] {1, 2, 3})));
+
+        Integer[] ints = roundTrip(new Integer[] {1, -2, 3});
+        assertEquals(Integer[].class, ints.getClass());
+        assertTrue(Arrays.equals(new Integer[] {1, -2, 3}, ints));
+
+        Float[] floats = roundTrip(new Float[] {0.5f, 2f});
+        assertEquals(Float[].class, floats.getClass());
+        assertTrue(Arrays.equals(new Float[] {0.5f, 2f}, floats));
+
+        Long[] longs = roundTrip(new Long[] {5L, Long.MIN_VALUE});
+        assertTrue(Arrays.equals(new Long[] {5L, Long.MIN_VALUE}, longs));
+
+        Boolean[] booleans = roundTrip(new Boolean[] {true, false});
+        assertTrue(Arrays.equals(new Boolean[] {true, false}, booleans));
+
+        assertEquals(0, ((Integer[]) roundTrip(new Integer[0])).length);
+    }
+
+    public void testObjectArrayValues() {
+        // Vector properties are handed out as Object[] of boxed elements.
+        Object[] homogeneous = roundTrip(new Object[] {1f, 2f, 3f});
+        assertEquals(Object[].class, homogeneous.getClass());
+        assertTrue(Arrays.equals(new Object[] {1f, 2f, 3f}, homogeneous));
+
+        Object[] mixed = roundTrip(new Object[] {"name", 2, true});
+        assertTrue(Arrays.equals(new Object[] {"name", 2, true}, mixed));
+
+        Integer[] withNull = roundTrip(new Integer[] {1, null});
+        assertTrue(Arrays.equals(new Integer[] {1, null}, withNull));
+    }
+
+    public void testStatusAndTimestamp() {
+        CarPropertyValue<Integer> value = new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER,
+                CarPropertyValue.STATUS_UNAVAILABLE, 1234L, 5);
+        writeToParcel(value);
+        CarPropertyValue<Integer> valueRead = readFromParcel();
+
+        assertEquals(PROPERTY_ID, valueRead.getPropertyId());
+        assertEquals(WINDOW_DRIVER, valueRead.getAreaId());
+        assertEquals(CarPropertyValue.STATUS_UNAVAILABLE, valueRead.getStatus());
+        assertEquals(1234L, valueRead.getTimestamp());
+        assertEquals(Integer.valueOf(5), valueRead.getValue());
+    }
+
+    public void testReadLegacyEncoding() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeLegacy(parcel, 10f);
+            writeLegacy(parcel, "legacy");
+            writeLegacy(parcel, new Object[] {1, 2});
+
+            parcel.setDataPosition(0);
+            assertEquals(10f, CarPropertyValue.CREATOR.createFromParcel(parcel).getValue());
+            assertEquals("legacy", CarPropertyValue.CREATOR.createFromParcel(parcel).getValue());
+            assertTrue(Arrays.equals(new Object[] {1, 2},
+                    (Object[]) CarPropertyValue.CREATOR.createFromParcel(parcel).getValue()));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testReadLegacyEvent() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE);
+            parcel.writeString(CarPropertyValue.class.getName());
+            writeLegacy(parcel, 42);
+
+            parcel.setDataPosition(0);
+            CarPropertyEvent event = CarPropertyEvent.CREATOR.createFromParcel(parcel);
+            assertEquals(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE, event.getEventType());
+            assertEquals(42, event.getCarPropertyValue().getValue());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testEventRoundTrip() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_ERROR,
+                    new CarPropertyValue<>(PROPERTY_ID, WINDOW_PASSENGER, 3L))
+                    .writeToParcel(parcel, 0);
+            new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE, null)
+                    .writeToParcel(parcel, 0);
+
+            parcel.setDataPosition(0);
+            CarPropertyEvent event = CarPropertyEvent.CREATOR.createFromParcel(parcel);
+            assertEquals(CarPropertyEvent.PROPERTY_EVENT_ERROR, event.getEventType());
+            assertEquals(WINDOW_PASSENGER, event.getCarPropertyValue().getAreaId());
+            assertEquals(3L, event.getCarPropertyValue().getValue());
+            assertNull(CarPropertyEvent.CREATOR.createFromParcel(parcel).getCarPropertyValue());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Round trips batches of events the way they travel over binder, with both encodings. Logs
+     * the timings and checks that the compact encoding is smaller.
+     */
+    public void testEventBatchRoundTripBenchmark() {
+        List<CarPropertyEvent> events = new ArrayList<>();
+        for (int i = 0; i < BENCHMARK_BATCH_SIZE; i++) {
+            Object value = i % 2 == 0 ? (Object) (float) i : new Object[] {i, i + 1, i + 2};
+            events.add(new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
+                    new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, value)));
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            long compactStartNs = SystemClock.elapsedRealtimeNanos();
+            int compactSize = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                parcel.setDataPosition(0);
+                parcel.writeTypedList(events);
+                compactSize = parcel.dataPosition();
+                parcel.setDataPosition(0);
+                List<CarPropertyEvent> read = parcel.createTypedArrayList(CarPropertyEvent.CREATOR);
+                assertEquals(BENCHMARK_BATCH_SIZE, read.size());
+            }
+            long compactNs = SystemClock.elapsedRealtimeNanos() - compactStartNs;
+
+            long legacyStartNs = SystemClock.elapsedRealtimeNanos();
+            int legacySize = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                parcel.setDataPosition(0);
+                parcel.writeInt(events.size());
+                for (CarPropertyEvent event : events) {
+                    parcel.writeInt(1);
+                    parcel.writeInt(event.getEventType());
+                    parcel.writeString(CarPropertyValue.class.getName());
+                    writeLegacy(parcel, event.getCarPropertyValue().getValue());
+                }
+                legacySize = parcel.dataPosition();
+                parcel.setDataPosition(0);
+                List<CarPropertyEvent> read = parcel.createTypedArrayList(CarPropertyEvent.CREATOR);
+                assertEquals(BENCHMARK_BATCH_SIZE, read.size());
+            }
+            long legacyNs = SystemClock.elapsedRealtimeNanos() - legacyStartNs;
+
+            Log.i(TAG, "Batch of " + BENCHMARK_BATCH_SIZE + " events, compact: "
+                    + compactSize + " bytes " + compactNs / BENCHMARK_ITERATIONS + " ns, legacy: "
+                    + legacySize + " bytes " + legacyNs / BENCHMARK_ITERATIONS + " ns");
+            assertTrue(compactSize < legacySize);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testPrimitiveValueRoundTrip() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            CarPropertyValue.createFromIntArray(PROPERTY_ID, WINDOW_DRIVER,
+                    CarPropertyValue.STATUS_AVAILABLE, 5L, new int[] {4, 5}, false)
+                    .writeToParcel(parcel, 0);
+            CarPropertyValue.createFromLongArray(PROPERTY_ID, WINDOW_DRIVER,
+                    CarPropertyValue.STATUS_AVAILABLE, 5L, new long[] {6L}, true)
+                    .writeToParcel(parcel, 0);
+            CarPropertyValue.createFromFloatArray(PROPERTY_ID, WINDOW_DRIVER,
+                    CarPropertyValue.STATUS_AVAILABLE, 5L, new float[] {1.5f}, false)
+                    .writeToParcel(parcel, 0);
+
+            parcel.setDataPosition(0);
+            CarPropertyValue<?> ints = CarPropertyValue.CREATOR.createFromParcel(parcel);
+            assertEquals(5L, ints.getTimestamp());
+            assertTrue(Arrays.equals(new int[] {4, 5}, ints.getIntArrayValue()));
+            assertTrue(Arrays.equals(new Object[] {4, 5}, (Object[]) ints.getValue()));
+            // The boxed view is created once.
+            assertSame(ints.getValue(), ints.getValue());
+
+            CarPropertyValue<?> longs = CarPropertyValue.CREATOR.createFromParcel(parcel);
+            assertTrue(Arrays.equals(new long[] {6L}, longs.getLongArrayValue()));
+            assertTrue(Arrays.equals(new Long[] {6L}, (Long[]) longs.getValue()));
+
+            CarPropertyValue<?> floats = CarPropertyValue.CREATOR.createFromParcel(parcel);
+            assertTrue(Arrays.equals(new float[] {1.5f}, floats.getFloatArrayValue()));
+            assertEquals(1.5f, floats.getValue());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private <T> T roundTrip(T value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new CarPropertyValue<>(PROPERTY_ID, WINDOW_DRIVER, value).writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            CarPropertyValue<T> valueRead = CarPropertyValue.CREATOR.createFromParcel(parcel);
+            return valueRead.getValue();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Writes a value the way {@link CarPropertyValue} used to, with its class name. */
+    private static void writeLegacy(Parcel parcel, Object value) {
+        parcel.writeInt(PROPERTY_ID);
+        parcel.writeInt(WINDOW_DRIVER);
+        parcel.writeInt(CarPropertyValue.STATUS_AVAILABLE);
+        parcel.writeLong(0);
+        parcel.writeString(value.getClass().getName());
+        if (value instanceof String) {
+            parcel.writeBlob(((String) value).getBytes(Charset.forName("UTF-8")));
+        } else {
+            parcel.writeValue(value);
+        }
+    }
 }
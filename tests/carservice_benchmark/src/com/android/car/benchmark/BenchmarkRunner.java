@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Runs an operation repeatedly on the host JVM and reports its throughput, latency percentiles
+ * and allocated bytes per operation.
+ *
+ * Every measured run is preceded by warm up runs so that the JIT has compiled the hot path.
+ * Numbers are meant to be compared between builds on the same host, they do not predict latency
+ * on a device. Iteration counts can be overridden with the {@code car.benchmark.warmup} and
+ * {@code car.benchmark.iterations} system properties.
+ */
+public final class BenchmarkRunner {
+
+    private static final String TAG = "CarServiceBenchmark";
+
+    private static final int DEFAULT_WARMUP_ITERATIONS = 5000;
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    /** A single operation to measure. */
+    public interface Operation {
+        /**
+         * @param iteration index of the call, lets the operation vary its input without
+         *        allocating.
+         */
+        void run(int iteration) throws Exception;
+    }
+
+    /** Measurements of one benchmark. */
+    public static final class Result {
+        public final String name;
+        public final int iterations;
+        public final double opsPerSecond;
+        public final long p50Nanos;
+        public final long p90Nanos;
+        public final long p99Nanos;
+        public final long maxNanos;
+        /** -1 if the JVM can not measure allocations. */
+        public final long bytesPerOp;
+
+        private Result(String name, int iterations, double opsPerSecond, long[] sortedNanos,
+                long bytesPerOp) {
+            this.name = name;
+            this.iterations = iterations;
+            this.opsPerSecond = opsPerSecond;
+            p50Nanos = percentile(sortedNanos, 50);
+            p90Nanos = percentile(sortedNanos, 90);
+            p99Nanos = percentile(sortedNanos, 99);
+            maxNanos = sortedNanos[sortedNanos.length - 1];
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ops, %.0f ops/s, p50 %d ns, p90 %d ns, p99 %d ns, "
+                    + "max %d ns, %d B/op", name, iterations, opsPerSecond, p50Nanos, p90Nanos,
+                    p99Nanos, maxNanos, bytesPerOp);
+        }
+    }
+
+    private final int mWarmupIterations;
+    private final int mIterations;
+
+    public BenchmarkRunner() {
+        this(Integer.getInteger("car.benchmark.warmup", DEFAULT_WARMUP_ITERATIONS),
+                Integer.getInteger("car.benchmark.iterations", DEFAULT_ITERATIONS));
+    }
+
+    public BenchmarkRunner(int warmupIterations, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    /**
+     * Measures the operation and prints the result to standard output.
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            operation.run(i);
+        }
+        long[] nanos = new long[mIterations];
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < mIterations; i++) {
+            long opStart = System.nanoTime();
+            operation.run(i);
+            nanos[i] = System.nanoTime() - opStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+
+        Arrays.sort(nanos);
+        long bytesPerOp = allocatedBefore < 0 || allocatedAfter < 0
+                ? -1 : (allocatedAfter - allocatedBefore) / mIterations;
+        Result result = new Result(name, mIterations, mIterations * 1e9 / elapsed, nanos,
+                bytesPerOp);
+        System.out.println(TAG + " " + result);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /** @return bytes allocated by the current thread so far, -1 if not supported. */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()
+                || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.benchmark;
+
+import android.car.diagnostic.CarDiagnosticEvent;
+import android.car.diagnostic.FloatSensorIndex;
+import android.car.diagnostic.IntegerSensorIndex;
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Benchmarks parceling of a fully populated {@link CarDiagnosticEvent}, as done for every
+ * frame delivered to diagnostic listeners.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CarDiagnosticEventBenchmark {
+    private final BenchmarkRunner mRunner = new BenchmarkRunner();
+
+    @Test
+    public void parcelRoundTrip() throws Exception {
+        CarDiagnosticEvent.Builder builder = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .atTimestamp(1L)
+                .withDtc("P0101");
+        for (int i = 0; i <= IntegerSensorIndex.LAST_SYSTEM; i++) {
+            builder.withIntValue(i, i);
+        }
+        for (int i = 0; i <= FloatSensorIndex.LAST_SYSTEM; i++) {
+            builder.withFloatValue(i, i * 0.5f);
+        }
+        CarDiagnosticEvent event = builder.build();
+
+        mRunner.run("CarDiagnosticEvent parcel round trip", iteration -> {
+            Parcel parcel = Parcel.obtain();
+            try {
+                event.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                if (CarDiagnosticEvent.CREATOR.createFromParcel(parcel).timestamp
+                        != event.timestamp) {
+                    throw new AssertionError("event not read back");
+                }
+            } finally {
+                parcel.recycle();
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.benchmark;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.Car;
+import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.ICarPropertyEventListener;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+
+import com.android.car.CarPropertyService;
+import com.android.car.hal.PropertyHalService;
+import com.android.car.hal.VehicleHal;
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.MockedVehicleHal.DefaultPropertyHandler;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks the property paths of {@link VehicleHal}, {@link PropertyHalService} and
+ * {@link CarPropertyService} against an in-process {@link MockedVehicleHal}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CarPropertyBenchmark {
+    private static final int PROPERTY = VehicleProperty.PERF_VEHICLE_SPEED;
+    private static final int LISTENER_COUNT = 8;
+    private static final int EVENT_BATCH_SIZE = 10;
+
+    private final BenchmarkRunner mRunner = new BenchmarkRunner();
+    private VehicleHal mVehicleHal;
+    private CarPropertyService mPropertyService;
+
+    @Before
+    public void setUp() {
+        ShadowApplication.getInstance().grantPermissions(Car.PERMISSION_SPEED);
+        MockedVehicleHal mockedHal = new MockedVehicleHal();
+        VehiclePropConfig config = VehiclePropConfigBuilder.newBuilder(PROPERTY).build();
+        mockedHal.addProperty(config, new DefaultPropertyHandler(config, createSpeedValue(0f)));
+        mVehicleHal = new VehicleHal(mockedHal);
+        mVehicleHal.init();
+        mPropertyService = new CarPropertyService(RuntimeEnvironment.application,
+                mVehicleHal.getPropertyHal());
+    }
+
+    @After
+    public void tearDown() {
+        mVehicleHal.release();
+    }
+
+    @Test
+    public void propertyEventDispatch() throws Exception {
+        CountingListener[] listeners = new CountingListener[LISTENER_COUNT];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new CountingListener();
+            mPropertyService.registerListener(PROPERTY, 0f, listeners[i]);
+        }
+        ArrayList<VehiclePropValue> batch = new ArrayList<>(EVENT_BATCH_SIZE);
+        for (int i = 0; i < EVENT_BATCH_SIZE; i++) {
+            batch.add(createSpeedValue(i));
+        }
+
+        mRunner.run("VehicleHal.onPropertyEvent x" + EVENT_BATCH_SIZE + " to "
+                + LISTENER_COUNT + " listeners", iteration -> mVehicleHal.onPropertyEvent(batch));
+
+        for (CountingListener listener : listeners) {
+            assertThat(listener.mEventCount).isGreaterThan(EVENT_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void getProperty() throws Exception {
+        PropertyHalService propertyHal = mVehicleHal.getPropertyHal();
+
+        mRunner.run("PropertyHalService.getProperty", iteration -> {
+            if (propertyHal.getProperty(PROPERTY, 0) == null) {
+                throw new AssertionError("no value for property " + PROPERTY);
+            }
+        });
+    }
+
+    private static VehiclePropValue createSpeedValue(float speed) {
+        return VehiclePropValueBuilder.newBuilder(PROPERTY)
+                .addFloatValue(speed)
+                .setTimestamp()
+                .build();
+    }
+
+    private static class CountingListener extends ICarPropertyEventListener.Stub {
+        private int mEventCount;
+
+        @Override
+        public void onEvent(List<CarPropertyEvent> events) {
+            mEventCount += events.size();
+        }
+    }
+}
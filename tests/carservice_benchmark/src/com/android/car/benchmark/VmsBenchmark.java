@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.benchmark;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.vms.IVmsSubscriberClient;
+import android.car.vms.VmsAvailableLayers;
+import android.car.vms.VmsLayer;
+import android.car.vms.VmsLayerDependency;
+import android.car.vms.VmsLayersOffering;
+
+import com.android.car.VmsLayersAvailability;
+import com.android.car.VmsRouting;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Benchmarks message routing of {@link VmsRouting} and availability calculation of
+ * {@link VmsLayersAvailability}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class VmsBenchmark {
+    private static final int LAYER_COUNT = 32;
+    private static final int PUBLISHER_COUNT = 4;
+    private static final int SUBSCRIBER_COUNT = 16;
+
+    private final BenchmarkRunner mRunner = new BenchmarkRunner();
+
+    @Test
+    public void routeMessage() throws Exception {
+        VmsRouting routing = new VmsRouting();
+        VmsLayer[] layers = createLayers();
+        for (int i = 0; i < SUBSCRIBER_COUNT; i++) {
+            IVmsSubscriberClient subscriber = new MockSubscriberClient();
+            // Mix of layer, layer from publisher and promiscuous subscriptions.
+            switch (i % 3) {
+                case 0:
+                    routing.addSubscription(subscriber, layers[i % LAYER_COUNT]);
+                    break;
+                case 1:
+                    routing.addSubscription(subscriber, layers[i % LAYER_COUNT],
+                            i % PUBLISHER_COUNT);
+                    break;
+                default:
+                    routing.addSubscription(subscriber);
+                    break;
+            }
+        }
+
+        mRunner.run("VmsRouting.getSubscribersForLayerFromPublisher", iteration -> {
+            Set<IVmsSubscriberClient> subscribers = routing.getSubscribersForLayerFromPublisher(
+                    layers[iteration % LAYER_COUNT], iteration % PUBLISHER_COUNT);
+            if (subscribers.isEmpty()) {
+                throw new AssertionError("promiscuous subscribers not routed");
+            }
+        });
+    }
+
+    @Test
+    public void setPublishersOffering() throws Exception {
+        VmsLayersAvailability availability = new VmsLayersAvailability();
+        VmsLayer[] layers = createLayers();
+        // Each layer depends on the previous one, so availability is resolved through a chain.
+        List<VmsLayersOffering> offerings = new ArrayList<>(PUBLISHER_COUNT);
+        for (int publisher = 0; publisher < PUBLISHER_COUNT; publisher++) {
+            Set<VmsLayerDependency> dependencies = new HashSet<>();
+            for (int i = publisher; i < LAYER_COUNT; i += PUBLISHER_COUNT) {
+                dependencies.add(i == 0 ? new VmsLayerDependency(layers[i])
+                        : new VmsLayerDependency(layers[i], Collections.singleton(layers[i - 1])));
+            }
+            offerings.add(new VmsLayersOffering(dependencies, publisher));
+        }
+
+        mRunner.run("VmsLayersAvailability.setPublishersOffering",
+                iteration -> availability.setPublishersOffering(offerings));
+
+        VmsAvailableLayers availableLayers = availability.getAvailableLayers();
+        assertThat(availableLayers.getAssociatedLayers()).hasSize(LAYER_COUNT);
+    }
+
+    private static VmsLayer[] createLayers() {
+        VmsLayer[] layers = new VmsLayer[LAYER_COUNT];
+        for (int i = 0; i < LAYER_COUNT; i++) {
+            layers[i] = new VmsLayer(i, 0 /* subtype */, 1 /* version */);
+        }
+        return layers;
+    }
+
+    private static class MockSubscriberClient extends IVmsSubscriberClient.Stub {
+        @Override
+        public void onVmsMessageReceived(VmsLayer layer, byte[] payload) {}
+
+        @Override
+        public void onLayersAvailabilityChanged(VmsAvailableLayers availableLayers) {}
+    }
+}
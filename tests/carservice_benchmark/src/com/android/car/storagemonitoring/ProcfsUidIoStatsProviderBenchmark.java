@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import android.util.SparseArray;
+
+import com.android.car.benchmark.BenchmarkRunner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Benchmarks parsing of a uid I/O stats file the size of a busy system by
+ * {@link ProcfsUidIoStatsProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProcfsUidIoStatsProviderBenchmark {
+    private static final int UID_COUNT = 300;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BenchmarkRunner mRunner = new BenchmarkRunner();
+
+    @Test
+    public void load() throws Exception {
+        File statsFile = mFolder.newFile("stats");
+        try (FileWriter writer = new FileWriter(statsFile)) {
+            for (int uid = 0; uid < UID_COUNT; uid++) {
+                writer.write(uid + " 256797495 181736102 362132480 947167232 51474 2048 1024 2048"
+                        + " 250 1\n");
+            }
+        }
+        ProcfsUidIoStatsProvider statsProvider =
+                new ProcfsUidIoStatsProvider(statsFile.toPath());
+
+        mRunner.run("ProcfsUidIoStatsProvider.load " + UID_COUNT + " uids", iteration -> {
+            SparseArray<UidIoRecord> records = statsProvider.load();
+            if (records == null || records.size() != UID_COUNT) {
+                throw new AssertionError("stats not parsed");
+            }
+        });
+    }
+}
@@ -16,6 +16,8 @@
 package com.android.car;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import android.car.Car;
 import android.car.CarAppFocusManager;
@@ -58,6 +60,37 @@ public class AppFocusTest extends MockedCarTestBase {
         manager.removeFocusListener(listener);
     }
 
+    @Test
+    public void testFocusHandoffDoesNotAffectOtherAppTypes() throws Exception {
+        CarAppFocusManager manager = (CarAppFocusManager) getCar().getCarManager(
+                Car.APP_FOCUS_SERVICE);
+        FocusOwnershipCallback navOwner = new FocusOwnershipCallback();
+        FocusOwnershipCallback voiceOwner = new FocusOwnershipCallback();
+        FocusOwnershipCallback newNavOwner = new FocusOwnershipCallback();
+        manager.requestAppFocus(CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION, navOwner);
+        assertTrue(navOwner.waitForOwnershipGrantAndAssert(DEFAULT_WAIT_TIMEOUT_MS,
+                CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION));
+        manager.requestAppFocus(CarAppFocusManager.APP_FOCUS_TYPE_VOICE_COMMAND, voiceOwner);
+        assertTrue(voiceOwner.waitForOwnershipGrantAndAssert(DEFAULT_WAIT_TIMEOUT_MS,
+                CarAppFocusManager.APP_FOCUS_TYPE_VOICE_COMMAND));
+
+        assertEquals(CarAppFocusManager.APP_FOCUS_REQUEST_SUCCEEDED, manager.requestAppFocus(
+                CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION, newNavOwner));
+        // Ownership state is updated before the request returns.
+        assertTrue(manager.isOwningFocus(newNavOwner,
+                CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION));
+        assertFalse(manager.isOwningFocus(navOwner, CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION));
+        assertTrue(manager.isOwningFocus(voiceOwner,
+                CarAppFocusManager.APP_FOCUS_TYPE_VOICE_COMMAND));
+        assertTrue(navOwner.waitForOwnershipLossAndAssert(DEFAULT_WAIT_TIMEOUT_MS,
+                CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION));
+        assertTrue(newNavOwner.waitForOwnershipGrantAndAssert(DEFAULT_WAIT_TIMEOUT_MS,
+                CarAppFocusManager.APP_FOCUS_TYPE_NAVIGATION));
+
+        manager.abandonAppFocus(newNavOwner);
+        manager.abandonAppFocus(voiceOwner);
+    }
+
     private class FocusChangedListener implements CarAppFocusManager.OnAppFocusChangedListener {
         private int mLastChangeAppType;
         private boolean mLastChangeAppActive;
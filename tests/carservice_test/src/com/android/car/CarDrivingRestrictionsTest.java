@@ -41,6 +41,9 @@ import com.android.internal.annotations.GuardedBy;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @RunWith(AndroidJUnit4.class)
 @SmallTest
 public class CarDrivingRestrictionsTest extends MockedCarTestBase {
@@ -227,6 +230,80 @@ public class CarDrivingRestrictionsTest extends MockedCarTestBase {
         mCarUxRManager.unregisterListener();
     }
 
+    /**
+     * Reads the driving state from many threads while speed changes keep flipping it, which used
+     * to contend on the service lock with every property event.
+     */
+    @Test
+    public void testDrivingStateReadContention() throws Exception {
+        final int readerCount = 8;
+        final int speedEventCount = 200;
+        DrivingStateListener listener = new DrivingStateListener();
+        mCarDrivingStateManager.registerListener(listener);
+
+        listener.reset();
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.GEAR_SELECTION)
+                        .addIntValue(VehicleGear.GEAR_DRIVE)
+                        .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                        .build());
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                        .addFloatValue(0.0f)
+                        .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                        .build());
+        assertNotNull(listener.waitForDrivingStateChange());
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger readCount = new AtomicInteger();
+        AtomicInteger nullCount = new AtomicInteger();
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            readers[i] = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        if (mCarDrivingStateManager.getCurrentCarDrivingState() == null) {
+                            nullCount.incrementAndGet();
+                        }
+                        readCount.incrementAndGet();
+                    } catch (CarNotConnectedException e) {
+                        nullCount.incrementAndGet();
+                    }
+                }
+            }, "DrivingStateReader-" + i);
+            readers[i].start();
+        }
+
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < speedEventCount; i++) {
+            getMockedVehicleHal().injectEvent(
+                    VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                            .addFloatValue(i % 2 == 0 ? 30.0f : 0.0f)
+                            .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                            .build());
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join(DEFAULT_WAIT_TIMEOUT_MS);
+        }
+        Log.d(TAG, readerCount + " readers, " + readCount.get() + " reads during "
+                + speedEventCount + " speed events in " + elapsedNs / 1000 + "us");
+
+        assertThat(nullCount.get()).isEqualTo(0);
+        assertThat(readCount.get()).isGreaterThan(0);
+        // The last speed injected was 0 with the gear in drive.
+        long deadline = SystemClock.elapsedRealtime() + DEFAULT_WAIT_TIMEOUT_MS;
+        CarDrivingStateEvent state = mCarDrivingStateManager.getCurrentCarDrivingState();
+        while (state.eventValue != CarDrivingStateEvent.DRIVING_STATE_IDLING
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+            state = mCarDrivingStateManager.getCurrentCarDrivingState();
+        }
+        assertThat(state.eventValue).isEqualTo(CarDrivingStateEvent.DRIVING_STATE_IDLING);
+        mCarDrivingStateManager.unregisterListener();
+    }
+
     /**
      * Callback function we register for driving state update notifications.
      */
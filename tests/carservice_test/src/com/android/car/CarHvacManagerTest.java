@@ -212,6 +212,36 @@ public class CarHvacManagerTest extends MockedCarTestBase {
         assertEquals(VehicleAreaSeat.ROW_1_LEFT, mEventZoneVal);
     }
 
+    // Out of order filtering is per area, older events of another area are still delivered.
+    @Test
+    public void testOlderEventOfOtherAreaIsDelivered() throws Exception {
+        mCarHvacManager.registerCallback(new EventListener());
+        // Wait for events generated on registration
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mAvailable.tryAcquire(2L, TimeUnit.SECONDS));
+        }
+
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        VehiclePropValue v = VehiclePropValueBuilder.newBuilder(
+                VehicleProperty.HVAC_TEMPERATURE_CURRENT)
+                .setAreaId(VehicleAreaSeat.ROW_1_LEFT | VehicleAreaSeat.ROW_1_RIGHT)
+                .setTimestamp(timestamp)
+                .addFloatValue(67f)
+                .build();
+        getMockedVehicleHal().injectEvent(v);
+        assertTrue(mAvailable.tryAcquire(2L, TimeUnit.SECONDS));
+
+        v = VehiclePropValueBuilder.newBuilder(VehicleProperty.HVAC_TEMPERATURE_CURRENT)
+                .setAreaId(VehicleAreaSeat.ROW_1_LEFT)
+                .setTimestamp(timestamp - 1)
+                .addFloatValue(70f)
+                .build();
+        getMockedVehicleHal().injectEvent(v);
+        assertTrue(mAvailable.tryAcquire(2L, TimeUnit.SECONDS));
+        assertEquals(70, mEventFloatVal, 0);
+        assertEquals(VehicleAreaSeat.ROW_1_LEFT, mEventZoneVal);
+    }
+
     private class HvacPropertyHandler implements VehicleHalPropertyHandler {
         HashMap<Integer, VehiclePropValue> mMap = new HashMap<>();
 
@@ -29,6 +29,7 @@ import android.hardware.automotive.vehicle.V2_0.VehicleGear;
 import android.hardware.automotive.vehicle.V2_0.VehicleIgnitionState;
 import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
 import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.Debug;
 import android.os.SystemClock;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.util.Log;
@@ -37,6 +38,12 @@ import com.android.car.vehiclehal.VehiclePropValueBuilder;
 
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Test the public entry points for the CarSensorManager
  */
@@ -44,6 +51,8 @@ import org.junit.Test;
 public class CarSensorManagerTest extends MockedCarTestBase {
     private static final String TAG = CarSensorManagerTest.class.getSimpleName();
 
+    private static final int BENCHMARK_EVENT_COUNT = 200;
+
     private CarSensorManager mCarSensorManager;
 
     @Override
@@ -473,6 +482,104 @@ public class CarSensorManagerTest extends MockedCarTestBase {
     }
 
 
+    @Test
+    public void testValueListener() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        float[] received = new float[1];
+        CarSensorManager.OnSensorValueChangedListener listener =
+                new CarSensorManager.OnSensorValueChangedListener() {
+                    @Override
+                    public void onFloatSensorChanged(int sensorType, long timestamp,
+                            float value) {
+                        received[0] = value;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onIntSensorChanged(int sensorType, long timestamp, int value) {}
+
+                    @Override
+                    public void onLongArraySensorChanged(int sensorType, long timestamp,
+                            long[] values) {}
+                };
+        // The registration generates the first event.
+        assertTrue(mCarSensorManager.registerValueListener(listener,
+                CarSensorManager.SENSOR_TYPE_CAR_SPEED, CarSensorManager.SENSOR_RATE_FASTEST));
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                        .addFloatValue(42f)
+                        .setTimestamp(SystemClock.elapsedRealtimeNanos())
+                        .build(), true);
+
+        assertTrue(latch.await(SHORT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(42f, received[0], 0f);
+        mCarSensorManager.unregisterValueListener(listener);
+    }
+
+    /**
+     * Delivers a burst of speed events to a listener with and without event reuse. Checks that
+     * reused events are a single instance, and that reuse saves at least one allocation per
+     * event. Allocations are only counted on the Looper thread the events are delivered on, so
+     * other threads of the process do not add to them.
+     */
+    @Test
+    public void testReusedEventsBenchmark() throws Exception {
+        long allocationsWithoutReuse = runSpeedEventBurst(false);
+        long allocationsWithReuse = runSpeedEventBurst(true);
+        Log.i(TAG, BENCHMARK_EVENT_COUNT + " speed events, allocations without reuse: "
+                + allocationsWithoutReuse + " with reuse: " + allocationsWithReuse);
+        assertTrue("reuse should save an allocation per event, without reuse: "
+                + allocationsWithoutReuse + " with reuse: " + allocationsWithReuse,
+                allocationsWithReuse + BENCHMARK_EVENT_COUNT - 1 <= allocationsWithoutReuse);
+    }
+
+    /**
+     * @return allocations on the delivery thread from the first to the last event of the burst,
+     *         covering the delivery of all but the first event.
+     */
+    // Debug allocation counting is deprecated, but still the only way to count allocations.
+    @SuppressWarnings("deprecation")
+    private long runSpeedEventBurst(boolean reuseEvents) throws Exception {
+        CountDownLatch latch = new CountDownLatch(BENCHMARK_EVENT_COUNT);
+        Set<CarSensorEvent> events = Collections.newSetFromMap(new IdentityHashMap<>());
+        long[] allocations = new long[1];
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        CarSensorManager.OnSensorChangedListener listener = event -> {
+            // Ignore the event generated by the registration.
+            if (event.timestamp >= timestamp) {
+                events.add(event);
+                if (latch.getCount() == BENCHMARK_EVENT_COUNT) {
+                    Debug.resetThreadAllocCount();
+                } else if (latch.getCount() == 1) {
+                    allocations[0] = Debug.getThreadAllocCount();
+                }
+                latch.countDown();
+            }
+        };
+        assertTrue(mCarSensorManager.registerListener(listener,
+                CarSensorManager.SENSOR_TYPE_CAR_SPEED, CarSensorManager.SENSOR_RATE_FASTEST,
+                reuseEvents));
+
+        Debug.startAllocCounting();
+        for (int i = 0; i < BENCHMARK_EVENT_COUNT; i++) {
+            getMockedVehicleHal().injectEvent(
+                    VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                            .addFloatValue(i)
+                            .setTimestamp(timestamp + i)
+                            .build());
+        }
+        assertTrue(latch.await(DEFAULT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Debug.stopAllocCounting();
+
+        mCarSensorManager.unregisterListener(listener);
+        if (reuseEvents) {
+            assertEquals(1, events.size());
+        } else {
+            assertEquals(BENCHMARK_EVENT_COUNT, events.size());
+        }
+        return allocations[0];
+    }
+
     /**
      * Callback function we register for sensor update notifications.
      * This tracks the number of times it has been called via the mAvailable semaphore,
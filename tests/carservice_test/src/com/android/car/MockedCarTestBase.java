@@ -195,6 +195,20 @@ public class MockedCarTestBase {
         mCarImpl.init();
     }
 
+    /** Simulates a crash of the Vehicle HAL, as reported to car service by its death. */
+    protected synchronized void simulateVehicleHalDeath() {
+        mCarImpl.vehicleHalDied();
+    }
+
+    /**
+     * Connects car service to a restarted Vehicle HAL. It needs to have the same properties as
+     * the crashed one.
+     */
+    protected synchronized void reconnectVehicleHal(MockedVehicleHal vehicleHal) {
+        mMockedVehicleHal = vehicleHal;
+        mCarImpl.vehicleHalReconnected(vehicleHal);
+    }
+
     protected synchronized VehiclePropConfigBuilder addProperty(int propertyId,
             VehicleHalPropertyHandler propertyHandler) {
         VehiclePropConfigBuilder builder = VehiclePropConfigBuilder.newBuilder(propertyId);
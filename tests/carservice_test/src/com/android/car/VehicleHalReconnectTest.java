@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.car.Car;
+import android.car.hardware.CarSensorEvent;
+import android.car.hardware.CarSensorManager;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.MockedVehicleHal.DefaultPropertyHandler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class VehicleHalReconnectTest extends MockedCarTestBase {
+    private static final long DEFAULT_WAIT_TIMEOUT_MS = 1000;
+
+    private final LinkedBlockingQueue<CarSensorEvent> mNightEvents = new LinkedBlockingQueue<>();
+
+    @Override
+    protected synchronized void configureMockedHal() {
+        addProperty(VehicleProperty.NIGHT_MODE,
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                        .setBooleanValue(false)
+                        .build());
+        addProperty(VehicleProperty.PERF_VEHICLE_SPEED,
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                        .addFloatValue(0f)
+                        .build());
+    }
+
+    @Test
+    public void testLastValuesServedDuringOutageAndRefreshedOnReconnect() throws Exception {
+        CarSensorManager sensorManager =
+                (CarSensorManager) getCar().getCarManager(Car.SENSOR_SERVICE);
+        sensorManager.registerListener(event -> mNightEvents.add(event),
+                CarSensorManager.SENSOR_TYPE_NIGHT, CarSensorManager.SENSOR_RATE_NORMAL);
+        sensorManager.registerListener(event -> { },
+                CarSensorManager.SENSOR_TYPE_CAR_SPEED, CarSensorManager.SENSOR_RATE_NORMAL);
+        assertNotNull(mNightEvents.poll(DEFAULT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Event only, the crashing HAL still reports day mode on get.
+        getMockedVehicleHal().injectEvent(
+                VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                        .setBooleanValue(true)
+                        .setTimestamp(1000L)
+                        .build());
+        assertTrue(isNightMode(mNightEvents.poll(DEFAULT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)));
+
+        simulateVehicleHalDeath();
+        assertTrue(isNightMode(
+                sensorManager.getLatestSensorEvent(CarSensorManager.SENSOR_TYPE_NIGHT)));
+
+        MockedVehicleHal restartedHal = new MockedVehicleHal();
+        for (VehiclePropConfig config : getMockedVehicleHal().getAllPropConfigs()) {
+            VehiclePropValue value = config.prop == VehicleProperty.NIGHT_MODE
+                    ? VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                            .setBooleanValue(false)
+                            .setTimestamp(2000L)
+                            .build()
+                    : null;
+            restartedHal.addProperty(config, new DefaultPropertyHandler(config, value));
+        }
+        reconnectVehicleHal(restartedHal);
+
+        assertTrue(restartedHal.waitForSubscriber(VehicleProperty.PERF_VEHICLE_SPEED,
+                DEFAULT_WAIT_TIMEOUT_MS));
+        assertTrue(restartedHal.waitForSubscriber(VehicleProperty.NIGHT_MODE,
+                DEFAULT_WAIT_TIMEOUT_MS));
+        // Current value is dispatched without waiting for it to change.
+        CarSensorEvent event = mNightEvents.poll(DEFAULT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(event);
+        assertFalse(isNightMode(event));
+        assertFalse(isNightMode(
+                sensorManager.getLatestSensorEvent(CarSensorManager.SENSOR_TYPE_NIGHT)));
+    }
+
+    private static boolean isNightMode(CarSensorEvent event) {
+        assertNotNull(event);
+        return event.getNightData(null).isNightMode;
+    }
+}
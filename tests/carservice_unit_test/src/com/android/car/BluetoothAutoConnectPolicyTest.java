@@ -16,9 +16,12 @@
 
 package com.android.car;
 
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES;
+
 import static org.mockito.Mockito.*;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.bluetooth.BluetoothA2dpSink;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -39,10 +42,12 @@ import android.content.res.Resources;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.Suppress;
 
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -52,7 +57,9 @@ import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Unit tests for the {@link BluetoothDeviceConnectionPolicy}.
@@ -290,6 +297,15 @@ public class BluetoothAutoConnectPolicyTest extends AndroidTestCase {
      * Utility method called from the beginning of every test to create and init the policy
      */
     private void createAndSetupBluetoothPolicy() throws Exception {
+        createAndSetupBluetoothPolicy(null);
+    }
+
+    /**
+     * Create and init the policy, reading and writing the device lists from the given store
+     * instead of Settings if not null.
+     */
+    private void createAndSetupBluetoothPolicy(
+            @Nullable BluetoothDeviceSettings.SettingsStore settingsStore) throws Exception {
         // Return the mock Bluetooth User Service when asked for
         when(mMockBluetoothUserService.isBluetoothConnectionProxyAvailable(
                 Matchers.anyInt())).thenReturn(true);
@@ -299,7 +315,11 @@ public class BluetoothAutoConnectPolicyTest extends AndroidTestCase {
         mBluetoothDeviceConnectionPolicyTest = BluetoothDeviceConnectionPolicy.create(mMockContext,
                 mMockCarPropertyService, mMockPerUserCarServiceHelper,
                 mMockCarUxRService, mMockCarBluetoothService);
-        mBluetoothDeviceConnectionPolicyTest.setAllowReadWriteToSettings(false);
+        if (settingsStore != null) {
+            mBluetoothDeviceConnectionPolicyTest.setSettingsStoreForTesting(settingsStore);
+        } else {
+            mBluetoothDeviceConnectionPolicyTest.setAllowReadWriteToSettings(false);
+        }
         mBluetoothDeviceConnectionPolicyTest.init();
 
         mReceiver = mBluetoothDeviceConnectionPolicyTest.getBluetoothBroadcastReceiver();
@@ -376,6 +396,23 @@ public class BluetoothAutoConnectPolicyTest extends AndroidTestCase {
         mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device1, false));
     }
 
+    /**
+     * The first device paired when nothing was read from Settings at start, e.g. without any
+     * bonded devices on first boot, is written for the current user.
+     */
+    @Test
+    public void testFirstPairingIsWrittenForCurrentUser() throws Exception {
+        MapSettingsStore settingsStore = new MapSettingsStore();
+        createAndSetupBluetoothPolicy(settingsStore);
+        BluetoothDevice device1 = mBluetoothAdapter.getRemoteDevice("DE:AD:BE:EF:00:01");
+        mockDeviceAvailability(device1, true);
+        pairDeviceOnProfile(device1, BluetoothProfile.HEADSET_CLIENT);
+
+        mBluetoothDeviceConnectionPolicyTest.flushDeviceSettings();
+        assertEquals("DEADBEEF0001", settingsStore.getString(
+                KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES, ActivityManager.getCurrentUser()));
+    }
+
     /** When android/iphone connects on HFP, it doesn't explicitly try to connect on PBAP and MAP.
      *  In such cases, the Auto should try to connect on PBAP and MAP profiles.
      *  The following tests that scenario.
@@ -490,6 +527,112 @@ public class BluetoothAutoConnectPolicyTest extends AndroidTestCase {
         mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device4, false));
     }
 
+    /**
+     * Test that a vehicle event starts connection attempts on HFP, A2DP and PAN at once, rather
+     * than waiting for each profile to connect before trying the next one, while PBAP and MAP
+     * still wait for HFP to connect.
+     * 1. Pair one device on all profiles and disconnect it.
+     * 2. Leave the device unresponsive, connection requests never complete.
+     * 3. Inject a fake vehicle event.
+     * 4. Verify that connection requests were made on HFP, A2DP and PAN well within the
+     * connection time out of a single profile, and never on PBAP and MAP.
+     */
+    @Test
+    public void testAutoConnectProfilesInParallel() throws Exception {
+        createAndSetupBluetoothPolicy();
+        BluetoothDevice device1 = mBluetoothAdapter.getRemoteDevice("DE:AD:BE:EF:00:01");
+        pairDevice(device1);
+        sendFakeConnectionStateChange(device1, false);
+
+        triggerFakeVehicleEvent();
+        for (Integer profile : Arrays.asList(BluetoothProfile.HEADSET_CLIENT,
+                BluetoothProfile.A2DP_SINK, BluetoothProfile.PAN)) {
+            verify(mMockBluetoothUserService,
+                    Mockito.timeout(WAIT_FOR_COMPLETION_TIME).times(1)).bluetoothConnectToProfile(
+                    profile, device1);
+        }
+        Thread.sleep(BluetoothAutoConnectStateMachine.CONNECT_MORE_PROFILES_TIMEOUT_MS);
+        verify(mMockBluetoothUserService, Mockito.never()).bluetoothConnectToProfile(
+                BluetoothProfile.PBAP_CLIENT, device1);
+        verify(mMockBluetoothUserService, Mockito.never()).bluetoothConnectToProfile(
+                BluetoothProfile.MAP_CLIENT, device1);
+        mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device1, false));
+    }
+
+    /**
+     * Test that PBAP and MAP are connected only once the device connected on HFP.
+     * 1. Pair one device on all profiles and disconnect it.
+     * 2. Make the device answer connection requests.
+     * 3. Inject a fake vehicle event.
+     * 4. Verify that PBAP and MAP connection requests come after the HFP one, and no earlier than
+     * the delay after HFP connected.
+     */
+    @Test
+    public void testAutoConnectClientProfilesAfterHeadset() throws Exception {
+        createAndSetupBluetoothPolicy();
+        BluetoothDevice device1 = mBluetoothAdapter.getRemoteDevice("DE:AD:BE:EF:00:01");
+        mockDeviceAvailability(device1, true);
+        pairDevice(device1);
+        sendFakeConnectionStateChange(device1, false);
+
+        long startMs = SystemClock.elapsedRealtime();
+        triggerFakeVehicleEvent();
+        verify(mMockBluetoothUserService,
+                Mockito.timeout(CONNECTION_REQUEST_TIMEOUT).times(1)).bluetoothConnectToProfile(
+                BluetoothProfile.PBAP_CLIENT, device1);
+        verify(mMockBluetoothUserService,
+                Mockito.timeout(CONNECTION_REQUEST_TIMEOUT).times(1)).bluetoothConnectToProfile(
+                BluetoothProfile.MAP_CLIENT, device1);
+        assertTrue(SystemClock.elapsedRealtime() - startMs >= CONNECTION_STATE_CHANGE_TIME
+                + BluetoothAutoConnectStateMachine.CONNECT_MORE_PROFILES_TIMEOUT_MS);
+        InOrder inOrder = Mockito.inOrder(mMockBluetoothUserService);
+        inOrder.verify(mMockBluetoothUserService).bluetoothConnectToProfile(
+                BluetoothProfile.HEADSET_CLIENT, device1);
+        inOrder.verify(mMockBluetoothUserService).bluetoothConnectToProfile(
+                BluetoothProfile.PBAP_CLIENT, device1);
+
+        // Before we cleanup wait for the last Connection Status change to be broadcast to the
+        // policy.
+        Thread.sleep(WAIT_FOR_COMPLETION_TIME);
+        mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device1, false));
+    }
+
+    /**
+     * Test that a connection attempt times out on its own profile without holding up the others.
+     * 1. Pair one device on all profiles and disconnect it.
+     * 2. Make the device unresponsive on A2DP only and shorten the A2DP time out.
+     * 3. Inject a fake vehicle event.
+     * 4. Verify that the device connected on HFP, with its latency recorded, and that the A2DP
+     * attempt timed out.
+     */
+    @Test
+    public void testConnectionTimeoutPerProfile() throws Exception {
+        createAndSetupBluetoothPolicy();
+        BluetoothDevice device1 = mBluetoothAdapter.getRemoteDevice("DE:AD:BE:EF:00:01");
+        mockDeviceAvailability(device1, true);
+        Mockito.doNothing().when(mMockBluetoothUserService)
+                .bluetoothConnectToProfile(BluetoothProfile.A2DP_SINK, device1);
+        mBluetoothDeviceConnectionPolicyTest.setConnectionTimeoutMs(BluetoothProfile.A2DP_SINK,
+                CONNECTION_STATE_CHANGE_TIME * 2);
+        pairDevice(device1);
+        sendFakeConnectionStateChange(device1, false);
+
+        triggerFakeVehicleEvent();
+        verify(mMockBluetoothUserService,
+                Mockito.timeout(WAIT_FOR_COMPLETION_TIME).times(1)).bluetoothConnectToProfile(
+                BluetoothProfile.A2DP_SINK, device1);
+        Thread.sleep(WAIT_FOR_COMPLETION_TIME);
+
+        assertTrue(mBluetoothDeviceConnectionPolicyTest.getLastConnectLatencyMs(
+                BluetoothProfile.HEADSET_CLIENT) >= CONNECTION_STATE_CHANGE_TIME);
+        assertEquals(-1, mBluetoothDeviceConnectionPolicyTest.getLastConnectLatencyMs(
+                BluetoothProfile.A2DP_SINK));
+        assertEquals(BluetoothProfile.STATE_DISCONNECTED,
+                mBluetoothDeviceConnectionPolicyTest.getBluetoothDevicesInfo(
+                        BluetoothProfile.A2DP_SINK).getCurrentConnectionStateLocked(device1));
+        mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device1, false));
+    }
+
     /**
      * Test setting a device as a primary device.  A primary device, if present, will be the first
      * device that the policy will try to connect regardless of which device connected last.
@@ -717,4 +860,19 @@ public class BluetoothAutoConnectPolicyTest extends AndroidTestCase {
         mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device1, false));
         mReceiver.onReceive(null, createBluetoothBondStateChangedIntent(device2, false));
     }
+
+    /** Keeps the device lists per user in memory instead of Settings. */
+    private static final class MapSettingsStore implements BluetoothDeviceSettings.SettingsStore {
+        private final Map<String, String> mValues = new HashMap<>();
+
+        @Override
+        public synchronized String getString(String key, int userId) {
+            return mValues.get(userId + "/" + key);
+        }
+
+        @Override
+        public synchronized void putString(String key, String value, int userId) {
+            mValues.put(userId + "/" + key, value);
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES;
+import static android.car.settings.CarSettings.Secure.KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES;
+
+import android.bluetooth.BluetoothProfile;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class BluetoothDeviceSettingsTest extends TestCase {
+    private static final long FLUSH_DELAY_MS = 100;
+    private static final long WAIT_TIMEOUT_MS = 2000;
+    private static final int USER_1 = 10;
+    private static final int USER_2 = 11;
+    private static final String DEVICE_1 = "DE:AD:BE:EF:00:01";
+    private static final String DEVICE_2 = "DE:AD:BE:EF:00:02";
+
+    private HandlerThread mHandlerThread;
+    private CountingSettingsStore mStore;
+    private BluetoothDeviceSettings mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread(BluetoothDeviceSettingsTest.class.getSimpleName());
+        mHandlerThread.start();
+        mStore = new CountingSettingsStore();
+        mSettings = new BluetoothDeviceSettings(mStore, mHandlerThread.getLooper(),
+                FLUSH_DELAY_MS);
+        mSettings.setUser(USER_1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    public void testConnectionChurnIsWrittenOncePerProfile() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            List<String> devices = i % 2 == 0
+                    ? Arrays.asList(DEVICE_1, DEVICE_2) : Arrays.asList(DEVICE_2, DEVICE_1);
+            mSettings.storeDevices(BluetoothProfile.HEADSET_CLIENT, devices);
+            mSettings.storeDevices(BluetoothProfile.A2DP_SINK, devices);
+        }
+        // Nothing has been written while connections keep changing.
+        assertEquals(0, mStore.getWriteCount());
+        assertEquals(Arrays.asList(DEVICE_2, DEVICE_1),
+                mSettings.getDevices(BluetoothProfile.HEADSET_CLIENT));
+
+        waitForWrites(2);
+        assertEquals(2, mStore.getWriteCount());
+        assertEquals("DEADBEEF0002,DEADBEEF0001",
+                mStore.getString(KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES, USER_1));
+    }
+
+    public void testUnchangedListIsNotWritten() {
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_1));
+        mSettings.flush();
+        assertEquals(1, mStore.getWriteCount());
+
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_1));
+        // PBAP shares the phone devices, updated through HFP only.
+        mSettings.storeDevices(BluetoothProfile.PBAP_CLIENT, Arrays.asList(DEVICE_2));
+        mSettings.flush();
+        assertEquals(1, mStore.getWriteCount());
+    }
+
+    public void testChangedBackBeforeFlushIsNotWritten() {
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_1));
+        mSettings.flush();
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_2));
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_1));
+        mSettings.flush();
+
+        assertEquals(1, mStore.getWriteCount());
+    }
+
+    public void testUserSwitchFlushesPendingListsForPreviousUser() {
+        mSettings.storeDevices(BluetoothProfile.A2DP_SINK, Arrays.asList(DEVICE_1));
+        mSettings.setUser(USER_2);
+
+        assertEquals("DEADBEEF0001",
+                mStore.getString(KEY_BLUETOOTH_AUTOCONNECT_MUSIC_DEVICES, USER_1));
+        assertNull(mSettings.getDevices(BluetoothProfile.A2DP_SINK));
+    }
+
+    public void testReadsListsWithSeparators() {
+        mStore.putString(KEY_BLUETOOTH_AUTOCONNECT_PHONE_DEVICES, DEVICE_1 + "," + DEVICE_2,
+                USER_1);
+
+        assertEquals(Arrays.asList(DEVICE_1, DEVICE_2),
+                mSettings.getDevices(BluetoothProfile.PBAP_CLIENT));
+        assertEquals(Arrays.asList(DEVICE_1, DEVICE_2), BluetoothDeviceSettings.decode(
+                BluetoothDeviceSettings.encode(Arrays.asList(DEVICE_1, DEVICE_2))));
+    }
+
+    private void waitForWrites(int count) {
+        long deadline = SystemClock.uptimeMillis() + WAIT_TIMEOUT_MS;
+        while (mStore.getWriteCount() < count && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static final class CountingSettingsStore
+            implements BluetoothDeviceSettings.SettingsStore {
+        private final Map<String, String> mValues = new HashMap<>();
+        private int mWriteCount;
+
+        synchronized int getWriteCount() {
+            return mWriteCount;
+        }
+
+        @Override
+        public synchronized String getString(String key, int userId) {
+            return mValues.get(userId + "/" + key);
+        }
+
+        @Override
+        public synchronized void putString(String key, String value, int userId) {
+            mValues.put(userId + "/" + key, value);
+            mWriteCount++;
+        }
+    }
+}
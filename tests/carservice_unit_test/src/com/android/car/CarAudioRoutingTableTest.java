@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.hardware.automotive.audiocontrol.V1_0.ContextNumber;
+import android.media.AudioAttributes;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+@SmallTest
+public class CarAudioRoutingTableTest extends AndroidTestCase {
+
+    private CarAudioRoutingTable mRoutingTable;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SparseIntArray usageToContext = new SparseIntArray();
+        usageToContext.put(AudioAttributes.USAGE_MEDIA, ContextNumber.MUSIC);
+        usageToContext.put(AudioAttributes.USAGE_GAME, ContextNumber.MUSIC);
+        usageToContext.put(AudioAttributes.USAGE_ALARM, ContextNumber.ALARM);
+        usageToContext.put(AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE,
+                ContextNumber.NAVIGATION);
+        usageToContext.put(AudioAttributes.USAGE_VIRTUAL_SOURCE, ContextNumber.INVALID);
+
+        CarAudioSettings settings = new CarAudioSettings(getContext().getContentResolver(),
+                Looper.getMainLooper());
+        CarVolumeGroup[] groups = new CarVolumeGroup[] {
+                new CarVolumeGroup(settings, 0, new int[] { ContextNumber.MUSIC }),
+                new CarVolumeGroup(settings, 1,
+                        new int[] { ContextNumber.NAVIGATION, ContextNumber.ALARM }),
+        };
+        mRoutingTable = CarAudioRoutingTable.build(groups, usageToContext);
+    }
+
+    public void testGroupIdForUsage() {
+        assertEquals(2, mRoutingTable.getGroupCount());
+        assertEquals(0, mRoutingTable.getGroupIdForUsage(AudioAttributes.USAGE_MEDIA));
+        assertEquals(0, mRoutingTable.getGroupIdForUsage(AudioAttributes.USAGE_GAME));
+        assertEquals(1, mRoutingTable.getGroupIdForUsage(AudioAttributes.USAGE_ALARM));
+        assertEquals(-1, mRoutingTable.getGroupIdForUsage(AudioAttributes.USAGE_VIRTUAL_SOURCE));
+        assertEquals(-1, mRoutingTable.getGroupIdForUsage(AudioAttributes.USAGE_ASSISTANT));
+    }
+
+    public void testUsagesForGroup() {
+        int[] expected = new int[] {
+                AudioAttributes.USAGE_ALARM,
+                AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE };
+        Arrays.sort(expected);
+        assertTrue(Arrays.equals(expected, mRoutingTable.getUsagesForGroup(1)));
+    }
+
+    public void testUsagesForGroupReturnsCopy() {
+        int[] usages = mRoutingTable.getUsagesForGroup(0);
+        usages[0] = -1;
+        assertEquals(AudioAttributes.USAGE_MEDIA, mRoutingTable.getUsagesForGroup(0)[0]);
+    }
+
+    public void testInvalidGroupId() {
+        try {
+            mRoutingTable.getGroup(2);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.car.media.CarAudioManager;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarAudioSettingsTest extends TestCase {
+    private static final long FLUSH_DELAY_MS = 100;
+    private static final long WAIT_TIMEOUT_MS = 2000;
+
+    private HandlerThread mHandlerThread;
+    private CountingSettingsStore mStore;
+    private CarAudioSettings mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread(CarAudioSettingsTest.class.getSimpleName());
+        mHandlerThread.start();
+        mStore = new CountingSettingsStore();
+        mSettings = new CarAudioSettings(mStore, mHandlerThread.getLooper(), FLUSH_DELAY_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    public void testVolumeSweepIsWrittenOnce() throws Exception {
+        for (int index = 0; index <= 40; index++) {
+            mSettings.storeVolumeGroupIndex(0, index);
+        }
+        for (int index = 40; index >= 25; index--) {
+            mSettings.storeVolumeGroupIndex(0, index);
+        }
+        // Nothing has been written while the knob is being turned.
+        assertEquals(0, mStore.getWriteCount());
+        assertEquals(25, mSettings.getStoredVolumeGroupIndex(0));
+
+        waitForWrites(1);
+        assertEquals(1, mStore.getWriteCount());
+        assertEquals(25, mStore.getInt(CarAudioManager.getVolumeSettingsKeyForGroup(0), -1));
+    }
+
+    public void testOneWritePerChangedValue() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mSettings.storeVolumeGroupIndex(0, i);
+            mSettings.storeVolumeGroupIndex(1, i);
+            mSettings.storeFade(i / 10f);
+            mSettings.storeBalance(-i / 10f);
+        }
+        waitForWrites(4);
+        assertEquals(4, mStore.getWriteCount());
+        assertEquals(0.9f, mSettings.getStoredFade(Float.NaN));
+        assertEquals(-0.9f, mSettings.getStoredBalance(Float.NaN));
+    }
+
+    public void testFlushWritesImmediately() {
+        mSettings.storeVolumeGroupIndex(2, 7);
+        mSettings.flush();
+        assertEquals(1, mStore.getWriteCount());
+        assertEquals(7, mStore.getInt(CarAudioManager.getVolumeSettingsKeyForGroup(2), -1));
+
+        // Nothing pending anymore, idle flush does not write again.
+        SystemClock.sleep(FLUSH_DELAY_MS * 3);
+        assertEquals(1, mStore.getWriteCount());
+    }
+
+    public void testNothingStored() {
+        assertEquals(-1, mSettings.getStoredVolumeGroupIndex(0));
+        assertTrue(Float.isNaN(mSettings.getStoredFade(Float.NaN)));
+    }
+
+    private void waitForWrites(int count) {
+        long deadline = SystemClock.uptimeMillis() + WAIT_TIMEOUT_MS;
+        while (mStore.getWriteCount() < count && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+    }
+
+    private static final class CountingSettingsStore implements CarAudioSettings.SettingsStore {
+        private final Map<String, Number> mValues = new HashMap<>();
+        private int mWriteCount;
+
+        synchronized int getWriteCount() {
+            return mWriteCount;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defaultValue) {
+            Number value = mValues.get(key);
+            return value == null ? defaultValue : value.intValue();
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defaultValue) {
+            Number value = mValues.get(key);
+            return value == null ? defaultValue : value.floatValue();
+        }
+
+        @Override
+        public synchronized void putInt(String key, int value) {
+            mValues.put(key, value);
+            mWriteCount++;
+        }
+
+        @Override
+        public synchronized void putFloat(String key, float value) {
+            mValues.put(key, value);
+            mWriteCount++;
+        }
+    }
+}
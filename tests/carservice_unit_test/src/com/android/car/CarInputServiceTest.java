@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static android.hardware.input.InputManager.INJECT_INPUT_EVENT_MODE_ASYNC;
+
+import static junit.framework.Assert.assertEquals;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.car.input.CarInputHandlingService;
+import android.car.input.CarInputHandlingService.InputFilter;
+import android.car.input.ICarInputListener;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.res.Resources;
+import android.hardware.input.InputManager;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.TelecomManager;
+import android.view.KeyEvent;
+
+import com.android.car.hal.InputHalService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the routing of key events in {@link CarInputService}, between the custom input
+ * service and injection into the system.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarInputServiceTest {
+    private static final int MAIN = InputHalService.DISPLAY_MAIN;
+    private static final int CLUSTER = InputHalService.DISPLAY_INSTRUMENT_CLUSTER;
+    private static final int RACE_EVENTS = 10000;
+
+    @Mock private Context mMockContext;
+    @Mock private Resources mMockResources;
+    @Mock private InputHalService mMockInputHalService;
+    @Mock private InputManager mMockInputManager;
+    @Mock private TelecomManager mMockTelecomManager;
+    @Mock private IBinder mMockInputServiceBinder;
+    @Mock private ICarInputListener mMockCarInputListener;
+    @Mock private CarInputService.KeyEventListener mMockClusterKeyListener;
+
+    private CarInputService mService;
+    private IBinder mHandledKeysCallback;
+    private final AtomicInteger mInjectedCount = new AtomicInteger();
+    private final AtomicInteger mHandledCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mMockContext.getSystemServiceName(InputManager.class))
+                .thenReturn(Context.INPUT_SERVICE);
+        when(mMockContext.getSystemService(Context.INPUT_SERVICE)).thenReturn(mMockInputManager);
+        when(mMockContext.getSystemServiceName(TelecomManager.class))
+                .thenReturn(Context.TELECOM_SERVICE);
+        when(mMockContext.getSystemService(Context.TELECOM_SERVICE))
+                .thenReturn(mMockTelecomManager);
+        when(mMockContext.getResources()).thenReturn(mMockResources);
+        when(mMockResources.getString(R.string.inputService))
+                .thenReturn("com.android.car.test/.InputService");
+        when(mMockResources.getIntArray(R.array.config_rotaryKeyCodes)).thenReturn(new int[0]);
+        when(mMockContext.bindService(any(Intent.class), any(ServiceConnection.class), anyInt()))
+                .thenReturn(true);
+        when(mMockInputHalService.isKeyInputSupported()).thenReturn(true);
+        when(mMockInputServiceBinder.queryLocalInterface(anyString()))
+                .thenReturn(mMockCarInputListener);
+        doAnswer(invocation -> mInjectedCount.incrementAndGet() > 0)
+                .when(mMockInputManager).injectInputEvent(any(KeyEvent.class), anyInt());
+        doAnswer(invocation -> mHandledCount.incrementAndGet())
+                .when(mMockCarInputListener).onKeyEvent(any(KeyEvent.class), anyInt());
+
+        mService = new CarInputService(mMockContext, mMockInputHalService);
+        mService.init();
+        verify(mMockInputHalService).setInputListener(mService);
+
+        // Connect the custom input service.
+        ArgumentCaptor<Intent> intent = ArgumentCaptor.forClass(Intent.class);
+        ArgumentCaptor<ServiceConnection> connection =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext).bindService(intent.capture(), connection.capture(), anyInt());
+        mHandledKeysCallback = intent.getValue().getExtras()
+                .getBinder(CarInputHandlingService.INPUT_CALLBACK_BINDER_KEY);
+        connection.getValue().onServiceConnected(
+                ComponentName.unflattenFromString("com.android.car.test/.InputService"),
+                mMockInputServiceBinder);
+    }
+
+    @Test
+    public void testUnhandledKeyIsInjected() throws Exception {
+        KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_ENTER);
+        mService.onKeyEvent(event, MAIN);
+
+        verify(mMockInputManager).injectInputEvent(event, INJECT_INPUT_EVENT_MODE_ASYNC);
+        verify(mMockCarInputListener, never()).onKeyEvent(any(KeyEvent.class), anyInt());
+    }
+
+    @Test
+    public void testHandledKeyGoesToInputService() throws Exception {
+        setHandledKeys(new InputFilter(KeyEvent.KEYCODE_ENTER, MAIN));
+        KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_ENTER);
+        mService.onKeyEvent(event, MAIN);
+
+        verify(mMockCarInputListener).onKeyEvent(event, MAIN);
+        verify(mMockInputManager, never()).injectInputEvent(any(KeyEvent.class), anyInt());
+    }
+
+    @Test
+    public void testHandledKeysArePerDisplay() throws Exception {
+        setHandledKeys(new InputFilter(KeyEvent.KEYCODE_ENTER, MAIN));
+        mService.setInstrumentClusterKeyListener(mMockClusterKeyListener);
+        KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_ENTER);
+        mService.onKeyEvent(event, CLUSTER);
+
+        verify(mMockClusterKeyListener).onKeyEvent(event);
+        verify(mMockCarInputListener, never()).onKeyEvent(any(KeyEvent.class), anyInt());
+        verify(mMockInputManager, never()).injectInputEvent(any(KeyEvent.class), anyInt());
+    }
+
+    @Test
+    public void testInputServiceDisconnectFallsBackToInjection() throws Exception {
+        setHandledKeys(new InputFilter(KeyEvent.KEYCODE_ENTER, MAIN));
+        ArgumentCaptor<ServiceConnection> connection =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext).bindService(any(Intent.class), connection.capture(), anyInt());
+        connection.getValue().onServiceDisconnected(
+                ComponentName.unflattenFromString("com.android.car.test/.InputService"));
+
+        KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_ENTER);
+        mService.onKeyEvent(event, MAIN);
+        verify(mMockInputManager).injectInputEvent(event, INJECT_INPUT_EVENT_MODE_ASYNC);
+    }
+
+    @Test
+    public void testHandledKeysReplacedWhileDispatching() throws Exception {
+        InputFilter[] enterHandled = { new InputFilter(KeyEvent.KEYCODE_ENTER, MAIN) };
+        InputFilter[] tabHandled = { new InputFilter(KeyEvent.KEYCODE_TAB, MAIN) };
+        KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_ENTER);
+        Thread dispatcher = new Thread(() -> {
+            for (int i = 0; i < RACE_EVENTS; i++) {
+                mService.onKeyEvent(event, MAIN);
+            }
+        });
+        dispatcher.start();
+        boolean handled = false;
+        while (dispatcher.isAlive()) {
+            handled = !handled;
+            setHandledKeys(handled ? enterHandled : tabHandled);
+        }
+        dispatcher.join();
+
+        // Every event went either to the input service or into the system, exactly once.
+        assertEquals(RACE_EVENTS, mHandledCount.get() + mInjectedCount.get());
+
+        // The last published snapshot is the one in effect.
+        setHandledKeys(tabHandled);
+        int injected = mInjectedCount.get();
+        mService.onKeyEvent(event, MAIN);
+        assertEquals(injected + 1, mInjectedCount.get());
+    }
+
+    /** Sends handled keys the way {@link CarInputHandlingService} does. */
+    private void setHandledKeys(InputFilter... handledKeys) throws Exception {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeTypedArray(handledKeys, 0);
+            mHandledKeysCallback.transact(CarInputHandlingService.INPUT_CALLBACK_BINDER_CODE,
+                    data, null, IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+}
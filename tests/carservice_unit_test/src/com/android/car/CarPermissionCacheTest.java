@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.content.pm.PackageManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarPermissionCacheTest extends TestCase {
+    private static final String PERMISSION_SPEED = "android.car.permission.CAR_SPEED";
+    private static final String PERMISSION_HVAC = "android.car.permission.CONTROL_CAR_CLIMATE";
+    private static final int PID = 1000;
+    private static final int UID_1 = 10001;
+    private static final int UID_2 = 10002;
+
+    private final Set<String> mGranted = new HashSet<>();
+    private final List<Integer> mInvalidatedUids = new ArrayList<>();
+    private int mCheckCount;
+    private CarPermissionCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new CarPermissionCache(null /* context */, (permission, pid, uid) -> {
+            mCheckCount++;
+            return mGranted.contains(uid + "/" + permission)
+                    ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+        });
+        mCache.addInvalidationListener(uid -> mInvalidatedUids.add(uid));
+        mCache.setCaching(true);
+        mInvalidatedUids.clear();
+    }
+
+    public void testDecisionsAreCheckedOncePerUidAndPermission() {
+        mGranted.add(UID_1 + "/" + PERMISSION_SPEED);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mCache.hasPermission(PERMISSION_SPEED, PID, UID_1));
+            assertFalse(mCache.hasPermission(PERMISSION_HVAC, PID, UID_1));
+            assertFalse(mCache.hasPermission(PERMISSION_SPEED, PID, UID_2));
+        }
+        assertEquals(3, mCheckCount);
+    }
+
+    public void testInvalidateUidOnlyDropsItsDecisions() {
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_1);
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_2);
+        mGranted.add(UID_1 + "/" + PERMISSION_SPEED);
+
+        mCache.invalidate(UID_1);
+
+        assertTrue(mCache.hasPermission(PERMISSION_SPEED, PID, UID_1));
+        assertFalse(mCache.hasPermission(PERMISSION_SPEED, PID, UID_2));
+        assertEquals(3, mCheckCount);
+        assertEquals(1, mInvalidatedUids.size());
+        assertEquals(UID_1, (int) mInvalidatedUids.get(0));
+    }
+
+    public void testInvalidateAllChangesGeneration() {
+        int generation = mCache.getGeneration();
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_1);
+
+        mCache.invalidate(CarPermissionCache.ALL_UIDS);
+
+        assertTrue(generation != mCache.getGeneration());
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_1);
+        assertEquals(2, mCheckCount);
+        assertEquals(CarPermissionCache.ALL_UIDS, (int) mInvalidatedUids.get(0));
+    }
+
+    public void testNothingIsCachedWhenNotCaching() {
+        mCache.setCaching(false);
+
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_1);
+        mCache.hasPermission(PERMISSION_SPEED, PID, UID_1);
+
+        assertEquals(2, mCheckCount);
+        assertEquals(CarPermissionCache.NOT_CACHING, mCache.getGeneration());
+    }
+}
@@ -156,6 +156,23 @@ public class CarPowerManagementServiceTest extends AndroidTestCase {
 
     }
 
+    public void testSleepEntryAndWakeupRecordsPhases() throws Exception {
+        initTest(0, 0);
+        assertTrue(mDisplayInterface.waitForDisplayStateChange(WAIT_TIMEOUT_MS));
+
+        mPowerHal.setCurrentPowerState(new PowerState(PowerHalService.STATE_SHUTDOWN_PREPARE,
+                PowerHalService.SHUTDOWN_CAN_SLEEP));
+        assertStateReceived(PowerHalService.SET_DEEP_SLEEP_ENTRY, 0);
+        mSystemStateInterface.waitForSleepEntryAndWakeup(WAIT_TIMEOUT_MS);
+        mPowerEventListener.waitForSleepExit(WAIT_TIMEOUT_MS);
+
+        PowerPhaseTracer tracer = mService.getPhaseTracer();
+        assertTrue(tracer.getSampleCount(PowerPhaseTracer.PHASE_SHUTDOWN_PREPARE) > 0);
+        assertTrue(tracer.getSampleCount(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN) > 0);
+        assertTrue(tracer.getSampleCount(PowerPhaseTracer.PHASE_DEEP_SLEEP_ENTRY) > 0);
+        assertTrue(tracer.getPercentileNs(PowerPhaseTracer.PHASE_DEEP_SLEEP_ENTRY, 50) >= 0);
+    }
+
     public void testSleepEntryAndPowerOnWithProcessing() throws Exception {
         final long processingTimeMs = 3000;
         final int wakeupTime = 100;
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import static org.mockito.ArgumentMatchers.anyFloat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.car.VehicleAreaType;
+import android.car.hardware.CarPropertyConfig;
+import android.car.hardware.CarPropertyValue;
+import android.car.hardware.property.CarPropertyEvent;
+import android.content.Context;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.car.hal.EventLatencyTracker;
+import com.android.car.hal.PropertyHalService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the listeners of {@link CarPropertyService} within the car service process,
+ * against a mocked {@link PropertyHalService}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarPropertyServiceTest {
+    private static final int SPEED = VehicleProperty.PERF_VEHICLE_SPEED;
+    private static final int GEAR = VehicleProperty.GEAR_SELECTION;
+    private static final int NIGHT_MODE = VehicleProperty.NIGHT_MODE;
+    private static final int AREA = 0;
+
+    @Mock private Context mMockContext;
+    @Mock private PropertyHalService mMockHal;
+    private CarPropertyService mService;
+    private final List<String> mReceived = new ArrayList<>();
+
+    private final InternalPropertyListener mListener = new InternalPropertyListener() {
+        @Override
+        public void onIntPropertyChanged(int propId, int areaId, long timestamp, int value) {
+            mReceived.add("int " + propId + " " + value);
+        }
+
+        @Override
+        public void onFloatPropertyChanged(int propId, int areaId, long timestamp,
+                float value) {
+            mReceived.add("float " + propId + " " + value);
+        }
+
+        @Override
+        public void onBooleanPropertyChanged(int propId, int areaId, long timestamp,
+                boolean value) {
+            mReceived.add("boolean " + propId + " " + value);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        Map<Integer, CarPropertyConfig<?>> configs = new HashMap<>();
+        configs.put(SPEED, config(Float.class, SPEED));
+        configs.put(GEAR, config(Integer.class, GEAR));
+        configs.put(NIGHT_MODE, config(Boolean.class, NIGHT_MODE));
+        when(mMockHal.getPropertyList()).thenReturn(configs);
+        when(mMockHal.getEventLatencyTracker()).thenReturn(new EventLatencyTracker());
+        when(mMockHal.getProperty(SPEED, AREA)).thenReturn(new CarPropertyValue<>(SPEED, AREA,
+                10f));
+        mService = new CarPropertyService(mMockContext, mMockHal);
+    }
+
+    @Test
+    public void testRegisterDeliversCurrentValuesAndSubscribes() {
+        mService.registerInternalListener(new int[] {SPEED, GEAR}, 5f, null /* executor */,
+                mListener);
+
+        assertEquals(Arrays.asList("float " + SPEED + " 10.0"), mReceived);
+        verify(mMockHal).setListener(mService);
+        verify(mMockHal).subscribeProperty(SPEED, 5f);
+        verify(mMockHal).subscribeProperty(GEAR, 5f);
+    }
+
+    @Test
+    public void testEventsAreDeliveredUnboxedForRegisteredPropertiesOnly() {
+        mService.registerInternalListener(new int[] {GEAR, NIGHT_MODE}, 0, null /* executor */,
+                mListener);
+        mReceived.clear();
+
+        mService.onPropertyChange(Arrays.asList(event(SPEED, 20f), event(GEAR, 4),
+                event(NIGHT_MODE, true)));
+
+        assertEquals(Arrays.asList("int " + GEAR + " 4", "boolean " + NIGHT_MODE + " true"),
+                mReceived);
+    }
+
+    @Test
+    public void testEventsAreDeliveredOnExecutor() {
+        List<Runnable> tasks = new ArrayList<>();
+        mService.registerInternalListener(new int[] {GEAR}, 0, tasks::add, mListener);
+
+        mService.onPropertyChange(Arrays.asList(event(GEAR, 2)));
+        assertEquals(0, mReceived.size());
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        assertEquals(Arrays.asList("int " + GEAR + " 2"), mReceived);
+    }
+
+    @Test
+    public void testUnregisterUnsubscribesAndStopsDelivery() {
+        mService.registerInternalListener(new int[] {GEAR}, 0, null /* executor */, mListener);
+
+        mService.unregisterInternalListener(mListener);
+        mService.onPropertyChange(Arrays.asList(event(GEAR, 3)));
+
+        assertEquals(0, mReceived.size());
+        verify(mMockHal).unsubscribeProperty(GEAR);
+        verify(mMockHal).setListener(null);
+    }
+
+    @Test
+    public void testUnsupportedPropertiesAreIgnored() {
+        mService.registerInternalListener(new int[] {VehicleProperty.INFO_VIN}, 5f,
+                null /* executor */, mListener);
+
+        assertEquals(0, mReceived.size());
+        verify(mMockHal, never()).subscribeProperty(anyInt(), anyFloat());
+    }
+
+    @Test
+    public void testRegisterTwiceFails() {
+        mService.registerInternalListener(new int[] {GEAR}, 0, null /* executor */, mListener);
+        try {
+            mService.registerInternalListener(new int[] {GEAR}, 0, null /* executor */,
+                    mListener);
+            fail("Listener registered twice");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static <T> CarPropertyConfig<T> config(Class<T> type, int propId) {
+        return CarPropertyConfig.newBuilder(type, propId, VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL)
+                .addArea(AREA)
+                .build();
+    }
+
+    private static <T> CarPropertyEvent event(int propId, T value) {
+        return new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
+                new CarPropertyValue<>(propId, AREA, 0, 1, value));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.os.Trace;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarServiceInitSchedulerTest extends TestCase {
+    private static final long WAIT_TIMEOUT_MS = 2000;
+
+    private final List<FakeService> mInitOrder = new ArrayList<>();
+    private CarServiceInitScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new CarServiceInitScheduler(CarServiceInitSchedulerTest.class.getSimpleName(),
+                Trace.TRACE_TAG_HAL, 4);
+    }
+
+    public void testCriticalServicesRunOnCallingThreadInOrder() {
+        FakeService first = new FakeService("first");
+        FakeService second = new FakeService("second");
+        mScheduler.addService(first, CarServiceInitScheduler.PHASE_CRITICAL);
+        mScheduler.addService(second, CarServiceInitScheduler.PHASE_CRITICAL);
+
+        mScheduler.start();
+
+        assertEquals(Thread.currentThread(), first.mInitThread);
+        assertEquals(Thread.currentThread(), second.mInitThread);
+        assertEquals(first, mInitOrder.get(0));
+        assertEquals(second, mInitOrder.get(1));
+    }
+
+    public void testDependenciesAreInitedFirst() {
+        FakeService critical = new FakeService("critical");
+        FakeService a = new FakeService("a");
+        FakeService b = new FakeService("b");
+        FakeService dependent = new FakeService("dependent");
+        mScheduler.addService(critical, CarServiceInitScheduler.PHASE_CRITICAL);
+        mScheduler.addService(a, CarServiceInitScheduler.PHASE_PARALLEL, critical);
+        mScheduler.addService(b, CarServiceInitScheduler.PHASE_PARALLEL);
+        mScheduler.addService(dependent, CarServiceInitScheduler.PHASE_PARALLEL, a, b);
+
+        mScheduler.start();
+
+        for (FakeService service : new FakeService[] {critical, a, b, dependent}) {
+            assertTrue(mScheduler.isInitialized(service));
+        }
+        synchronized (mInitOrder) {
+            assertTrue(mInitOrder.indexOf(critical) < mInitOrder.indexOf(a));
+            assertTrue(mInitOrder.indexOf(a) < mInitOrder.indexOf(dependent));
+            assertTrue(mInitOrder.indexOf(b) < mInitOrder.indexOf(dependent));
+        }
+    }
+
+    public void testIndependentServicesRunInParallel() throws Exception {
+        // Each init waits for the other to start, which only works if they run concurrently.
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        FakeService a = new FakeService("a", bothStarted);
+        FakeService b = new FakeService("b", bothStarted);
+        mScheduler.addService(a, CarServiceInitScheduler.PHASE_PARALLEL);
+        mScheduler.addService(b, CarServiceInitScheduler.PHASE_PARALLEL);
+
+        mScheduler.start();
+
+        assertTrue(a.mRendezvousReached);
+        assertTrue(b.mRendezvousReached);
+    }
+
+    public void testDeferredServicesWaitForStartDeferred() {
+        FakeService deferred = new FakeService("deferred");
+        mScheduler.addService(deferred, CarServiceInitScheduler.PHASE_DEFERRED);
+
+        mScheduler.start();
+        assertFalse(mScheduler.isInitialized(deferred));
+
+        mScheduler.startDeferred();
+        assertTrue(mScheduler.awaitInit(deferred));
+    }
+
+    public void testAwaitInitStartsDeferredServices() {
+        FakeService deferred = new FakeService("deferred");
+        mScheduler.addService(deferred, CarServiceInitScheduler.PHASE_DEFERRED);
+        mScheduler.start();
+
+        assertTrue(mScheduler.awaitInit(deferred));
+    }
+
+    public void testFailureIsRethrownAndDependentsSkipped() {
+        FakeService failing = new FakeService("failing");
+        failing.mFailure = new IllegalStateException("init failed");
+        FakeService dependent = new FakeService("dependent");
+        mScheduler.addService(failing, CarServiceInitScheduler.PHASE_PARALLEL);
+        mScheduler.addService(dependent, CarServiceInitScheduler.PHASE_PARALLEL, failing);
+
+        try {
+            mScheduler.start();
+            fail("Expected init failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertSame(failing.mFailure, e);
+        }
+        assertFalse(mScheduler.isInitialized(failing));
+        assertFalse(mScheduler.isInitialized(dependent));
+        assertNull(dependent.mInitThread);
+    }
+
+    public void testCancelSkipsPendingServices() {
+        FakeService deferred = new FakeService("deferred");
+        mScheduler.addService(deferred, CarServiceInitScheduler.PHASE_DEFERRED);
+        mScheduler.start();
+
+        mScheduler.cancel();
+
+        assertFalse(mScheduler.awaitInit(deferred));
+        assertNull(deferred.mInitThread);
+    }
+
+    public void testStartAgainAfterCancelAndReset() {
+        FakeService critical = new FakeService("critical");
+        FakeService parallel = new FakeService("parallel");
+        FakeService deferred = new FakeService("deferred");
+        mScheduler.addService(critical, CarServiceInitScheduler.PHASE_CRITICAL);
+        mScheduler.addService(parallel, CarServiceInitScheduler.PHASE_PARALLEL, critical);
+        mScheduler.addService(deferred, CarServiceInitScheduler.PHASE_DEFERRED, parallel);
+        mScheduler.start();
+        mScheduler.startDeferred();
+        assertTrue(mScheduler.awaitInit(deferred));
+
+        // As ICarImpl.release() followed by ICarImpl.init().
+        mScheduler.cancel();
+        mScheduler.reset();
+        assertFalse(mScheduler.isInitialized(critical));
+        mInitOrder.clear();
+        mScheduler.start();
+
+        assertTrue(mScheduler.isInitialized(critical));
+        assertTrue(mScheduler.isInitialized(parallel));
+        assertEquals(2, mInitOrder.size());
+        assertTrue(mScheduler.awaitInit(deferred));
+        assertEquals(deferred, mInitOrder.get(2));
+    }
+
+    public void testDependencyMustBeAddedInEarlierPhase() {
+        FakeService deferred = new FakeService("deferred");
+        mScheduler.addService(deferred, CarServiceInitScheduler.PHASE_DEFERRED);
+        try {
+            mScheduler.addService(new FakeService("parallel"),
+                    CarServiceInitScheduler.PHASE_PARALLEL, deferred);
+            fail("Expected dependency on a later phase to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private class FakeService implements CarServiceBase {
+        private final String mName;
+        private final CountDownLatch mRendezvous;
+        volatile Thread mInitThread;
+        volatile boolean mRendezvousReached;
+        RuntimeException mFailure;
+
+        FakeService(String name) {
+            this(name, null);
+        }
+
+        FakeService(String name, CountDownLatch rendezvous) {
+            mName = name;
+            mRendezvous = rendezvous;
+        }
+
+        @Override
+        public void init() {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            mInitThread = Thread.currentThread();
+            if (mRendezvous != null) {
+                mRendezvous.countDown();
+                try {
+                    mRendezvousReached = mRendezvous.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (mInitOrder) {
+                mInitOrder.add(this);
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+}
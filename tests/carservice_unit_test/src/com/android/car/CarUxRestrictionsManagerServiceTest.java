@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static android.car.drivingstate.CarDrivingStateEvent.DRIVING_STATE_MOVING;
+import static android.car.drivingstate.CarDrivingStateEvent.DRIVING_STATE_PARKED;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyFloat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.car.drivingstate.CarDrivingStateEvent;
+import android.car.drivingstate.CarUxRestrictions;
+import android.car.drivingstate.ICarDrivingStateChangeListener;
+import android.car.drivingstate.ICarUxRestrictionsChangeListener;
+import android.car.hardware.CarPropertyValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.Debug;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for the handling of speed events in {@link CarUxRestrictionsManagerService}, with
+ * the restrictions mapping of the car service resources.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarUxRestrictionsManagerServiceTest {
+    private static final int SPEED = VehicleProperty.PERF_VEHICLE_SPEED;
+    /** Start of the higher moving speed range of the default mapping. */
+    private static final float SPEED_RANGE_BOUNDARY = 5f;
+
+    @Mock private CarDrivingStateService mMockDrivingStateService;
+    @Mock private CarPropertyService mMockPropertyService;
+    @Mock private ICarUxRestrictionsChangeListener mMockUxRListener;
+    @Mock private IBinder mMockUxRListenerBinder;
+
+    private CarUxRestrictionsManagerService mService;
+    private InternalPropertyListener mSpeedListener;
+    private ICarDrivingStateChangeListener mDrivingStateListener;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mMockUxRListener.asBinder()).thenReturn(mMockUxRListenerBinder);
+        mService = new CarUxRestrictionsManagerService(InstrumentationRegistry.getTargetContext(),
+                mMockDrivingStateService, mMockPropertyService);
+        mService.init();
+
+        ArgumentCaptor<InternalPropertyListener> speedListener =
+                ArgumentCaptor.forClass(InternalPropertyListener.class);
+        verify(mMockPropertyService).registerInternalListener(eq(new int[] {SPEED}), anyFloat(),
+                any(), speedListener.capture());
+        mSpeedListener = speedListener.getValue();
+        ArgumentCaptor<ICarDrivingStateChangeListener> drivingStateListener =
+                ArgumentCaptor.forClass(ICarDrivingStateChangeListener.class);
+        verify(mMockDrivingStateService).registerDrivingStateChangeListener(
+                drivingStateListener.capture());
+        mDrivingStateListener = drivingStateListener.getValue();
+        mService.registerUxRestrictionsChangeListener(mMockUxRListener);
+    }
+
+    @Test
+    public void testSpeedChangesWithinRangeKeepRestrictions() throws Exception {
+        setDrivingState(DRIVING_STATE_MOVING, 1f);
+        verify(mMockUxRListener).onUxRestrictionsChanged(any(CarUxRestrictions.class));
+        CarUxRestrictions restrictions = mService.getCurrentUxRestrictions();
+        assertTrue(restrictions.isRequiresDistractionOptimization());
+
+        for (float speed = 1f; speed < SPEED_RANGE_BOUNDARY; speed += 0.5f) {
+            sendSpeed(speed);
+        }
+        // The default mapping restricts both moving ranges the same way.
+        sendSpeed(SPEED_RANGE_BOUNDARY + 10f);
+        sendSpeed(1f);
+
+        assertSame(restrictions, mService.getCurrentUxRestrictions());
+        verify(mMockUxRListener, times(1)).onUxRestrictionsChanged(any(CarUxRestrictions.class));
+    }
+
+    @Test
+    public void testSpeedChangesIgnoredWhenNotMoving() throws Exception {
+        setDrivingState(DRIVING_STATE_PARKED, 0f);
+        CarUxRestrictions restrictions = mService.getCurrentUxRestrictions();
+        assertFalse(restrictions.isRequiresDistractionOptimization());
+
+        sendSpeed(10f);
+        sendSpeed(20f);
+
+        assertSame(restrictions, mService.getCurrentUxRestrictions());
+        verify(mMockUxRListener, never()).onUxRestrictionsChanged(any(CarUxRestrictions.class));
+    }
+
+    // Debug allocation counting is deprecated, but still the only way to count allocations.
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testSpeedChangesWithinRangeDoNotAllocate() throws Exception {
+        setDrivingState(DRIVING_STATE_MOVING, 1f);
+        sendSpeed(2f);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 10000; i++) {
+            // Alternate between speeds of the same range so no event is skipped as unchanged.
+            sendSpeed(2f + (i % 20) / 10f);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, allocations);
+    }
+
+    private void setDrivingState(int drivingState, float speed) throws Exception {
+        when(mMockPropertyService.getProperty(SPEED, 0))
+                .thenReturn(new CarPropertyValue<>(SPEED, 0, speed));
+        mDrivingStateListener.onDrivingStateChanged(
+                new CarDrivingStateEvent(drivingState, SystemClock.elapsedRealtimeNanos()));
+    }
+
+    private void sendSpeed(float speed) {
+        mSpeedListener.onFloatPropertyChanged(SPEED, 0, SystemClock.elapsedRealtimeNanos(),
+                speed);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import static android.car.drivingstate.CarDrivingStateEvent.DRIVING_STATE_IDLING;
+import static android.car.drivingstate.CarDrivingStateEvent.DRIVING_STATE_MOVING;
+import static android.car.drivingstate.CarDrivingStateEvent.DRIVING_STATE_PARKED;
+
+import android.car.drivingstate.CarUxRestrictions;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarUxRestrictionsTableTest extends TestCase {
+    private static final float SPEED_INVALID = CarUxRestrictionsTable.SPEED_INVALID;
+
+    private final CarUxRestrictions mFullyRestricted = create(true,
+            CarUxRestrictions.UX_RESTRICTIONS_FULLY_RESTRICTED);
+    private final CarUxRestrictions mParked = create(false,
+            CarUxRestrictions.UX_RESTRICTIONS_BASELINE);
+    private final CarUxRestrictions mSlow = create(true,
+            CarUxRestrictions.UX_RESTRICTIONS_NO_KEYBOARD);
+    private final CarUxRestrictions mFast = create(true,
+            CarUxRestrictions.UX_RESTRICTIONS_NO_VIDEO);
+
+    public void testSingleRangeAppliesToAnySpeed() {
+        CarUxRestrictionsTable table = new CarUxRestrictionsTable.Builder(mFullyRestricted)
+                .addRange(DRIVING_STATE_PARKED, SPEED_INVALID, SPEED_INVALID, mParked)
+                .build();
+
+        assertSame(mParked, table.getUxRestrictions(DRIVING_STATE_PARKED, 0f));
+        assertSame(mParked, table.getUxRestrictions(DRIVING_STATE_PARKED, 100f));
+        assertSame(mFullyRestricted, table.getUxRestrictions(DRIVING_STATE_IDLING, 0f));
+    }
+
+    public void testSpeedRanges() {
+        CarUxRestrictionsTable table = createMovingTable(0);
+
+        assertSame(mFullyRestricted, table.getUxRestrictions(DRIVING_STATE_MOVING, -1f));
+        assertSame(mSlow, table.getUxRestrictions(DRIVING_STATE_MOVING, 0f));
+        assertSame(mSlow, table.getUxRestrictions(DRIVING_STATE_MOVING, 4.99f));
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, 5f));
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, 1000f));
+        assertSame(mFullyRestricted, table.getUxRestrictions(DRIVING_STATE_MOVING, Float.NaN));
+    }
+
+    public void testGapBetweenRangesIsFullyRestricted() {
+        CarUxRestrictionsTable table = new CarUxRestrictionsTable.Builder(mFullyRestricted)
+                .addRange(DRIVING_STATE_MOVING, 0f, 5f, mSlow)
+                .addRange(DRIVING_STATE_MOVING, 10f, SPEED_INVALID, mFast)
+                .build();
+
+        assertSame(mSlow, table.getUxRestrictions(DRIVING_STATE_MOVING, 1f));
+        assertSame(mFullyRestricted, table.getUxRestrictions(DRIVING_STATE_MOVING, 7f));
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, 10f));
+    }
+
+    public void testHysteresisOnlyDelaysLowerSpeedRanges() {
+        CarUxRestrictionsTable table = createMovingTable(1f);
+
+        int segment = table.findSegment(DRIVING_STATE_MOVING, 4f,
+                CarUxRestrictionsTable.SEGMENT_UNKNOWN);
+        assertSame(mSlow, table.getUxRestrictions(DRIVING_STATE_MOVING, segment));
+        // Going up switches right at the boundary.
+        segment = table.findSegment(DRIVING_STATE_MOVING, 5f, segment);
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, segment));
+        // Going down only switches once below the boundary minus the hysteresis.
+        segment = table.findSegment(DRIVING_STATE_MOVING, 4.5f, segment);
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, segment));
+        segment = table.findSegment(DRIVING_STATE_MOVING, 4.1f, segment);
+        assertSame(mFast, table.getUxRestrictions(DRIVING_STATE_MOVING, segment));
+        segment = table.findSegment(DRIVING_STATE_MOVING, 3.9f, segment);
+        assertSame(mSlow, table.getUxRestrictions(DRIVING_STATE_MOVING, segment));
+    }
+
+    // Debug allocation counting is deprecated, but still the only way to count allocations.
+    @SuppressWarnings("deprecation")
+    public void testLookupDoesNotAllocate() {
+        CarUxRestrictionsTable table = createMovingTable(0.5f);
+        int segment = CarUxRestrictionsTable.SEGMENT_UNKNOWN;
+        int fastCount = 0;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 10000; i++) {
+            float speed = (i % 200) / 10f;
+            segment = table.findSegment(DRIVING_STATE_MOVING, speed, segment);
+            if (table.getUxRestrictions(DRIVING_STATE_MOVING, segment) == mFast) {
+                fastCount++;
+            }
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertTrue(fastCount > 0);
+        assertEquals(0, allocations);
+    }
+
+    private CarUxRestrictionsTable createMovingTable(float speedHysteresis) {
+        return new CarUxRestrictionsTable.Builder(mFullyRestricted)
+                .addRange(DRIVING_STATE_MOVING, 0f, 5f, mSlow)
+                .addRange(DRIVING_STATE_MOVING, 5f, SPEED_INVALID, mFast)
+                .setSpeedHysteresis(speedHysteresis)
+                .build();
+    }
+
+    private static CarUxRestrictions create(boolean requiresOpt, int restrictions) {
+        return new CarUxRestrictions.Builder(requiresOpt, restrictions, 0).build();
+    }
+}
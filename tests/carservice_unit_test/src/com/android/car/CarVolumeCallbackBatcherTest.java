@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.media.AudioManager;
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseIntArray;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarVolumeCallbackBatcherTest extends TestCase {
+    private static final long BATCH_INTERVAL_MS = 50;
+    private static final long WAIT_TIMEOUT_MS = 2000;
+
+    private HandlerThread mHandlerThread;
+    private RecordingDispatcher mDispatcher;
+    private CarVolumeCallbackBatcher mBatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread(CarVolumeCallbackBatcherTest.class.getSimpleName());
+        mHandlerThread.start();
+        mDispatcher = new RecordingDispatcher();
+        mBatcher = new CarVolumeCallbackBatcher(mHandlerThread.getLooper(), mDispatcher,
+                BATCH_INTERVAL_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    public void testKnobSpinIsCoalesced() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            mBatcher.onGroupVolumeChanged(0, 0);
+        }
+        mBatcher.onGroupVolumeChanged(0, AudioManager.FLAG_SHOW_UI);
+        mBatcher.onGroupVolumeChanged(1, AudioManager.FLAG_FROM_KEY);
+
+        assertTrue(mDispatcher.waitForCallbacks(2));
+        synchronized (mDispatcher) {
+            assertEquals(2, mDispatcher.mCallbackCount);
+            assertEquals(AudioManager.FLAG_SHOW_UI, mDispatcher.mFlags.get(0));
+            assertEquals(AudioManager.FLAG_FROM_KEY, mDispatcher.mFlags.get(1));
+        }
+    }
+
+    public void testNextBatchIsDeliveredSeparately() throws Exception {
+        mBatcher.onGroupVolumeChanged(0, 0);
+        assertTrue(mDispatcher.waitForCallbacks(1));
+        mBatcher.onGroupVolumeChanged(0, 0);
+        assertTrue(mDispatcher.waitForCallbacks(1));
+        synchronized (mDispatcher) {
+            assertEquals(2, mDispatcher.mCallbackCount);
+        }
+    }
+
+    public void testCancel() throws Exception {
+        mBatcher.onGroupVolumeChanged(0, 0);
+        mBatcher.cancel();
+        assertFalse(mDispatcher.waitForCallbacks(1, BATCH_INTERVAL_MS * 4));
+    }
+
+    private static final class RecordingDispatcher implements CarVolumeCallbackBatcher.Dispatcher {
+        private final Semaphore mAvailable = new Semaphore(0);
+        private final SparseIntArray mFlags = new SparseIntArray();
+        private int mCallbackCount;
+
+        @Override
+        public void onGroupVolumeChanged(int groupId, int flags) {
+            synchronized (this) {
+                mCallbackCount++;
+                mFlags.put(groupId, flags);
+            }
+            mAvailable.release();
+        }
+
+        boolean waitForCallbacks(int count) throws InterruptedException {
+            return waitForCallbacks(count, WAIT_TIMEOUT_MS);
+        }
+
+        boolean waitForCallbacks(int count, long timeoutMs) throws InterruptedException {
+            return mAvailable.tryAcquire(count, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
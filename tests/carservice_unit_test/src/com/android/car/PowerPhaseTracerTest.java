@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class PowerPhaseTracerTest extends TestCase {
+
+    public void testNoSamples() {
+        PowerPhaseTracer tracer = new PowerPhaseTracer();
+        assertEquals(0, tracer.getSampleCount(PowerPhaseTracer.PHASE_SHUTDOWN_PREPARE));
+        assertEquals(-1, tracer.getPercentileNs(PowerPhaseTracer.PHASE_SHUTDOWN_PREPARE, 50));
+    }
+
+    public void testPercentiles() {
+        PowerPhaseTracer tracer = new PowerPhaseTracer();
+        for (int i = 1; i <= 100; i++) {
+            tracer.recordSpan(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON,
+                    PowerPhaseTracer.NO_HANDLER, 1000, 1000 + i);
+        }
+        // Default history keeps only the most recent 64 cycles: 37..100.
+        assertEquals(64, tracer.getSampleCount(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON));
+        assertEquals(37, tracer.getPercentileNs(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON, 0));
+        assertEquals(68, tracer.getPercentileNs(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON, 50));
+        assertEquals(100,
+                tracer.getPercentileNs(PowerPhaseTracer.PHASE_RESUME_TO_DISPLAY_ON, 100));
+    }
+
+    public void testPhasesAreIndependent() {
+        PowerPhaseTracer tracer = new PowerPhaseTracer(4, 4);
+        tracer.recordSpan(PowerPhaseTracer.PHASE_DEEP_SLEEP_ENTRY, PowerPhaseTracer.NO_HANDLER,
+                0, 10);
+        tracer.recordSpan(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN, 0, 0, 20);
+        tracer.recordSpan(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN, 1, 0, 30);
+        assertEquals(1, tracer.getSampleCount(PowerPhaseTracer.PHASE_DEEP_SLEEP_ENTRY));
+        assertEquals(2, tracer.getSampleCount(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN));
+        assertEquals(30,
+                tracer.getPercentileNs(PowerPhaseTracer.PHASE_HANDLER_PREPARE_SHUTDOWN, 100));
+    }
+
+    public void testDumpAfterWrapAround() {
+        PowerPhaseTracer tracer = new PowerPhaseTracer(2, 2);
+        for (int i = 0; i < 5; i++) {
+            tracer.recordSpan(PowerPhaseTracer.PHASE_SLEEP_EXIT, PowerPhaseTracer.NO_HANDLER,
+                    i * 1000000L, i * 1000000L + 500000L);
+        }
+        StringWriter out = new StringWriter();
+        tracer.dump(new PrintWriter(out));
+        String dump = out.toString();
+        assertTrue(dump.contains("SLEEP_EXIT"));
+        assertFalse(dump.contains("start:0.0"));
+        assertTrue(dump.contains("start:4.0"));
+    }
+
+    public void testReset() {
+        PowerPhaseTracer tracer = new PowerPhaseTracer();
+        tracer.recordSpan(PowerPhaseTracer.PHASE_PROCESSING, PowerPhaseTracer.NO_HANDLER, 0, 1);
+        tracer.reset();
+        assertEquals(0, tracer.getSampleCount(PowerPhaseTracer.PHASE_PROCESSING));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.cluster;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ClusterActivityRegistryTest extends TestCase {
+    private static final String PERMISSION = "android.car.permission.CAR_DISPLAY_IN_CLUSTER";
+    private static final String CATEGORY = "android.car.cluster.NAVIGATION";
+    private static final String PACKAGE_NAV = "com.example.nav";
+    private static final String PACKAGE_OTHER = "com.example.other";
+
+    private PackageManager mPackageManager;
+    private ClusterActivityRegistry mRegistry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPackageManager = mock(PackageManager.class);
+        when(mPackageManager.queryIntentActivities(any(Intent.class), anyInt())).thenReturn(
+                Arrays.asList(createResolveInfo(PACKAGE_NAV), createResolveInfo(PACKAGE_OTHER)));
+        when(mPackageManager.checkPermission(PERMISSION, PACKAGE_NAV))
+                .thenReturn(PERMISSION_GRANTED);
+        when(mPackageManager.checkPermission(PERMISSION, PACKAGE_OTHER))
+                .thenReturn(PERMISSION_DENIED);
+        mRegistry = new ClusterActivityRegistry(mPackageManager, PERMISSION);
+    }
+
+    public void testResolveFiltersByPermission() {
+        List<ResolveInfo> resolved = mRegistry.resolve(createIntent());
+
+        assertEquals(1, resolved.size());
+        assertEquals(PACKAGE_NAV, resolved.get(0).getComponentInfo().packageName);
+    }
+
+    public void testRepeatedResolveIsCached() {
+        for (int i = 0; i < 10; i++) {
+            Intent intent = createIntent();
+            assertEquals(1, mRegistry.resolve(intent).size());
+            // Callers make the intent explicit after resolving, which must not affect the cache.
+            intent.setComponent(new ComponentName(PACKAGE_NAV, "Activity"));
+        }
+
+        verify(mPackageManager, times(1)).queryIntentActivities(any(Intent.class), anyInt());
+        verify(mPackageManager, times(2)).checkPermission(anyString(), anyString());
+    }
+
+    public void testPackageChangeInvalidates() {
+        mRegistry.resolve(createIntent());
+        mRegistry.onPackageChanged(PACKAGE_OTHER);
+        when(mPackageManager.checkPermission(PERMISSION, PACKAGE_OTHER))
+                .thenReturn(PERMISSION_GRANTED);
+
+        assertEquals(2, mRegistry.resolve(createIntent()).size());
+        verify(mPackageManager, times(2)).queryIntentActivities(any(Intent.class), anyInt());
+        // Permission of the unchanged package is still cached.
+        verify(mPackageManager, times(1)).checkPermission(PERMISSION, PACKAGE_NAV);
+        verify(mPackageManager, times(2)).checkPermission(PERMISSION, PACKAGE_OTHER);
+    }
+
+    public void testDifferentIntentsAreResolvedSeparately() {
+        mRegistry.resolve(createIntent());
+        mRegistry.resolve(createIntent().addCategory("other"));
+        mRegistry.resolve(createIntent());
+
+        verify(mPackageManager, times(2)).queryIntentActivities(any(Intent.class),
+                eq(PackageManager.GET_RESOLVED_FILTER));
+    }
+
+    private static Intent createIntent() {
+        return new Intent(Intent.ACTION_MAIN).addCategory(CATEGORY);
+    }
+
+    private static ResolveInfo createResolveInfo(String packageName) {
+        ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = packageName;
+        info.activityInfo.name = packageName + ".Activity";
+        return info;
+    }
+}
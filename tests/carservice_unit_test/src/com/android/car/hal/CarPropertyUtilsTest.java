@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import android.car.hardware.CarPropertyValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleArea;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyGroup;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyType;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CarPropertyUtilsTest extends TestCase {
+    private static final int MGR_PROP_ID = 0x1234;
+
+    public void testIntVectorIsHeldAsPrimitives() {
+        VehiclePropValue halValue = newHalValue(VehiclePropertyType.INT32_VEC);
+        halValue.value.int32Values.addAll(Arrays.asList(1, 2, 3));
+
+        CarPropertyValue<?> value = CarPropertyUtils.toCarPropertyValue(halValue, MGR_PROP_ID);
+
+        assertTrue(Arrays.equals(new int[] {1, 2, 3}, value.getIntArrayValue()));
+        assertNull(value.getFloatArrayValue());
+        assertTrue(Arrays.equals(new Object[] {1, 2, 3}, (Object[]) value.getValue()));
+    }
+
+    public void testScalarsAreBoxedAsScalars() {
+        VehiclePropValue floatValue = newHalValue(VehiclePropertyType.FLOAT);
+        floatValue.value.floatValues.add(2.5f);
+        assertEquals(2.5f, CarPropertyUtils.toCarPropertyValue(floatValue, MGR_PROP_ID)
+                .getValue());
+
+        VehiclePropValue longValue = newHalValue(VehiclePropertyType.INT64);
+        longValue.value.int64Values.add(7L);
+        assertEquals(7L, CarPropertyUtils.toCarPropertyValue(longValue, MGR_PROP_ID)
+                .getValue());
+    }
+
+    public void testLongVectorIsBoxedAsTypedArray() {
+        VehiclePropValue halValue = newHalValue(VehiclePropertyType.INT64_VEC);
+        halValue.value.int64Values.add(7L);
+
+        Object value = CarPropertyUtils.toCarPropertyValue(halValue, MGR_PROP_ID).getValue();
+
+        assertEquals(Long[].class, value.getClass());
+        assertTrue(Arrays.equals(new Long[] {7L}, (Long[]) value));
+    }
+
+    public void testPrimitiveValueToVehiclePropValue() {
+        VehiclePropValue halValue = newHalValue(VehiclePropertyType.FLOAT_VEC);
+        halValue.value.floatValues.addAll(Arrays.asList(0.5f, 1.5f));
+        CarPropertyValue<?> value = CarPropertyUtils.toCarPropertyValue(halValue, MGR_PROP_ID);
+
+        VehiclePropValue converted = CarPropertyUtils.toVehiclePropValue(value, halValue.prop);
+
+        assertEquals(halValue.prop, converted.prop);
+        assertEquals(Arrays.asList(0.5f, 1.5f), converted.value.floatValues);
+    }
+
+    public void testBooleanArrayToVehiclePropValue() {
+        CarPropertyValue<Boolean[]> value =
+                new CarPropertyValue<>(MGR_PROP_ID, 0, new Boolean[] {true, false});
+
+        VehiclePropValue converted = CarPropertyUtils.toVehiclePropValue(value, 0);
+
+        assertEquals(Arrays.asList(1, 0), converted.value.int32Values);
+    }
+
+    private static VehiclePropValue newHalValue(int type) {
+        VehiclePropValue halValue = new VehiclePropValue();
+        halValue.prop = VehiclePropertyGroup.VENDOR | VehicleArea.GLOBAL | type | 0x0101;
+        return halValue;
+    }
+}
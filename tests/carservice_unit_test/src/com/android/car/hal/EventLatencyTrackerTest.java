@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.car.internal.LatencyHistogram;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class EventLatencyTrackerTest extends TestCase {
+    private static final long NANOS_PER_MICRO = 1000;
+
+    public void testHistogramEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    public void testHistogramSmallLatenciesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 0; micros < 8; micros++) {
+            histogram.record(micros * NANOS_PER_MICRO);
+        }
+        assertEquals(8, histogram.getCount());
+        assertEquals(3, histogram.getPercentileMicros(50));
+        assertEquals(7, histogram.getPercentileMicros(100));
+    }
+
+    public void testHistogramPercentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.record(micros * NANOS_PER_MICRO);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertWithinBucketError(5000, histogram.getPercentileMicros(50));
+        assertWithinBucketError(9000, histogram.getPercentileMicros(90));
+        assertWithinBucketError(9900, histogram.getPercentileMicros(99));
+    }
+
+    public void testHistogramNegativeAndHugeLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5 * NANOS_PER_MICRO);
+        assertEquals(0, histogram.getPercentileMicros(100));
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.getPercentileMicros(100) > 60_000_000);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    public void testTrackerRecordsPerHopAndProperty() {
+        EventLatencyTracker tracker = new EventLatencyTracker();
+        long timestamp = SystemClock.elapsedRealtimeNanos() - 2000 * NANOS_PER_MICRO;
+        tracker.record(EventLatencyTracker.HOP_PROPERTY_HAL,
+                VehicleProperty.PERF_VEHICLE_SPEED, timestamp);
+
+        LatencyHistogram histogram = tracker.getHistogram(EventLatencyTracker.HOP_PROPERTY_HAL,
+                VehicleProperty.PERF_VEHICLE_SPEED);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getPercentileMicros(50) >= 2000);
+        assertEquals(0, tracker.getHistogram(EventLatencyTracker.HOP_BINDER_SEND,
+                VehicleProperty.PERF_VEHICLE_SPEED).getCount());
+        assertNull(tracker.getHistogram(EventLatencyTracker.HOP_PROPERTY_HAL,
+                VehicleProperty.NIGHT_MODE));
+
+        tracker.reset();
+        assertNull(tracker.getHistogram(EventLatencyTracker.HOP_PROPERTY_HAL,
+                VehicleProperty.PERF_VEHICLE_SPEED));
+    }
+
+    public void testTrackerIgnoresEventsWithoutTimestamp() {
+        EventLatencyTracker tracker = new EventLatencyTracker();
+        tracker.record(EventLatencyTracker.HOP_HIDL_CALLBACK, VehicleProperty.NIGHT_MODE, 0);
+        assertNull(tracker.getHistogram(EventLatencyTracker.HOP_HIDL_CALLBACK,
+                VehicleProperty.NIGHT_MODE));
+    }
+
+    private static void assertWithinBucketError(long expectedMicros, long actualMicros) {
+        assertTrue("expected ~" + expectedMicros + " but was " + actualMicros,
+                actualMicros >= expectedMicros && actualMicros <= expectedMicros * 1.125);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Mockito.verify;
+
+import android.hardware.automotive.vehicle.V2_0.VehicleHwKeyInputAction;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.KeyEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the translation of HW_KEY_INPUT events into {@link KeyEvent}s by
+ * {@link InputHalService}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InputHalServiceTest {
+    private static final int MAIN = InputHalService.DISPLAY_MAIN;
+    private static final int CLUSTER = InputHalService.DISPLAY_INSTRUMENT_CLUSTER;
+    private static final int ROTARY = KeyEvent.KEYCODE_NAVIGATE_NEXT;
+    private static final long MS = 1_000_000L;
+
+    @Mock private VehicleHal mMockHal;
+    private InputHalService mService;
+    /** Events are recycled after delivery, so only their description is kept. */
+    private final List<String> mReceived = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mService = new InputHalService(mMockHal);
+        VehiclePropConfig config = new VehiclePropConfig();
+        config.prop = VehicleProperty.HW_KEY_INPUT;
+        mService.takeSupportedProperties(Collections.singletonList(config));
+        mService.setRotaryKeyCodes(new int[] { ROTARY });
+        mService.setInputListener((event, display) -> mReceived.add(
+                KeyEvent.actionToString(event.getAction()) + " "
+                        + KeyEvent.keyCodeToString(event.getKeyCode()) + " x"
+                        + event.getRepeatCount() + " " + display));
+    }
+
+    @Test
+    public void testKeysAreDeliveredInOrderToTheirDisplay() {
+        assertTrue(mService.isKeyInputSupported());
+        verify(mMockHal).subscribeProperty(mService, VehicleProperty.HW_KEY_INPUT);
+
+        mService.handleHalEvents(Arrays.asList(
+                key(VehicleHwKeyInputAction.ACTION_DOWN, KeyEvent.KEYCODE_ENTER, MAIN, 0),
+                key(VehicleHwKeyInputAction.ACTION_UP, KeyEvent.KEYCODE_ENTER, MAIN, 0),
+                key(VehicleHwKeyInputAction.ACTION_DOWN, KeyEvent.KEYCODE_TAB, CLUSTER, 0)));
+
+        assertEquals(Arrays.asList(
+                "ACTION_DOWN KEYCODE_ENTER x0 " + MAIN,
+                "ACTION_UP KEYCODE_ENTER x0 " + MAIN,
+                "ACTION_DOWN KEYCODE_TAB x0 " + CLUSTER), mReceived);
+    }
+
+    @Test
+    public void testSingleDetentIsDeliveredAsKeyPress() {
+        mService.handleHalEvents(detents(1));
+
+        assertEquals(Arrays.asList(
+                "ACTION_DOWN KEYCODE_NAVIGATE_NEXT x0 " + MAIN,
+                "ACTION_UP KEYCODE_NAVIGATE_NEXT x0 " + MAIN), mReceived);
+    }
+
+    @Test
+    public void testDetentsWithinFrameAreMerged() {
+        List<VehiclePropValue> events = detents(3);
+        // Merged detents are delivered before the next regular key.
+        events.add(key(VehicleHwKeyInputAction.ACTION_DOWN, KeyEvent.KEYCODE_ENTER, MAIN, 0));
+        mService.handleHalEvents(events);
+
+        assertEquals(Arrays.asList(
+                "ACTION_MULTIPLE KEYCODE_NAVIGATE_NEXT x3 " + MAIN,
+                "ACTION_DOWN KEYCODE_ENTER x0 " + MAIN), mReceived);
+    }
+
+    /** {@code count} detents 1 ms apart, each a down / up pair. */
+    private static List<VehiclePropValue> detents(int count) {
+        List<VehiclePropValue> events = new ArrayList<>();
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < count; i++) {
+            events.add(key(VehicleHwKeyInputAction.ACTION_DOWN, ROTARY, MAIN, timestamp));
+            events.add(key(VehicleHwKeyInputAction.ACTION_UP, ROTARY, MAIN, timestamp));
+            timestamp += MS;
+        }
+        return events;
+    }
+
+    private static VehiclePropValue key(int action, int code, int display, long timestamp) {
+        VehiclePropValue value = new VehiclePropValue();
+        value.prop = VehicleProperty.HW_KEY_INPUT;
+        value.timestamp = timestamp;
+        value.value.int32Values.addAll(Arrays.asList(action, code, display, 0));
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.KeyEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class RotaryEventAggregatorTest extends TestCase {
+    private static final int ROTARY_NEXT = KeyEvent.KEYCODE_NAVIGATE_NEXT;
+    private static final int ROTARY_PREVIOUS = KeyEvent.KEYCODE_NAVIGATE_PREVIOUS;
+    private static final int DISPLAY = InputHalService.DISPLAY_MAIN;
+    private static final long MS = 1_000_000L;
+
+    private final List<int[]> mEvents = new ArrayList<>();
+    private final List<Long> mFirstTimestamps = new ArrayList<>();
+    private RotaryEventAggregator mAggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAggregator = new RotaryEventAggregator(
+                (keyCode, display, detentCount, delta, firstTimestampNs) -> {
+                    mEvents.add(new int[] { keyCode, display, detentCount, delta });
+                    mFirstTimestamps.add(firstTimestampNs);
+                });
+        mAggregator.setAggregatedKeyCodes(new int[] { ROTARY_NEXT, ROTARY_PREVIOUS });
+    }
+
+    public void testIsAggregated() {
+        assertTrue(mAggregator.isAggregated(ROTARY_NEXT));
+        assertFalse(mAggregator.isAggregated(KeyEvent.KEYCODE_VOICE_ASSIST));
+    }
+
+    public void testDetentsWithinFrameAreMerged() {
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY, 0);
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY, 5 * MS);
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY, 10 * MS);
+        assertTrue(mEvents.isEmpty());
+        mAggregator.flush();
+        assertEquals(1, mEvents.size());
+        assertEquals(ROTARY_NEXT, mEvents.get(0)[0]);
+        assertEquals(3, mEvents.get(0)[2]);
+        // First run of a spin is not accelerated.
+        assertEquals(3, mEvents.get(0)[3]);
+        assertEquals(Long.valueOf(0), mFirstTimestamps.get(0));
+    }
+
+    public void testDirectionChangeSplitsRun() {
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY, 0);
+        mAggregator.addDetent(ROTARY_PREVIOUS, DISPLAY, 1 * MS);
+        mAggregator.addDetent(ROTARY_PREVIOUS, DISPLAY, 2 * MS);
+        mAggregator.flush();
+        assertEquals(2, mEvents.size());
+        assertEquals(ROTARY_NEXT, mEvents.get(0)[0]);
+        assertEquals(1, mEvents.get(0)[2]);
+        assertEquals(ROTARY_PREVIOUS, mEvents.get(1)[0]);
+        assertEquals(2, mEvents.get(1)[2]);
+        assertEquals(Long.valueOf(1 * MS), mFirstTimestamps.get(1));
+    }
+
+    public void testDetentsBeyondFrameAreNotMerged() {
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY, 0);
+        mAggregator.addDetent(ROTARY_NEXT, DISPLAY,
+                RotaryEventAggregator.AGGREGATION_WINDOW_NS + 1);
+        mAggregator.flush();
+        assertEquals(2, mEvents.size());
+    }
+
+    public void testFastSpinIsAccelerated() {
+        long time = 0;
+        for (int frame = 0; frame < 5; frame++) {
+            for (int i = 0; i < 4; i++) {
+                mAggregator.addDetent(ROTARY_NEXT, DISPLAY, time);
+                time += 2 * MS;
+            }
+            mAggregator.flush();
+            time += 10 * MS;
+        }
+        assertEquals(5, mEvents.size());
+        int[] last = mEvents.get(mEvents.size() - 1);
+        assertEquals(4, last[2]);
+        assertTrue("delta " + last[3] + " should be accelerated", last[3] > last[2]);
+    }
+
+    public void testComputeDelta() {
+        // Slow spin, no acceleration.
+        assertEquals(1, RotaryEventAggregator.computeDelta(1, 200 * MS));
+        // Spin restarted after a pause.
+        assertEquals(5, RotaryEventAggregator.computeDelta(5,
+                RotaryEventAggregator.SPIN_RESET_NS + 1));
+        // Very fast spin, maximum acceleration.
+        assertEquals(Math.round(4 * RotaryEventAggregator.MAX_ACCELERATION),
+                RotaryEventAggregator.computeDelta(4, 10 * MS));
+    }
+}
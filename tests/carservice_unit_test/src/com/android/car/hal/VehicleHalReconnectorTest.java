@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class VehicleHalReconnectorTest extends TestCase {
+    private static final int AREA = 0x10;
+
+    private VehicleHalReconnector mReconnector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mReconnector = new VehicleHalReconnector();
+    }
+
+    public void testDrivingSafetySubscriptionsComeFirst() {
+        List<SubscribeOptions[]> groups = VehicleHalReconnector.groupByPriority(Arrays.asList(
+                subscription(VehicleProperty.NIGHT_MODE),
+                subscription(VehicleProperty.PERF_VEHICLE_SPEED),
+                subscription(VehicleProperty.FUEL_LEVEL),
+                subscription(VehicleProperty.GEAR_SELECTION)));
+
+        assertEquals(2, groups.size());
+        assertEquals(VehicleProperty.PERF_VEHICLE_SPEED, groups.get(0)[0].propId);
+        assertEquals(VehicleProperty.GEAR_SELECTION, groups.get(0)[1].propId);
+        assertEquals(VehicleProperty.NIGHT_MODE, groups.get(1)[0].propId);
+        assertEquals(VehicleProperty.FUEL_LEVEL, groups.get(1)[1].propId);
+    }
+
+    public void testNoEmptyGroups() {
+        List<SubscribeOptions[]> groups = VehicleHalReconnector.groupByPriority(
+                Arrays.asList(subscription(VehicleProperty.NIGHT_MODE)));
+
+        assertEquals(1, groups.size());
+        assertEquals(VehicleProperty.NIGHT_MODE, groups.get(0)[0].propId);
+    }
+
+    public void testLastValuePerArea() {
+        VehiclePropValue global = value(VehicleProperty.NIGHT_MODE, 0, 1);
+        VehiclePropValue area = value(VehicleProperty.NIGHT_MODE, AREA, 2);
+        mReconnector.onPropertyEvents(Arrays.asList(global, area));
+        mReconnector.onPropertyEvents(
+                Arrays.asList(value(VehicleProperty.NIGHT_MODE, AREA, 3)));
+
+        assertSame(global, mReconnector.getLastValue(VehicleProperty.NIGHT_MODE,
+                VehicleHalReconnector.NO_AREA));
+        assertEquals(3, mReconnector.getLastValue(VehicleProperty.NIGHT_MODE, AREA).timestamp);
+        assertNull(mReconnector.getLastValue(VehicleProperty.FUEL_LEVEL, 0));
+
+        mReconnector.clearProperty(VehicleProperty.NIGHT_MODE);
+        assertNull(mReconnector.getLastValue(VehicleProperty.NIGHT_MODE, AREA));
+    }
+
+    public void testOutageMetrics() {
+        assertFalse(mReconnector.isHalDisconnected());
+        assertEquals(-1, mReconnector.getLastOutageDurationMs());
+
+        mReconnector.onHalDied();
+        assertTrue(mReconnector.isHalDisconnected());
+        SystemClock.sleep(20);
+        mReconnector.onHalReconnected();
+        mReconnector.onRecoveryDone();
+
+        assertFalse(mReconnector.isHalDisconnected());
+        assertEquals(1, mReconnector.getOutageCount());
+        assertTrue(mReconnector.getLastOutageDurationMs() >= 20);
+        assertTrue(mReconnector.getLastRecoveryTimeMs() >= 0);
+    }
+
+    public void testReconnectWithoutDeathIsNotAnOutage() {
+        mReconnector.onHalReconnected();
+        mReconnector.onRecoveryDone();
+
+        assertEquals(0, mReconnector.getOutageCount());
+        assertEquals(-1, mReconnector.getLastOutageDurationMs());
+        assertTrue(mReconnector.getLastRecoveryTimeMs() >= 0);
+    }
+
+    private static SubscribeOptions subscription(int propId) {
+        SubscribeOptions options = new SubscribeOptions();
+        options.propId = propId;
+        return options;
+    }
+
+    private static VehiclePropValue value(int propId, int areaId, long timestamp) {
+        VehiclePropValue value = new VehiclePropValue();
+        value.prop = propId;
+        value.areaId = areaId;
+        value.timestamp = timestamp;
+        return value;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.IVehicleCallback;
+import android.hardware.automotive.vehicle.V2_0.SubscribeOptions;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.VhalTraceReader;
+import com.android.car.vehiclehal.VhalTraceWriter;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+import com.android.car.vehiclehal.test.VhalTraceReplayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class VehicleHalTraceRecorderTest extends TestCase {
+    private static final long WAIT_TIMEOUT_MS = 2000;
+    private static final int AREA = 0x10;
+
+    public void testTraceRoundTrip() throws Exception {
+        VehiclePropValue speed = VehiclePropValueBuilder.newBuilder(
+                VehicleProperty.PERF_VEHICLE_SPEED)
+                .addFloatValue(27.5f)
+                .setTimestamp(900)
+                .build();
+        VehiclePropValue mixed = VehiclePropValueBuilder.newBuilder(VehicleProperty.INFO_VIN)
+                .setAreaId(AREA)
+                .addIntValue(1, -2)
+                .setInt64Value(Long.MIN_VALUE)
+                .addByteValue((byte) 0xff)
+                .setStringValue("1GCHK23")
+                .setTimestamp(2500)
+                .build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (VhalTraceWriter writer = new VhalTraceWriter(out)) {
+            writer.write(1000, speed);
+            writer.write(2000, mixed);
+        }
+
+        VhalTraceReader reader = new VhalTraceReader(new ByteArrayInputStream(out.toByteArray()));
+        VehiclePropValue read = reader.next();
+        assertEquals(1000, reader.getCaptureTimeNanos());
+        assertEquals(900, read.timestamp);
+        assertEquals(VehicleProperty.PERF_VEHICLE_SPEED, read.prop);
+        assertEquals(Arrays.asList(27.5f), read.value.floatValues);
+
+        read = reader.next();
+        assertEquals(2000, reader.getCaptureTimeNanos());
+        assertEquals(2500, read.timestamp);
+        assertEquals(AREA, read.areaId);
+        assertEquals(Arrays.asList(1, -2), read.value.int32Values);
+        assertEquals(Arrays.asList(Long.MIN_VALUE), read.value.int64Values);
+        assertEquals(Arrays.asList((byte) 0xff), read.value.bytes);
+        assertEquals("1GCHK23", read.value.stringValue);
+
+        assertNull(reader.next());
+    }
+
+    public void testTruncatedTraceFails() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (VhalTraceWriter writer = new VhalTraceWriter(out)) {
+            writer.write(1000, speedValue(1f));
+        }
+        byte[] trace = Arrays.copyOf(out.toByteArray(), out.size() - 2);
+
+        VhalTraceReader reader = new VhalTraceReader(new ByteArrayInputStream(trace));
+        try {
+            reader.next();
+            fail("Truncated trace read");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testRecorderWritesEventsUntilStopped() throws Exception {
+        File file = File.createTempFile("vhal", ".trace");
+        try {
+            VehicleHalTraceRecorder recorder = new VehicleHalTraceRecorder();
+            recorder.onPropertyEvents(Arrays.asList(speedValue(0f)));
+            recorder.start(file, VehicleHalTraceRecorder.DEFAULT_MAX_TRACE_BYTES);
+            assertTrue(recorder.isRecording());
+            recorder.onPropertyEvents(Arrays.asList(speedValue(1f), speedValue(2f)));
+            recorder.onPropertyEvents(Arrays.asList(speedValue(3f)));
+            recorder.stop();
+            assertFalse(recorder.isRecording());
+            recorder.onPropertyEvents(Arrays.asList(speedValue(4f)));
+
+            List<Float> speeds = waitForTrace(file, 3);
+            assertEquals(Arrays.asList(1f, 2f, 3f), speeds);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRecorderStopsAtSizeLimit() throws Exception {
+        File file = File.createTempFile("vhal", ".trace");
+        try {
+            VehicleHalTraceRecorder recorder = new VehicleHalTraceRecorder();
+            recorder.start(file, 1 /* maxBytes */);
+            recorder.onPropertyEvents(Arrays.asList(speedValue(1f)));
+
+            long deadline = SystemClock.uptimeMillis() + WAIT_TIMEOUT_MS;
+            while (recorder.isRecording() && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(10);
+            }
+            assertFalse(recorder.isRecording());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReplaySkipsUnsubscribedProperties() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (VhalTraceWriter writer = new VhalTraceWriter(out)) {
+            writer.write(1000, speedValue(1f));
+            writer.write(2000, VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                    .setBooleanValue(true)
+                    .build());
+            writer.write(3000, speedValue(2f));
+        }
+        MockedVehicleHal vehicleHal = new MockedVehicleHal();
+        CollectingCallback callback = subscribeToSpeed(vehicleHal);
+
+        VhalTraceReplayer replayer = new VhalTraceReplayer(vehicleHal)
+                .setSpeed(VhalTraceReplayer.SPEED_MAX);
+        replayer.replay(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(2, replayer.getInjectedEvents());
+        assertEquals(1, replayer.getSkippedEvents());
+        assertEquals(2, callback.mValues.size());
+        assertEquals(2f, callback.mValues.get(1).value.floatValues.get(0));
+    }
+
+    public void testReplayKeepsBatches() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (VhalTraceWriter writer = new VhalTraceWriter(out)) {
+            writer.write(1000, Arrays.asList(speedValue(1f),
+                    VehiclePropValueBuilder.newBuilder(VehicleProperty.NIGHT_MODE)
+                            .setBooleanValue(true)
+                            .build(),
+                    speedValue(2f)));
+            writer.write(2000, speedValue(3f));
+        }
+        VhalTraceReader reader = new VhalTraceReader(new ByteArrayInputStream(out.toByteArray()));
+        List<Boolean> batchStarts = new ArrayList<>();
+        while (reader.next() != null) {
+            batchStarts.add(reader.isBatchStart());
+        }
+        assertEquals(Arrays.asList(true, false, false, true), batchStarts);
+
+        MockedVehicleHal vehicleHal = new MockedVehicleHal();
+        CollectingCallback callback = subscribeToSpeed(vehicleHal);
+        VhalTraceReplayer replayer = new VhalTraceReplayer(vehicleHal)
+                .setSpeed(VhalTraceReplayer.SPEED_MAX);
+        replayer.replay(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(3, replayer.getInjectedEvents());
+        assertEquals(1, replayer.getSkippedEvents());
+        assertEquals(Arrays.asList(2, 1), callback.mBatchSizes);
+    }
+
+    private static CollectingCallback subscribeToSpeed(MockedVehicleHal vehicleHal)
+            throws Exception {
+        VehiclePropConfig config =
+                VehiclePropConfigBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED).build();
+        vehicleHal.addProperties(config);
+        CollectingCallback callback = new CollectingCallback();
+        SubscribeOptions options = new SubscribeOptions();
+        options.propId = VehicleProperty.PERF_VEHICLE_SPEED;
+        vehicleHal.subscribe(callback, new ArrayList<>(Arrays.asList(options)));
+        return callback;
+    }
+
+    private static List<Float> waitForTrace(File file, int eventCount) throws Exception {
+        List<Float> speeds = new ArrayList<>();
+        long deadline = SystemClock.uptimeMillis() + WAIT_TIMEOUT_MS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            speeds.clear();
+            try (VhalTraceReader reader = new VhalTraceReader(new FileInputStream(file))) {
+                VehiclePropValue value;
+                while ((value = reader.next()) != null) {
+                    speeds.add(value.value.floatValues.get(0));
+                }
+            } catch (IOException e) {
+                // Not fully written yet.
+            }
+            if (speeds.size() >= eventCount) {
+                break;
+            }
+            SystemClock.sleep(10);
+        }
+        return speeds;
+    }
+
+    private static VehiclePropValue speedValue(float speed) {
+        return VehiclePropValueBuilder.newBuilder(VehicleProperty.PERF_VEHICLE_SPEED)
+                .addFloatValue(speed)
+                .setTimestamp()
+                .build();
+    }
+
+    private static class CollectingCallback extends IVehicleCallback.Stub {
+        private final List<VehiclePropValue> mValues = new ArrayList<>();
+        private final List<Integer> mBatchSizes = new ArrayList<>();
+
+        @Override
+        public void onPropertyEvent(ArrayList<VehiclePropValue> values) {
+            mValues.addAll(values);
+            mBatchSizes.add(values.size());
+        }
+
+        @Override
+        public void onPropertySet(VehiclePropValue value) {}
+
+        @Override
+        public void onPropertySetError(int errorCode, int propId, int areaId) {}
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vehiclehal;
+
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_BATCH_START;
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_BYTES;
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_FLOAT;
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_INT32;
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_INT64;
+import static com.android.car.vehiclehal.VhalTraceWriter.FLAG_STRING;
+
+import android.annotation.Nullable;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams events out of a trace written by {@link VhalTraceWriter}, one at a time, so that traces
+ * of long drives can be replayed without loading them in memory. A batch of events runs from an
+ * event that {@link #isBatchStart()} to the next one. Not thread safe.
+ */
+public class VhalTraceReader implements Closeable {
+
+    private final DataInputStream mIn;
+    private final boolean mBatched;
+    private long mCaptureTimeNanos;
+    private boolean mBatchStart;
+
+    public VhalTraceReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        int magic = mIn.readInt();
+        if (magic != VhalTraceWriter.MAGIC) {
+            throw new IOException("Not a VHAL trace, magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = mIn.readInt();
+        if (version != VhalTraceWriter.VERSION
+                && version != VhalTraceWriter.VERSION_UNBATCHED) {
+            throw new IOException("Unsupported VHAL trace version: " + version);
+        }
+        mBatched = version != VhalTraceWriter.VERSION_UNBATCHED;
+    }
+
+    /**
+     * @return next event of the trace, null once the end was reached.
+     * @throws IOException if the trace is truncated or can not be read.
+     */
+    @Nullable
+    public VehiclePropValue next() throws IOException {
+        int flags = mIn.read();
+        if (flags < 0) {
+            return null;
+        }
+        mBatchStart = !mBatched || (flags & FLAG_BATCH_START) != 0;
+        try {
+            mCaptureTimeNanos += readVarLong();
+            VehiclePropValue value = new VehiclePropValue();
+            value.timestamp = mCaptureTimeNanos + unZigZag(readVarLong());
+            value.prop = mIn.readInt();
+            value.areaId = mIn.readInt();
+            value.status = (int) readVarLong();
+            if ((flags & FLAG_INT32) != 0) {
+                for (int count = readCount(); count > 0; count--) {
+                    value.value.int32Values.add(mIn.readInt());
+                }
+            }
+            if ((flags & FLAG_FLOAT) != 0) {
+                for (int count = readCount(); count > 0; count--) {
+                    value.value.floatValues.add(mIn.readFloat());
+                }
+            }
+            if ((flags & FLAG_INT64) != 0) {
+                for (int count = readCount(); count > 0; count--) {
+                    value.value.int64Values.add(mIn.readLong());
+                }
+            }
+            if ((flags & FLAG_BYTES) != 0) {
+                for (int count = readCount(); count > 0; count--) {
+                    value.value.bytes.add(mIn.readByte());
+                }
+            }
+            if ((flags & FLAG_STRING) != 0) {
+                byte[] bytes = new byte[readCount()];
+                mIn.readFully(bytes);
+                value.value.stringValue = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return value;
+        } catch (EOFException e) {
+            throw new IOException("Truncated VHAL trace", e);
+        }
+    }
+
+    /**
+     * @return capture time of the event last returned by {@link #next()}, in
+     *         {@link android.os.SystemClock#elapsedRealtimeNanos()} of the recording device.
+     */
+    public long getCaptureTimeNanos() {
+        return mCaptureTimeNanos;
+    }
+
+    /**
+     * @return true if the event last returned by {@link #next()} is the first of a batch the
+     *         Vehicle HAL delivered, events following it up to the next batch start belong to
+     *         the same batch.
+     */
+    public boolean isBatchStart() {
+        return mBatchStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private int readCount() throws IOException {
+        long count = readVarLong();
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Corrupted VHAL trace, count: " + count);
+        }
+        return (int) count;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted VHAL trace, varint too long");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vehiclehal;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a binary trace of Vehicle HAL events, read back by {@link VhalTraceReader}.
+ *
+ * A trace starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per event:
+ * <ul>
+ *   <li>a byte of {@code FLAG_*} telling which parts of the value are present, and
+ *       {@link #FLAG_BATCH_START} on the first event of each batch the Vehicle HAL delivered,
+ *   <li>the capture time as a varint delta from the previous record,
+ *   <li>the value timestamp as a zig-zag varint delta from the capture time,
+ *   <li>property and area as 4 bytes each, status as a varint,
+ *   <li>each present array as a varint count followed by its elements, and the string as a
+ *       varint length followed by UTF-8 bytes.
+ * </ul>
+ * An event with a single float takes about 20 bytes. Not thread safe.
+ */
+public class VhalTraceWriter implements Closeable {
+
+    static final int MAGIC = 0x56485452; // "VHTR"
+    static final int VERSION = 2;
+    /** Version without batches, every event was delivered on its own. */
+    static final int VERSION_UNBATCHED = 1;
+
+    static final int FLAG_INT32 = 1;
+    static final int FLAG_FLOAT = 1 << 1;
+    static final int FLAG_INT64 = 1 << 2;
+    static final int FLAG_BYTES = 1 << 3;
+    static final int FLAG_STRING = 1 << 4;
+    static final int FLAG_BATCH_START = 1 << 5;
+
+    private final DataOutputStream mOut;
+    private long mLastCaptureTimeNanos;
+    private long mEventCount;
+
+    public VhalTraceWriter(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /**
+     * Writes an event delivered on its own, see {@link #write(long, List)}.
+     */
+    public void write(long captureTimeNanos, VehiclePropValue value) throws IOException {
+        checkCaptureTime(captureTimeNanos);
+        writeRecord(captureTimeNanos, value, FLAG_BATCH_START);
+    }
+
+    /**
+     * Writes the events of one batch, replayed in a single callback.
+     *
+     * @param captureTimeNanos time the batch was received, in
+     *        {@link android.os.SystemClock#elapsedRealtimeNanos()}. Must not decrease between
+     *        calls, replay is paced on it.
+     */
+    public void write(long captureTimeNanos, List<VehiclePropValue> values) throws IOException {
+        checkCaptureTime(captureTimeNanos);
+        for (int i = 0; i < values.size(); i++) {
+            writeRecord(captureTimeNanos, values.get(i), i == 0 ? FLAG_BATCH_START : 0);
+        }
+    }
+
+    private void checkCaptureTime(long captureTimeNanos) {
+        if (captureTimeNanos < mLastCaptureTimeNanos) {
+            throw new IllegalArgumentException("capture time went back from "
+                    + mLastCaptureTimeNanos + " to " + captureTimeNanos);
+        }
+    }
+
+    private void writeRecord(long captureTimeNanos, VehiclePropValue value, int flags)
+            throws IOException {
+        if (!value.value.int32Values.isEmpty()) flags |= FLAG_INT32;
+        if (!value.value.floatValues.isEmpty()) flags |= FLAG_FLOAT;
+        if (!value.value.int64Values.isEmpty()) flags |= FLAG_INT64;
+        if (!value.value.bytes.isEmpty()) flags |= FLAG_BYTES;
+        if (value.value.stringValue != null && !value.value.stringValue.isEmpty()) {
+            flags |= FLAG_STRING;
+        }
+        mOut.writeByte(flags);
+        writeVarLong(captureTimeNanos - mLastCaptureTimeNanos);
+        writeVarLong(zigZag(value.timestamp - captureTimeNanos));
+        mOut.writeInt(value.prop);
+        mOut.writeInt(value.areaId);
+        writeVarLong(value.status);
+        if ((flags & FLAG_INT32) != 0) {
+            ArrayList<Integer> values = value.value.int32Values;
+            writeVarLong(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                mOut.writeInt(values.get(i));
+            }
+        }
+        if ((flags & FLAG_FLOAT) != 0) {
+            ArrayList<Float> values = value.value.floatValues;
+            writeVarLong(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                mOut.writeFloat(values.get(i));
+            }
+        }
+        if ((flags & FLAG_INT64) != 0) {
+            ArrayList<Long> values = value.value.int64Values;
+            writeVarLong(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                mOut.writeLong(values.get(i));
+            }
+        }
+        if ((flags & FLAG_BYTES) != 0) {
+            ArrayList<Byte> values = value.value.bytes;
+            writeVarLong(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                mOut.writeByte(values.get(i));
+            }
+        }
+        if ((flags & FLAG_STRING) != 0) {
+            byte[] bytes = value.value.stringValue.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            mOut.write(bytes);
+        }
+        mLastCaptureTimeNanos = captureTimeNanos;
+        mEventCount++;
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /** @return bytes written so far, saturated at {@link Integer#MAX_VALUE}. */
+    public int getSize() {
+        return mOut.size();
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            mOut.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
@@ -36,6 +36,7 @@ import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -93,6 +94,37 @@ public class MockedVehicleHal extends IVehicle.Stub {
         }
     }
 
+    /**
+     * Injects a batch of events, each subscriber receives the events of its properties in a
+     * single callback, in order. Events of properties without subscribers are dropped.
+     *
+     * @return number of events injected.
+     */
+    public synchronized int injectEventsIfSubscribed(List<VehiclePropValue> values) {
+        Map<IVehicleCallback, ArrayList<VehiclePropValue>> batches = new LinkedHashMap<>();
+        int injected = 0;
+        for (VehiclePropValue value : values) {
+            List<IVehicleCallback> callbacks = mSubscribers.get(value.prop);
+            if (callbacks == null) {
+                continue;
+            }
+            injected++;
+            for (IVehicleCallback callback : callbacks) {
+                batches.computeIfAbsent(callback, c -> new ArrayList<>()).add(value);
+            }
+        }
+        for (Map.Entry<IVehicleCallback, ArrayList<VehiclePropValue>> batch
+                : batches.entrySet()) {
+            try {
+                batch.getKey().onPropertyEvent(batch.getValue());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                fail("Remote exception while injecting events.");
+            }
+        }
+        return injected;
+    }
+
     public synchronized void injectEvent(VehiclePropValue value, boolean setProperty) {
         List<IVehicleCallback> callbacks = mSubscribers.get(value.prop);
         assertNotNull("Injecting event failed for property: " + value.prop
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vehiclehal.test;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.SystemClock;
+
+import com.android.car.vehiclehal.VhalTraceReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a trace recorded by the car service into a {@link MockedVehicleHal}, streaming it so
+ * that traces of long drives do not need to fit in memory.
+ *
+ * Events are injected in the batches the Vehicle HAL delivered them in, at the pace they were
+ * captured, sped up by {@link #setSpeed(float)}, or as fast as possible with {@link #SPEED_MAX}.
+ * Timestamps are shifted so that the trace appears to be happening now. Events of properties
+ * nobody subscribed to are skipped and counted.
+ */
+public class VhalTraceReplayer {
+
+    /** Replays without waiting between events. */
+    public static final float SPEED_MAX = 0;
+
+    private final MockedVehicleHal mVehicleHal;
+    private float mSpeed = 1;
+    private volatile boolean mStopped;
+
+    private long mInjectedEvents;
+    private long mSkippedEvents;
+    private long mMaxLagNanos;
+
+    public VhalTraceReplayer(MockedVehicleHal vehicleHal) {
+        mVehicleHal = vehicleHal;
+    }
+
+    /**
+     * @param speed factor applied to the pace of the trace, 1 to replay in real time,
+     *        {@link #SPEED_MAX} to replay without waiting.
+     */
+    public VhalTraceReplayer setSpeed(float speed) {
+        if (speed < 0 || Float.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid replay speed: " + speed);
+        }
+        mSpeed = speed;
+        return this;
+    }
+
+    /**
+     * Replays the whole trace, returns once it was fully injected or {@link #stop()} was called.
+     * The stream is closed on return.
+     */
+    public void replay(InputStream in) throws IOException, InterruptedException {
+        mStopped = false;
+        mInjectedEvents = 0;
+        mSkippedEvents = 0;
+        mMaxLagNanos = 0;
+        try (VhalTraceReader reader = new VhalTraceReader(in)) {
+            long replayStartNanos = SystemClock.elapsedRealtimeNanos();
+            long traceStartNanos = -1;
+            long dueNanos = 0;
+            List<VehiclePropValue> batch = new ArrayList<>();
+            VehiclePropValue value;
+            while (!mStopped && (value = reader.next()) != null) {
+                long captureTimeNanos = reader.getCaptureTimeNanos();
+                if (reader.isBatchStart()) {
+                    // The previous batch is complete. Events of a batch share the capture time.
+                    inject(batch);
+                    if (traceStartNanos < 0) {
+                        traceStartNanos = captureTimeNanos;
+                    }
+                    long now = SystemClock.elapsedRealtimeNanos();
+                    dueNanos = now;
+                    if (mSpeed != SPEED_MAX) {
+                        dueNanos = replayStartNanos
+                                + (long) ((captureTimeNanos - traceStartNanos) / mSpeed);
+                        if (dueNanos > now) {
+                            waitNanos(dueNanos - now);
+                        } else {
+                            mMaxLagNanos = Math.max(mMaxLagNanos, now - dueNanos);
+                        }
+                    }
+                }
+                value.timestamp = dueNanos + (value.timestamp - captureTimeNanos);
+                batch.add(value);
+            }
+            if (!mStopped) {
+                inject(batch);
+            }
+        }
+    }
+
+    /** Makes an ongoing {@link #replay(InputStream)} return, may be called from any thread. */
+    public void stop() {
+        mStopped = true;
+    }
+
+    public long getInjectedEvents() {
+        return mInjectedEvents;
+    }
+
+    /** @return events of the trace for properties nobody subscribed to. */
+    public long getSkippedEvents() {
+        return mSkippedEvents;
+    }
+
+    /** @return longest delay behind the pace of the trace, 0 when replaying at max speed. */
+    public long getMaxLagNanos() {
+        return mMaxLagNanos;
+    }
+
+    /** Injects the batch in a single callback per subscriber and clears it. */
+    private void inject(List<VehiclePropValue> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int injected = mVehicleHal.injectEventsIfSubscribed(batch);
+        mInjectedEvents += injected;
+        mSkippedEvents += batch.size() - injected;
+        batch.clear();
+    }
+
+    private static void waitNanos(long nanos) throws InterruptedException {
+        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    }
+}